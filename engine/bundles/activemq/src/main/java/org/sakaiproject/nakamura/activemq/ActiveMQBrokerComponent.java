@@ -50,6 +50,18 @@ public class ActiveMQBrokerComponent {
 
   private BrokerService broker;
 
+  /**
+   * Start the embedded broker from outside this bundle, for testing other bundles against
+   * a real broker.
+   */
+  public void activateForTest(ComponentContext componentContext) throws Exception {
+    activate(componentContext);
+  }
+
+  public void deactivateForTest(ComponentContext componentContext) {
+    deactivate(componentContext);
+  }
+
   @Activate
   protected void activate(ComponentContext componentContext) throws Exception {
     try {
@@ -44,6 +44,10 @@ public class ActiveMQConnectionFactoryService implements ConnectionFactoryServic
     activate(componentContext);
   }
 
+  public void deactivateForTest(ComponentContext componentContext) {
+    deactivate(componentContext);
+  }
+
   @SuppressWarnings("unchecked")
   protected void activate(ComponentContext componentContext) {
     Dictionary<String, Object> props = componentContext.getProperties();
@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * A single activity to be copied into a single feed.
+ */
+class ActivityDelivery {
+
+  private final String activityPath;
+  private final String feedPath;
+
+  ActivityDelivery(String activityPath, String feedPath) {
+    this.activityPath = activityPath;
+    this.feedPath = feedPath;
+  }
+
+  /**
+   * @return the path of the activity in its activity store.
+   */
+  String getActivityPath() {
+    return activityPath;
+  }
+
+  /**
+   * @return the name of the activity, which is also its id.
+   */
+  String getActivityName() {
+    return activityPath.substring(activityPath.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * @return the path of the feed the activity is delivered to.
+   */
+  String getFeedPath() {
+    return feedPath;
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_SOURCE;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * Writes activities into feeds in batches. Deliveries are queued by feed onto a fixed
+ * set of workers, so a feed is only ever written by one worker. Each worker collects
+ * deliveries for a short window, creates the feeds and the hashed parent folders once
+ * for the batch, copies the activities in the session and saves the lot together. The
+ * queues are bounded, when they are full {@link #submit(String, List)} blocks, which
+ * holds up the JMS consumer rather than letting deliveries pile up in memory.
+ */
+class ActivityFanout {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityFanout.class);
+  /**
+   * How long an idle worker waits before checking if it should stop.
+   */
+  private static final long IDLE_POLL = 1000L;
+
+  private final SlingRepository slingRepository;
+  private final ActivityFanoutStatistics statistics;
+  private final long window;
+  private final int batchSize;
+  private final List<BlockingQueue<ActivityDelivery>> queues;
+  private final List<Thread> workers;
+  private volatile boolean running;
+
+  /**
+   * @param slingRepository
+   *          the repository to write to.
+   * @param statistics
+   *          the counters to update.
+   * @param workers
+   *          the number of worker threads.
+   * @param queueSize
+   *          the number of deliveries each worker can have queued.
+   * @param window
+   *          how long, in ms, a worker collects deliveries for before writing them.
+   * @param batchSize
+   *          the most deliveries written in a single save.
+   */
+  ActivityFanout(SlingRepository slingRepository, ActivityFanoutStatistics statistics,
+      int workers, int queueSize, long window, int batchSize) {
+    this.slingRepository = slingRepository;
+    this.statistics = statistics;
+    this.window = window;
+    this.batchSize = Math.max(1, batchSize);
+    this.queues = new ArrayList<BlockingQueue<ActivityDelivery>>();
+    this.workers = new ArrayList<Thread>();
+    for (int i = 0; i < Math.max(1, workers); i++) {
+      final BlockingQueue<ActivityDelivery> queue = new ArrayBlockingQueue<ActivityDelivery>(
+          Math.max(1, queueSize));
+      queues.add(queue);
+      Thread worker = new Thread("Activity fan out " + i) {
+        @Override
+        public void run() {
+          work(queue);
+        }
+      };
+      worker.setDaemon(true);
+      this.workers.add(worker);
+    }
+  }
+
+  void start() {
+    running = true;
+    for (Thread worker : workers) {
+      worker.start();
+    }
+  }
+
+  /**
+   * Stop the workers once they have written what is queued.
+   *
+   * @param timeout
+   *          the most time, in ms, to wait for each worker.
+   */
+  void stop(long timeout) {
+    running = false;
+    for (Thread worker : workers) {
+      try {
+        worker.join(timeout);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      if (worker.isAlive()) {
+        LOGGER.warn("{} did not finish writing its activities in {} ms ", worker
+            .getName(), timeout);
+      }
+    }
+  }
+
+  /**
+   * Queue an activity for delivery to the destinations of its routes, blocking while
+   * the queues are full.
+   *
+   * @param activityPath
+   *          the path to the activity in its activity store.
+   * @param routes
+   *          the routes for the activity.
+   * @throws InterruptedException
+   */
+  void submit(String activityPath, List<ActivityRoute> routes)
+      throws InterruptedException {
+    long start = System.currentTimeMillis();
+    for (ActivityRoute route : routes) {
+      String feedPath = route.getDestination();
+      BlockingQueue<ActivityDelivery> queue = queues.get((feedPath.hashCode() & 0x7fffffff)
+          % queues.size());
+      queue.put(new ActivityDelivery(activityPath, feedPath));
+    }
+    statistics.queued(routes.size(), System.currentTimeMillis() - start);
+  }
+
+  private void work(BlockingQueue<ActivityDelivery> queue) {
+    List<ActivityDelivery> batch = new ArrayList<ActivityDelivery>();
+    while (running || !queue.isEmpty()) {
+      try {
+        ActivityDelivery first = queue.poll(IDLE_POLL, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long end = System.currentTimeMillis() + window;
+        while (batch.size() < batchSize) {
+          long remaining = end - System.currentTimeMillis();
+          ActivityDelivery next = remaining > 0 ? queue.poll(remaining,
+              TimeUnit.MILLISECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        if (batch.isEmpty()) {
+          continue;
+        }
+      }
+      statistics.dequeued(batch.size());
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Write a batch with its own session, if the batch can not be written as a whole the
+   * deliveries are written one by one so that one bad delivery does not lose the rest.
+   */
+  private void write(List<ActivityDelivery> batch) {
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      try {
+        deliver(session, batch);
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to write a batch of {} activities, writing them singly: {} ",
+            batch.size(), e.getMessage());
+        session.refresh(false);
+        for (ActivityDelivery delivery : batch) {
+          try {
+            deliver(session, Collections.singletonList(delivery));
+          } catch (RepositoryException e1) {
+            LOGGER.error("Unable to deliver activity " + delivery.getActivityPath()
+                + " to " + delivery.getFeedPath(), e1);
+            statistics.failed(1);
+            session.refresh(false);
+          }
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.error("Unable to deliver activities.", e);
+      statistics.failed(batch.size());
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * Write a batch of deliveries with a single save.
+   *
+   * @param session
+   *          the session to write with.
+   * @param batch
+   *          the deliveries.
+   * @throws RepositoryException
+   *           if the batch could not be written, the session will have unsaved changes.
+   */
+  void deliver(Session session, List<ActivityDelivery> batch) throws RepositoryException {
+    long start = System.currentTimeMillis();
+    Map<String, List<ActivityDelivery>> byFeed = new LinkedHashMap<String, List<ActivityDelivery>>();
+    for (ActivityDelivery delivery : batch) {
+      List<ActivityDelivery> l = byFeed.get(delivery.getFeedPath());
+      if (l == null) {
+        l = new ArrayList<ActivityDelivery>();
+        byFeed.put(delivery.getFeedPath(), l);
+      }
+      l.add(delivery);
+    }
+
+    // create the feeds and the hashed folders in them once for the batch.
+    Map<String, Node> parents = new HashMap<String, Node>();
+    for (String feedPath : byFeed.keySet()) {
+      Node feed = JcrUtils.deepGetOrCreateNode(session, feedPath);
+      if (feed.isNew()) {
+        feed.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+            ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE);
+      }
+      for (ActivityDelivery delivery : byFeed.get(feedPath)) {
+        String parentPath = getParentPath(delivery);
+        if (!parents.containsKey(parentPath)) {
+          parents.put(parentPath, JcrUtils.deepGetOrCreateNode(session, parentPath));
+        }
+      }
+    }
+    long prepared = System.currentTimeMillis();
+
+    // copy each activity, an activity going to many feeds is only read once.
+    Map<String, Node> activities = new HashMap<String, Node>();
+    Set<String> delivered = new HashSet<String>();
+    int n = 0;
+    for (List<ActivityDelivery> deliveries : byFeed.values()) {
+      for (ActivityDelivery delivery : deliveries) {
+        String name = delivery.getActivityName();
+        Node parent = parents.get(getParentPath(delivery));
+        if (!delivered.add(parent.getPath() + "/" + name) || parent.hasNode(name)) {
+          LOGGER.debug("Activity {} is already in {} ", name, delivery.getFeedPath());
+          continue;
+        }
+        Node activity = activities.get(delivery.getActivityPath());
+        if (activity == null) {
+          activity = (Node) session.getItem(delivery.getActivityPath());
+          activities.put(delivery.getActivityPath(), activity);
+        }
+        Node feedItem = copyNode(activity, parent, name);
+        feedItem.setProperty(PARAM_SOURCE, delivery.getActivityPath());
+        n++;
+      }
+    }
+    long copied = System.currentTimeMillis();
+    statistics.batch(prepared - start, copied - prepared);
+
+    if (session.hasPendingChanges()) {
+      session.save();
+    }
+    statistics.saved(n, System.currentTimeMillis() - copied);
+  }
+
+  private String getParentPath(ActivityDelivery delivery) {
+    String deliveryPath = ActivityUtils.getPathFromId(delivery.getActivityName(),
+        delivery.getFeedPath());
+    return deliveryPath.substring(0, deliveryPath.lastIndexOf("/"));
+  }
+
+  /**
+   * Copy a node and its children within the session, the equivalent of a workspace copy
+   * but without writing to the workspace until the session is saved.
+   */
+  private Node copyNode(Node source, Node parent, String name) throws RepositoryException {
+    Node copy = parent.addNode(name, source.getPrimaryNodeType().getName());
+    for (NodeType mixin : source.getMixinNodeTypes()) {
+      copy.addMixin(mixin.getName());
+    }
+    for (PropertyIterator pi = source.getProperties(); pi.hasNext();) {
+      Property property = pi.nextProperty();
+      if (property.getDefinition().isProtected()) {
+        continue;
+      }
+      if (property.isMultiple()) {
+        copy.setProperty(property.getName(), property.getValues());
+      } else {
+        copy.setProperty(property.getName(), property.getValue());
+      }
+    }
+    for (NodeIterator ni = source.getNodes(); ni.hasNext();) {
+      Node child = ni.nextNode();
+      copyNode(child, copy, child.getName());
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the activity fan out.
+ */
+public class ActivityFanoutStatistics implements ActivityFanoutStatisticsMBean {
+
+  private AtomicLong activities = new AtomicLong();
+  private AtomicLong deliveries = new AtomicLong();
+  private AtomicLong failedDeliveries = new AtomicLong();
+  private AtomicLong batches = new AtomicLong();
+  private AtomicLong saves = new AtomicLong();
+  private AtomicInteger queued = new AtomicInteger();
+  private AtomicLong routingTime = new AtomicLong();
+  private AtomicLong blockedTime = new AtomicLong();
+  private AtomicLong prepareTime = new AtomicLong();
+  private AtomicLong copyTime = new AtomicLong();
+  private AtomicLong saveTime = new AtomicLong();
+
+  void routed(long time) {
+    activities.incrementAndGet();
+    routingTime.addAndGet(time);
+  }
+
+  void queued(int n, long blocked) {
+    queued.addAndGet(n);
+    blockedTime.addAndGet(blocked);
+  }
+
+  void dequeued(int n) {
+    queued.addAndGet(-n);
+  }
+
+  void batch(long prepare, long copy) {
+    batches.incrementAndGet();
+    prepareTime.addAndGet(prepare);
+    copyTime.addAndGet(copy);
+  }
+
+  void saved(int n, long time) {
+    saves.incrementAndGet();
+    deliveries.addAndGet(n);
+    saveTime.addAndGet(time);
+  }
+
+  void failed(int n) {
+    failedDeliveries.addAndGet(n);
+  }
+
+  public long getActivities() {
+    return activities.get();
+  }
+
+  public long getDeliveries() {
+    return deliveries.get();
+  }
+
+  public long getFailedDeliveries() {
+    return failedDeliveries.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getSaves() {
+    return saves.get();
+  }
+
+  public int getQueuedDeliveries() {
+    return queued.get();
+  }
+
+  public long getRoutingTime() {
+    return routingTime.get();
+  }
+
+  public long getBlockedTime() {
+    return blockedTime.get();
+  }
+
+  public long getPrepareTime() {
+    return prepareTime.get();
+  }
+
+  public long getCopyTime() {
+    return copyTime.get();
+  }
+
+  public long getSaveTime() {
+    return saveTime.get();
+  }
+
+  public void reset() {
+    activities.set(0);
+    deliveries.set(0);
+    failedDeliveries.set(0);
+    batches.set(0);
+    saves.set(0);
+    routingTime.set(0);
+    blockedTime.set(0);
+    prepareTime.set(0);
+    copyTime.set(0);
+    saveTime.set(0);
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * JMX view of the activity fan out counters, times are totals in ms.
+ */
+public interface ActivityFanoutStatisticsMBean {
+
+  /**
+   * @return the number of activities routed.
+   */
+  long getActivities();
+
+  /**
+   * @return the number of feed deliveries written.
+   */
+  long getDeliveries();
+
+  /**
+   * @return the number of deliveries that could not be written.
+   */
+  long getFailedDeliveries();
+
+  /**
+   * @return the number of batches written.
+   */
+  long getBatches();
+
+  /**
+   * @return the number of session saves made writing batches.
+   */
+  long getSaves();
+
+  /**
+   * @return the number of deliveries waiting to be written.
+   */
+  int getQueuedDeliveries();
+
+  /**
+   * @return the time spent working out the routes for activities.
+   */
+  long getRoutingTime();
+
+  /**
+   * @return the time the JMS listener spent blocked because the queues were full.
+   */
+  long getBlockedTime();
+
+  /**
+   * @return the time spent creating feeds and the parents of deliveries.
+   */
+  long getPrepareTime();
+
+  /**
+   * @return the time spent copying activities into feeds.
+   */
+  long getCopyTime();
+
+  /**
+   * @return the time spent saving.
+   */
+  long getSaveTime();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
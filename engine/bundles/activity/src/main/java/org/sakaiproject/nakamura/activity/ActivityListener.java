@@ -21,7 +21,9 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACT
 import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_SOURCE;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
@@ -34,6 +36,8 @@ import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
 import java.util.List;
 
 import javax.jcr.Node;
@@ -45,10 +49,33 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class ActivityListener implements MessageListener {
 
+  @Property(label = "Fan out workers", description = "The number of threads writing activities into feeds.", intValue = ActivityListener.DEFAULT_FANOUT_WORKERS)
+  public static final String FANOUT_WORKERS = "activity.fanout.workers";
+  public static final int DEFAULT_FANOUT_WORKERS = 2;
+
+  @Property(label = "Fan out queue size", description = "The number of deliveries each worker can have waiting, when the queues are full the JMS listener waits.", intValue = ActivityListener.DEFAULT_FANOUT_QUEUE_SIZE)
+  public static final String FANOUT_QUEUE_SIZE = "activity.fanout.queueSize";
+  public static final int DEFAULT_FANOUT_QUEUE_SIZE = 5000;
+
+  @Property(label = "Fan out window (MS)", description = "How long a worker collects deliveries before writing them.", longValue = ActivityListener.DEFAULT_FANOUT_WINDOW)
+  public static final String FANOUT_WINDOW = "activity.fanout.window";
+  public static final long DEFAULT_FANOUT_WINDOW = 200;
+
+  @Property(label = "Fan out batch size", description = "The most deliveries written with a single save.", intValue = ActivityListener.DEFAULT_FANOUT_BATCH_SIZE)
+  public static final String FANOUT_BATCH_SIZE = "activity.fanout.batchSize";
+  public static final int DEFAULT_FANOUT_BATCH_SIZE = 500;
+
+  /**
+   * How long to wait for the workers to write what is queued when stopping.
+   */
+  private static final long FANOUT_STOP_TIMEOUT = 30000L;
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -64,10 +91,30 @@ public class ActivityListener implements MessageListener {
 
   private Connection connection = null;
 
+  private ActivityFanout fanout;
+  private ActivityFanoutStatistics statistics = new ActivityFanoutStatistics();
+  private ObjectName mbeanName;
+
   /**
-   * Start a JMS connection.
+   * Start the fan out workers and a JMS connection.
    */
+  @SuppressWarnings("unchecked")
   public void activate(ComponentContext componentContext) {
+    Dictionary<String, Object> properties = componentContext.getProperties();
+    fanout = new ActivityFanout(slingRepository, statistics, OsgiUtil.toInteger(
+        properties.get(FANOUT_WORKERS), DEFAULT_FANOUT_WORKERS), OsgiUtil.toInteger(
+        properties.get(FANOUT_QUEUE_SIZE), DEFAULT_FANOUT_QUEUE_SIZE), OsgiUtil.toLong(
+        properties.get(FANOUT_WINDOW), DEFAULT_FANOUT_WINDOW), OsgiUtil.toInteger(
+        properties.get(FANOUT_BATCH_SIZE), DEFAULT_FANOUT_BATCH_SIZE));
+    fanout.start();
+    try {
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=ActivityFanout,name="
+          + ActivityListener.class.getSimpleName());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, mbeanName);
+    } catch (JMException e) {
+      LOG.warn("Unable to register activity fan out statistics: {} ", e.getMessage());
+      mbeanName = null;
+    }
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
       javax.jms.Session session = connection.createSession(false,
@@ -88,7 +135,7 @@ public class ActivityListener implements MessageListener {
   }
 
   /**
-   * Close the JMS connection
+   * Close the JMS connection, then let the fan out write what it has queued.
    */
   protected void deactivate(ComponentContext ctx) {
     if (connection != null) {
@@ -98,6 +145,18 @@ public class ActivityListener implements MessageListener {
         LOG.error("Cannot close the activity JMS connection.", e);
       }
     }
+    if (fanout != null) {
+      fanout.stop(FANOUT_STOP_TIMEOUT);
+      fanout = null;
+    }
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        LOG.debug(e.getMessage(), e);
+      }
+      mbeanName = null;
+    }
   }
 
   /**
@@ -110,6 +169,9 @@ public class ActivityListener implements MessageListener {
       final String activityItemPath = message
           .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
       LOG.info("Processing activity: {}", activityItemPath);
+      long start = System.currentTimeMillis();
+      List<ActivityRoute> routes = null;
+      ActivityFanout activityFanout = fanout;
       Session session = slingRepository.loginAdministrative(null); // usage checked and Ok KERN-577
       // usage is NOT ok. whoever made the comment above, sessions must be logged out or they leak.
       try {
@@ -121,12 +183,15 @@ public class ActivityListener implements MessageListener {
         }
   
         // Get all the routes for this activity.
-        List<ActivityRoute> routes = activityRouterManager
-            .getActivityRoutes(activity);
-  
-        // Copy the activity items to each endpoint.
-        for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
+        routes = activityRouterManager.getActivityRoutes(activity);
+        statistics.routed(System.currentTimeMillis() - start);
+
+        if (activityFanout == null) {
+          // Copy the activity items to each endpoint.
+          for (ActivityRoute route : routes) {
+            deliverActivityToFeed(session, activity, route.getDestination());
+          }
+          routes = null;
         }
       } finally {
         try { 
@@ -136,6 +201,13 @@ public class ActivityListener implements MessageListener {
         }
       }
 
+      if (routes != null) {
+        // hand the deliveries to the fan out, this waits while it is full.
+        activityFanout.submit(activityItemPath, routes);
+      }
+    } catch (InterruptedException e) {
+      LOG.warn("Interrupted queueing activity deliveries.");
+      Thread.currentThread().interrupt();
     } catch (JMSException e) {
       LOG.error("Got a JMS exception in the activity listener.", e);
     } catch (RepositoryException e) {
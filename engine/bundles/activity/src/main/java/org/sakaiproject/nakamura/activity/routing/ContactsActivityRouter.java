@@ -30,10 +30,13 @@ import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.util.ReadAccessEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -45,7 +48,9 @@ import javax.jcr.security.Privilege;
 /**
  * This router will deliver an activity to the feed of all the contacts of the actor. It
  * will only deliver if the contact has READ access on the node where the activity was
- * performed on.
+ * performed on. Access is worked out for all the contacts at once from the ACLs on the
+ * activity, only contacts whose access depends on dynamic principals or rules are
+ * checked with a session of their own.
  */
 @Component(immediate = true, enabled = true)
 @Service(value = ActivityRouter.class)
@@ -84,25 +89,17 @@ public class ContactsActivityRouter implements ActivityRouter {
       if (connections != null && connections.size() > 0) {
 
         String activityPath = activity.getPath();
-        AccessControlManager adminACM = AccessControlUtil
-            .getAccessControlManager(adminSession);
         UserManager um = AccessControlUtil.getUserManager(adminSession);
-        Privilege readPriv = adminACM.privilegeFromName("jcr:read");
-        Privilege[] privs = new Privilege[] { readPriv };
-        for (String connection : connections) {
+        Map<String, Boolean> canRead = new ReadAccessEvaluator(adminSession,
+            activityPath).canRead(connections);
+        for (Entry<String, Boolean> e : canRead.entrySet()) {
+          String connection = e.getKey();
           // Check if this connection has READ access on the path.
-          boolean allowCopy = true;
-          Session userSession = null;
-          try {
-            final SimpleCredentials credentials = new SimpleCredentials(
-                connection, "foo".toCharArray());
-            userSession = adminSession.impersonate(credentials);
-            AccessControlManager userACM = AccessControlUtil
-                .getAccessControlManager(userSession);
-            allowCopy = userACM.hasPrivileges(activityPath, privs);
-          } finally {
-            // We no longer need this session anymore, release it.
-            userSession.logout();
+          boolean allowCopy;
+          if (e.getValue() == null) {
+            allowCopy = hasReadWithSession(adminSession, connection, activityPath);
+          } else {
+            allowCopy = e.getValue();
           }
 
           if (allowCopy) {
@@ -121,4 +118,27 @@ public class ContactsActivityRouter implements ActivityRouter {
     }
   }
 
+  /**
+   * Check read access by impersonating the user, for access that can not be worked out
+   * from the ACLs alone.
+   */
+  private boolean hasReadWithSession(Session adminSession, String userId, String path)
+      throws RepositoryException {
+    Session userSession = null;
+    try {
+      final SimpleCredentials credentials = new SimpleCredentials(userId, "foo"
+          .toCharArray());
+      userSession = adminSession.impersonate(credentials);
+      AccessControlManager userACM = AccessControlUtil
+          .getAccessControlManager(userSession);
+      Privilege readPriv = userACM.privilegeFromName(Privilege.JCR_READ);
+      return userACM.hasPrivileges(path, new Privilege[] { readPriv });
+    } finally {
+      // We no longer need this session anymore, release it.
+      if (userSession != null) {
+        userSession.logout();
+      }
+    }
+  }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+/**
+ * Compares delivering activities one feed at a time, as the listener used to, with the
+ * batched fan out, writing to an in memory Jackrabbit. Not part of the normal test run,
+ * run with <code>mvn test -Dtest=ActivityFanoutBenchmark</code>, the number of
+ * activities and followers can be changed with <code>-Dbenchmark.activities=20</code>
+ * and <code>-Dbenchmark.followers=500</code>.
+ */
+public class ActivityFanoutBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ActivityFanoutBenchmark.class);
+  private InMemoryRepository repository;
+  private Session session;
+
+  @Before
+  public void before() throws Exception {
+    repository = new InMemoryRepository();
+    repository.start();
+    session = repository.login();
+  }
+
+  @After
+  public void after() {
+    session.logout();
+    repository.stop();
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    int activities = Integer.getInteger("benchmark.activities", 20);
+    int followers = Integer.getInteger("benchmark.followers", 500);
+
+    ActivityListener listener = new ActivityListener();
+    long start = System.currentTimeMillis();
+    for (int a = 0; a < activities; a++) {
+      Node activity = (Node) session.getItem(createActivity());
+      for (int f = 0; f < followers; f++) {
+        listener.deliverActivityToFeed(session, activity, "/_user/private/legacy" + f
+            + "/activityFeed");
+      }
+    }
+    long legacy = System.currentTimeMillis() - start;
+
+    ActivityFanoutStatistics statistics = new ActivityFanoutStatistics();
+    ActivityFanout fanout = new ActivityFanout(null, statistics, 1, 1, 0,
+        ActivityListener.DEFAULT_FANOUT_BATCH_SIZE);
+    List<ActivityDelivery> batch = new ArrayList<ActivityDelivery>();
+    start = System.currentTimeMillis();
+    for (int a = 0; a < activities; a++) {
+      String activity = createActivity();
+      for (int f = 0; f < followers; f++) {
+        batch.add(new ActivityDelivery(activity, "/_user/private/batched" + f
+            + "/activityFeed"));
+        if (batch.size() == ActivityListener.DEFAULT_FANOUT_BATCH_SIZE) {
+          fanout.deliver(session, batch);
+          batch.clear();
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      fanout.deliver(session, batch);
+    }
+    long batched = System.currentTimeMillis() - start;
+    assertEquals(activities * followers, statistics.getDeliveries());
+
+    long deliveries = (long) activities * followers;
+    LOGGER.info("{} activities to {} followers: single {} deliveries/s, batched {} "
+        + "deliveries/s in {} saves (prepare {} ms, copy {} ms, save {} ms)",
+        new Object[] { activities, followers, deliveries * 1000 / Math.max(1, legacy),
+            deliveries * 1000 / Math.max(1, batched), statistics.getSaves(),
+            statistics.getPrepareTime(), statistics.getCopyTime(),
+            statistics.getSaveTime() });
+  }
+
+  private String createActivity() throws Exception {
+    String path = ActivityUtils.getPathFromId(ActivityUtils.createId(),
+        "/sites/physics-101/activity");
+    Node activity = JcrUtils.deepGetOrCreateNode(session, path, "nt:unstructured");
+    activity.addMixin("mix:created");
+    activity.setProperty(ActivityConstants.PARAM_ACTOR_ID, "jack");
+    activity.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
+    session.save();
+    return path;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.util.JcrUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class ActivityFanoutTest {
+
+  private InMemoryRepository repository;
+  private Session session;
+  private ActivityFanoutStatistics statistics;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new InMemoryRepository();
+    repository.start();
+    session = repository.login();
+    statistics = new ActivityFanoutStatistics();
+  }
+
+  @After
+  public void tearDown() {
+    session.logout();
+    repository.stop();
+  }
+
+  @Test
+  public void testDeliverBatch() throws Exception {
+    String first = createActivity("/sites/physics-101/activity");
+    String second = createActivity("/sites/physics-101/activity");
+    List<ActivityDelivery> batch = new ArrayList<ActivityDelivery>();
+    for (int i = 0; i < 3; i++) {
+      batch.add(new ActivityDelivery(first, "/_user/private/u" + i + "/activityFeed"));
+      batch.add(new ActivityDelivery(second, "/_user/private/u" + i + "/activityFeed"));
+    }
+    // a duplicate route is only delivered once.
+    batch.add(new ActivityDelivery(first, "/_user/private/u0/activityFeed"));
+
+    ActivityFanout fanout = new ActivityFanout(null, statistics, 1, 10, 0, 100);
+    fanout.deliver(session, batch);
+
+    assertFalse(session.hasPendingChanges());
+    assertEquals(1, statistics.getSaves());
+    assertEquals(6, statistics.getDeliveries());
+    Node feed = (Node) session.getItem("/_user/private/u2/activityFeed");
+    assertEquals(ActivityConstants.ACTIVITY_FEED_RESOURCE_TYPE, feed.getProperty(
+        JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY).getString());
+    String deliveryPath = ActivityUtils.getPathFromId(second.substring(second
+        .lastIndexOf('/') + 1), "/_user/private/u2/activityFeed");
+    Node item = (Node) session.getItem(deliveryPath);
+    assertEquals(second, item.getProperty(ActivityConstants.PARAM_SOURCE).getString());
+    assertEquals("jack", item.getProperty(ActivityConstants.PARAM_ACTOR_ID).getString());
+    assertEquals(2, item.getProperty("tags").getValues().length);
+    assertTrue(item.hasNode("child"));
+
+    // delivering again does nothing.
+    fanout.deliver(session, batch);
+    assertEquals(6, statistics.getDeliveries());
+  }
+
+  @Test
+  public void testSubmit() throws Exception {
+    final String activity = createActivity("/sites/physics-101/activity");
+    SlingRepository slingRepository = createMock(SlingRepository.class);
+    expect(slingRepository.loginAdministrative(null)).andAnswer(new IAnswer<Session>() {
+      public Session answer() throws Throwable {
+        return repository.login();
+      }
+    }).anyTimes();
+    replay(slingRepository);
+
+    List<ActivityRoute> routes = new ArrayList<ActivityRoute>();
+    for (int i = 0; i < 50; i++) {
+      final String feed = "/_user/private/u" + i + "/activityFeed";
+      routes.add(new ActivityRoute() {
+        public String getDestination() {
+          return feed;
+        }
+      });
+    }
+    ActivityFanout fanout = new ActivityFanout(slingRepository, statistics, 2, 10, 50, 20);
+    fanout.start();
+    // the queues hold fewer deliveries than there are routes, so this has to wait for
+    // the workers.
+    fanout.submit(activity, routes);
+    fanout.stop(10000);
+
+    assertEquals(50, statistics.getDeliveries());
+    assertEquals(0, statistics.getQueuedDeliveries());
+    assertEquals(0, statistics.getFailedDeliveries());
+    session.refresh(false);
+    String name = activity.substring(activity.lastIndexOf('/') + 1);
+    for (int i = 0; i < 50; i++) {
+      assertTrue(session.itemExists(ActivityUtils.getPathFromId(name, "/_user/private/u"
+          + i + "/activityFeed")));
+    }
+  }
+
+  private String createActivity(String store) throws Exception {
+    String path = ActivityUtils.getPathFromId(ActivityUtils.createId(), store);
+    Node activity = JcrUtils.deepGetOrCreateNode(session, path, "nt:unstructured");
+    activity.addMixin("mix:created");
+    activity.setProperty(ActivityConstants.PARAM_ACTOR_ID, "jack");
+    activity.setProperty("tags", new String[] { "physics", "exam" });
+    activity.setProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
+        ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
+    activity.addNode("child").setProperty("text", "hello");
+    session.save();
+    return path;
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.JackrabbitAccessControlList;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
+import org.junit.Test;
+import org.sakaiproject.nakamura.util.JcrUtils;
+import org.sakaiproject.nakamura.util.ReadAccessEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.AccessControlPolicyIterator;
+import javax.jcr.security.Privilege;
+
+/**
+ * Compares the cost of checking read access for the contacts of an actor by
+ * impersonating each contact, as ContactsActivityRouter used to, with a single
+ * ReadAccessEvaluator, for 10, 100 and 1000 contacts, half of whom can read the
+ * activity. Not part of the normal test run, run with
+ * <code>mvn test -Dtest=ContactsRoutingBenchmark</code>, the numbers of contacts can be
+ * changed with <code>-Dbenchmark.contacts=10,100</code>.
+ */
+public class ContactsRoutingBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ContactsRoutingBenchmark.class);
+
+  @Test
+  public void benchmark() throws Exception {
+    for (String size : System.getProperty("benchmark.contacts", "10,100,1000").split(",")) {
+      int n = Integer.parseInt(size.trim());
+      InMemoryRepository repository = new InMemoryRepository();
+      repository.start();
+      Session session = repository.login();
+      try {
+        String activityPath = "/sites/site" + n + "/activity/2010/01/21/09/activity";
+        List<String> contacts = setUp(session, n, activityPath);
+
+        long start = System.currentTimeMillis();
+        List<Boolean> impersonated = new ArrayList<Boolean>();
+        for (String contact : contacts) {
+          Session userSession = session.impersonate(new SimpleCredentials(contact, "foo"
+              .toCharArray()));
+          try {
+            AccessControlManager acm = userSession.getAccessControlManager();
+            impersonated.add(acm.hasPrivileges(activityPath, new Privilege[] { acm
+                .privilegeFromName(Privilege.JCR_READ) }));
+          } finally {
+            userSession.logout();
+          }
+        }
+        long legacy = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        Map<String, Boolean> evaluated = new ReadAccessEvaluator(session, activityPath)
+            .canRead(contacts);
+        long bulk = System.currentTimeMillis() - start;
+
+        assertEquals(impersonated, new ArrayList<Boolean>(evaluated.values()));
+        LOGGER.info("{} contacts: impersonation {} ms, bulk {} ms", new Object[] { n,
+            legacy, bulk });
+      } finally {
+        session.logout();
+        repository.stop();
+      }
+    }
+  }
+
+  /**
+   * Create the contacts and an activity in a site that only its members can read, with
+   * every other contact a member.
+   */
+  private List<String> setUp(Session session, int n, String activityPath)
+      throws Exception {
+    UserManager um = ((JackrabbitSession) session).getUserManager();
+    Group members = um.createGroup(new Principal() {
+      public String getName() {
+        return "members";
+      }
+    });
+    List<String> contacts = new ArrayList<String>();
+    for (int i = 0; i < n; i++) {
+      User user = um.createUser("contact" + i, "password");
+      if (i % 2 == 0) {
+        members.addMember(user);
+      }
+      contacts.add(user.getID());
+    }
+    JcrUtils.deepGetOrCreateNode(session, activityPath);
+    session.save();
+
+    AccessControlManager acm = session.getAccessControlManager();
+    Privilege[] read = new Privilege[] { acm.privilegeFromName(Privilege.JCR_READ) };
+    JackrabbitAccessControlList acl = getAcl(acm, "/sites");
+    acl.addEntry(EveryonePrincipal.getInstance(), read, false);
+    acm.setPolicy("/sites", acl);
+    String sitePath = activityPath.substring(0, activityPath.indexOf("/activity"));
+    acl = getAcl(acm, sitePath);
+    acl.addEntry(members.getPrincipal(), read, true);
+    acm.setPolicy(sitePath, acl);
+    session.save();
+    return contacts;
+  }
+
+  private JackrabbitAccessControlList getAcl(AccessControlManager acm, String path)
+      throws Exception {
+    AccessControlPolicyIterator it = acm.getApplicablePolicies(path);
+    return (JackrabbitAccessControlList) it.nextAccessControlPolicy();
+  }
+}
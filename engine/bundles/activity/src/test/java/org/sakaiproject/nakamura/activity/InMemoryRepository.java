@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.config.RepositoryConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.jcr.NamespaceRegistry;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+/**
+ * An in memory Jackrabbit for tests that need to write real activity nodes.
+ */
+class InMemoryRepository {
+
+  private RepositoryImpl repository;
+
+  void start() throws IOException, RepositoryException {
+    File home = new File("target/activityrepo");
+    if (home.exists()) {
+      FileUtils.deleteDirectory(home);
+    }
+    InputStream ins = getClass().getClassLoader().getResourceAsStream(
+        "activity-benchmark-repository.xml");
+    repository = RepositoryImpl.create(RepositoryConfig.create(ins, home
+        .getAbsolutePath()));
+    Session session = login();
+    NamespaceRegistry registry = session.getWorkspace().getNamespaceRegistry();
+    registry.registerNamespace("sakai", "http://www.sakaiproject.org/nakamura/2.0");
+    registry.registerNamespace("sling", "http://sling.apache.org/jcr/sling/1.0");
+    session.logout();
+  }
+
+  Session login() throws RepositoryException {
+    return repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+  }
+
+  void stop() {
+    repository.shutdown();
+  }
+}
@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -29,6 +32,9 @@ import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -42,12 +48,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -65,17 +83,28 @@ import javax.servlet.http.HttpServletResponse;
     methods = @ServiceMethod(
         name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
+        parameters = {
+          @ServiceParameter(
             name = "requests",
             description = "A JSON string representing a request. <br />Example:" +
                 "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/_user/a/ad/admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+          ),
+          @ServiceParameter(
+            name = "parallel",
+            description = "Optional, if true and every request in the batch is a GET, the " +
+                "requests are run concurrently, each with its own session, and the " +
+                "results are streamed back in request order as they complete. A batch " +
+                "that contains a modifying request is always run in order."
+          )
+        },
         response = {@ServiceResponse(
             code = 200,
             description = "All requests are successful. <br />" +
                 "A JSON array is returned containing an object for each resource. Example:" +
                 "<pre>[\n" +
-                "{\"url\": \"/_user/a/ad/admin/public/authprofile.json\",\n \"body\": \"{\"user\"...\",\n \"success\":true, \"status\": 200,\n \"headers\":{\"Content-Type\":\"application/json\"}\n} \n]</pre>"
+                "{\"url\": \"/_user/a/ad/admin/public/authprofile.json\",\n \"body\": \"{\"user\"...\",\n \"success\":true, \"status\": 200,\n \"headers\":{\"Content-Type\":\"application/json\"},\n \"timing\":{\"start\":0,\"time\":12}\n} \n]</pre>" +
+                "<code>timing</code> gives the ms after the batch started that the request " +
+                "started and the ms it took."
           ),
           @ServiceResponse(
             code = 400,
@@ -88,6 +117,11 @@ import javax.servlet.http.HttpServletResponse;
         }
     )
 )
+@Properties(value = {
+    @Property(name = BatchServlet.PARALLEL_THREADS, intValue = BatchServlet.DEFAULT_PARALLEL_THREADS),
+    @Property(name = BatchServlet.PARALLEL_QUEUE_SIZE, intValue = BatchServlet.DEFAULT_PARALLEL_QUEUE_SIZE),
+    @Property(name = BatchServlet.PARALLEL_TIMEOUT, longValue = BatchServlet.DEFAULT_PARALLEL_TIMEOUT)
+})
 public class BatchServlet extends SlingAllMethodsServlet {
 
   private static final long serialVersionUID = 419598445499567027L;
@@ -95,6 +129,59 @@ public class BatchServlet extends SlingAllMethodsServlet {
       .getLogger(BatchServlet.class);
 
   protected static final String REQUESTS_PARAMETER = "requests";
+  protected static final String PARALLEL_PARAMETER = "parallel";
+
+  /**
+   * The number of threads that run the requests of parallel batches.
+   */
+  static final String PARALLEL_THREADS = "batch.parallel.threads";
+  static final int DEFAULT_PARALLEL_THREADS = 8;
+  /**
+   * The number of requests that may wait for a thread. When the queue is full the
+   * request thread runs the request itself, which slows the batches down rather than
+   * queueing without bound.
+   */
+  static final String PARALLEL_QUEUE_SIZE = "batch.parallel.queueSize";
+  static final int DEFAULT_PARALLEL_QUEUE_SIZE = 64;
+  /**
+   * The longest a parallel batch will wait for its requests, in ms. Requests that have
+   * not finished are reported as failed.
+   */
+  static final String PARALLEL_TIMEOUT = "batch.parallel.timeout";
+  static final long DEFAULT_PARALLEL_TIMEOUT = 30000L;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  @Reference
+  protected transient SlingRequestProcessor requestProcessor;
+
+  private transient ExecutorService executor;
+  private long parallelTimeout = DEFAULT_PARALLEL_TIMEOUT;
+
+  protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    int threads = OsgiUtil.toInteger(props.get(PARALLEL_THREADS), DEFAULT_PARALLEL_THREADS);
+    int queueSize = OsgiUtil.toInteger(props.get(PARALLEL_QUEUE_SIZE),
+        DEFAULT_PARALLEL_QUEUE_SIZE);
+    parallelTimeout = OsgiUtil.toLong(props.get(PARALLEL_TIMEOUT), DEFAULT_PARALLEL_TIMEOUT);
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "BatchServlet-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
 
   /**
    * {@inheritDoc}
@@ -181,7 +268,13 @@ public class BatchServlet extends SlingAllMethodsServlet {
       return;
     }
 
+    if (isParallel(request, batchedRequests)) {
+      parallelRequest(request, response, batchedRequests);
+      return;
+    }
+
     // Loop over the requests and handle each one.
+    long batchStart = System.currentTimeMillis();
     try {
       StringWriter sw = new StringWriter();
       JSONWriter write = new JSONWriter(sw);
@@ -190,7 +283,7 @@ public class BatchServlet extends SlingAllMethodsServlet {
       write.array();
 
       for (RequestInfo r : batchedRequests) {
-        doRequest(request, response, r, write);
+        doRequest(request, response, r, write, batchStart);
       }
       write.endArray();
       write.endObject();
@@ -206,7 +299,8 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
-      JSONWriter write) throws JSONException {
+      JSONWriter write, long batchStart) throws JSONException {
+    long start = System.currentTimeMillis();
     // Look for a matching resource in the usual way. If one is found,
     // the resource will also be embedded with any necessary RequestPathInfo.
     String requestPath = requestInfo.getUrl();
@@ -234,7 +328,8 @@ public class BatchServlet extends SlingAllMethodsServlet {
         responseWrapper.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       }
       // Write the response (status, headers, body) back to the client.
-      writeResponse(write, responseWrapper, requestInfo);
+      writeResponse(write, responseWrapper, requestInfo, start - batchStart,
+          System.currentTimeMillis() - start);
     } catch (ServletException e) {
       writeFailedRequest(write, requestInfo);
     } catch (IOException e) {
@@ -244,7 +339,7 @@ public class BatchServlet extends SlingAllMethodsServlet {
   }
 
   private void writeResponse(JSONWriter write, ResponseWrapper responseWrapper,
-      RequestInfo requestData) throws JSONException {
+      RequestInfo requestData, long start, long time) throws JSONException {
     try {
       String body = responseWrapper.getDataAsString();
       write.object();
@@ -266,6 +361,13 @@ public class BatchServlet extends SlingAllMethodsServlet {
         write.value(headers.get(k));
       }
       write.endObject();
+      write.key("timing");
+      write.object();
+      write.key("start");
+      write.value(start);
+      write.key("time");
+      write.value(time);
+      write.endObject();
       write.endObject();
     } catch (UnsupportedEncodingException e) {
       writeFailedRequest(write, requestData);
@@ -282,4 +384,226 @@ public class BatchServlet extends SlingAllMethodsServlet {
     write.endObject();
   }
 
+  /**
+   * @return true if the batch was asked to run in parallel and can be: every request in
+   *         it is safe and the executor is running.
+   */
+  private boolean isParallel(SlingHttpServletRequest request,
+      List<RequestInfo> batchedRequests) {
+    if (!Boolean.parseBoolean(request.getParameter(PARALLEL_PARAMETER))
+        || executor == null || requestProcessor == null) {
+      return false;
+    }
+    for (RequestInfo r : batchedRequests) {
+      if (!r.isSafe()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs every request of the batch on the executor and streams the results to the
+   * client in request order, each one as soon as it and all the requests before it have
+   * finished. Bodies are escaped straight from the buffered sub-response into the
+   * response writer.
+   *
+   * The requests are given a snapshot of the batch request and resolvers cloned from its
+   * resolver, both taken here on the request thread, and buffer their responses
+   * privately, so they never use the batch request or response. Requests that have not
+   * finished when the batch returns are interrupted and reported as failed.
+   */
+  private void parallelRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests)
+      throws IOException {
+    long batchStart = System.currentTimeMillis();
+    RequestSnapshot snapshot = new RequestSnapshot(request);
+    ResourceResolver parent = request.getResourceResolver();
+    List<ParallelRequest> tasks = new ArrayList<ParallelRequest>(batchedRequests.size());
+    List<Future<ParallelRequest>> futures = new ArrayList<Future<ParallelRequest>>(
+        batchedRequests.size());
+    try {
+      for (RequestInfo r : batchedRequests) {
+        ResourceResolver resourceResolver = null;
+        try {
+          resourceResolver = parent.clone(null);
+        } catch (Exception e) {
+          LOGGER.warn("Failed to get a session for batched request to {}: {}", r.getUrl(),
+              e.getMessage());
+        }
+        ParallelRequest task = new ParallelRequest(snapshot, r, resourceResolver,
+            requestProcessor, batchStart);
+        tasks.add(task);
+        futures.add(executor.submit(task));
+      }
+
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      Writer writer = response.getWriter();
+      writer.write("{\"results\":[");
+      long deadline = batchStart + parallelTimeout;
+      boolean interrupted = false;
+      for (int i = 0; i < futures.size(); i++) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        Future<ParallelRequest> future = futures.get(i);
+        ParallelRequest task = tasks.get(i);
+        ParallelRequest result = null;
+        try {
+          if (!interrupted) {
+            result = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+          }
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          LOGGER.warn("Batched request to {} failed: {}", batchedRequests.get(i).getUrl(),
+              e.getMessage());
+        } catch (TimeoutException e) {
+          LOGGER.warn("Batched request to {} did not finish within {} ms",
+              batchedRequests.get(i).getUrl(), parallelTimeout);
+        }
+        if (result == null) {
+          stop(task, future);
+          writeFailedRequest(writer, batchedRequests.get(i));
+        } else if (result.isFailed()) {
+          writeFailedRequest(writer, result.getRequestInfo());
+        } else {
+          writeResponse(writer, result);
+        }
+        // Drop the references so the buffered body can be collected once written.
+        futures.set(i, null);
+        tasks.set(i, null);
+        writer.flush();
+      }
+      writer.write("]}");
+      writer.flush();
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    } finally {
+      // Stop anything still running if the batch ended early, eg the client went away.
+      for (int i = 0; i < futures.size(); i++) {
+        if (futures.get(i) != null) {
+          stop(tasks.get(i), futures.get(i));
+        }
+      }
+      for (int i = futures.size(); i < tasks.size(); i++) {
+        tasks.get(i).cancel();
+      }
+    }
+  }
+
+  /**
+   * Stop a request, it is not started if it is still waiting for a thread and is
+   * interrupted if it is running.
+   */
+  private void stop(ParallelRequest task, Future<ParallelRequest> future) {
+    if (!task.cancel()) {
+      future.cancel(true);
+    }
+  }
+
+  private void writeResponse(Writer writer, ParallelRequest result) throws IOException {
+    ParallelResponse subResponse = result.getResponse();
+    writer.write("{\"url\":");
+    writeString(writer, result.getRequestInfo().getUrl());
+    writer.write(",\"success\":true,\"body\":");
+    writeString(writer, subResponse.getDataAsReader());
+    writer.write(",\"status\":");
+    writer.write(Integer.toString(subResponse.getResponseStatus()));
+    writer.write(",\"headers\":{");
+    Dictionary<String, String> headers = subResponse.getResponseHeaders();
+    Enumeration<String> keys = headers.keys();
+    boolean first = true;
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      if (!first) {
+        writer.write(',');
+      }
+      first = false;
+      writeString(writer, k);
+      writer.write(':');
+      writeString(writer, headers.get(k));
+    }
+    writer.write("},\"timing\":{\"start\":");
+    writer.write(Long.toString(result.getStart()));
+    writer.write(",\"time\":");
+    writer.write(Long.toString(result.getTime()));
+    writer.write("}}");
+  }
+
+  private void writeFailedRequest(Writer writer, RequestInfo requestData)
+      throws IOException {
+    writer.write("{\"url\":");
+    writeString(writer, requestData.getUrl());
+    writer.write(",\"success\":false}");
+  }
+
+  private void writeString(Writer writer, String value) throws IOException {
+    if (value == null) {
+      writer.write("null");
+    } else {
+      writeString(writer, new StringReader(value));
+    }
+  }
+
+  /**
+   * Writes the characters from the reader as a quoted JSON string, escaping them the
+   * same way {@link JSONObject#quote(String)} does.
+   */
+  static void writeString(Writer writer, Reader reader) throws IOException {
+    char[] buffer = new char[4096];
+    writer.write('"');
+    char previous = 0;
+    int n;
+    while ((n = reader.read(buffer)) != -1) {
+      for (int i = 0; i < n; i++) {
+        char c = buffer[i];
+        switch (c) {
+        case '\\':
+        case '"':
+          writer.write('\\');
+          writer.write(c);
+          break;
+        case '/':
+          if (previous == '<') {
+            writer.write('\\');
+          }
+          writer.write(c);
+          break;
+        case '\b':
+          writer.write("\\b");
+          break;
+        case '\t':
+          writer.write("\\t");
+          break;
+        case '\n':
+          writer.write("\\n");
+          break;
+        case '\f':
+          writer.write("\\f");
+          break;
+        case '\r':
+          writer.write("\\r");
+          break;
+        default:
+          if (c < ' ' || (c >= '\u0080' && c < '\u00a0')
+              || (c >= '\u2000' && c < '\u2100')) {
+            writer.write("\\u");
+            writer.write(HEX[(c >> 12) & 0xf]);
+            writer.write(HEX[(c >> 8) & 0xf]);
+            writer.write(HEX[(c >> 4) & 0xf]);
+            writer.write(HEX[c & 0xf]);
+          } else {
+            writer.write(c);
+          }
+        }
+        previous = c;
+      }
+    }
+    writer.write('"');
+  }
+
 }
@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingException;
+import org.apache.sling.api.resource.ResourceNotFoundException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * One batched request run on the batch executor. The request is processed as a new top
+ * level request with its own resource resolver, cloned from the resolver of the batch
+ * request on the request thread, so it shares no session with the other requests in the
+ * batch. The request is read from a {@link RequestSnapshot} and the response is buffered
+ * in a {@link ParallelResponse}, so nothing here refers to the batch request or response
+ * and a request that outlives its batch does no harm.
+ */
+class ParallelRequest implements Callable<ParallelRequest> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ParallelRequest.class);
+  private static final int WAITING = 0;
+  private static final int RUNNING = 1;
+  private static final int CANCELLED = 2;
+
+  private final ParallelSubRequest request;
+  private final RequestInfo requestInfo;
+  private final SlingRequestProcessor requestProcessor;
+  private final ParallelResponse response = new ParallelResponse();
+  private final long batchStart;
+  private final AtomicInteger state = new AtomicInteger(WAITING);
+  private ResourceResolver resourceResolver;
+  private long started;
+  private long finished;
+  private boolean failed;
+
+  /**
+   * @param resourceResolver
+   *          the resolver to process the request with, closed once the request has run
+   *          or is cancelled. Null if one could not be had, the request then fails.
+   */
+  ParallelRequest(RequestSnapshot snapshot, RequestInfo requestInfo,
+      ResourceResolver resourceResolver, SlingRequestProcessor requestProcessor,
+      long batchStart) {
+    this.request = new ParallelSubRequest(snapshot, requestInfo);
+    this.requestInfo = requestInfo;
+    this.resourceResolver = resourceResolver;
+    this.requestProcessor = requestProcessor;
+    this.batchStart = batchStart;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.concurrent.Callable#call()
+   */
+  public ParallelRequest call() {
+    started = System.currentTimeMillis();
+    if (!state.compareAndSet(WAITING, RUNNING)) {
+      // cancelled before it started, the resolver has been closed.
+      failed = true;
+      return this;
+    }
+    try {
+      if (resourceResolver == null) {
+        failed = true;
+      } else {
+        requestProcessor.processRequest(request, response, resourceResolver);
+      }
+    } catch (ResourceNotFoundException e) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+    } catch (SlingException e) {
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    } catch (Exception e) {
+      LOGGER.warn("Batched request to {} failed: {}", requestInfo.getUrl(), e.getMessage());
+      failed = true;
+    } finally {
+      closeResolver();
+      finished = System.currentTimeMillis();
+    }
+    return this;
+  }
+
+  /**
+   * Stop the request from starting if it has not started yet, and close its resolver.
+   *
+   * @return true if the request will not run, false if it is already running or done.
+   */
+  boolean cancel() {
+    if (state.compareAndSet(WAITING, CANCELLED)) {
+      closeResolver();
+      return true;
+    }
+    return false;
+  }
+
+  private synchronized void closeResolver() {
+    if (resourceResolver != null) {
+      resourceResolver.close();
+      resourceResolver = null;
+    }
+  }
+
+  RequestInfo getRequestInfo() {
+    return requestInfo;
+  }
+
+  ParallelResponse getResponse() {
+    return response;
+  }
+
+  boolean isFailed() {
+    return failed;
+  }
+
+  /**
+   * @return when the request started running, in ms after the batch started.
+   */
+  long getStart() {
+    return started - batchStart;
+  }
+
+  /**
+   * @return how long the request took to run, in ms.
+   */
+  long getTime() {
+    return finished - started;
+  }
+}
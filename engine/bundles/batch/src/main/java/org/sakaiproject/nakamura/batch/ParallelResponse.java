@@ -0,0 +1,257 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The response of one request of a parallel batch. Unlike
+ * {@link org.sakaiproject.nakamura.util.ResponseWrapper} it does not wrap the batch
+ * response, everything the request sets, status, headers, body, cookies and locale, is
+ * kept here, so concurrent requests never touch the batch response. Cookies and the
+ * locale are not passed on to the client. The body is written as UTF-8.
+ */
+class ParallelResponse implements HttpServletResponse {
+
+  /**
+   * A byte buffer that can be read back without copying its contents.
+   */
+  private static class Buffer extends ByteArrayOutputStream {
+    ByteArrayInputStream newInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  private final Buffer buffer = new Buffer();
+  private final ServletOutputStream outputStream = new ServletOutputStream() {
+    @Override
+    public void write(int b) throws IOException {
+      buffer.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      buffer.write(b, off, len);
+    }
+  };
+  private PrintWriter writer;
+  private final Hashtable<String, String> headers = new Hashtable<String, String>();
+  private int status = SC_OK;
+  private String contentType;
+  private String characterEncoding;
+  private Locale locale = Locale.getDefault();
+  private int bufferSize = 8192;
+
+  //
+  // Body
+  //
+
+  public ServletOutputStream getOutputStream() throws IOException {
+    return outputStream;
+  }
+
+  public PrintWriter getWriter() throws IOException {
+    if (writer == null) {
+      writer = new PrintWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+    }
+    return writer;
+  }
+
+  public void setContentLength(int len) {
+    headers.put("Content-Length", Integer.toString(len));
+  }
+
+  public String getContentType() {
+    return contentType;
+  }
+
+  public void setContentType(String type) {
+    this.contentType = type;
+    if (type != null) {
+      headers.put("Content-Type", type);
+    }
+  }
+
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  public void setCharacterEncoding(String charset) {
+    this.characterEncoding = charset;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public void setBufferSize(int size) {
+    this.bufferSize = size;
+  }
+
+  public void flushBuffer() throws IOException {
+  }
+
+  public boolean isCommitted() {
+    // never committed, so the request can keep on writing.
+    return false;
+  }
+
+  public void reset() {
+    resetBuffer();
+    headers.clear();
+    status = SC_OK;
+  }
+
+  public void resetBuffer() {
+    if (writer != null) {
+      writer.flush();
+    }
+    buffer.reset();
+  }
+
+  public Locale getLocale() {
+    return locale;
+  }
+
+  public void setLocale(Locale locale) {
+    this.locale = locale;
+  }
+
+  //
+  // Status
+  //
+
+  public void setStatus(int sc) {
+    this.status = sc;
+  }
+
+  @Deprecated
+  public void setStatus(int sc, String sm) {
+    this.status = sc;
+  }
+
+  public void sendError(int sc) throws IOException {
+    this.status = sc;
+  }
+
+  public void sendError(int sc, String msg) throws IOException {
+    this.status = sc;
+  }
+
+  public void sendRedirect(String location) throws IOException {
+    this.status = SC_FOUND;
+    headers.put("Location", location);
+  }
+
+  //
+  // Headers
+  //
+
+  public boolean containsHeader(String name) {
+    return headers.containsKey(name);
+  }
+
+  public void setHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  public void addHeader(String name, String value) {
+    headers.put(name, value);
+  }
+
+  public void setIntHeader(String name, int value) {
+    headers.put(name, Integer.toString(value));
+  }
+
+  public void addIntHeader(String name, int value) {
+    headers.put(name, Integer.toString(value));
+  }
+
+  public void setDateHeader(String name, long date) {
+    headers.put(name, Long.toString(date));
+  }
+
+  public void addDateHeader(String name, long date) {
+    headers.put(name, Long.toString(date));
+  }
+
+  public void addCookie(Cookie cookie) {
+  }
+
+  public String encodeURL(String url) {
+    return url;
+  }
+
+  public String encodeRedirectURL(String url) {
+    return url;
+  }
+
+  @Deprecated
+  public String encodeUrl(String url) {
+    return url;
+  }
+
+  @Deprecated
+  public String encodeRedirectUrl(String url) {
+    return url;
+  }
+
+  //
+  // Results, read by the batch servlet once the request has finished.
+  //
+
+  /**
+   * @return the status set by the request.
+   */
+  int getResponseStatus() {
+    return status;
+  }
+
+  /**
+   * @return the headers set by the request.
+   */
+  Dictionary<String, String> getResponseHeaders() {
+    return headers;
+  }
+
+  /**
+   * @return a reader over the body, decoded as UTF-8. The reader works on the buffered
+   *         data in place, so large bodies are not copied.
+   * @throws UnsupportedEncodingException
+   */
+  Reader getDataAsReader() throws UnsupportedEncodingException {
+    if (writer != null) {
+      writer.flush();
+    }
+    return new InputStreamReader(buffer.newInputStream(), "UTF-8");
+  }
+}
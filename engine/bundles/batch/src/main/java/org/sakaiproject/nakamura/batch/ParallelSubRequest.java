@@ -0,0 +1,372 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.sakaiproject.nakamura.util.RequestInfo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Presents one batched request as a top level request, so it can be handed to the
+ * {@link org.apache.sling.engine.SlingRequestProcessor} on a worker thread. Everything
+ * is read from the {@link RequestInfo} and a {@link RequestSnapshot} of the batch
+ * request, never from the batch request itself. Attributes and the character encoding
+ * are kept on this request. There is no http session and no request body.
+ */
+class ParallelSubRequest implements HttpServletRequest {
+
+  /**
+   * The formats of date headers, RFC 1123 first.
+   */
+  private static final String[] DATE_FORMATS = { "EEE, dd MMM yyyy HH:mm:ss zzz",
+      "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy" };
+
+  private final RequestSnapshot snapshot;
+  private final RequestInfo requestInfo;
+  private final String path;
+  private final String queryString;
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+  private String characterEncoding = "UTF-8";
+
+  ParallelSubRequest(RequestSnapshot snapshot, RequestInfo requestInfo) {
+    this.snapshot = snapshot;
+    this.requestInfo = requestInfo;
+    String url = requestInfo.getUrl();
+    int i = url.indexOf('?');
+    if (i != -1) {
+      path = url.substring(0, i);
+      queryString = url.substring(i + 1);
+    } else {
+      path = url;
+      queryString = null;
+    }
+  }
+
+  private Hashtable<String, String[]> getParameters() {
+    return requestInfo.getParameters();
+  }
+
+  public String getMethod() {
+    return (requestInfo.getMethod() == null) ? "GET" : requestInfo.getMethod();
+  }
+
+  public String getPathInfo() {
+    return path;
+  }
+
+  public String getPathTranslated() {
+    return null;
+  }
+
+  public String getServletPath() {
+    return "";
+  }
+
+  public String getContextPath() {
+    return snapshot.contextPath;
+  }
+
+  public String getRequestURI() {
+    return getContextPath() + path;
+  }
+
+  public StringBuffer getRequestURL() {
+    StringBuffer url = new StringBuffer();
+    url.append(getScheme()).append("://").append(getServerName());
+    int port = getServerPort();
+    if (port > 0 && !(port == 80 && "http".equals(getScheme()))
+        && !(port == 443 && "https".equals(getScheme()))) {
+      url.append(':').append(port);
+    }
+    url.append(getRequestURI());
+    return url;
+  }
+
+  public String getQueryString() {
+    return queryString;
+  }
+
+  public String getParameter(String name) {
+    String[] param = getParameters().get(name);
+    if (param != null && param.length > 0) {
+      return param[0];
+    }
+    return null;
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Map getParameterMap() {
+    return getParameters();
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getParameterNames() {
+    return getParameters().keys();
+  }
+
+  public String[] getParameterValues(String name) {
+    return getParameters().get(name);
+  }
+
+  public String getCharacterEncoding() {
+    return characterEncoding;
+  }
+
+  public void setCharacterEncoding(String characterEncoding) {
+    this.characterEncoding = characterEncoding;
+  }
+
+  public int getContentLength() {
+    return -1;
+  }
+
+  public String getContentType() {
+    return null;
+  }
+
+  public ServletInputStream getInputStream() throws IOException {
+    final ByteArrayInputStream empty = new ByteArrayInputStream(new byte[0]);
+    return new ServletInputStream() {
+      @Override
+      public int read() throws IOException {
+        return empty.read();
+      }
+    };
+  }
+
+  public BufferedReader getReader() throws IOException {
+    return new BufferedReader(new StringReader(""));
+  }
+
+  public Object getAttribute(String name) {
+    return attributes.get(name);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getAttributeNames() {
+    return Collections.enumeration(attributes.keySet());
+  }
+
+  public void setAttribute(String name, Object value) {
+    if (value == null) {
+      attributes.remove(name);
+    } else {
+      attributes.put(name, value);
+    }
+  }
+
+  public void removeAttribute(String name) {
+    attributes.remove(name);
+  }
+
+  //
+  // Headers and cookies, from the snapshot.
+  //
+
+  public String getHeader(String name) {
+    List<String> values = snapshot.headers.get(name);
+    if (values == null || values.isEmpty()) {
+      return null;
+    }
+    return values.get(0);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getHeaders(String name) {
+    List<String> values = snapshot.headers.get(name);
+    if (values == null) {
+      values = Collections.emptyList();
+    }
+    return Collections.enumeration(values);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getHeaderNames() {
+    return Collections.enumeration(snapshot.headerNames);
+  }
+
+  public int getIntHeader(String name) {
+    String value = getHeader(name);
+    if (value == null) {
+      return -1;
+    }
+    return Integer.parseInt(value);
+  }
+
+  public long getDateHeader(String name) {
+    String value = getHeader(name);
+    if (value == null) {
+      return -1;
+    }
+    for (String format : DATE_FORMATS) {
+      SimpleDateFormat dateFormat = new SimpleDateFormat(format, Locale.US);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+      try {
+        return dateFormat.parse(value).getTime();
+      } catch (ParseException e) {
+        // try the next format
+      }
+    }
+    throw new IllegalArgumentException("Header " + name + " is not a date: " + value);
+  }
+
+  public Cookie[] getCookies() {
+    return snapshot.getCookies();
+  }
+
+  public Locale getLocale() {
+    return snapshot.locales.get(0);
+  }
+
+  @SuppressWarnings("rawtypes")
+  public Enumeration getLocales() {
+    return Collections.enumeration(snapshot.locales);
+  }
+
+  //
+  // Connection and user, from the snapshot.
+  //
+
+  public String getProtocol() {
+    return snapshot.protocol;
+  }
+
+  public String getScheme() {
+    return snapshot.scheme;
+  }
+
+  public String getServerName() {
+    return snapshot.serverName;
+  }
+
+  public int getServerPort() {
+    return snapshot.serverPort;
+  }
+
+  public boolean isSecure() {
+    return snapshot.secure;
+  }
+
+  public String getRemoteAddr() {
+    return snapshot.remoteAddr;
+  }
+
+  public String getRemoteHost() {
+    return snapshot.remoteHost;
+  }
+
+  public int getRemotePort() {
+    return snapshot.remotePort;
+  }
+
+  public String getLocalName() {
+    return snapshot.localName;
+  }
+
+  public String getLocalAddr() {
+    return snapshot.localAddr;
+  }
+
+  public int getLocalPort() {
+    return snapshot.localPort;
+  }
+
+  public String getAuthType() {
+    return snapshot.authType;
+  }
+
+  public String getRemoteUser() {
+    return snapshot.remoteUser;
+  }
+
+  public Principal getUserPrincipal() {
+    return snapshot.userPrincipal;
+  }
+
+  /**
+   * {@inheritDoc}
+   * Roles are not known without the batch request, so this is always false.
+   *
+   * @see javax.servlet.http.HttpServletRequest#isUserInRole(java.lang.String)
+   */
+  public boolean isUserInRole(String role) {
+    return false;
+  }
+
+  //
+  // No http session and no dispatching outside the request processor.
+  //
+
+  public String getRequestedSessionId() {
+    return snapshot.requestedSessionId;
+  }
+
+  public HttpSession getSession(boolean create) {
+    return null;
+  }
+
+  public HttpSession getSession() {
+    return null;
+  }
+
+  public boolean isRequestedSessionIdValid() {
+    return false;
+  }
+
+  public boolean isRequestedSessionIdFromCookie() {
+    return false;
+  }
+
+  public boolean isRequestedSessionIdFromURL() {
+    return false;
+  }
+
+  @Deprecated
+  public boolean isRequestedSessionIdFromUrl() {
+    return false;
+  }
+
+  public RequestDispatcher getRequestDispatcher(String path) {
+    return null;
+  }
+
+  @Deprecated
+  public String getRealPath(String path) {
+    return null;
+  }
+}
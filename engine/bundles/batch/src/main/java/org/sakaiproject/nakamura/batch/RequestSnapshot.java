@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A copy of what the requests of a parallel batch need from the batch request: headers,
+ * cookies, locales and the connection and user details. It is taken on the request
+ * thread, before any request is submitted, so the workers never touch the batch request,
+ * which the container recycles once the batch has returned. A snapshot is not modified
+ * once taken, so it is shared by all the requests of a batch.
+ */
+class RequestSnapshot {
+
+  /**
+   * Header values by name, looked up ignoring case.
+   */
+  final Map<String, List<String>> headers = new TreeMap<String, List<String>>(
+      String.CASE_INSENSITIVE_ORDER);
+  final List<String> headerNames = new ArrayList<String>();
+  final Cookie[] cookies;
+  final List<Locale> locales = new ArrayList<Locale>();
+  final String scheme;
+  final String serverName;
+  final int serverPort;
+  final String protocol;
+  final String contextPath;
+  final boolean secure;
+  final String remoteAddr;
+  final String remoteHost;
+  final int remotePort;
+  final String localName;
+  final String localAddr;
+  final int localPort;
+  final String authType;
+  final String remoteUser;
+  final Principal userPrincipal;
+  final String requestedSessionId;
+
+  @SuppressWarnings("unchecked")
+  RequestSnapshot(HttpServletRequest request) {
+    Enumeration<String> names = request.getHeaderNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = names.nextElement();
+      List<String> values = new ArrayList<String>();
+      Enumeration<String> e = request.getHeaders(name);
+      while (e != null && e.hasMoreElements()) {
+        values.add(e.nextElement());
+      }
+      headerNames.add(name);
+      headers.put(name, Collections.unmodifiableList(values));
+    }
+    Cookie[] requestCookies = request.getCookies();
+    if (requestCookies != null) {
+      cookies = new Cookie[requestCookies.length];
+      for (int i = 0; i < requestCookies.length; i++) {
+        cookies[i] = (Cookie) requestCookies[i].clone();
+      }
+    } else {
+      cookies = null;
+    }
+    Enumeration<Locale> requestLocales = request.getLocales();
+    while (requestLocales != null && requestLocales.hasMoreElements()) {
+      locales.add(requestLocales.nextElement());
+    }
+    if (locales.isEmpty()) {
+      locales.add(Locale.getDefault());
+    }
+    scheme = request.getScheme();
+    serverName = request.getServerName();
+    serverPort = request.getServerPort();
+    protocol = request.getProtocol();
+    contextPath = request.getContextPath() == null ? "" : request.getContextPath();
+    secure = request.isSecure();
+    remoteAddr = request.getRemoteAddr();
+    remoteHost = request.getRemoteHost();
+    remotePort = request.getRemotePort();
+    localName = request.getLocalName();
+    localAddr = request.getLocalAddr();
+    localPort = request.getLocalPort();
+    authType = request.getAuthType();
+    remoteUser = request.getRemoteUser();
+    userPrincipal = request.getUserPrincipal();
+    requestedSessionId = request.getRequestedSessionId();
+  }
+
+  /**
+   * @return a copy of the cookies, so a request may modify its cookies.
+   */
+  Cookie[] getCookies() {
+    if (cookies == null) {
+      return null;
+    }
+    Cookie[] copy = new Cookie[cookies.length];
+    for (int i = 0; i < cookies.length; i++) {
+      copy[i] = (Cookie) cookies[i].clone();
+    }
+    return copy;
+  }
+}
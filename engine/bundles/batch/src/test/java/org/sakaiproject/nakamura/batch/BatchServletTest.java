@@ -17,24 +17,45 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.batch.BatchServlet.PARALLEL_PARAMETER;
 import static org.sakaiproject.nakamura.batch.BatchServlet.REQUESTS_PARAMETER;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.component.ComponentContext;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
@@ -54,6 +75,11 @@ public class BatchServletTest {
 
   }
 
+  @After
+  public void tearDown() {
+    servlet.deactivate(null);
+  }
+
   @Test
   public void testInvalidRequest() throws ServletException, IOException {
     when(request.getParameter(REQUESTS_PARAMETER)).thenReturn("marlformedparameter");
@@ -80,4 +106,149 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequest() throws Exception {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(BatchServlet.PARALLEL_THREADS, 4);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(props);
+    servlet.activate(componentContext);
+
+    // The requests finish in reverse order, the results must still be in request order.
+    SlingRequestProcessor processor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        HttpServletRequest req = (HttpServletRequest) invocation.getArguments()[0];
+        HttpServletResponse resp = (HttpServletResponse) invocation.getArguments()[1];
+        int n = Integer.parseInt(req.getPathInfo().substring(1));
+        Thread.sleep((4 - n) * 20);
+        resp.setContentType("text/plain");
+        resp.getOutputStream().write(("body \u00e9 \"" + n + "\" " + req.getParameter("q"))
+            .getBytes("UTF-8"));
+        return null;
+      }
+    }).when(processor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    servlet.requestProcessor = processor;
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    ResourceResolver clone = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(clone);
+    when(request.getParameter(PARALLEL_PARAMETER)).thenReturn("true");
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(
+        "[{\"url\":\"/1\",\"method\":\"GET\",\"parameters\":{\"q\":\"a\"}},"
+            + "{\"url\":\"/2\",\"method\":\"GET\"},"
+            + "{\"url\":\"/3\",\"method\":\"GET\"}]");
+    StringWriter out = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+    servlet.doGet(request, response);
+
+    JSONArray results = new JSONObject(out.toString()).getJSONArray("results");
+    assertEquals(3, results.length());
+    for (int i = 0; i < 3; i++) {
+      JSONObject result = results.getJSONObject(i);
+      assertEquals("/" + (i + 1), result.getString("url"));
+      assertTrue(result.getBoolean("success"));
+      assertEquals(200, result.getInt("status"));
+      assertEquals("text/plain", result.getJSONObject("headers").getString("Content-Type"));
+      assertTrue(result.getJSONObject("timing").has("time"));
+    }
+    assertEquals("body \u00e9 \"1\" a", results.getJSONObject(0).getString("body"));
+    assertEquals("body \u00e9 \"2\" null", results.getJSONObject(1).getString("body"));
+    // Each request had its own session, and gave it back.
+    verify(resourceResolver, times(3)).clone(null);
+    verify(clone, times(3)).close();
+  }
+
+  @Test
+  public void testParallelTimeout() throws Exception {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(BatchServlet.PARALLEL_TIMEOUT, 100L);
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(props);
+    servlet.activate(componentContext);
+
+    // The request never finishes unless it is interrupted.
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    SlingRequestProcessor processor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        try {
+          Thread.sleep(60000);
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+        return null;
+      }
+    }).when(processor).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    servlet.requestProcessor = processor;
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    ResourceResolver clone = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(clone);
+    when(request.getParameter(PARALLEL_PARAMETER)).thenReturn("true");
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(
+        "[{\"url\":\"/slow\",\"method\":\"GET\"}]");
+    StringWriter out = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+    servlet.doGet(request, response);
+
+    JSONObject result = new JSONObject(out.toString()).getJSONArray("results")
+        .getJSONObject(0);
+    assertFalse(result.getBoolean("success"));
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    // The resolver was cloned on the request thread and closed by the worker.
+    verify(resourceResolver).clone(null);
+    verify(clone, timeout(5000)).close();
+  }
+
+  @Test
+  public void testParallelFallsBackForModifyingRequests() throws Exception {
+    servlet.activate(mockComponentContext());
+    SlingRequestProcessor processor = mock(SlingRequestProcessor.class);
+    servlet.requestProcessor = processor;
+
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    RequestDispatcher dispatcher = mock(RequestDispatcher.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve(request, "/foo/bar")).thenReturn(resource);
+    when(request.getRequestDispatcher(resource)).thenReturn(dispatcher);
+    when(request.getParameter(PARALLEL_PARAMETER)).thenReturn("true");
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(
+        "[{\"url\":\"/foo/bar\",\"method\":\"POST\"}]");
+    StringWriter out = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+    servlet.doPost(request, response);
+
+    verify(processor, times(0)).processRequest(any(HttpServletRequest.class),
+        any(HttpServletResponse.class), any(ResourceResolver.class));
+    verify(dispatcher).forward(any(HttpServletRequest.class), any(HttpServletResponse.class));
+    JSONObject result = new JSONObject(out.toString()).getJSONArray("results")
+        .getJSONObject(0);
+    assertTrue(result.getBoolean("success"));
+    assertTrue(result.getJSONObject("timing").has("start"));
+  }
+
+  @Test
+  public void testWriteString() throws Exception {
+    String value = "a\"b\\c</script>\n\u0001\u00e9";
+    StringWriter out = new StringWriter();
+    BatchServlet.writeString(out, new StringReader(value));
+    assertEquals(JSONObject.quote(value), out.toString());
+    assertFalse(out.toString().contains("</"));
+  }
+
+  private ComponentContext mockComponentContext() {
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(new Hashtable<String, Object>());
+    return componentContext;
+  }
+
 }
@@ -49,4 +49,23 @@ public interface ChatManagerService {
    * Flush the entire cache.
    */
   public void clear();
+
+  /**
+   * Waits until a user has a chat update later than a given time, or the timeout
+   * passes. If the user already has a later update, or too many requests are already
+   * waiting on this server, this returns straight away.
+   *
+   * @param userID
+   *          The ID of the user.
+   * @param since
+   *          The time of the last update the caller knows about (milliseconds).
+   * @param timeout
+   *          The most time to wait (milliseconds), this may be capped by the service.
+   * @return The last time the user had his chat messages updated, null if there has
+   *         never been an update.
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting.
+   */
+  public Long waitForUpdate(String userID, long since, long timeout)
+      throws InterruptedException;
 }
@@ -22,15 +22,25 @@ import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * The <code>ChatManagerServiceImpl</code>
  */
-@Component(immediate = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
+@Component(immediate = true, metatype = true, label = "ChatManagerServiceImpl", description = "Implementation of the Chat Manager Service")
 @Service(value = ChatManagerService.class)
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -38,10 +48,43 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 @Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class)
 public class ChatManagerServiceImpl implements ChatManagerService {
 
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ChatManagerServiceImpl.class);
   private static final String CHAT_CACHE = "chat";
 
+  /**
+   * The framework property that sizes the request thread pool, maxThreads in jetty.xml
+   * is set from it. A waiting chat request holds one of those threads for as long as it
+   * waits.
+   */
+  static final String REQUEST_THREADS = "org.sakaiproject.nakamura.jetty.maxThreads";
+  static final int DEFAULT_REQUEST_THREADS = 50;
+
+  @Property(label = "Max waiting requests", description = "The most chat update requests that can wait for an update at once on this server, further requests are answered straight away. 0 to allow the waiter share of the server's request threads.", intValue = ChatManagerServiceImpl.DEFAULT_MAX_WAITERS)
+  public static final String MAX_WAITERS = "chat.longpoll.maxWaiters";
+  public static final int DEFAULT_MAX_WAITERS = 0;
+
+  @Property(label = "Waiter share (%)", description = "The percentage of the server's request threads that waiting chat update requests may hold, when the max waiting requests is 0. Other requests must still be served while every chat client is waiting.", intValue = ChatManagerServiceImpl.DEFAULT_WAITER_SHARE)
+  public static final String WAITER_SHARE = "chat.longpoll.waiterShare";
+  public static final int DEFAULT_WAITER_SHARE = 15;
+
+  @Property(label = "Max wait (MS)", description = "The longest a chat update request can wait for an update.", longValue = ChatManagerServiceImpl.DEFAULT_MAX_WAIT)
+  public static final String MAX_WAIT = "chat.longpoll.maxWait";
+  public static final long DEFAULT_MAX_WAIT = 30000;
+
+  @Property(label = "Recheck interval (MS)", description = "How often a waiting request checks the cache for updates made on other servers in the cluster.", longValue = ChatManagerServiceImpl.DEFAULT_RECHECK_INTERVAL)
+  public static final String RECHECK_INTERVAL = "chat.longpoll.recheckInterval";
+  public static final long DEFAULT_RECHECK_INTERVAL = 5000;
+
   private CacheManagerService cacheManagerService;
 
+  private ChatUpdateWaiters waiters = new ChatUpdateWaiters(DEFAULT_REQUEST_THREADS
+      * DEFAULT_WAITER_SHARE / 100);
+  private ChatUpdateStatistics statistics = new ChatUpdateStatistics();
+  private volatile long maxWait = DEFAULT_MAX_WAIT;
+  private long recheckInterval = DEFAULT_RECHECK_INTERVAL;
+  private ObjectName mbeanName;
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
   }
@@ -51,6 +94,48 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     this.cacheManagerService = cacheManagerService;
   }
 
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext ctx) {
+    Dictionary<String, Object> properties = ctx.getProperties();
+    int maxWaiters = OsgiUtil.toInteger(properties.get(MAX_WAITERS), DEFAULT_MAX_WAITERS);
+    if (maxWaiters <= 0) {
+      int requestThreads = DEFAULT_REQUEST_THREADS;
+      if (ctx.getBundleContext() != null) {
+        requestThreads = OsgiUtil.toInteger(ctx.getBundleContext().getProperty(
+            REQUEST_THREADS), DEFAULT_REQUEST_THREADS);
+      }
+      maxWaiters = Math.max(1, requestThreads
+          * OsgiUtil.toInteger(properties.get(WAITER_SHARE), DEFAULT_WAITER_SHARE) / 100);
+    }
+    LOGGER.info("Up to {} chat update requests may wait at once ", maxWaiters);
+    waiters = new ChatUpdateWaiters(maxWaiters);
+    maxWait = OsgiUtil.toLong(properties.get(MAX_WAIT), DEFAULT_MAX_WAIT);
+    recheckInterval = OsgiUtil.toLong(properties.get(RECHECK_INTERVAL),
+        DEFAULT_RECHECK_INTERVAL);
+    try {
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=ChatUpdates,name="
+          + ChatManagerServiceImpl.class.getSimpleName());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, mbeanName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register chat update statistics: {} ", e.getMessage());
+      mbeanName = null;
+    }
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      mbeanName = null;
+    }
+    // let anything still waiting go.
+    maxWait = 0;
+    waiters.wakeAll();
+  }
+
   /**
    * Gets the cache.
    * 
@@ -69,6 +154,7 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void clear() {
     getCachedMap().clear();
+    waiters.wakeAll();
   }
 
   /**
@@ -89,6 +175,7 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void put(String userID, long time) {
     getCachedMap().put(userID, time);
+    waiters.wake(userID);
   }
 
   /**
@@ -101,4 +188,69 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     getCachedMap().remove(userID);
   }
 
+  /**
+   * Parks the calling thread on a waiter for the user. Updates made on this server wake
+   * the waiter through {@link #put(String, long)}, updates made elsewhere in the cluster
+   * are found by checking the replicated cache every recheck interval.
+   *
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#waitForUpdate(java.lang.String,
+   *      long, long)
+   */
+  public Long waitForUpdate(String userID, long since, long timeout)
+      throws InterruptedException {
+    Long last = get(userID);
+    timeout = Math.min(timeout, maxWait);
+    if (timeout <= 0 || last == null || last > since) {
+      return last;
+    }
+    ChatUpdateWaiters.Waiter waiter = waiters.register(userID);
+    if (waiter == null) {
+      statistics.rejected();
+      return last;
+    }
+    statistics.parked();
+    boolean updated = false;
+    try {
+      long deadline = System.currentTimeMillis() + timeout;
+      long woken = -1;
+      while (true) {
+        // check after registering so that an update made before the waiter was
+        // registered is not missed.
+        last = get(userID);
+        if (last == null || last > since) {
+          updated = true;
+          statistics.wokenUp(woken > 0 ? System.nanoTime() - woken : -1);
+          return last;
+        }
+        long remaining = Math.min(deadline, System.currentTimeMillis() + maxWait)
+            - System.currentTimeMillis();
+        if (remaining <= 0) {
+          return last;
+        }
+        woken = waiter.await(Math.min(remaining, recheckInterval));
+      }
+    } finally {
+      waiters.unregister(userID, waiter);
+      if (!updated) {
+        statistics.timedOut();
+      }
+    }
+  }
+
+  /**
+   * @return the most requests that may wait at once.
+   */
+  int getMaxWaiters() {
+    return waiters.getMaxWaiters();
+  }
+
+  /**
+   * @return the long poll statistics.
+   */
+  ChatUpdateStatistics getStatistics() {
+    return statistics;
+  }
+
 }
@@ -50,10 +50,15 @@ import javax.servlet.ServletException;
 @ServiceDocumentation(name = "ChatServlet", shortDescription = "Check for new chat messages.", description = "Provides a mechanism to check if the currently logged in user has new chat messages awaiting.", bindings = @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/messagestore", selectors = @ServiceSelector(name = "chatupdate")), methods = { @ServiceMethod(name = "GET", response = {
     @ServiceResponse(code = 200, description = "Normal retrieval."),
     @ServiceResponse(code = 500, description = "Something went wrong trying to look for an update.") }, description = "GETs to this servlet will produce a JSON object with 3 keys. \n"
-    + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in millisecnds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>", parameters = @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time.")) })
+    + "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in millisecnds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>"
+    + "If a wait parameter is given and there is no update the request is held open until there is one or the wait passes, so the client can ask again straight away rather than polling. "
+    + "When the server has too many requests waiting it answers straight away as if no wait was given.", parameters = {
+    @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servet. If this variable is ommitted it uses the current time."),
+    @ServiceParameter(name = "wait", description = "Optional, the longest time in milliseconds to wait for an update. The server may cap this.") }) })
 public class ChatServlet extends SlingSafeMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChatServlet.class);
   private static final long serialVersionUID = -4011626674940239621L;
+  private static final String WAIT_PARAMETER = "wait";
   private transient ChatManagerService chatManagerService;
 
   // We use this format rather than ISO8601 because Jackrabbit uses a subset (8601:2000)
@@ -95,7 +100,19 @@ public class ChatServlet extends SlingSafeMethodsServlet {
           time = Long.parseLong(timestampParam.getString());
           if (time < lastUpdate) {
             hasUpdate = true;
+          } else {
+            long wait = getWait(request);
+            if (wait > 0) {
+              chatManagerService.waitForUpdate(userID, time, wait);
+              // take the time before the last check, an update made after the check
+              // is then later than the time the client sends back next.
+              requestTime = System.currentTimeMillis();
+              lastUpdate = chatManagerService.get(userID);
+              hasUpdate = lastUpdate == null || time < lastUpdate;
+            }
           }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
         } catch (NumberFormatException e) {
           hasUpdate = true;
           LOGGER
@@ -136,4 +153,21 @@ public class ChatServlet extends SlingSafeMethodsServlet {
     // Make sure the connection is not keep-alive.
     response.setHeader("Connection", "close");
   }
+
+  /**
+   * @param request
+   * @return the time the client will wait for an update, 0 if it won't.
+   */
+  private long getWait(SlingHttpServletRequest request) {
+    RequestParameter waitParam = request.getRequestParameter(WAIT_PARAMETER);
+    if (waitParam == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(waitParam.getString());
+    } catch (NumberFormatException e) {
+      LOGGER.info("User requested non-Long wait: {}", waitParam.getString());
+      return 0;
+    }
+  }
 }
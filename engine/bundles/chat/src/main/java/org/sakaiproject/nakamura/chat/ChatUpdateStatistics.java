@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the chat long poll.
+ */
+public class ChatUpdateStatistics implements ChatUpdateStatisticsMBean {
+
+  private AtomicInteger parked = new AtomicInteger();
+  private AtomicInteger maxParked = new AtomicInteger();
+  private AtomicLong parks = new AtomicLong();
+  private AtomicLong wakeups = new AtomicLong();
+  private AtomicLong timeouts = new AtomicLong();
+  private AtomicLong rejections = new AtomicLong();
+  private AtomicLong latencySamples = new AtomicLong();
+  private AtomicLong totalWakeLatency = new AtomicLong();
+  private AtomicLong maxWakeLatency = new AtomicLong();
+
+  void parked() {
+    parks.incrementAndGet();
+    int n = parked.incrementAndGet();
+    int max = maxParked.get();
+    while (n > max && !maxParked.compareAndSet(max, n)) {
+      max = maxParked.get();
+    }
+  }
+
+  /**
+   * @param latency
+   *          the time from the update to the request waking, in ns, less than 0 if not
+   *          known because the update was made on another server.
+   */
+  void wokenUp(long latency) {
+    parked.decrementAndGet();
+    wakeups.incrementAndGet();
+    if (latency < 0) {
+      return;
+    }
+    latencySamples.incrementAndGet();
+    latency = latency / 1000;
+    totalWakeLatency.addAndGet(latency);
+    long max = maxWakeLatency.get();
+    while (latency > max && !maxWakeLatency.compareAndSet(max, latency)) {
+      max = maxWakeLatency.get();
+    }
+  }
+
+  void timedOut() {
+    parked.decrementAndGet();
+    timeouts.incrementAndGet();
+  }
+
+  void rejected() {
+    rejections.incrementAndGet();
+  }
+
+  public int getParkedConnections() {
+    return parked.get();
+  }
+
+  public int getMaxParkedConnections() {
+    return maxParked.get();
+  }
+
+  public long getParks() {
+    return parks.get();
+  }
+
+  public long getWakeups() {
+    return wakeups.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  public long getAverageWakeLatency() {
+    long n = latencySamples.get();
+    return n == 0 ? 0 : totalWakeLatency.get() / n;
+  }
+
+  public long getMaxWakeLatency() {
+    return maxWakeLatency.get();
+  }
+
+  public void reset() {
+    maxParked.set(parked.get());
+    parks.set(0);
+    wakeups.set(0);
+    timeouts.set(0);
+    rejections.set(0);
+    latencySamples.set(0);
+    totalWakeLatency.set(0);
+    maxWakeLatency.set(0);
+  }
+}
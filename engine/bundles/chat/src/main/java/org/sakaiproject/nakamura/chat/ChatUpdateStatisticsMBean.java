@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+/**
+ * JMX view of the chat long poll counters.
+ */
+public interface ChatUpdateStatisticsMBean {
+
+  /**
+   * @return the number of requests parked waiting for a chat update now.
+   */
+  int getParkedConnections();
+
+  /**
+   * @return the most requests that have been parked at once.
+   */
+  int getMaxParkedConnections();
+
+  /**
+   * @return the number of requests that have been parked.
+   */
+  long getParks();
+
+  /**
+   * @return the number of parked requests that returned because of an update.
+   */
+  long getWakeups();
+
+  /**
+   * @return the number of parked requests that returned without an update.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the number of requests answered straight away because too many were
+   *         already parked.
+   */
+  long getRejections();
+
+  /**
+   * @return the mean time between an update made on this server and the parked request
+   *         waking, in microseconds.
+   */
+  long getAverageWakeLatency();
+
+  /**
+   * @return the longest time between an update and the parked request waking, in
+   *         microseconds.
+   */
+  long getMaxWakeLatency();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
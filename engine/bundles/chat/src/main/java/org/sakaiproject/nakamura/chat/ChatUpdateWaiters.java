@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The requests on this server that are parked waiting for a chat update, by user. The
+ * number of waiters is bounded so that long polls can not take every request thread.
+ */
+class ChatUpdateWaiters {
+
+  /**
+   * A single parked request.
+   */
+  static class Waiter {
+    /**
+     * When the waiter was woken (System.nanoTime), 0 until then. Guarded by the waiter.
+     */
+    private long woken;
+
+    /**
+     * Wait until woken or the timeout passes.
+     *
+     * @param timeout
+     *          in ms.
+     * @return the time the waiter was woken, in System.nanoTime, 0 if it timed out.
+     * @throws InterruptedException
+     */
+    synchronized long await(long timeout) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeout;
+      long remaining = timeout;
+      while (woken == 0 && remaining > 0) {
+        wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      long t = woken;
+      woken = 0;
+      return t;
+    }
+
+    synchronized void wake() {
+      if (woken == 0) {
+        woken = System.nanoTime();
+      }
+      notifyAll();
+    }
+  }
+
+  private final Map<String, List<Waiter>> waiters = new HashMap<String, List<Waiter>>();
+  private final int maxWaiters;
+  private int size;
+
+  ChatUpdateWaiters(int maxWaiters) {
+    this.maxWaiters = maxWaiters;
+  }
+
+  /**
+   * @return the most waiters that may be registered at once.
+   */
+  int getMaxWaiters() {
+    return maxWaiters;
+  }
+
+  /**
+   * Register a waiter for the user.
+   *
+   * @param userID
+   * @return the waiter, or null if there are already as many waiters as allowed.
+   */
+  synchronized Waiter register(String userID) {
+    if (size >= maxWaiters) {
+      return null;
+    }
+    List<Waiter> l = waiters.get(userID);
+    if (l == null) {
+      l = new LinkedList<Waiter>();
+      waiters.put(userID, l);
+    }
+    Waiter waiter = new Waiter();
+    l.add(waiter);
+    size++;
+    return waiter;
+  }
+
+  /**
+   * Remove a waiter registered for the user.
+   *
+   * @param userID
+   * @param waiter
+   */
+  synchronized void unregister(String userID, Waiter waiter) {
+    List<Waiter> l = waiters.get(userID);
+    if (l != null && l.remove(waiter)) {
+      size--;
+      if (l.isEmpty()) {
+        waiters.remove(userID);
+      }
+    }
+  }
+
+  /**
+   * Wake every waiter for the user, they stay registered until they unregister.
+   *
+   * @param userID
+   */
+  void wake(String userID) {
+    Waiter[] toWake;
+    synchronized (this) {
+      List<Waiter> l = waiters.get(userID);
+      if (l == null) {
+        return;
+      }
+      toWake = l.toArray(new Waiter[l.size()]);
+    }
+    for (Waiter waiter : toWake) {
+      waiter.wake();
+    }
+  }
+
+  /**
+   * Wake every waiter.
+   */
+  void wakeAll() {
+    List<Waiter> toWake = new LinkedList<Waiter>();
+    synchronized (this) {
+      for (List<Waiter> l : waiters.values()) {
+        toWake.addAll(l);
+      }
+    }
+    for (Waiter waiter : toWake) {
+      waiter.wake();
+    }
+  }
+
+  /**
+   * @return the number of waiters registered.
+   */
+  synchronized int size() {
+    return size;
+  }
+}
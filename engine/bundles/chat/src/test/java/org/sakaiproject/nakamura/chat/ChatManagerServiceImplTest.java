@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+/**
+ *
+ */
+public class ChatManagerServiceImplTest {
+
+  private ChatManagerServiceImpl chatManagerService;
+  private Cache<Object> chatCache;
+
+  @Before
+  public void setUp() throws Exception {
+    chatCache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("chat", CacheScope.CLUSTERREPLICATED))
+        .andReturn(chatCache).anyTimes();
+    replay(cacheManagerService);
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ChatManagerServiceImpl.MAX_WAITERS, 1);
+    properties.put(ChatManagerServiceImpl.MAX_WAIT, 2000L);
+    properties.put(ChatManagerServiceImpl.RECHECK_INTERVAL, 50L);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(properties).anyTimes();
+    replay(ctx);
+    chatManagerService.activate(ctx);
+  }
+
+  @After
+  public void tearDown() {
+    chatManagerService.deactivate(null);
+  }
+
+  @Test
+  public void testNoWaitWhenUpdated() throws Exception {
+    chatManagerService.put("jack", 100);
+    assertEquals(Long.valueOf(100), chatManagerService.waitForUpdate("jack", 50, 1000));
+    assertEquals(0, chatManagerService.getStatistics().getParks());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    chatManagerService.put("jack", 100);
+    long start = System.currentTimeMillis();
+    assertEquals(Long.valueOf(100), chatManagerService.waitForUpdate("jack", 100, 200));
+    assertTrue(System.currentTimeMillis() - start >= 200);
+    assertEquals(1, chatManagerService.getStatistics().getTimeouts());
+    assertEquals(0, chatManagerService.getStatistics().getParkedConnections());
+  }
+
+  @Test
+  public void testUpdateFromAnotherServer() throws Exception {
+    chatManagerService.put("jack", 100);
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        // straight into the replicated cache, so no local wake up.
+        chatCache.put("jack", 300L);
+      }
+    };
+    other.start();
+    assertEquals(Long.valueOf(300), chatManagerService.waitForUpdate("jack", 100, 1500));
+    other.join();
+    assertEquals(1, chatManagerService.getStatistics().getWakeups());
+  }
+
+  @Test
+  public void testWaitersFromRequestThreads() throws Exception {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(ChatManagerServiceImpl.WAITER_SHARE, 40);
+    BundleContext bundleContext = createMock(BundleContext.class);
+    expect(bundleContext.getProperty(ChatManagerServiceImpl.REQUEST_THREADS)).andReturn(
+        "200");
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(properties).anyTimes();
+    expect(ctx.getBundleContext()).andReturn(bundleContext).anyTimes();
+    replay(bundleContext, ctx);
+    chatManagerService.deactivate(null);
+    chatManagerService.activate(ctx);
+    assertEquals(80, chatManagerService.getMaxWaiters());
+  }
+
+  @Test
+  public void testRejectedWhenFull() throws Exception {
+    chatManagerService.put("jack", 100);
+    chatManagerService.put("jill", 100);
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          chatManagerService.waitForUpdate("jack", 100, 1500);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    };
+    waiter.start();
+    while (chatManagerService.getStatistics().getParkedConnections() == 0) {
+      Thread.sleep(10);
+    }
+    long start = System.currentTimeMillis();
+    assertEquals(Long.valueOf(100), chatManagerService.waitForUpdate("jill", 100, 1500));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(1, chatManagerService.getStatistics().getRejections());
+    chatManagerService.put("jack", 200);
+    waiter.join();
+    assertEquals(1, chatManagerService.getStatistics().getWakeups());
+  }
+}
@@ -24,15 +24,19 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.easymock.IAnswer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
@@ -114,6 +118,7 @@ public class ChatServletTest {
     RequestParameter param = createMock(RequestParameter.class);
     expect(param.getString()).andReturn("100");
     expect(request.getRequestParameter("t")).andReturn(param);
+    expect(request.getRequestParameter("wait")).andReturn(null);
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     PrintWriter printWriter = new PrintWriter(baos);
     response.setContentType("application/json");
@@ -158,4 +163,94 @@ public class ChatServletTest {
     assertEquals(true, obj.get("update"));
   }
 
+  @Test
+  public void testLongPollUpdate() throws Exception {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(request.getRemoteUser()).andReturn(user1);
+    RequestParameter param = createMock(RequestParameter.class);
+    expect(param.getString()).andReturn("100");
+    expect(request.getRequestParameter("t")).andReturn(param);
+    RequestParameter waitParam = createMock(RequestParameter.class);
+    expect(waitParam.getString()).andReturn("10000");
+    expect(request.getRequestParameter("wait")).andReturn(waitParam);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter printWriter = new PrintWriter(baos);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(printWriter);
+    response.setHeader("Connection", "close");
+    replay(param, waitParam, request, response);
+
+    chatManagerService.put(user1, 50);
+    // User1 gets a message at 200 while the request is waiting.
+    Thread sender = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (chatManagerService.getStatistics().getParkedConnections() == 0) {
+            Thread.sleep(10);
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+        chatManagerService.put(user1, 200);
+      }
+    };
+    sender.start();
+
+    chatServlet.doGet(request, response);
+    sender.join();
+
+    printWriter.flush();
+    JSONObject obj = new JSONObject(baos.toString("UTF-8"));
+    assertEquals(true, obj.get("update"));
+    assertEquals(1, chatManagerService.getStatistics().getWakeups());
+    assertEquals(0, chatManagerService.getStatistics().getParkedConnections());
+  }
+
+  @Test
+  public void testUpdateAtEndOfWait() throws Exception {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    expect(request.getRemoteUser()).andReturn(user1);
+    RequestParameter param = createMock(RequestParameter.class);
+    expect(param.getString()).andReturn("100");
+    expect(request.getRequestParameter("t")).andReturn(param);
+    RequestParameter waitParam = createMock(RequestParameter.class);
+    expect(waitParam.getString()).andReturn("10000");
+    expect(request.getRequestParameter("wait")).andReturn(waitParam);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter printWriter = new PrintWriter(baos);
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    expect(response.getWriter()).andReturn(printWriter);
+    response.setHeader("Connection", "close");
+
+    // the message is posted after the wait has made its last check.
+    ChatManagerService waitingService = createMock(ChatManagerService.class);
+    expect(waitingService.get(user1)).andAnswer(new IAnswer<Long>() {
+      public Long answer() throws Throwable {
+        return chatManagerService.get(user1);
+      }
+    }).anyTimes();
+    expect(waitingService.waitForUpdate(eq(user1), eq(100L), anyLong())).andAnswer(
+        new IAnswer<Long>() {
+          public Long answer() throws Throwable {
+            Long last = chatManagerService.get(user1);
+            chatManagerService.put(user1, System.currentTimeMillis());
+            return last;
+          }
+        });
+    replay(param, waitParam, request, response, waitingService);
+    chatServlet.bindChatManagerService(waitingService);
+
+    chatManagerService.put(user1, 50);
+    chatServlet.doGet(request, response);
+
+    printWriter.flush();
+    JSONObject obj = new JSONObject(baos.toString("UTF-8"));
+    assertEquals(true, obj.get("update"));
+  }
+
 }
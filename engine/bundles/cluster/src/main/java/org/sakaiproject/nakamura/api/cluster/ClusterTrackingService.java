@@ -75,6 +75,16 @@ public interface ClusterTrackingService {
    */
   String getClusterUniqueId();
 
+  /**
+   * Reserve a number of ids in one call, cheaper than calling {@link #getClusterUniqueId()}
+   * n times when creating items in bulk.
+   *
+   * @param n
+   *          the number of ids required.
+   * @return n ids that will be unique in the cluster.
+   */
+  String[] getClusterUniqueIds(int n);
+
   /**
    * @param trackingCookie
    * @return
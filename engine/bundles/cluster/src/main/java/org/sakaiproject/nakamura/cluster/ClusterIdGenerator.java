@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates ids that are unique in the cluster without taking a lock.
+ * <p>
+ * An id is a positive long, the sequence in the top 53 bits and the server number in
+ * the bottom 10 bits, encoded with {@link StringUtils#URL_SAFE_ENCODING}.
+ * </p>
+ * <p>
+ * Collision analysis: the server number is unique in the cluster, so no two servers can
+ * generate the same id at the same time. The sequence is the time since the epoch in ms
+ * shifted left by 12 bits, so 4096 ids can be generated every ms before the sequence
+ * runs ahead of the clock. The sequence never goes backwards while the server runs, if
+ * the clock is set back the sequence just keeps counting. To protect against restarts
+ * after running ahead of the clock, or with the clock set back, the sequence is reserved
+ * in blocks and the end of the reserved block is written to a file before any id in the
+ * block is issued. On restart the sequence starts after the last reserved block.
+ * </p>
+ */
+public class ClusterIdGenerator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterIdGenerator.class);
+
+  /**
+   * The number of bits used for the server number.
+   */
+  static final int SERVER_BITS = 10;
+  /**
+   * The largest server number that can be encoded in an id.
+   */
+  static final int MAX_SERVER_NUMBER = (1 << SERVER_BITS) - 1;
+  /**
+   * The number of sequence values per ms of clock time.
+   */
+  static final int CLOCK_SHIFT = 12;
+  /**
+   * The largest sequence value, good for about 69 years from the epoch.
+   */
+  static final long MAX_SEQUENCE = Long.MAX_VALUE >>> SERVER_BITS;
+  /**
+   * The number of sequence values reserved each time the high water mark is written,
+   * about a second of ids at full rate.
+   */
+  static final long RESERVE_BLOCK = 1L << 22;
+
+  /**
+   * The last sequence value issued.
+   */
+  private final AtomicLong sequence = new AtomicLong();
+  /**
+   * All sequence values up to this have been recorded in the high water mark file.
+   */
+  private volatile long reserved;
+  private final long epoch;
+  private final File highWaterMark;
+  private volatile int serverNumber;
+
+  /**
+   * @param highWaterMark
+   *          the file used to record reserved sequence values across restarts, if null
+   *          the sequence only relies on the clock after a restart.
+   */
+  public ClusterIdGenerator(File highWaterMark) {
+    GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
+    this.epoch = calendar.getTimeInMillis();
+    this.highWaterMark = highWaterMark;
+    long start = readHighWaterMark();
+    sequence.set(start);
+    reserved = highWaterMark == null ? MAX_SEQUENCE : start;
+  }
+
+  /**
+   * @param serverNumber
+   *          the number of this server in the cluster.
+   */
+  public void setServerNumber(int serverNumber) {
+    if (serverNumber < 0 || serverNumber > MAX_SERVER_NUMBER) {
+      throw new IllegalArgumentException("Server number " + serverNumber
+          + " can't be used for ids, the cluster may have at most "
+          + (MAX_SERVER_NUMBER + 1) + " servers");
+    }
+    this.serverNumber = serverNumber;
+  }
+
+  /**
+   * @return an id unique in the cluster.
+   */
+  public String nextId() {
+    return encode(nextSequence(1) << SERVER_BITS | serverNumber);
+  }
+
+  /**
+   * Reserve a number of ids in one go.
+   *
+   * @param n
+   *          the number of ids.
+   * @return n ids unique in the cluster.
+   */
+  public String[] nextIds(int n) {
+    if (n < 0) {
+      throw new IllegalArgumentException("Can't generate " + n + " ids");
+    }
+    String[] ids = new String[n];
+    if (n == 0) {
+      return ids;
+    }
+    long first = nextSequence(n);
+    int server = serverNumber;
+    for (int i = 0; i < n; i++) {
+      ids[i] = encode((first + i) << SERVER_BITS | server);
+    }
+    return ids;
+  }
+
+  /**
+   * Claim n consecutive sequence values.
+   *
+   * @return the first value claimed.
+   */
+  long nextSequence(int n) {
+    for (;;) {
+      long last = sequence.get();
+      long clock = (System.currentTimeMillis() - epoch) << CLOCK_SHIFT;
+      long first = Math.max(last + 1, clock);
+      long end = first + n - 1;
+      if (end > MAX_SEQUENCE || end < first) {
+        throw new IllegalStateException("Cluster id sequence exhausted");
+      }
+      if (end > reserved) {
+        reserve(end);
+      } else if (sequence.compareAndSet(last, end)) {
+        return first;
+      }
+    }
+  }
+
+  /**
+   * Record a new high water mark that covers end. Only called once per block, so this
+   * is the only place that synchronizes.
+   */
+  private synchronized void reserve(long end) {
+    if (end <= reserved) {
+      return;
+    }
+    long mark = Math.min(end + RESERVE_BLOCK, MAX_SEQUENCE);
+    DataOutputStream out = null;
+    try {
+      File tmp = new File(highWaterMark.getPath() + ".tmp");
+      out = new DataOutputStream(new FileOutputStream(tmp));
+      out.writeLong(mark);
+      out.close();
+      out = null;
+      if (!tmp.renameTo(highWaterMark)) {
+        highWaterMark.delete();
+        if (!tmp.renameTo(highWaterMark)) {
+          throw new IOException("Unable to rename " + tmp + " to " + highWaterMark);
+        }
+      }
+    } catch (IOException e) {
+      // not safe to issue ids that might be issued again after a restart.
+      throw new IllegalStateException("Unable to record cluster id high water mark in "
+          + highWaterMark + ": " + e.getMessage(), e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+    reserved = mark;
+  }
+
+  /**
+   * @return the high water mark recorded by the last run, or 0.
+   */
+  private long readHighWaterMark() {
+    if (highWaterMark == null || !highWaterMark.exists()) {
+      return 0;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new FileInputStream(highWaterMark));
+      long mark = in.readLong();
+      LOGGER.info("Cluster ids will start after {} ", mark);
+      return mark;
+    } catch (IOException e) {
+      LOGGER.warn("Unable to read cluster id high water mark from {}: {} ",
+          highWaterMark, e.getMessage());
+      return 0;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Encode a positive long straight to the url safe alphabet, least significant digit
+   * first.
+   */
+  static String encode(long id) {
+    char[] alphabet = StringUtils.URL_SAFE_ENCODING;
+    char[] buf = new char[11];
+    int i = 0;
+    do {
+      buf[i++] = alphabet[(int) (id % alphabet.length)];
+      id = id / alphabet.length;
+    } while (id > 0);
+    return new String(buf, 0, i);
+  }
+}
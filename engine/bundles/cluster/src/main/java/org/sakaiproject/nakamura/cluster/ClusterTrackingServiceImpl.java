@@ -24,6 +24,7 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.felix.scr.annotations.Services;
 import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.framework.BundleContext;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
@@ -38,10 +39,9 @@ import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.lang.management.ManagementFactory;
-import java.math.BigInteger;
 import java.util.Dictionary;
-import java.util.GregorianCalendar;
 import java.util.Hashtable;
 import java.util.List;
 
@@ -83,6 +83,11 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   private static final String SAKAI_TRACKING = "SAKAI-TRACKING";
 
+  /**
+   * The name of the file in the bundle data area that records reserved cluster ids.
+   */
+  private static final String ID_HIGH_WATER_MARK = "cluster-id.hwm";
+
   @Property(name="secure-host-url", value = "http://localhost:8081",description = "The URL where other nodes in the cluster can contact this App server, will be different for each app server. Normal urls appended to the end of the url.")
   protected static final String PROP_SECURE_HOST_URL = "secure-host-url";
 
@@ -114,9 +119,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   private boolean isReady = false;
   private int serverNumber;
-  private Object lockObject = new Object();
-  private long next = 0;
-  private long epoch;
+  private ClusterIdGenerator idGenerator = new ClusterIdGenerator(null);
   private String thisSecureUrl;
 
   /**
@@ -126,14 +129,9 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    */
   protected ClusterTrackingServiceImpl(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
-    epoch = calendar.getTimeInMillis();
-
   }
 
   public ClusterTrackingServiceImpl() {
-    GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
-    epoch = calendar.getTimeInMillis();
   }
 
   /**
@@ -148,6 +146,16 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     Dictionary<String, Object> properties = ctx.getProperties();
     thisSecureUrl = (String) properties.get(PROP_SECURE_HOST_URL);
 
+    File highWaterMark = null;
+    BundleContext bundleContext = ctx.getBundleContext();
+    if (bundleContext != null) {
+      highWaterMark = bundleContext.getDataFile(ID_HIGH_WATER_MARK);
+    }
+    if (highWaterMark == null) {
+      LOGGER.warn("No bundle data area, cluster ids will only rely on the clock after a restart");
+    }
+    idGenerator = new ClusterIdGenerator(highWaterMark);
+
     componentStartTime = String.valueOf(System.currentTimeMillis());
     MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
     ObjectName name = new ObjectName("java.lang:type=Runtime");
@@ -358,6 +366,7 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
 
           }
         } while (!checkServerNumber());
+        idGenerator.setServerNumber(serverNumber);
 
       } else {
         Object cs = getServerCache().put(serverId,
@@ -420,7 +429,8 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * @return the cache used to store server registrations.
    */
   private Cache<ClusterServer> getServerCache() {
-    return cacheManagerService.getCache(SERVER_CACHE, CacheScope.CLUSTERREPLICATED);
+    return cacheManagerService.getCache(SERVER_CACHE, CacheScope.CLUSTERREPLICATED,
+        ClusterServerImpl.class);
   }
 
   /**
@@ -465,22 +475,19 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
    * {@inheritDoc}
    *
    * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueId()
+   * @see ClusterIdGenerator for the collision analysis.
    */
   public String getClusterUniqueId() {
-    synchronized (lockObject) {
-      if ( next < 0 ) {
-        next = System.currentTimeMillis() - epoch;
-      } else {
-        next++;
-      }
-    }
-    // Collision analysis
-    // The server number is unique in the cluster so no 2 servers with the same number can exist at the same time
-    // The Id Num is of the form 1SSSNNNN where SS ranges from 0 to 999 servers in a cluster and NNNN is a real positive number.
-    // Even when NNNN rols over to 1NNNN and again to 2NNNN there is no collision since the server part of the number is prefixed
-    // by 1 as in 1SSSS therefore this ID can never collide in the cluster or by rollover provided we have < 9001 servers in the cluster.
-    BigInteger idNum = new BigInteger(String.valueOf(next)+ String.valueOf(serverNumber+1000));
-    return StringUtils.encode(idNum.toByteArray(),StringUtils.URL_SAFE_ENCODING);
+    return idGenerator.nextId();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueIds(int)
+   */
+  public String[] getClusterUniqueIds(int n) {
+    return idGenerator.nextIds(n);
   }
 
 }
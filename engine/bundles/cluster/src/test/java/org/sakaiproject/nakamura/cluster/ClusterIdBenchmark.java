@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the old synchronized BigInteger id generation with {@link ClusterIdGenerator}
+ * for 1 to 16 threads. Not part of the normal test run, run with
+ * <code>mvn test -Dtest=ClusterIdBenchmark</code>, the number of ids per thread can be
+ * changed with <code>-Dbenchmark.ids=1000000</code>.
+ */
+public class ClusterIdBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterIdBenchmark.class);
+
+  /**
+   * The id generation before {@link ClusterIdGenerator}.
+   */
+  private static class SynchronizedIdGenerator {
+    private Object lockObject = new Object();
+    private long next = 0;
+
+    public String nextId() {
+      synchronized (lockObject) {
+        next++;
+      }
+      BigInteger idNum = new BigInteger(String.valueOf(next) + String.valueOf(1000));
+      return StringUtils.encode(idNum.toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    }
+  }
+
+  private interface IdSource {
+    String nextId();
+  }
+
+  @Test
+  public void benchmark() throws InterruptedException {
+    final int ids = Integer.getInteger("benchmark.ids", 200000);
+    for (int threads = 1; threads <= 16; threads *= 2) {
+      final SynchronizedIdGenerator old = new SynchronizedIdGenerator();
+      final ClusterIdGenerator generator = new ClusterIdGenerator(null);
+      long oldTime = run(threads, ids, new IdSource() {
+        public String nextId() {
+          return old.nextId();
+        }
+      });
+      long newTime = run(threads, ids, new IdSource() {
+        public String nextId() {
+          return generator.nextId();
+        }
+      });
+      long total = (long) threads * ids;
+      LOGGER.info("{} threads: synchronized {} ns/id, lock free {} ns/id", new Object[] {
+          threads, oldTime / total, newTime / total });
+    }
+  }
+
+  private long run(int threads, final int ids, final IdSource source)
+      throws InterruptedException {
+    // warm up
+    for (int i = 0; i < ids; i++) {
+      source.nextId();
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < ids; i++) {
+              source.nextId();
+            }
+          } catch (InterruptedException e) {
+            LOGGER.info(e.getMessage(), e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - begin;
+  }
+}
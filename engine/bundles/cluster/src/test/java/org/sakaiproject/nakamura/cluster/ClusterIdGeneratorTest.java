@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ClusterIdGeneratorTest {
+
+  private File highWaterMark;
+
+  @Before
+  public void before() throws IOException {
+    highWaterMark = File.createTempFile("cluster-id", ".hwm");
+    highWaterMark.delete();
+  }
+
+  @After
+  public void after() {
+    highWaterMark.delete();
+  }
+
+  @Test
+  public void testUniqueAcrossThreads() throws Exception {
+    final ClusterIdGenerator generator = new ClusterIdGenerator(highWaterMark);
+    generator.setServerNumber(3);
+    final Set<String> ids = newIdSet();
+    final AtomicInteger collisions = new AtomicInteger();
+    Thread[] threads = new Thread[20];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        public void run() {
+          for (int j = 0; j < 5000; j++) {
+            if (!ids.add(generator.nextId())) {
+              collisions.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    assertEquals(0, collisions.get());
+    assertEquals(100000, ids.size());
+  }
+
+  @Test
+  public void testServersDontCollide() {
+    ClusterIdGenerator a = new ClusterIdGenerator(null);
+    ClusterIdGenerator b = new ClusterIdGenerator(null);
+    a.setServerNumber(0);
+    b.setServerNumber(1);
+    Set<String> ids = newIdSet();
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(ids.add(a.nextId()));
+      assertTrue(ids.add(b.nextId()));
+    }
+  }
+
+  @Test
+  public void testBatch() {
+    ClusterIdGenerator generator = new ClusterIdGenerator(highWaterMark);
+    Set<String> ids = newIdSet();
+    for (int i = 0; i < 10; i++) {
+      String[] batch = generator.nextIds(1000);
+      assertEquals(1000, batch.length);
+      for (String id : batch) {
+        assertTrue(ids.add(id));
+      }
+      assertTrue(ids.add(generator.nextId()));
+    }
+    assertEquals(0, generator.nextIds(0).length);
+  }
+
+  @Test
+  public void testRestartAfterClockRollback() throws IOException {
+    // a previous run that got well ahead of the clock, or ran with the clock in the
+    // future.
+    long mark = ClusterIdGenerator.MAX_SEQUENCE / 2;
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(highWaterMark));
+    out.writeLong(mark);
+    out.close();
+    ClusterIdGenerator generator = new ClusterIdGenerator(highWaterMark);
+    long first = generator.nextSequence(1);
+    assertTrue(first > mark);
+
+    // a second restart starts after everything reserved by the first.
+    ClusterIdGenerator restarted = new ClusterIdGenerator(highWaterMark);
+    assertTrue(restarted.nextSequence(1) > first);
+  }
+
+  @Test
+  public void testSequenceNeverGoesBackwards() {
+    ClusterIdGenerator generator = new ClusterIdGenerator(null);
+    long last = generator.nextSequence(1);
+    for (int i = 0; i < 100000; i++) {
+      long next = generator.nextSequence(1 + (i % 3));
+      assertTrue(next > last);
+      last = next + (i % 3);
+    }
+  }
+
+  @Test
+  public void testServerNumberRange() {
+    ClusterIdGenerator generator = new ClusterIdGenerator(null);
+    generator.setServerNumber(ClusterIdGenerator.MAX_SERVER_NUMBER);
+    try {
+      generator.setServerNumber(ClusterIdGenerator.MAX_SERVER_NUMBER + 1);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testEncode() {
+    assertEquals("a", ClusterIdGenerator.encode(0));
+    assertEquals("ab", ClusterIdGenerator.encode(62));
+    assertTrue(ClusterIdGenerator.encode(Long.MAX_VALUE).matches("[a-zA-Z0-9]{11}"));
+  }
+
+  private Set<String> newIdSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  }
+}
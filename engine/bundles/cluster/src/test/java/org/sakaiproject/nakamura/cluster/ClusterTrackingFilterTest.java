@@ -76,7 +76,7 @@ public class ClusterTrackingFilterTest extends AbstractEasyMockTest {
         .andReturn(userTrackingCache).anyTimes();
     expect(
         cacheManagerService.getCache("server-tracking-cache",
-            CacheScope.CLUSTERREPLICATED)).andReturn(serverTrackingCache).anyTimes();
+            CacheScope.CLUSTERREPLICATED, ClusterServerImpl.class)).andReturn(serverTrackingCache).anyTimes();
     clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService);
 
     clusterTrackingFilter = new ClusterTrackingFilter();
@@ -86,6 +86,7 @@ public class ClusterTrackingFilterTest extends AbstractEasyMockTest {
     Hashtable<String, Object> dict = new Hashtable<String, Object>();
     dict.put(ClusterTrackingServiceImpl.PROP_SECURE_HOST_URL, "http://localhost:8081");
     expect(componentContext.getProperties()).andReturn(dict).anyTimes();
+    expect(componentContext.getBundleContext()).andReturn(null).anyTimes();
 
   }
 
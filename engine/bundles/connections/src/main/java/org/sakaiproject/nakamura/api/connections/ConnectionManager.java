@@ -59,4 +59,13 @@ public interface ConnectionManager {
    */
   List<String> getConnectedUsers(String user, ConnectionState state);
 
+  /**
+   * Count the connections of a user in each state.
+   *
+   * @param user the id of the user to count connections for
+   * @return the number of connections in each state, every state is present
+   * @throws IllegalStateException if there is a failure in the system
+   */
+  Map<ConnectionState, Integer> getConnectionCounts(String user);
+
 }
@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the state of every connection of recently used users, so that listing or
+ * counting the connections of a user does not need a query. Users are loaded on first
+ * use and dropped least recently used first when the index goes over its memory budget.
+ *
+ * A load records the stamp it started with, if the user's connections are updated or
+ * invalidated while the query runs the result is discarded, so a slow load can not
+ * overwrite a newer state.
+ */
+public class ConnectionIndex implements ConnectionIndexMBean {
+
+  /**
+   * Rough cost in bytes of indexing a user, and of each connection of the user, on top
+   * of the strings.
+   */
+  private static final int ENTRY_OVERHEAD = 128;
+  private static final int CONNECTION_OVERHEAD = 64;
+
+  /**
+   * The connections of one user.
+   */
+  private static final class Connections {
+    private final String basePath;
+    private final Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+    private final int[] counts = new int[ConnectionState.values().length];
+    private long bytes;
+
+    private Connections(String basePath) {
+      this.basePath = basePath;
+      bytes = ENTRY_OVERHEAD + 2L * basePath.length();
+    }
+
+    private void put(String other, ConnectionState state) {
+      ConnectionState old = states.put(other, state);
+      if (old == null) {
+        bytes += CONNECTION_OVERHEAD + 2L * other.length();
+      } else {
+        counts[old.ordinal()]--;
+      }
+      counts[state.ordinal()]++;
+    }
+  }
+
+  /**
+   * Indexed users, in access order.
+   */
+  private final LinkedHashMap<String, Connections> entries = new LinkedHashMap<String, Connections>(
+      16, 0.75f, true);
+  /**
+   * The user that owns each connection store that is indexed or being loaded, sorted so
+   * that the stores below a removed path can be found.
+   */
+  private final TreeMap<String, String> owners = new TreeMap<String, String>();
+  /**
+   * The stamp of the load running for each user.
+   */
+  private final Map<String, Long> loading = new HashMap<String, Long>();
+  private long stamp;
+  private long bytes;
+  private volatile long maxBytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param maxBytes
+   *          the memory budget for the index.
+   */
+  public ConnectionIndex(long maxBytes) {
+    configure(maxBytes);
+  }
+
+  public synchronized void configure(long maxBytes) {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  /**
+   * @param user
+   *          the user.
+   * @param state
+   *          the state to list, null for all connections.
+   * @return the users connected to the user, or null if the user is not indexed.
+   */
+  public synchronized List<String> getConnectedUsers(String user, ConnectionState state) {
+    Connections c = get(user);
+    if (c == null) {
+      return null;
+    }
+    List<String> users = new ArrayList<String>(state == null ? c.states.size()
+        : c.counts[state.ordinal()]);
+    for (Entry<String, ConnectionState> e : c.states.entrySet()) {
+      if (state == null || state == e.getValue()) {
+        users.add(e.getKey());
+      }
+    }
+    return users;
+  }
+
+  /**
+   * @param user
+   *          the user.
+   * @return the number of connections in each state, or null if the user is not indexed.
+   */
+  public synchronized Map<ConnectionState, Integer> getConnectionCounts(String user) {
+    Connections c = get(user);
+    if (c == null) {
+      return null;
+    }
+    Map<ConnectionState, Integer> counts = new EnumMap<ConnectionState, Integer>(
+        ConnectionState.class);
+    for (ConnectionState state : ConnectionState.values()) {
+      counts.put(state, c.counts[state.ordinal()]);
+    }
+    return counts;
+  }
+
+  private Connections get(String user) {
+    Connections c = entries.get(user);
+    if (c == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return c;
+  }
+
+  /**
+   * Note that the connections of a user are about to be read from the repository.
+   *
+   * @param user
+   *          the user.
+   * @param basePath
+   *          the path to the user's connection store.
+   * @return the stamp to pass to {@link #finishLoad(String, String, long, Map)}.
+   */
+  public synchronized long startLoad(String user, String basePath) {
+    long s = ++stamp;
+    loading.put(user, s);
+    owners.put(basePath, user);
+    return s;
+  }
+
+  /**
+   * Index the connections read from the repository, unless they changed while being
+   * read.
+   *
+   * @param user
+   *          the user.
+   * @param basePath
+   *          the path to the user's connection store.
+   * @param stamp
+   *          the stamp from {@link #startLoad(String, String)}.
+   * @param states
+   *          the connections read, null if the read failed.
+   * @return true if the connections were indexed.
+   */
+  public synchronized boolean finishLoad(String user, String basePath, long stamp,
+      Map<String, ConnectionState> states) {
+    Long current = loading.get(user);
+    if (current == null || current.longValue() != stamp) {
+      // invalidated or updated while loading, or a later load has started.
+      release(user, basePath);
+      return false;
+    }
+    loading.remove(user);
+    if (states == null) {
+      release(user, basePath);
+      return false;
+    }
+    Connections c = new Connections(basePath);
+    for (Entry<String, ConnectionState> e : states.entrySet()) {
+      c.put(e.getKey(), e.getValue());
+    }
+    Connections old = entries.put(user, c);
+    if (old != null) {
+      bytes -= old.bytes;
+    }
+    bytes += c.bytes;
+    evict();
+    return true;
+  }
+
+  /**
+   * Record a change made to a connection of a user.
+   *
+   * @param user
+   *          the user.
+   * @param other
+   *          the user on the other end of the connection.
+   * @param state
+   *          the new state of the connection, as seen by user.
+   */
+  public synchronized void update(String user, String other, ConnectionState state) {
+    // a load that is running may have read the old state.
+    loading.remove(user);
+    Connections c = entries.get(user);
+    if (c != null) {
+      bytes -= c.bytes;
+      c.put(other, state);
+      bytes += c.bytes;
+      evict();
+    }
+  }
+
+  /**
+   * Drop the users whose connections are affected by a change to a path: the owner of
+   * the store the path is in, or the owners of all the stores below the path.
+   *
+   * @param path
+   *          the path that changed.
+   */
+  public synchronized void invalidate(String path) {
+    if (path == null || !path.startsWith("/")) {
+      return;
+    }
+    if (path.endsWith("/") && path.length() > 1) {
+      path = path.substring(0, path.length() - 1);
+    }
+    // the store the path is in, if any.
+    String p = path;
+    while (p.length() > 0) {
+      String user = owners.get(p);
+      if (user != null) {
+        invalidateUser(user);
+        return;
+      }
+      p = p.substring(0, p.lastIndexOf('/'));
+    }
+    // stores below the path, "0" is the character after "/".
+    List<String> users = new ArrayList<String>(owners.subMap(path + "/", path + "0")
+        .values());
+    for (String user : users) {
+      invalidateUser(user);
+    }
+  }
+
+  private void invalidateUser(String user) {
+    // a load that is running will release the store when it finishes.
+    loading.remove(user);
+    Connections c = entries.remove(user);
+    if (c != null) {
+      bytes -= c.bytes;
+      release(user, c.basePath);
+      invalidations.incrementAndGet();
+    }
+  }
+
+  /**
+   * Forget the owner of a store once the user is neither indexed nor being loaded.
+   */
+  private void release(String user, String basePath) {
+    if (!entries.containsKey(user) && !loading.containsKey(user)
+        && user.equals(owners.get(basePath))) {
+      owners.remove(basePath);
+    }
+  }
+
+  private void evict() {
+    Iterator<Entry<String, Connections>> i = entries.entrySet().iterator();
+    while (bytes > maxBytes && i.hasNext()) {
+      Entry<String, Connections> e = i.next();
+      i.remove();
+      bytes -= e.getValue().bytes;
+      release(e.getKey(), e.getValue().basePath);
+      evictions.incrementAndGet();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    owners.clear();
+    loading.clear();
+    bytes = 0;
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    evictions.set(0);
+    invalidations.set(0);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+/**
+ * JMX view of the connection index.
+ */
+public interface ConnectionIndexMBean {
+
+  /**
+   * @return the number of lookups answered from the index.
+   */
+  long getHits();
+
+  /**
+   * @return the number of lookups that had to query the repository.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of users whose connections were dropped to stay within budget.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of users whose connections were dropped because they changed
+   *         outside of this node's connection manager.
+   */
+  long getInvalidations();
+
+  /**
+   * @return the number of users whose connections are indexed.
+   */
+  int getEntries();
+
+  /**
+   * @return the estimated size of the index, in bytes.
+   */
+  long getBytes();
+
+  /**
+   * @return the memory budget of the index, in bytes.
+   */
+  long getMaxBytes();
+
+  /**
+   * Drop everything from the index.
+   */
+  void clear();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
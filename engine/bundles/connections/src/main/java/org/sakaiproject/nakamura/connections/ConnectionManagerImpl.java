@@ -42,10 +42,16 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionException;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
@@ -53,15 +59,20 @@ import org.sakaiproject.nakamura.api.connections.ConnectionOperation;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.personal.PersonalConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -76,18 +87,33 @@ import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
- * Service for doing operations with connections.
+ * Service for doing operations with connections. The connections of recently used users
+ * are held in a {@link ConnectionIndex}, which is kept current by the transitions made
+ * here and invalidated by resource events for changes made elsewhere, including on
+ * other nodes of the cluster.
  */
-@Component(immediate = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
-@Properties(value = { @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@Service(value = ConnectionManager.class)
-public class ConnectionManagerImpl implements ConnectionManager {
+@Component(immediate = true, metatype = true, description = "Service for doing operations with connections.", label = "ConnectionSearchResultProcessor")
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+@Service(value = { ConnectionManager.class, EventHandler.class })
+public class ConnectionManagerImpl implements ConnectionManager, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ConnectionManagerImpl.class);
 
+  @Property(label = "Connection index size (bytes)", description = "The memory budget of the index of connection states, users that have not been used recently are dropped to stay within it.", longValue = ConnectionManagerImpl.DEFAULT_INDEX_MAX_BYTES)
+  public static final String INDEX_MAX_BYTES = "connections.index.maxBytes";
+  public static final long DEFAULT_INDEX_MAX_BYTES = 8388608L;
+
+  private static final String USER_ROOT = PersonalConstants._USER + "/";
+
   @Reference
   protected transient LockManager lockManager;
 
@@ -97,6 +123,10 @@ public class ConnectionManagerImpl implements ConnectionManager {
   @Reference
   protected ProfileService profileService;
 
+  protected ConnectionIndex index = new ConnectionIndex(DEFAULT_INDEX_MAX_BYTES);
+
+  private ObjectName mbeanName;
+
   private static Map<TransitionKey, StatePair> stateMap = new HashMap<TransitionKey, StatePair>();
 
   static {
@@ -141,6 +171,34 @@ public class ConnectionManagerImpl implements ConnectionManager {
     return new TransitionKey(sp(thisState, otherState), operation);
   }
 
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext ctx) {
+    Dictionary<String, Object> properties = ctx.getProperties();
+    index.configure(OsgiUtil.toLong(properties.get(INDEX_MAX_BYTES),
+        DEFAULT_INDEX_MAX_BYTES));
+    try {
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=ConnectionIndex,name="
+          + ConnectionManagerImpl.class.getSimpleName());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(index, mbeanName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register connection index statistics: {} ", e
+          .getMessage());
+      mbeanName = null;
+    }
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      mbeanName = null;
+    }
+    index.clear();
+  }
+
   /**
    * Check to see if a userId is actually a valid one
    *
@@ -267,6 +325,8 @@ public class ConnectionManagerImpl implements ConnectionManager {
       if (adminSession.hasPendingChanges()) {
         adminSession.save();
       }
+      index.update(thisUserId, otherUserId, getConnectionState(thisNode));
+      index.update(otherUserId, thisUserId, getConnectionState(otherNode));
 
       if (operation == ConnectionOperation.invite) {
         throw new ConnectionException(200, "Invitation made between "
@@ -334,9 +394,61 @@ public class ConnectionManagerImpl implements ConnectionManager {
    *      org.sakaiproject.nakamura.api.connections.ConnectionState)
    */
   public List<String> getConnectedUsers(String user, ConnectionState state) {
-    ArrayList<String> l = new ArrayList<String>();
+    List<String> users = index.getConnectedUsers(user, state);
+    if (users == null) {
+      users = new ArrayList<String>();
+      for (Entry<String, ConnectionState> e : load(user).entrySet()) {
+        if (state == null || state == e.getValue()) {
+          users.add(e.getKey());
+        }
+      }
+    }
+    return users;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.connections.ConnectionManager#getConnectionCounts(java.lang.String)
+   */
+  public Map<ConnectionState, Integer> getConnectionCounts(String user) {
+    Map<ConnectionState, Integer> counts = index.getConnectionCounts(user);
+    if (counts == null) {
+      counts = new EnumMap<ConnectionState, Integer>(ConnectionState.class);
+      for (ConnectionState state : ConnectionState.values()) {
+        counts.put(state, 0);
+      }
+      for (ConnectionState state : load(user).values()) {
+        counts.put(state, counts.get(state) + 1);
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the connections of users whose connection store has been changed.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && path.startsWith(USER_ROOT)) {
+      index.invalidate(path);
+    }
+  }
+
+  /**
+   * Read all the connections of a user from the repository and index them.
+   *
+   * @param user
+   *          the id of the user.
+   * @return the state of each connection, keyed by the id of the other user.
+   */
+  private Map<String, ConnectionState> load(String user) {
+    Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
     // search string should look something like this
-    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\" and @sakai:state=\"ACCEPTED\"]"
+    // "//_user/contacts/a0/b0/c0/d0/aaron/*[@sling:resourceType=\"sakai/contact\"]"
     try {
       Session adminSession = slingRepository.loginAdministrative(null);
       try {
@@ -344,31 +456,34 @@ public class ConnectionManagerImpl implements ConnectionManager {
         Authorizable au = um.getAuthorizable(user);
         // this will generate the bigstore path
         String connectionPath = ConnectionUtils.getConnectionPathBase(au);
-        // create the search query string
-        String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
-            + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
-            + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"";
-        if (state != null) {
-          search += " and @" + ConnectionConstants.SAKAI_CONNECTION_STATE + "=\""
-              + state.name() + "\"]";
-        } else {
-          search += "]";
-        }
-        QueryManager qm = adminSession.getWorkspace().getQueryManager();
-        Query query = qm.createQuery(search, Query.XPATH);
-        QueryResult result = query.execute();
-        NodeIterator nodeIterator = result.getNodes();
-        while (nodeIterator.hasNext()) {
-          Node node = nodeIterator.nextNode();
-          l.add(node.getName());
+        long stamp = index.startLoad(user, connectionPath);
+        boolean loaded = false;
+        try {
+          // create the search query string
+          String search = "/jcr:root" + ISO9075.encodePath(connectionPath)
+              + "//element(*)[@" + JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY
+              + "=\"" + ConnectionConstants.SAKAI_CONTACT_RT + "\"]";
+          QueryManager qm = adminSession.getWorkspace().getQueryManager();
+          Query query = qm.createQuery(search, Query.XPATH);
+          QueryResult result = query.execute();
+          NodeIterator nodeIterator = result.getNodes();
+          while (nodeIterator.hasNext()) {
+            Node node = nodeIterator.nextNode();
+            states.put(node.getName(), getConnectionState(node));
+          }
+          loaded = true;
+        } finally {
+          index.finishLoad(user, connectionPath, stamp, loaded ? states : null);
         }
       } finally {
         adminSession.logout();
       }
+    } catch (ConnectionException e) {
+      throw new IllegalStateException(e.getMessage(), e);
     } catch (RepositoryException e) {
       throw new IllegalStateException(e.getMessage(), e);
     }
-    return l;
+    return states;
   }
 
   protected Node getOrCreateConnectionNode(Session session, Authorizable fromUser,
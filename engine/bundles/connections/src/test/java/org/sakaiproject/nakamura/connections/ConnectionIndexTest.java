@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.NONE;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ConnectionIndexTest {
+
+  private static final String ALICE_STORE = "/_user/a/al/alice/contacts";
+  private ConnectionIndex index;
+
+  @Before
+  public void setUp() {
+    index = new ConnectionIndex(1024 * 1024);
+  }
+
+  private void load(String user, String basePath, Map<String, ConnectionState> states) {
+    long stamp = index.startLoad(user, basePath);
+    assertTrue(index.finishLoad(user, basePath, stamp, states));
+  }
+
+  private Map<String, ConnectionState> aliceStates() {
+    Map<String, ConnectionState> states = new LinkedHashMap<String, ConnectionState>();
+    states.put("bob", ACCEPTED);
+    states.put("carol", PENDING);
+    states.put("dave", ACCEPTED);
+    return states;
+  }
+
+  @Test
+  public void testListAndCount() {
+    assertNull(index.getConnectedUsers("alice", ACCEPTED));
+    load("alice", ALICE_STORE, aliceStates());
+
+    assertEquals(Arrays.asList("bob", "dave"), index.getConnectedUsers("alice", ACCEPTED));
+    assertEquals(Arrays.asList("bob", "carol", "dave"), index.getConnectedUsers("alice",
+        null));
+    Map<ConnectionState, Integer> counts = index.getConnectionCounts("alice");
+    assertEquals(2, counts.get(ACCEPTED).intValue());
+    assertEquals(1, counts.get(PENDING).intValue());
+    assertEquals(0, counts.get(INVITED).intValue());
+    assertEquals(1, index.getMisses());
+    assertEquals(3, index.getHits());
+  }
+
+  @Test
+  public void testUpdate() {
+    load("alice", ALICE_STORE, aliceStates());
+    index.update("alice", "carol", ACCEPTED);
+    index.update("alice", "bob", NONE);
+    index.update("alice", "erin", INVITED);
+
+    assertEquals(Arrays.asList("carol", "dave"), index.getConnectedUsers("alice",
+        ACCEPTED));
+    assertEquals(Arrays.asList("erin"), index.getConnectedUsers("alice", INVITED));
+    assertEquals(0, index.getConnectionCounts("alice").get(PENDING).intValue());
+  }
+
+  @Test
+  public void testInvalidate() {
+    load("alice", ALICE_STORE, aliceStates());
+    index.invalidate("/_user/b/bo/bob/contacts/a/al/alice");
+    assertEquals(1, index.getEntries());
+
+    index.invalidate(ALICE_STORE + "/b/bo/bob");
+    assertEquals(0, index.getEntries());
+    assertEquals(1, index.getInvalidations());
+    assertEquals(0, index.getBytes());
+
+    // removing the home removes the store below it.
+    load("alice", ALICE_STORE, aliceStates());
+    index.invalidate("/_user/a/al/alice");
+    assertNull(index.getConnectedUsers("alice", null));
+  }
+
+  @Test
+  public void testChangeWhileLoading() {
+    long stamp = index.startLoad("alice", ALICE_STORE);
+    index.update("alice", "bob", NONE);
+    assertFalse(index.finishLoad("alice", ALICE_STORE, stamp, aliceStates()));
+    assertNull(index.getConnectedUsers("alice", null));
+
+    stamp = index.startLoad("alice", ALICE_STORE);
+    index.invalidate(ALICE_STORE + "/b/bo/bob");
+    assertFalse(index.finishLoad("alice", ALICE_STORE, stamp, aliceStates()));
+
+    stamp = index.startLoad("alice", ALICE_STORE);
+    assertFalse(index.finishLoad("alice", ALICE_STORE, stamp, null));
+    assertNull(index.getConnectedUsers("alice", null));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    load("alice", ALICE_STORE, aliceStates());
+    long bytes = index.getBytes();
+    index.configure(bytes * 2);
+    load("bobby", "/_user/b/bo/bobby/contacts", aliceStates());
+    // use alice so that bobby is the eldest.
+    index.getConnectedUsers("alice", null);
+    load("carol", "/_user/c/ca/carol/contacts", aliceStates());
+
+    assertEquals(2, index.getEntries());
+    assertEquals(1, index.getEvictions());
+    assertNull(index.getConnectedUsers("bobby", null));
+    assertEquals(3, index.getConnectedUsers("alice", null).size());
+    assertTrue(index.getBytes() <= bytes * 2);
+  }
+}
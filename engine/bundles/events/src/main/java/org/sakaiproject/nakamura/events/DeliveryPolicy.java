@@ -15,37 +15,34 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-package org.sakaiproject.nakamura.site;
-
-import java.util.Map;
+package org.sakaiproject.nakamura.events;
 
 /**
- * 
+ * What the bridge does with an event when the send queue is full.
  */
-public class MembershipTree {
-
-  private Map<GroupKey, Membership> groups;
-  private Map<UserKey, Membership> users;
-
+public enum DeliveryPolicy {
   /**
-   * @param groups
-   * @param users
+   * Wait for space in the queue, for at most the configured block timeout, then drop the
+   * event.
    */
-  public MembershipTree(Map<GroupKey, Membership> groups, Map<UserKey, Membership> users) {
-    this.groups = groups;
-    this.users = users;
-  }
+  BLOCK,
   /**
-   * @return the groups
+   * Drop the new event.
    */
-  public Map<GroupKey, Membership> getGroups() {
-    return groups;
-  }
+  DROP,
   /**
-   * @return the users
+   * Drop the oldest event in the queue to make space for the new one.
    */
-  public Map<UserKey, Membership> getUsers() {
-    return users;
-  }
+  DROP_OLDEST;
 
+  /**
+   * @param name
+   *          the policy name, case insensitive, eg drop-oldest.
+   * @return the policy.
+   * @throws IllegalArgumentException
+   *           if the name is not a policy.
+   */
+  public static DeliveryPolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
 }
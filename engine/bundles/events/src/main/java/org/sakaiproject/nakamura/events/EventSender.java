@@ -0,0 +1,331 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Takes queued events and sends them to JMS. Runs on a single thread which owns the
+ * connection, the sessions and the producers, so none of the JMS objects are shared
+ * between threads. Events are sent in batches, if the sessions are transacted each batch
+ * is committed once.
+ */
+class EventSender implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(EventSender.class);
+
+  /**
+   * How often the sender checks whether it has been stopped when the queue is empty.
+   */
+  private static final long POLL_INTERVAL = 500L;
+
+  /**
+   * An event waiting to be sent.
+   */
+  static class QueuedEvent {
+    final Event event;
+    final long queued;
+
+    QueuedEvent(Event event) {
+      this.event = event;
+      this.queued = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * A long lived session and the producers created on it, keyed by destination.
+   */
+  private class PooledSession {
+    private final Session session;
+    private final Map<String, MessageProducer> producers;
+    private boolean dirty;
+
+    PooledSession(Session session) {
+      this.session = session;
+      this.producers = new LinkedHashMap<String, MessageProducer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, MessageProducer> eldest) {
+          if (size() > producerCacheSize) {
+            close(eldest.getValue());
+            return true;
+          }
+          return false;
+        }
+      };
+    }
+
+    MessageProducer getProducer(Event event) throws JMSException {
+      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+      boolean p2p = (deliveryMode == EventDeliveryMode.P2P);
+      String key = (p2p ? "queue:" : "topic:") + event.getTopic();
+      MessageProducer producer = producers.get(key);
+      if (producer == null) {
+        Destination destination;
+        if (p2p) {
+          destination = session.createQueue(event.getTopic());
+        } else {
+          destination = session.createTopic(event.getTopic());
+        }
+        producer = session.createProducer(destination);
+        producers.put(key, producer);
+      }
+      return producer;
+    }
+
+    void close() {
+      for (MessageProducer producer : producers.values()) {
+        close(producer);
+      }
+      producers.clear();
+      try {
+        session.close();
+      } catch (Exception e) {
+        LOGGER.error(e.getMessage(), e);
+      }
+    }
+
+    private void close(MessageProducer producer) {
+      try {
+        producer.close();
+      } catch (Exception e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+  }
+
+  private final BlockingQueue<QueuedEvent> queue;
+  private final ConnectionFactoryService connFactoryService;
+  private final OsgiJmsBridgeStatistics statistics;
+  private final boolean transacted;
+  private final int acknowledgeMode;
+  private final int batchSize;
+  private final int producerCacheSize;
+  private final String serverId;
+  private volatile boolean running = true;
+
+  private Connection connection;
+  private Map<Integer, PooledSession> sessions = new HashMap<Integer, PooledSession>();
+  private long lastMessage = System.currentTimeMillis();
+
+  EventSender(BlockingQueue<QueuedEvent> queue,
+      ConnectionFactoryService connFactoryService, OsgiJmsBridgeStatistics statistics,
+      boolean transacted, int acknowledgeMode, int batchSize, int producerCacheSize,
+      String serverId) {
+    this.queue = queue;
+    this.connFactoryService = connFactoryService;
+    this.statistics = statistics;
+    this.transacted = transacted;
+    this.acknowledgeMode = acknowledgeMode;
+    this.batchSize = Math.max(1, batchSize);
+    this.producerCacheSize = Math.max(1, producerCacheSize);
+    this.serverId = serverId;
+  }
+
+  /**
+   * Stop once the queue has been emptied.
+   */
+  void stop() {
+    running = false;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    List<QueuedEvent> batch = new ArrayList<QueuedEvent>(batchSize);
+    try {
+      while (running || !queue.isEmpty()) {
+        try {
+          QueuedEvent first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+          if (first == null) {
+            continue;
+          }
+          batch.add(first);
+          queue.drainTo(batch, batchSize - 1);
+          send(batch);
+        } catch (InterruptedException e) {
+          // stopping, carry on until the queue is empty.
+          running = false;
+        } finally {
+          batch.clear();
+        }
+      }
+    } finally {
+      closeConnection();
+    }
+  }
+
+  /**
+   * Send a batch of events, on failure the batch is dropped and the connection is
+   * recreated for the next batch.
+   */
+  private void send(List<QueuedEvent> batch) {
+    try {
+      for (QueuedEvent queuedEvent : batch) {
+        Event event = queuedEvent.event;
+        LOGGER.debug("Processing event {}", event);
+        PooledSession pooledSession = getSession(event);
+        Message msg = createMessage(pooledSession.session, event);
+        MessageProducer producer = pooledSession.getProducer(event);
+        LOGGER.debug("Sending Message {} to {}  ", msg, event.getTopic());
+        producer.send(msg, msg.getJMSDeliveryMode(), Message.DEFAULT_PRIORITY,
+            Message.DEFAULT_TIME_TO_LIVE);
+        pooledSession.dirty = true;
+      }
+      if (transacted) {
+        for (PooledSession pooledSession : sessions.values()) {
+          if (pooledSession.dirty) {
+            pooledSession.session.commit();
+            pooledSession.dirty = false;
+          }
+        }
+      }
+      long now = System.currentTimeMillis();
+      for (QueuedEvent queuedEvent : batch) {
+        statistics.sent(now - queuedEvent.queued);
+      }
+      statistics.batchSent(batch.size());
+    } catch (JMSException e) {
+      statistics.failed(batch.size());
+      Throwable t = e.getCause();
+      if (t != null
+          && t.getClass().getName().equals(
+              "org.apache.activemq.transport.TransportDisposedIOException")) {
+        if ((System.currentTimeMillis() - lastMessage) > 15000L) {
+          lastMessage = System.currentTimeMillis();
+          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
+        }
+        LOGGER.debug(e.getMessage(), e);
+      } else {
+        LOGGER.error("Failed to send " + batch.size() + " events: " + e.getMessage(), e);
+      }
+      closeConnection();
+    }
+  }
+
+  /**
+   * @return the session for the acknowledge mode of the event, creating the connection
+   *         and session if needed.
+   */
+  private PooledSession getSession(Event event) throws JMSException {
+    int clientAcknowledgeMode = acknowledgeMode;
+    EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
+        .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
+    if (acknowledgeModeForEvent != null && !transacted) {
+      switch (acknowledgeModeForEvent) {
+      case AUTO_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
+        break;
+      case CLIENT_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
+        break;
+      case DUPS_OK_ACKNOWLEDGE:
+        clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
+        break;
+      }
+    }
+    PooledSession pooledSession = sessions.get(clientAcknowledgeMode);
+    if (pooledSession == null) {
+      if (connection == null) {
+        connection = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+      }
+      pooledSession = new PooledSession(connection.createSession(transacted,
+          clientAcknowledgeMode));
+      sessions.put(clientAcknowledgeMode, pooledSession);
+    }
+    return pooledSession;
+  }
+
+  private Message createMessage(Session session, Event event) throws JMSException {
+    Message msg = session.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+    if (messageMode == EventMessageMode.PERSISTENT) {
+      msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
+    } else {
+      msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
+    }
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List) {
+        msg.setObjectProperty(name, obj);
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  /**
+   * Close the sessions, their producers and the connection.
+   */
+  private void closeConnection() {
+    for (PooledSession pooledSession : sessions.values()) {
+      pooledSession.close();
+    }
+    sessions.clear();
+    try {
+      if (connection != null) {
+        connection.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    connection = null;
+  }
+}
@@ -21,35 +21,37 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventConstants;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+import org.sakaiproject.nakamura.events.EventSender.QueuedEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import javax.jms.Connection;
-import javax.jms.DeliveryMode;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Events are put on a bounded queue and
+ * sent in batches by a single sender thread that keeps its connection, sessions and
+ * producers open, so the thread posting the event does not wait for JMS.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true, immediate = true)
 @Service
@@ -62,7 +64,7 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = "sakai.event.bridge")
   static final String CONNECTION_CLIENT_ID = "bridge.connectionClientId";
 
-  @Property(boolValue = false, propertyPrivate = true)
+  @Property(boolValue = true, propertyPrivate = true)
   static final String SESSION_TRANSACTED = "bridge.sessionTransacted";
 
   @Property(intValue = Session.AUTO_ACKNOWLEDGE, propertyPrivate = true)
@@ -71,6 +73,26 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queue.size";
+
+  @Property(intValue = 100)
+  static final String BATCH_SIZE = "bridge.batch.size";
+
+  @Property(longValue = 1000L)
+  static final String BLOCK_TIMEOUT = "bridge.queue.blockTimeout";
+
+  @Property(value = "block")
+  static final String DEFAULT_POLICY = "bridge.queue.defaultPolicy";
+
+  @Property(value = { "org/osgi/service/log/LogEntry/*=drop" })
+  static final String TOPIC_POLICIES = "bridge.queue.topicPolicies";
+
+  @Property(intValue = 100)
+  static final String PRODUCER_CACHE_SIZE = "bridge.producer.cacheSize";
+
+  private static final long STOP_TIMEOUT = 10000L;
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
   
 
@@ -89,6 +111,27 @@ public class OsgiJmsBridge implements EventHandler {
 
   private String serverId;
 
+  private long blockTimeout;
+  private DeliveryPolicy defaultPolicy;
+  /**
+   * Policies configured for exact topics.
+   */
+  private Map<String, DeliveryPolicy> topicPolicies = new HashMap<String, DeliveryPolicy>();
+  /**
+   * Policies configured for topic prefixes, ie topics ending in *.
+   */
+  private Map<String, DeliveryPolicy> prefixPolicies = new HashMap<String, DeliveryPolicy>();
+  /**
+   * The policy resolved for each topic seen.
+   */
+  private Map<String, DeliveryPolicy> resolvedPolicies = new ConcurrentHashMap<String, DeliveryPolicy>();
+
+  private volatile BlockingQueue<QueuedEvent> queue;
+  private EventSender sender;
+  private Thread senderThread;
+  private OsgiJmsBridgeStatistics statistics = new OsgiJmsBridgeStatistics();
+  private ObjectName statisticsName;
+
   /**
    * Default constructor.
    */
@@ -118,8 +161,8 @@ public class OsgiJmsBridge implements EventHandler {
   protected void activate(ComponentContext ctx) {
     Dictionary props = ctx.getProperties();
 
-    transacted = (Boolean) props.get(SESSION_TRANSACTED);
-    acknowledgeMode = (Integer) props.get(ACKNOWLEDGE_MODE);
+    transacted = OsgiUtil.toBoolean(props.get(SESSION_TRANSACTED), true);
+    acknowledgeMode = OsgiUtil.toInteger(props.get(ACKNOWLEDGE_MODE), Session.AUTO_ACKNOWLEDGE);
     connectionClientId = (String) props.get(CONNECTION_CLIENT_ID);
     serverId = clusterTrackingService.getCurrentServerId();
     
@@ -132,16 +175,37 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
-    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
-        new Object[] { transacted, acknowledgeMode, connectionClientId });
+    int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+    int batchSize = OsgiUtil.toInteger(props.get(BATCH_SIZE), 100);
+    int producerCacheSize = OsgiUtil.toInteger(props.get(PRODUCER_CACHE_SIZE), 100);
+    blockTimeout = OsgiUtil.toLong(props.get(BLOCK_TIMEOUT), 1000L);
+    configurePolicies(OsgiUtil.toString(props.get(DEFAULT_POLICY), "block"),
+        OsgiUtil.toStringArray(props.get(TOPIC_POLICIES)));
+
+    stopSender();
+    queue = new ArrayBlockingQueue<QueuedEvent>(Math.max(1, queueSize));
+    statistics.setQueue(queue);
+    sender = new EventSender(queue, connFactoryService, statistics, transacted,
+        acknowledgeMode, batchSize, producerCacheSize, serverId);
+    senderThread = new Thread(sender, "OSGi to JMS Event Bridge");
+    senderThread.setDaemon(true);
+    senderThread.start();
+    registerStatistics();
+
+    LOGGER.info("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}, "
+        + "Queue Size: {}, Batch Size: {}", new Object[] { transacted, acknowledgeMode,
+        connectionClientId, queueSize, batchSize });
   }
 
   /**
-   * Called by the OSGi container to deactivate this component.
+   * Called by the OSGi container to deactivate this component. Events already queued
+   * are sent before the sender stops.
    * 
    * @param ctx
    */
   protected void deactivate(ComponentContext ctx) {
+    stopSender();
+    unregisterStatistics();
   }
 
   /**
@@ -151,125 +215,170 @@ public class OsgiJmsBridge implements EventHandler {
    */
   public void handleEvent(Event event) {
     LOGGER.trace("Receiving event");
-    if ( IGNORE_EVENT_TOPICS.contains(event.getTopic()) ) {
+    String topic = event.getTopic();
+    if ( ignoreEventTopics.contains(topic) ) {
       // Ignore Log messages in jms.
       return;
     }
-    Connection conn = null;
-
-    LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
-    try {
-
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
+    BlockingQueue<QueuedEvent> q = queue;
+    if (q == null) {
+      LOGGER.debug("Bridge not active, dropping event {} ", event);
+      return;
+    }
+    QueuedEvent queuedEvent = new QueuedEvent(event);
+    boolean queued = false;
+    switch (getPolicy(topic)) {
+    case DROP:
+      queued = q.offer(queuedEvent);
+      break;
+    case DROP_OLDEST:
+      while (!(queued = q.offer(queuedEvent))) {
+        if (q.poll() != null) {
+          statistics.dropped();
         }
       }
+      break;
+    case BLOCK:
+    default:
+      try {
+        queued = q.offer(queuedEvent, blockTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      break;
+    }
+    if (queued) {
+      statistics.queued();
+    } else {
+      statistics.dropped();
+      if ((System.currentTimeMillis() - lastMessage) > 15000L) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.warn("JMS send queue is full, dropping events, last dropped was {} ", topic);
+      }
+    }
+  }
+
+  /**
+   * @return the counters for the bridge.
+   */
+  protected OsgiJmsBridgeStatistics getStatistics() {
+    return statistics;
+  }
 
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
+  /**
+   * @param topic
+   * @return the policy for the topic, an exact match wins, then the longest matching
+   *         prefix, then the default.
+   */
+  protected DeliveryPolicy getPolicy(String topic) {
+    DeliveryPolicy policy = resolvedPolicies.get(topic);
+    if (policy == null) {
+      policy = topicPolicies.get(topic);
+      if (policy == null) {
+        int longest = -1;
+        for (Map.Entry<String, DeliveryPolicy> e : prefixPolicies.entrySet()) {
+          String prefix = e.getKey();
+          if (topic.startsWith(prefix) && prefix.length() > longest) {
+            longest = prefix.length();
+            policy = e.getValue();
+          }
         }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
       }
+      if (policy == null) {
+        policy = defaultPolicy;
+      }
+      resolvedPolicies.put(topic, policy);
+    }
+    return policy;
+  }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
+  /**
+   * @param defaultPolicyName
+   *          the policy for topics not listed.
+   * @param policies
+   *          entries of the form topic=policy, where topic may end with * to match a
+   *          prefix.
+   */
+  private void configurePolicies(String defaultPolicyName, String[] policies) {
+    try {
+      defaultPolicy = DeliveryPolicy.parse(defaultPolicyName);
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown delivery policy {}, using block ", defaultPolicyName);
+      defaultPolicy = DeliveryPolicy.BLOCK;
+    }
+    topicPolicies.clear();
+    prefixPolicies.clear();
+    resolvedPolicies.clear();
+    if (policies == null) {
+      return;
+    }
+    for (String p : policies) {
+      int i = p.lastIndexOf('=');
+      if (i <= 0) {
+        LOGGER.warn("Ignoring delivery policy {}, should be topic=policy ", p);
+        continue;
       }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List) {
-          msg.setObjectProperty(name, obj);
-        }
+      String topic = p.substring(0, i).trim();
+      DeliveryPolicy policy;
+      try {
+        policy = DeliveryPolicy.parse(p.substring(i + 1));
+      } catch (IllegalArgumentException e) {
+        LOGGER.warn("Ignoring delivery policy {}, unknown policy ", p);
+        continue;
       }
-      
-      msg.setStringProperty("clusterServerId", serverId);
-      
-      // add the current user
-
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
+      if (topic.endsWith("*")) {
+        prefixPolicies.put(topic.substring(0, topic.length() - 1), policy);
       } else {
-        LOGGER.error(e.getMessage(), e);
+        topicPolicies.put(topic, policy);
       }
-    } finally {
+    }
+  }
+
+  /**
+   * Stop accepting events, and wait for the sender to send what has been queued.
+   */
+  private void stopSender() {
+    queue = null;
+    if (sender != null) {
+      sender.stop();
       try {
-        if (conn != null) {
-          conn.close();
+        senderThread.join(STOP_TIMEOUT);
+        if (senderThread.isAlive()) {
+          LOGGER.warn("JMS sender did not finish in {} ms, interrupting ", STOP_TIMEOUT);
+          senderThread.interrupt();
         }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
+      sender = null;
+      senderThread = null;
+    }
+  }
+
+  private void registerStatistics() {
+    if (statisticsName != null) {
+      return;
+    }
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(
+          "org.sakaiproject.nakamura:type=OsgiJmsBridge,name=OsgiJmsBridge");
+      mbeanServer.registerMBean(statistics, name);
+      statisticsName = name;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register JMX statistics for the event bridge: {} ",
+          e.getMessage());
+    }
+  }
+
+  private void unregisterStatistics() {
+    if (statisticsName != null) {
       try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(statisticsName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
       }
+      statisticsName = null;
     }
   }
 
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the OSGi to JMS bridge.
+ */
+public class OsgiJmsBridgeStatistics implements OsgiJmsBridgeStatisticsMBean {
+
+  private volatile BlockingQueue<?> queue;
+  private AtomicLong queued = new AtomicLong();
+  private AtomicLong sent = new AtomicLong();
+  private AtomicLong dropped = new AtomicLong();
+  private AtomicLong failed = new AtomicLong();
+  private AtomicLong batches = new AtomicLong();
+  private AtomicLong totalSendLatency = new AtomicLong();
+  private AtomicLong maxSendLatency = new AtomicLong();
+
+  void setQueue(BlockingQueue<?> queue) {
+    this.queue = queue;
+  }
+
+  void queued() {
+    queued.incrementAndGet();
+  }
+
+  void dropped() {
+    dropped.incrementAndGet();
+  }
+
+  void failed(int n) {
+    failed.addAndGet(n);
+  }
+
+  void batchSent(int n) {
+    batches.incrementAndGet();
+    sent.addAndGet(n);
+  }
+
+  void sent(long latency) {
+    totalSendLatency.addAndGet(latency);
+    long max = maxSendLatency.get();
+    while (latency > max && !maxSendLatency.compareAndSet(max, latency)) {
+      max = maxSendLatency.get();
+    }
+  }
+
+  public int getQueueDepth() {
+    BlockingQueue<?> q = queue;
+    return q == null ? 0 : q.size();
+  }
+
+  public long getQueued() {
+    return queued.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getAverageBatchSize() {
+    long n = batches.get();
+    return n == 0 ? 0 : sent.get() / n;
+  }
+
+  public long getAverageSendLatency() {
+    long n = sent.get();
+    return n == 0 ? 0 : totalSendLatency.get() / n;
+  }
+
+  public long getMaxSendLatency() {
+    return maxSendLatency.get();
+  }
+
+  public void reset() {
+    queued.set(0);
+    sent.set(0);
+    dropped.set(0);
+    failed.set(0);
+    batches.set(0);
+    totalSendLatency.set(0);
+    maxSendLatency.set(0);
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * JMX view of the OSGi to JMS bridge send queue.
+ */
+public interface OsgiJmsBridgeStatisticsMBean {
+
+  /**
+   * @return the number of events waiting to be sent.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of events accepted into the queue.
+   */
+  long getQueued();
+
+  /**
+   * @return the number of events sent to JMS.
+   */
+  long getSent();
+
+  /**
+   * @return the number of events dropped because the queue was full.
+   */
+  long getDropped();
+
+  /**
+   * @return the number of events that failed to send.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of batches sent.
+   */
+  long getBatches();
+
+  /**
+   * @return the mean number of events in a batch.
+   */
+  long getAverageBatchSize();
+
+  /**
+   * @return the mean time from an event being queued to it being sent, in ms.
+   */
+  long getAverageSendLatency();
+
+  /**
+   * @return the longest time from an event being queued to it being sent, in ms.
+   */
+  long getMaxSendLatency();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.activemq.ActiveMQBrokerComponent;
+import org.sakaiproject.nakamura.activemq.ActiveMQConnectionFactoryService;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Hashtable;
+
+import javax.jms.Connection;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+/**
+ * Sends events through the bridge to the embedded broker.
+ */
+public class OsgiJmsBridgeBrokerTest {
+
+  private ActiveMQBrokerComponent broker;
+  private ActiveMQConnectionFactoryService connFactoryService;
+  private ComponentContext amqContext;
+  private Connection consumerConnection;
+
+  @Before
+  public void before() throws Exception {
+    Hashtable<String, Object> dict = new Hashtable<String, Object>();
+    dict.put("broker.url", "tcp://localhost:" + getFreePort());
+    dict.put("broker.enabled", true);
+    dict.put(ActiveMQConnectionFactoryService.BROKER_URL, "vm://localhost");
+    BundleContext bundleContext = createMock(BundleContext.class);
+    expect(bundleContext.getProperty("sling.home")).andReturn("target").anyTimes();
+    amqContext = createMock(ComponentContext.class);
+    expect(amqContext.getProperties()).andReturn(dict).anyTimes();
+    expect(amqContext.getBundleContext()).andReturn(bundleContext).anyTimes();
+    replay(bundleContext, amqContext);
+
+    broker = new ActiveMQBrokerComponent();
+    broker.activateForTest(amqContext);
+    connFactoryService = new ActiveMQConnectionFactoryService();
+    connFactoryService.activateForTest(amqContext);
+
+    consumerConnection = connFactoryService.getDefaultConnectionFactory()
+        .createConnection();
+    consumerConnection.start();
+  }
+
+  @After
+  public void after() throws Exception {
+    consumerConnection.close();
+    connFactoryService.deactivateForTest(amqContext);
+    broker.deactivateForTest(amqContext);
+  }
+
+  @Test
+  public void testBatchedDelivery() throws Exception {
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer topicConsumer = session.createConsumer(session
+        .createTopic("test/bridge/topic"));
+    MessageConsumer queueConsumer = session.createConsumer(session
+        .createQueue("test/bridge/queue"));
+
+    OsgiJmsBridge bridge = activateBridge();
+    for (int i = 0; i < 50; i++) {
+      Hashtable<String, Object> props = new Hashtable<String, Object>();
+      props.put("n", i);
+      bridge.handleEvent(new Event("test/bridge/topic", props));
+      props.put(EventDeliveryConstants.DELIVERY_MODE, EventDeliveryMode.P2P);
+      bridge.handleEvent(new Event("test/bridge/queue", props));
+    }
+    // deactivating sends everything queued.
+    bridge.deactivate(null);
+
+    for (int i = 0; i < 50; i++) {
+      Message msg = topicConsumer.receive(5000);
+      assertNotNull(msg);
+      assertEquals(i, msg.getIntProperty("n"));
+      assertEquals("test-server", msg.getStringProperty("clusterServerId"));
+      msg = queueConsumer.receive(5000);
+      assertNotNull(msg);
+      assertEquals(i, msg.getIntProperty("n"));
+    }
+    OsgiJmsBridgeStatistics statistics = bridge.getStatistics();
+    assertEquals(100, statistics.getQueued());
+    assertEquals(100, statistics.getSent());
+    assertEquals(0, statistics.getFailed());
+    assertEquals(0, statistics.getDropped());
+    assertTrue(statistics.getBatches() <= 100);
+    assertEquals(0, statistics.getQueueDepth());
+    session.close();
+  }
+
+  @Test
+  public void testIgnoredTopics() throws Exception {
+    Session session = consumerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = session.createConsumer(session
+        .createTopic("org/osgi/service/log/LogEntry/LOG_DEBUG"));
+    OsgiJmsBridge bridge = activateBridge();
+    bridge.handleEvent(new Event("org/osgi/service/log/LogEntry/LOG_DEBUG",
+        new Hashtable<String, Object>()));
+    bridge.deactivate(null);
+    assertEquals(null, consumer.receive(500));
+    assertEquals(0, bridge.getStatistics().getQueued());
+    session.close();
+  }
+
+  private OsgiJmsBridge activateBridge() {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(OsgiJmsBridge.CONNECTION_CLIENT_ID, "sakai.event.bridge");
+    props.put("bridge.ignore.event.topics",
+        new String[] { "org/osgi/service/log/LogEntry/LOG_DEBUG" });
+    props.put(OsgiJmsBridge.BATCH_SIZE, 10);
+    ComponentContext ctx = createMock(ComponentContext.class);
+    expect(ctx.getProperties()).andReturn(props);
+    ClusterTrackingService clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("test-server");
+    replay(ctx, clusterTrackingService);
+
+    OsgiJmsBridge bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    return bridge;
+  }
+
+  private int getFreePort() throws IOException {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();
+    return port;
+  }
+}
@@ -24,6 +24,7 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import org.apache.activemq.command.ActiveMQMessage;
 import org.junit.Before;
@@ -41,6 +42,7 @@ import java.util.Hashtable;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
@@ -187,8 +189,10 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    bridge.deactivate(ctx);
     // should log the message, but not fail
     verify(ctx, connFactory, clusterTrackingService);
+    assertEquals(1, bridge.getStatistics().getFailed());
   }
 
 
@@ -223,6 +227,27 @@ public class OsgiJmsBridgeTest {
     verify(ctx, conn, connFactory, clusterTrackingService);
   }
 
+  @Test
+  public void testPolicies() throws Exception {
+    compProps.put(OsgiJmsBridge.DEFAULT_POLICY, "drop");
+    compProps.put(OsgiJmsBridge.TOPIC_POLICIES, new String[] { "a/b/*=block",
+        "a/b/c/*=drop-oldest", "a/b/c/d=block", "broken", "x=unknown" });
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+    replay(ctx, connFactoryService, connFactory, clusterTrackingService);
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    assertSame(DeliveryPolicy.DROP, bridge.getPolicy("x"));
+    assertSame(DeliveryPolicy.BLOCK, bridge.getPolicy("a/b/x"));
+    assertSame(DeliveryPolicy.DROP_OLDEST, bridge.getPolicy("a/b/c/x"));
+    assertSame(DeliveryPolicy.BLOCK, bridge.getPolicy("a/b/c/d"));
+    assertSame(DeliveryPolicy.DROP, bridge.getPolicy("a/bc"));
+    bridge.deactivate(ctx);
+    verify(ctx, clusterTrackingService);
+  }
+
   /**
    * Constructs the bridge, activates it, constructs a message with 2 properties
    * and calls the bridge to handle it.
@@ -319,10 +344,12 @@ public class OsgiJmsBridgeTest {
       message = new ActiveMQMessage();
       expect(sess.createMessage()).andReturn(message);
 
-      // expect the message to be sent
-      prod.send(message);
-      
+      // expect the message to be sent with the delivery mode of the event
+      prod.send(message, DeliveryMode.NON_PERSISTENT, Message.DEFAULT_PRIORITY,
+          Message.DEFAULT_TIME_TO_LIVE);
 
+      // the producer and session are kept open until the bridge is deactivated
+      prod.close();
       sess.close();
     } catch (JMSException e) {
       // this should never happen because the calls are on mock objects
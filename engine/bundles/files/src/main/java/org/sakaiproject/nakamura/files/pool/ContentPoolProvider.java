@@ -19,34 +19,122 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.util.ResolutionCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
 import java.util.Iterator;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 
 @Component(name = "org.sakaiproject.nakamura.files.pool.ContentPoolProvider", immediate = true, metatype = true, description = "%contentpool.description", label = "%contentpool.name")
-@Service(value = ResourceProvider.class)
-@Property(name = ResourceProvider.ROOTS, value = { "/", "/p" })
-public class ContentPoolProvider implements ResourceProvider {
+@Service(value = { ResourceProvider.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = ResourceProvider.ROOTS, value = { "/", "/p" }),
+    @Property(name = ContentPoolProvider.CACHE_SIZE, intValue = ContentPoolProvider.DEFAULT_CACHE_SIZE, label = "%contentpool.cache.size.name", description = "%contentpool.cache.size.description"),
+    @Property(name = ContentPoolProvider.CACHE_NOT_FOUND_TTL, longValue = ContentPoolProvider.DEFAULT_CACHE_NOT_FOUND_TTL, label = "%contentpool.cache.notFoundTtl.name", description = "%contentpool.cache.notFoundTtl.description"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class ContentPoolProvider implements ResourceProvider, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ContentPoolProvider.class);
   public static final String CONTENT_RESOURCE_PROVIDER = ContentPoolProvider.class
       .getName();
 
+  static final String CACHE_SIZE = "sakai.contentpool.cache.size";
+  static final int DEFAULT_CACHE_SIZE = 10000;
+  static final String CACHE_NOT_FOUND_TTL = "sakai.contentpool.cache.notFoundTtl";
+  static final long DEFAULT_CACHE_NOT_FOUND_TTL = 60000L;
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  /**
+   * The path of each pool id, and pool ids that do not exist.
+   */
+  protected ResolutionCache poolPaths = new ResolutionCache(DEFAULT_CACHE_SIZE,
+      DEFAULT_CACHE_NOT_FOUND_TTL);
+  private ObjectName mbeanName;
+  /**
+   * An administrative session held to tell whether content exists, rather than logging
+   * in on each miss. Sessions are not thread safe, guarded by adminLock.
+   */
+  private Session adminSession;
+  private final Object adminLock = new Object();
+
   // this 36*36 = 1296, so /a/aa/aa/aa will have 36 at the first level, then 46656 at the
   // second and then 60M, then 7e10 items at the last level.
 
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext context) {
+    Dictionary<String, Object> props = context.getProperties();
+    poolPaths.configure(OsgiUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE),
+        OsgiUtil.toLong(props.get(CACHE_NOT_FOUND_TTL), DEFAULT_CACHE_NOT_FOUND_TTL));
+    try {
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=ResolutionCache,name="
+          + ContentPoolProvider.class.getSimpleName());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(poolPaths, mbeanName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register the pool path cache with JMX: {}", e.getMessage());
+      mbeanName = null;
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to unregister the pool path cache from JMX: {}", e
+            .getMessage());
+      }
+      mbeanName = null;
+    }
+    poolPaths.clear();
+    synchronized (adminLock) {
+      if (adminSession != null) {
+        adminSession.logout();
+        adminSession = null;
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the cached path of a pool id when pooled content is created or deleted.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null
+        && path.startsWith(CreateContentPoolServlet.POOLED_CONTENT_ROOT + "/")) {
+      poolPaths.invalidate(path.substring(path.lastIndexOf('/') + 1));
+    }
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -110,19 +198,34 @@ public class ContentPoolProvider implements ResourceProvider {
         return null;
       }
       LOGGER.debug("Pool ID is [{}]", poolId);
-      String poolPath = null;
-      try {
-        poolPath = CreateContentPoolServlet.hash(poolId) + selectors;
-      } catch (Exception e) {
-        throw new RepositoryException("Unable to hash pool ID " + e.getMessage(), e);
+      String poolPath = poolPaths.get(poolId);
+      if (poolPath == ResolutionCache.NOT_FOUND) {
+        LOGGER.debug("Pool ID [{}] is known not to exist, reject", poolId);
+        throw new SlingException("Resources may not be created at /p by the user",
+            new AccessDeniedException("Cant create user specified pool resoruce"));
+      }
+      long start = System.nanoTime();
+      boolean cached = poolPath != null;
+      if (!cached) {
+        try {
+          poolPath = CreateContentPoolServlet.hash(poolId) + selectors;
+        } catch (Exception e) {
+          throw new RepositoryException("Unable to hash pool ID " + e.getMessage(), e);
+        }
       }
       Resource r = resourceResolver.resolve(poolPath);
       if (r instanceof NonExistingResource) {
         LOGGER.debug("Pool ID does not exist, reject and dont allow creation on POST {} ",
             poolPath);
+        if (!exists(poolPath)) {
+          poolPaths.putNotFound(poolId, System.nanoTime() - start);
+        }
         throw new SlingException("Resources may not be created at /p by the user",
             new AccessDeniedException("Cant create user specified pool resoruce"));
       }
+      if (!cached && r != null) {
+        poolPaths.put(poolId, poolPath, System.nanoTime() - start);
+      }
       LOGGER.debug("Resolving [{}] to [{}] ", poolPath, r);
       if (r != null) {
         // are the last elements the same ?
@@ -142,6 +245,29 @@ public class ContentPoolProvider implements ResourceProvider {
     return null;
   }
 
+  /**
+   * @param poolPath
+   *          the path of some pooled content.
+   * @return true if the content exists, whether or not the current user can see it, so
+   *         that content a user cannot read is not remembered as missing for everyone.
+   * @throws RepositoryException
+   */
+  private boolean exists(String poolPath) throws RepositoryException {
+    synchronized (adminLock) {
+      if (adminSession == null) {
+        adminSession = slingRepository.loginAdministrative(null);
+      }
+      try {
+        adminSession.refresh(false);
+        return adminSession.itemExists(poolPath);
+      } catch (RepositoryException e) {
+        adminSession.logout();
+        adminSession = null;
+        throw e;
+      }
+    }
+  }
+
   private String getLastElement(String path) {
     for (int i = path.length() - 1; i >= 0; i--) {
       if (path.charAt(i) == '/') {
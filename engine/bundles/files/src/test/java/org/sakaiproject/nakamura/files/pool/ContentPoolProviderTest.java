@@ -22,15 +22,23 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
 import junit.framework.Assert;
 
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceMetadata;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.osgi.service.event.Event;
+
+import java.util.Hashtable;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 
 public class ContentPoolProviderTest {
 
@@ -38,11 +46,17 @@ public class ContentPoolProviderTest {
   private ResourceResolver resourceResolver;
   @Mock
   private Resource resource;
+  @Mock
+  private SlingRepository slingRepository;
+  @Mock
+  private Session adminSession;
   private ContentPoolProvider cp;
 
-  public ContentPoolProviderTest() {
+  public ContentPoolProviderTest() throws RepositoryException {
     MockitoAnnotations.initMocks(this);
+    Mockito.when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
     cp = new ContentPoolProvider();
+    cp.slingRepository = slingRepository;
   }
 
   @SuppressWarnings(value = { "DLS_DEAD_LOCAL_STORE" }, justification = "Unit testing fail mode")
@@ -69,6 +83,50 @@ public class ContentPoolProviderTest {
 
   }
 
+  @Test
+  public void testNonExistingIsRemembered() throws RepositoryException {
+    Mockito.when(resourceResolver.resolve(Mockito.anyString())).thenReturn(
+        new NonExistingResource(resourceResolver, "/_p/j/yy/qe/u1/nonexisting"));
+    for (int i = 0; i < 3; i++) {
+      try {
+        cp.getResource(resourceResolver, "/p/nonexisting");
+        Assert.fail("Should have refused to create a none existing resource ");
+      } catch (SlingException e) {
+      }
+    }
+    // resolved once, then refused from the cache.
+    Mockito.verify(resourceResolver, Mockito.times(1)).resolve(Mockito.anyString());
+    Assert.assertEquals(2, cp.poolPaths.getNegativeHits());
+
+    // creating the content makes it resolvable.
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, "/_p/j/yy/qe/u1/nonexisting");
+    cp.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, props));
+    Mockito.when(resourceResolver.resolve(Mockito.anyString())).thenReturn(resource);
+    Mockito.when(resource.getPath()).thenReturn("/_p/j/yy/qe/u1/nonexisting");
+    Mockito.when(resource.getResourceMetadata()).thenReturn(new ResourceMetadata());
+    Assert.assertSame(resource, cp.getResource(resourceResolver, "/p/nonexisting"));
+  }
+
+  @Test
+  public void testUnreadableIsNotRemembered() throws RepositoryException {
+    Mockito.when(resourceResolver.resolve(Mockito.anyString())).thenReturn(
+        new NonExistingResource(resourceResolver, "/_p/j/yy/qe/u1/nonexisting"));
+    Mockito.when(adminSession.itemExists(Mockito.anyString())).thenReturn(true);
+    for (int i = 0; i < 3; i++) {
+      try {
+        cp.getResource(resourceResolver, "/p/nonexisting");
+        Assert.fail("Should have refused to create a none existing resource ");
+      } catch (SlingException e) {
+      }
+    }
+    Assert.assertEquals(0, cp.poolPaths.getEntries());
+    Assert.assertEquals(0, cp.poolPaths.getNotFoundEntries());
+    // each miss is checked with the same session, not a new login.
+    Mockito.verify(adminSession, Mockito.times(3)).itemExists(Mockito.anyString());
+    Mockito.verify(slingRepository, Mockito.times(1)).loginAdministrative(null);
+  }
+
   @Test
   public void testNonMatching() {
     Mockito.when(resourceResolver.resolve(Mockito.anyString())).thenReturn(resource);
@@ -21,19 +21,22 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
-import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
@@ -42,6 +45,8 @@ import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -58,8 +63,13 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * When more than one pattern matches, the filter sets the lowest maxage of the collection
  * of matching patterns.
+ * 
+ * Paths with a .requestCache age are served from a {@link ResponseCache} held within a
+ * memory budget. Cached responses carry strong ETags and a pre-gzipped copy of the
+ * content, and are invalidated by resource change events, which Sling raises from JCR
+ * observation on every node in the cluster.
  */
-@Service(value = Filter.class)
+@Services(value = { @Service(value = Filter.class), @Service(value = EventHandler.class) })
 @Component(immediate = true, metatype = true)
 @Properties(value = {
     @Property(name = "service.description", value = "Nakamura Cache-Control Filter"),
@@ -72,10 +82,15 @@ import javax.servlet.http.HttpServletResponse;
         "root;.*(js|css)$;.lastmodified:unset;.cookies:unset;.requestCache:3600;.expires:3456000;Vary: Accept-Encoding",
         "root;.*html$;.lastmodified:unset;.cookies:unset;.requestCache:3600;.expires:3456000;Vary: Accept-Encoding" }, 
         description = "List of path prefixes followed by a regex. If the prefix starts with a root: it means files in the root folder that match the pattern."),
+    @Property(name = "sakai.cache.maxBytes", longValue = 33554432L, description = "The memory budget, in bytes, for cached responses"),
+    @Property(name = "sakai.cache.maxEntryBytes", longValue = 1048576L, description = "Responses bigger than this, in bytes, are not cached"),
+    @Property(name = "sakai.cache.eviction", value = "lru", description = "Which responses to evict when over budget, lru (least recently used) or lfu (least frequently used)"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true),
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "filter.scope", value = "request", propertyPrivate = true),
     @Property(name = "filter.order", intValue = { 1 }, propertyPrivate = true) })
-public class CacheControlFilter implements Filter {
+public class CacheControlFilter implements Filter, EventHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheControlFilter.class);
 
   /**
@@ -97,9 +112,15 @@ public class CacheControlFilter implements Filter {
 
   static final String SAKAI_CACHE_PATHS = "sakai.cache.paths";
 
-  
-  @Reference 
-  protected CacheManagerService cacheManagerService;
+  static final String SAKAI_CACHE_MAX_BYTES = "sakai.cache.maxBytes";
+
+  static final String SAKAI_CACHE_MAX_ENTRY_BYTES = "sakai.cache.maxEntryBytes";
+
+  static final String SAKAI_CACHE_EVICTION = "sakai.cache.eviction";
+
+  private ResponseCache responseCache = new ResponseCache(33554432L, 1048576L, ResponseCache.Eviction.LRU);
+
+  private ObjectName responseCacheName;
   
   /**
    * {@inheritDoc}
@@ -180,9 +201,9 @@ public class CacheControlFilter implements Filter {
       sresponse.flushBuffer();
     } else {
       if ( cacheAge > 0 ) {
-        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, getCache());
+        cachedResponseManager = new CachedResponseManager(srequest, cacheAge, responseCache);
         if ( cachedResponseManager.isValid() ) {
-          cachedResponseManager.send(sresponse);
+          cachedResponseManager.send(srequest, sresponse);
           return;
         }
       }
@@ -200,8 +221,24 @@ public class CacheControlFilter implements Filter {
     }
   }
 
-  private Cache<CachedResponse> getCache() {
-    return cacheManagerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE);
+  /**
+   * {@inheritDoc}
+   * Drop cached responses for the resource that changed.
+   * 
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if ( path != null ) {
+      responseCache.invalidate(path);
+    }
+  }
+
+  /**
+   * @return the response cache.
+   */
+  protected ResponseCache getResponseCache() {
+    return responseCache;
   }
 
   private long getLastModified(Node n) throws RepositoryException {
@@ -288,6 +325,40 @@ public class CacheControlFilter implements Filter {
       rootPathPatterns = new HashMap<Pattern, Map<String, String>>();
     }
 
+    long maxBytes = OsgiUtil.toLong(properties.get(SAKAI_CACHE_MAX_BYTES), 33554432L);
+    long maxEntryBytes = OsgiUtil.toLong(properties.get(SAKAI_CACHE_MAX_ENTRY_BYTES), 1048576L);
+    ResponseCache.Eviction eviction = ResponseCache.Eviction.LRU;
+    String evictionName = OsgiUtil.toString(properties.get(SAKAI_CACHE_EVICTION), "lru");
+    try {
+      eviction = ResponseCache.Eviction.valueOf(evictionName.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LOGGER.warn("Unknown eviction policy {}, using lru ", evictionName);
+    }
+    responseCache.configure(maxBytes, maxEntryBytes, eviction);
+
+    if (responseCacheName == null) {
+      try {
+        ObjectName name = new ObjectName(
+            "org.sakaiproject.nakamura:type=ResponseCache,name=CacheControlFilter");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(responseCache, name);
+        responseCacheName = name;
+      } catch (JMException e) {
+        LOGGER.warn("Unable to register JMX statistics for the response cache: {} ",
+            e.getMessage());
+      }
+    }
+  }
+
+  protected void deactivate(ComponentContext componentContext) {
+    if (responseCacheName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(responseCacheName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      responseCacheName = null;
+    }
+    responseCache.clear();
   }
 
   private Map<String, String> toMap(int starting, String[] cp) {
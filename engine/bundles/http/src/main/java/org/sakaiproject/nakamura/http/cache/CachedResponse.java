@@ -17,24 +17,42 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 
 /**
-  A pojo to contain the response redo log and content.
+  A pojo to contain the response redo log and content, with a pre-gzipped copy of the
+  content when that is worth having, and a strong ETag for each variant.
  */
 public class CachedResponse implements Serializable {
 
   /**
    * 
    */
-  private static final long serialVersionUID = -533080549451000116L;
+  private static final long serialVersionUID = -533080549451000117L;
+  /**
+   * Content smaller than this is not worth gzipping.
+   */
+  private static final int MIN_GZIP_SIZE = 256;
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
   private long expires;
   private Operation[] operations;
   private byte[] byteContent;
   private String stringContent;
+  private byte[] gzipContent;
+  private String etag;
+  private String gzipEtag;
+  private long size;
+  private AtomicInteger hits = new AtomicInteger();
+  private volatile long lastAccess;
 
   public CachedResponse(OperationResponseCapture responseOperation, int cacheAge) throws IOException {
     expires = System.currentTimeMillis() + cacheAge*1000L;
@@ -42,6 +60,24 @@ public class CachedResponse implements Serializable {
     operations = responseOperation.getRedoLog();
     byteContent = responseOperation.getByteContent();
     stringContent = responseOperation.getStringContent();
+
+    byte[] content = byteContent;
+    if ( content == null ) {
+      content = stringContent == null ? new byte[0] : encode(stringContent);
+    }
+    String hash = md5(content);
+    etag = "\"" + hash + "\"";
+    if ( content.length >= MIN_GZIP_SIZE && !isContentEncoded() ) {
+      byte[] gz = gzip(content);
+      // only keep the gzipped copy if it saves something worth the cpu on the client.
+      if ( gz.length < content.length - content.length/10 ) {
+        gzipContent = gz;
+        gzipEtag = "\"" + hash + "-gz\"";
+      }
+    }
+    size = (stringContent == null ? 0 : stringContent.length() * 2L)
+        + (byteContent == null ? 0 : byteContent.length)
+        + (gzipContent == null ? 0 : gzipContent.length);
   }
 
   public boolean isValid() {
@@ -49,10 +85,172 @@ public class CachedResponse implements Serializable {
   }
 
   public void replay(HttpServletResponse response) throws IOException {
-    OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
-    responseOperation.replay(response);
+    replay(response, false);
+  }
+
+  /**
+   * @param response
+   * @param gzip
+   *          true if the client accepts gzip, the gzipped copy is sent if there is one.
+   * @throws IOException
+   */
+  public void replay(HttpServletResponse response, boolean gzip) throws IOException {
+    if ( gzip && gzipContent != null ) {
+      OperationResponseReplay responseOperation = new OperationResponseReplay(operations, gzipContent, null);
+      responseOperation.replayHeaders(response, true);
+      response.setHeader("ETag", gzipEtag);
+      response.setHeader("Content-Encoding", "gzip");
+      if ( !response.containsHeader("Vary") ) {
+        response.setHeader("Vary", "Accept-Encoding");
+      }
+      response.setContentLength(gzipContent.length);
+      responseOperation.replayContent(response);
+    } else {
+      OperationResponseReplay responseOperation = new OperationResponseReplay(operations, byteContent, stringContent);
+      responseOperation.replayHeaders(response, false);
+      response.setHeader("ETag", etag);
+      responseOperation.replayContent(response);
+    }
+  }
+
+  /**
+   * @param ifNoneMatch
+   *          the If-None-Match header from the request, may be null.
+   * @return true if the client already has one of the variants of this response.
+   */
+  public boolean matches(String ifNoneMatch) {
+    if ( ifNoneMatch == null ) {
+      return false;
+    }
+    for ( String tag : ifNoneMatch.split(",") ) {
+      tag = tag.trim();
+      if ( tag.startsWith("W/") ) {
+        tag = tag.substring(2);
+      }
+      if ( "*".equals(tag) || etag.equals(tag) || tag.equals(gzipEtag) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param gzip
+   *          true if the client accepts gzip.
+   * @return the ETag of the variant the client would be sent.
+   */
+  public String getETag(boolean gzip) {
+    return gzip && gzipEtag != null ? gzipEtag : etag;
+  }
+
+  /**
+   * @return approximate number of bytes held by this response.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @param gzip
+   *          true if the gzipped copy is being sent.
+   * @return the length of the content sent.
+   */
+  public long getContentLength(boolean gzip) {
+    if ( gzip && gzipContent != null ) {
+      return gzipContent.length;
+    }
+    return byteContent != null ? byteContent.length
+        : (stringContent != null ? stringContent.length() : 0);
+  }
+
+  /**
+   * @return true if there is a gzipped copy of the content.
+   */
+  public boolean hasGzip() {
+    return gzipContent != null;
+  }
+
+  /**
+   * Record an access, for eviction.
+   * @param tick a counter that increases with each access to the cache.
+   */
+  void touch(long tick) {
+    lastAccess = tick;
+    hits.incrementAndGet();
+  }
+
+  long getLastAccess() {
+    return lastAccess;
+  }
+
+  int getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return true if the response set a Content-Encoding, in which case the content must
+   *         not be gzipped again.
+   */
+  private boolean isContentEncoded() {
+    for ( Operation o : operations ) {
+      int op = o.getOperation();
+      if ( op == OperationResponseCapture.SET_HEADER || op == OperationResponseCapture.ADD_HEADER ) {
+        if ( "Content-Encoding".equalsIgnoreCase((String) o.get(0)) ) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Encode string content the way the response writer would have, using the recorded
+   * character encoding, or the charset of the content type, or the servlet default.
+   */
+  private byte[] encode(String content) throws UnsupportedEncodingException {
+    String charset = "ISO-8859-1";
+    for ( Operation o : operations ) {
+      int op = o.getOperation();
+      if ( op == OperationResponseCapture.SET_CHARACTER_ENCODING && o.get(0) != null ) {
+        charset = o.get(0);
+      } else if ( op == OperationResponseCapture.SET_CONTENT_TYPE && o.get(0) != null ) {
+        String type = o.get(0);
+        int i = type.toLowerCase().indexOf("charset=");
+        if ( i >= 0 ) {
+          charset = type.substring(i + 8).trim();
+        }
+      }
+    }
+    try {
+      return content.getBytes(charset);
+    } catch (UnsupportedEncodingException e) {
+      return content.getBytes("UTF-8");
+    }
+  }
+
+  private static byte[] gzip(byte[] content) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 2);
+    GZIPOutputStream out = new GZIPOutputStream(baos);
+    out.write(content);
+    out.close();
+    return baos.toByteArray();
   }
-  
+
+  private static String md5(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(content);
+      char[] hex = new char[digest.length * 2];
+      for ( int i = 0; i < digest.length; i++ ) {
+        hex[i * 2] = HEX[(digest[i] >> 4) & 0x0f];
+        hex[i * 2 + 1] = HEX[digest[i] & 0x0f];
+      }
+      return new String(hex);
+    } catch (NoSuchAlgorithmException e) {
+      // every JVM has MD5.
+      throw new IllegalStateException(e.getMessage(), e);
+    }
+  }
+
   @Override
   public String toString() {
     return "redo "+operations.length+" operations "+String.valueOf(stringContent==null?byteContent.length:stringContent.length());
@@ -18,7 +18,6 @@
 
 package org.sakaiproject.nakamura.http.cache;
 
-import org.sakaiproject.nakamura.api.memory.Cache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,18 +31,25 @@ public class CachedResponseManager {
   private static final Logger LOGGER = LoggerFactory.getLogger(CachedResponseManager.class);
   private int cacheAge;
   private String key;
-  private Cache<CachedResponse> cache;
+  private ResponseCache cache;
   private CachedResponse cachedResponse;
 
-  public CachedResponseManager(HttpServletRequest request, int cacheAge, Cache<CachedResponse> cache) {
+  public CachedResponseManager(HttpServletRequest request, int cacheAge, ResponseCache cache) {
     this.cacheAge = cacheAge;
-    this.key = hashKey(request.getPathInfo()+"?"+request.getQueryString());
+    this.key = getKey(request);
     this.cache = cache;
-    this.cachedResponse = load();
+    this.cachedResponse = cache.get(key);
   }
 
-  private String hashKey(String key) {
-    return key;
+  /**
+   * The key is the path and query string. The response is the same for every client,
+   * variants for Accept-Encoding are held within the cached response.
+   *
+   * @param request
+   * @return the cache key for the request.
+   */
+  static String getKey(HttpServletRequest request) {
+    return request.getPathInfo()+"?"+request.getQueryString();
   }
 
   /**
@@ -63,18 +69,52 @@ public class CachedResponseManager {
     }
   }
 
-  private CachedResponse load() {
-    CachedResponse cachedResponse = null;
-    cachedResponse = cache.get(key);
-    if ( cachedResponse != null && !cachedResponse.isValid() ) {
-      cachedResponse = null;
-      cache.remove(key);
+  /**
+   * Send the cached response, or a 304 if the client already has it.
+   *
+   * @param request
+   * @param response
+   * @throws IOException
+   */
+  public void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    boolean gzip = cachedResponse.hasGzip() && acceptsGzip(request);
+    if ( cachedResponse.matches(request.getHeader("If-None-Match")) ) {
+      cache.notModified();
+      response.setHeader("ETag", cachedResponse.getETag(gzip));
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
     }
-    return cachedResponse;
+    cachedResponse.replay(response, gzip);
+    cache.served(cachedResponse, gzip);
   }
 
-  public void send(HttpServletResponse response) throws IOException {
-    cachedResponse.replay(response);
+  /**
+   * @param request
+   * @return true if the Accept-Encoding header allows gzip.
+   */
+  static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader("Accept-Encoding");
+    if ( acceptEncoding == null ) {
+      return false;
+    }
+    for ( String coding : acceptEncoding.split(",") ) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if ( "gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name) ) {
+        for ( int i = 1; i < parts.length; i++ ) {
+          String param = parts[i].trim();
+          if ( param.startsWith("q=") ) {
+            try {
+              return Float.parseFloat(param.substring(2)) > 0f;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+    return false;
   }
   
   @Override
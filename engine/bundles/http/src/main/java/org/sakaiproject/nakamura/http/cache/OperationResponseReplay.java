@@ -45,8 +45,19 @@ public class OperationResponseReplay implements Serializable {
    * @param response
    * @throws IOException
    */
-  @SuppressWarnings("deprecation")
   public void replay(HttpServletResponse response) throws IOException {
+    replayHeaders(response, false);
+    replayContent(response);
+  }
+
+  /**
+   * Replay everything except the content.
+   * @param response
+   * @param skipContentLength true if the content will be sent in a different encoding, so
+   *          the recorded content length does not apply.
+   */
+  @SuppressWarnings("deprecation")
+  public void replayHeaders(HttpServletResponse response, boolean skipContentLength) {
     for ( Operation o : operations ) {
       int op = o.getOperation();
       switch (op) {
@@ -63,7 +74,9 @@ public class OperationResponseReplay implements Serializable {
         response.setCharacterEncoding((String)o.get(0));
         break;
       case OperationResponseCapture.SET_CONTENT_LENGTH:
-        response.setContentLength((Integer)o.get(0));
+        if ( !skipContentLength ) {
+          response.setContentLength((Integer)o.get(0));
+        }
         break;
       case OperationResponseCapture.SET_CONTENT_TYPE:
         response.setContentType((String)o.get(0));
@@ -88,7 +101,14 @@ public class OperationResponseReplay implements Serializable {
         break;
       }
     }
+  }
 
+  /**
+   * Write the content.
+   * @param response
+   * @throws IOException
+   */
+  public void replayContent(HttpServletResponse response) throws IOException {
      if ( stringContent != null  ) {
        response.getWriter().write(stringContent);
      } else if ( byteContent != null ){
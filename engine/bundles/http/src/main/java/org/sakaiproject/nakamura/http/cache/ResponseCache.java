@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds cached responses within a memory budget. Keys are <code>path?query</code>.
+ * Reads do not lock, when a put takes the cache over budget the least recently or least
+ * frequently used entries are evicted until it is 10% under budget. Keys are also kept
+ * sorted so that a change to a path can find the entries for that path, its ancestors and
+ * its descendants without scanning the cache. Puts and removes hold a lock for the key
+ * while they change both, so a cached entry always has its key in the sorted set.
+ */
+public class ResponseCache implements ResponseCacheMBean {
+
+  public enum Eviction {
+    LRU, LFU
+  }
+
+  /**
+   * An entry as it was when eviction started. Requests keep touching the responses while
+   * they are sorted, so the sort works on copies of the access counts.
+   */
+  private static class Candidate {
+    private final String key;
+    private final CachedResponse response;
+    private final long lastAccess;
+    private final int hits;
+
+    private Candidate(String key, CachedResponse response) {
+      this.key = key;
+      this.response = response;
+      this.lastAccess = response.getLastAccess();
+      this.hits = response.getHits();
+    }
+  }
+
+  private static final Comparator<Candidate> LRU = new Comparator<Candidate>() {
+    public int compare(Candidate o1, Candidate o2) {
+      return compareLong(o1.lastAccess, o2.lastAccess);
+    }
+  };
+
+  private static final Comparator<Candidate> LFU = new Comparator<Candidate>() {
+    public int compare(Candidate o1, Candidate o2) {
+      int c = o1.hits - o2.hits;
+      return c != 0 ? c : LRU.compare(o1, o2);
+    }
+  };
+
+  private final ConcurrentMap<String, CachedResponse> entries = new ConcurrentHashMap<String, CachedResponse>();
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong tick = new AtomicLong();
+  private final Object evictionLock = new Object();
+  private final Object[] keyLocks = new Object[64];
+  private volatile long maxBytes;
+  private volatile long maxEntryBytes;
+  private volatile Eviction eviction;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong gzipHits = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong bytesServed = new AtomicLong();
+
+  /**
+   * @param maxBytes
+   *          the memory budget for the whole cache.
+   * @param maxEntryBytes
+   *          responses bigger than this are not cached.
+   * @param eviction
+   *          which entries to evict when over budget.
+   */
+  public ResponseCache(long maxBytes, long maxEntryBytes, Eviction eviction) {
+    for (int i = 0; i < keyLocks.length; i++) {
+      keyLocks[i] = new Object();
+    }
+    configure(maxBytes, maxEntryBytes, eviction);
+  }
+
+  public void configure(long maxBytes, long maxEntryBytes, Eviction eviction) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+    this.eviction = eviction;
+    evict();
+  }
+
+  /**
+   * @param key
+   * @return the response if it is cached and has not expired, otherwise null.
+   */
+  public CachedResponse get(String key) {
+    CachedResponse response = entries.get(key);
+    if (response != null && !response.isValid()) {
+      remove(key, response);
+      response = null;
+    }
+    if (response == null) {
+      misses.incrementAndGet();
+    } else {
+      response.touch(tick.incrementAndGet());
+      hits.incrementAndGet();
+    }
+    return response;
+  }
+
+  public void put(String key, CachedResponse response) {
+    long size = response.getSize();
+    if (size > maxEntryBytes || size > maxBytes) {
+      return;
+    }
+    response.touch(tick.incrementAndGet());
+    CachedResponse old;
+    synchronized (lockFor(key)) {
+      keys.add(key);
+      old = entries.put(key, response);
+    }
+    bytes.addAndGet(old == null ? size : size - old.getSize());
+    if (bytes.get() > maxBytes) {
+      evict();
+    }
+  }
+
+  /**
+   * Remove entries affected by a change to path: the entries for the path, for its
+   * ancestors (eg a change to /a/b.js/jcr:content changes /a/b.js), and for anything
+   * below it.
+   *
+   * @param path
+   *          the path that changed.
+   */
+  public void invalidate(String path) {
+    if (path == null || path.length() == 0) {
+      return;
+    }
+    if (path.endsWith("/") && path.length() > 1) {
+      path = path.substring(0, path.length() - 1);
+    }
+    // everything below the path, "0" is the character after "/".
+    for (String key : keys.subSet(path + "/", path + "0")) {
+      invalidateKey(key);
+    }
+    // the path and its ancestors, "@" is the character after "?".
+    String p = path;
+    while (p.length() > 0) {
+      for (String key : keys.subSet(p + "?", p + "@")) {
+        invalidateKey(key);
+      }
+      p = p.substring(0, p.lastIndexOf('/'));
+    }
+  }
+
+  private void invalidateKey(String key) {
+    CachedResponse response = entries.get(key);
+    if (response != null && remove(key, response)) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  private boolean remove(String key, CachedResponse response) {
+    synchronized (lockFor(key)) {
+      if (!entries.remove(key, response)) {
+        return false;
+      }
+      keys.remove(key);
+    }
+    bytes.addAndGet(-response.getSize());
+    return true;
+  }
+
+  private Object lockFor(String key) {
+    return keyLocks[(key.hashCode() & 0x7fffffff) % keyLocks.length];
+  }
+
+  private void evict() {
+    if (bytes.get() <= maxBytes) {
+      return;
+    }
+    synchronized (evictionLock) {
+      if (bytes.get() <= maxBytes) {
+        return;
+      }
+      long target = maxBytes - maxBytes / 10;
+      List<Candidate> candidates = new ArrayList<Candidate>(entries.size());
+      for (Entry<String, CachedResponse> e : entries.entrySet()) {
+        candidates.add(new Candidate(e.getKey(), e.getValue()));
+      }
+      Collections.sort(candidates, eviction == Eviction.LFU ? LFU : LRU);
+      for (Candidate c : candidates) {
+        if (bytes.get() <= target) {
+          break;
+        }
+        if (remove(c.key, c.response)) {
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  void notModified() {
+    notModified.incrementAndGet();
+  }
+
+  void served(CachedResponse response, boolean gzip) {
+    if (gzip) {
+      gzipHits.incrementAndGet();
+    }
+    bytesServed.addAndGet(response.getContentLength(gzip));
+  }
+
+  private static int compareLong(long a, long b) {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getNotModified() {
+    return notModified.get();
+  }
+
+  public long getGzipHits() {
+    return gzipHits.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public long getBytesServed() {
+    return bytesServed.get();
+  }
+
+  public int getEntries() {
+    return entries.size();
+  }
+
+  public long getBytes() {
+    return bytes.get();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public String getEvictionPolicy() {
+    return eviction.name();
+  }
+
+  public void clear() {
+    for (String key : keys) {
+      CachedResponse response = entries.get(key);
+      if (response != null) {
+        remove(key, response);
+      }
+    }
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    notModified.set(0);
+    gzipHits.set(0);
+    evictions.set(0);
+    invalidations.set(0);
+    bytesServed.set(0);
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+/**
+ * JMX view of the response cache.
+ */
+public interface ResponseCacheMBean {
+
+  /**
+   * @return the number of requests served from the cache, including 304s.
+   */
+  long getHits();
+
+  /**
+   * @return the number of cacheable requests that were not in the cache.
+   */
+  long getMisses();
+
+  /**
+   * @return the number of hits answered with a 304 because the client had the ETag.
+   */
+  long getNotModified();
+
+  /**
+   * @return the number of hits served from the pre-gzipped copy.
+   */
+  long getGzipHits();
+
+  /**
+   * @return the number of entries evicted to stay within the memory budget.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of entries removed because the content changed.
+   */
+  long getInvalidations();
+
+  /**
+   * @return the number of bytes of content served from the cache.
+   */
+  long getBytesServed();
+
+  /**
+   * @return the number of entries in the cache.
+   */
+  int getEntries();
+
+  /**
+   * @return the approximate number of bytes held by the cache.
+   */
+  long getBytes();
+
+  /**
+   * @return the memory budget in bytes.
+   */
+  long getMaxBytes();
+
+  /**
+   * @return the eviction policy, LRU or LFU.
+   */
+  String getEvictionPolicy();
+
+  /**
+   * Remove every entry.
+   */
+  void clear();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The messages for one locale, the locale bundle over the default bundle.
+ */
+public class I18nBundle {
+  private final String locale;
+  private final Map<String, String> messages;
+
+  /**
+   * @param locale
+   *          the locale the bundle is for.
+   * @param defaultMessages
+   *          the messages from the default bundle.
+   * @param localeMessages
+   *          the messages from the locale bundle, these win over the default messages.
+   */
+  public I18nBundle(String locale, Map<String, String> defaultMessages,
+      Map<String, String> localeMessages) {
+    this.locale = locale;
+    messages = new HashMap<String, String>(defaultMessages);
+    messages.putAll(localeMessages);
+  }
+
+  public String getLocale() {
+    return locale;
+  }
+
+  /**
+   * @param key
+   *          the message key.
+   * @return the message, or null if neither bundle has the key.
+   */
+  public String getMessage(String key) {
+    return messages.get(key);
+  }
+}
@@ -24,19 +24,28 @@ import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.scr.annotations.Services;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.framework.Constants;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import javax.jcr.Node;
@@ -53,10 +62,13 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Filter to transform __MSG_*__ i18n message keys into i18n messages.
+ * Filter to transform __MSG_*__ i18n message keys into i18n messages. Each page is
+ * compiled once into a template, and the page rendered for each locale is kept until
+ * the page or the bundles change. Bundles are read once per locale and dropped when
+ * anything under the bundles path changes.
  */
 @Component(metatype = true)
-@Service
+@Services(value = { @Service(value = Filter.class), @Service(value = EventHandler.class) })
 @Properties(value = {
     @Property(name = Constants.SERVICE_VENDOR, value = "The Sakai Foundation"),
     @Property(name = Constants.SERVICE_DESCRIPTION, value = "Nakamura i18n Filter"),
@@ -64,24 +76,44 @@ import javax.servlet.http.HttpServletResponse;
     @Property(name = "sling.filter.scope", value = "REQUEST", propertyPrivate = true),
     @Property(name = I18nFilter.BUNDLES_PATH, value = I18nFilter.DEFAULT_BUNDLES_PATH),
     @Property(name = I18nFilter.MESSAGE_KEY_PATTERN, value = I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN),
-    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS)
+    @Property(name = I18nFilter.SHOW_MISSING_KEYS, boolValue = I18nFilter.DEFAULT_SHOW_MISSING_KEYS),
+    @Property(name = I18nFilter.TEMPLATE_CACHE_SIZE, intValue = I18nFilter.DEFAULT_TEMPLATE_CACHE_SIZE, description = "The most pages to keep compiled, with their rendering for each locale"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
 })
-public class I18nFilter implements Filter {
+public class I18nFilter implements Filter, EventHandler {
   public static final String PARAM_LANGUAGE = "l";
   public static final String DEFAULT_BUNDLES_PATH = "/dev/_bundle";
   public static final String DEFAULT_MESSAGE_KEY_PATTERN = "__MSG__(.+?)__";
   public static final boolean DEFAULT_SHOW_MISSING_KEYS = true;
+  public static final int DEFAULT_TEMPLATE_CACHE_SIZE = 200;
 
   private static final Logger logger = LoggerFactory.getLogger(I18nFilter.class);
 
   static final String BUNDLES_PATH = "sakai.filter.i18n.bundles.path";
   static final String MESSAGE_KEY_PATTERN = "sakai.filter.i18n.message_key.pattern";
   static final String SHOW_MISSING_KEYS = "sakai.filter.i18n.message_key.show_missing";
+  static final String TEMPLATE_CACHE_SIZE = "sakai.filter.i18n.cache.size";
 
   private String bundlesPath;
   private String keyPattern;
   private Pattern messageKeyPattern;
   private boolean showMissingKeys;
+  private int templateCacheSize = DEFAULT_TEMPLATE_CACHE_SIZE;
+
+  /**
+   * Compiled pages by path, least recently used first.
+   */
+  private final LinkedHashMap<String, I18nTemplate> templates = new LinkedHashMap<String, I18nTemplate>(
+      16, 0.75f, true);
+  /**
+   * Bundles by locale.
+   */
+  private final ConcurrentMap<String, I18nBundle> bundles = new ConcurrentHashMap<String, I18nBundle>();
+  /**
+   * Moves on every change to the bundles, a bundle read while it moved is not kept.
+   */
+  private final AtomicLong bundleGeneration = new AtomicLong();
 
   @Activate @Modified
   public void modified(Map<?, ?> props) {
@@ -93,6 +125,35 @@ public class I18nFilter implements Filter {
 
     showMissingKeys = OsgiUtil.toBoolean(props.get(SHOW_MISSING_KEYS),
         DEFAULT_SHOW_MISSING_KEYS);
+
+    templateCacheSize = OsgiUtil.toInteger(props.get(TEMPLATE_CACHE_SIZE),
+        DEFAULT_TEMPLATE_CACHE_SIZE);
+    synchronized (templates) {
+      templates.clear();
+    }
+    clearBundles();
+  }
+
+  // ---------- EventHandler interface ----------
+  /**
+   * {@inheritDoc}
+   * Drop the bundles, and so every rendered page, when anything under or above the
+   * bundles path changes.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    String root = bundlesPath;
+    if (path != null && root != null
+        && (path.startsWith(root) || root.startsWith(path.endsWith("/") ? path : path + "/"))) {
+      clearBundles();
+    }
+  }
+
+  private void clearBundles() {
+    bundleGeneration.incrementAndGet();
+    bundles.clear();
   }
 
   // ---------- Filter interface ----------
@@ -110,6 +171,10 @@ public class I18nFilter implements Filter {
    * @see javax.servlet.Filter#destroy()
    */
   public void destroy() {
+    synchronized (templates) {
+      templates.clear();
+    }
+    bundles.clear();
   }
 
   /**
@@ -149,7 +214,7 @@ public class I18nFilter implements Filter {
       if (!StringUtils.isBlank(output)) {
         long start = System.currentTimeMillis();
 
-        writeFilteredResponse(srequest, response, output);
+        writeFilteredResponse(srequest, response, path, output);
 
         long end = System.currentTimeMillis();
         logger.debug("Filtered {} in {}ms", path, (end - start));
@@ -163,69 +228,100 @@ public class I18nFilter implements Filter {
    *
    * @param srequest
    * @param response
+   * @param path
    * @param output
    * @throws IOException
    */
   private void writeFilteredResponse(SlingHttpServletRequest srequest,
-      ServletResponse response, String output) throws IOException {
-    StringBuilder sb = new StringBuilder(output);
+      ServletResponse response, String path, String output) throws IOException {
+    I18nTemplate template = getTemplate(path, output);
+    String text = output;
+    int contentLength = -1;
     try {
-      Session session = srequest.getResourceResolver().adaptTo(Session.class);
-      Node bundlesNode = session.getNode(bundlesPath);
-
-      // load the language bundle
-      Locale locale = getLocale(srequest);
-      JSONObject langJson = getJsonBundle(bundlesNode, locale.toString() + ".json");
-
-      // load the default bundle
-      JSONObject defaultJson = getJsonBundle(bundlesNode, "default.json");
-
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (langJson.has(key)) {
-            message = langJson.getString(key);
-          } else if (defaultJson.has(key)) {
-            message = defaultJson.getString(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
-          }
-
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
-
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
-        }
+      if (template.getKeyCount() > 0) {
+        I18nBundle bundle = getBundle(srequest, getLocale(srequest).toString());
+        I18nTemplate.RenderedPage page = template.getRendered(bundle, showMissingKeys);
+        text = page.getText();
+        contentLength = page.getContentLength(response.getCharacterEncoding());
       }
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
     } catch (JSONException e) {
       logger.error(e.getMessage(), e);
     }
+    if (contentLength < 0) {
+      String charset = response.getCharacterEncoding();
+      contentLength = text.getBytes(charset == null ? "UTF-8" : charset).length;
+    }
 
-    response.setContentLength(sb.length());
+    response.setContentLength(contentLength);
 
     // send the output to the actual response
     try {
-      response.getWriter().write(sb.toString());
+      response.getWriter().write(text);
     } catch (IllegalStateException e) {
-      response.getOutputStream().write(sb.toString().getBytes("UTF-8"));
+      byte[] bytes = text.getBytes("UTF-8");
+      if (contentLength != bytes.length) {
+        response.setContentLength(bytes.length);
+      }
+      response.getOutputStream().write(bytes);
+    }
+  }
+
+  /**
+   * @param path
+   *          the path of the page.
+   * @param output
+   *          the page.
+   * @return the page compiled, from the last time the same page was seen at the path if
+   *         possible.
+   */
+  private I18nTemplate getTemplate(String path, String output) {
+    I18nTemplate template;
+    synchronized (templates) {
+      template = templates.get(path);
+    }
+    if (template == null || !template.isFor(output)) {
+      template = I18nTemplate.compile(output, messageKeyPattern);
+      synchronized (templates) {
+        templates.put(path, template);
+        Iterator<I18nTemplate> i = templates.values().iterator();
+        while (templates.size() > templateCacheSize && i.hasNext()) {
+          i.next();
+          i.remove();
+        }
+      }
+    }
+    return template;
+  }
+
+  /**
+   * @param srequest
+   *          the request, the bundles are read with its session.
+   * @param locale
+   *          the locale.
+   * @return the bundle for the locale, read once and kept until the bundles change.
+   */
+  private I18nBundle getBundle(SlingHttpServletRequest srequest, String locale)
+      throws RepositoryException, JSONException {
+    I18nBundle bundle = bundles.get(locale);
+    if (bundle == null) {
+      long generation = bundleGeneration.get();
+      Session session = srequest.getResourceResolver().adaptTo(Session.class);
+      Node bundlesNode = session.getNode(bundlesPath);
+
+      // load the language bundle
+      Map<String, String> langMessages = getJsonBundle(bundlesNode, locale + ".json");
+
+      // load the default bundle
+      Map<String, String> defaultMessages = getJsonBundle(bundlesNode, "default.json");
+
+      bundle = new I18nBundle(locale, defaultMessages, langMessages);
+      if (generation == bundleGeneration.get()) {
+        bundles.put(locale, bundle);
+      }
     }
+    return bundle;
   }
 
   private Locale getLocale(SlingHttpServletRequest request) {
@@ -242,13 +338,18 @@ public class I18nFilter implements Filter {
     return l;
   }
 
-  private JSONObject getJsonBundle(Node bundlesNode, String name)
+  private Map<String, String> getJsonBundle(Node bundlesNode, String name)
       throws PathNotFoundException, RepositoryException, ValueFormatException,
       JSONException {
     Node langNode = bundlesNode.getNode(name);
     Node content = langNode.getNode("jcr:content");
     String langData = content.getProperty("jcr:data").getString();
     JSONObject langJson = new JSONObject(langData);
-    return langJson;
+    Map<String, String> messages = new HashMap<String, String>();
+    for (Iterator<String> keys = langJson.keys(); keys.hasNext();) {
+      String key = keys.next();
+      messages.put(key, langJson.getString(key));
+    }
+    return messages;
   }
 }
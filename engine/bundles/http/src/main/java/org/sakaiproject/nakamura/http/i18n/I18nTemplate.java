@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A page compiled into the text between message keys and the keys, so it can be
+ * rendered for a locale in one pass. The page rendered for each locale is kept with the
+ * template, until the bundle it was rendered with is replaced.
+ */
+public class I18nTemplate {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(I18nTemplate.class);
+
+  /**
+   * A page rendered with a bundle.
+   */
+  public static class RenderedPage {
+    private final I18nBundle bundle;
+    private final String text;
+    private final byte[] utf8;
+
+    RenderedPage(I18nBundle bundle, String text) {
+      this.bundle = bundle;
+      this.text = text;
+      try {
+        utf8 = text.getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public String getText() {
+      return text;
+    }
+
+    /**
+     * @return the page encoded as UTF-8.
+     */
+    public byte[] getBytes() {
+      return utf8;
+    }
+
+    /**
+     * @param charset
+     *          the character encoding of the response, null for UTF-8.
+     * @return the length of the page in bytes when written in that encoding.
+     * @throws UnsupportedEncodingException
+     */
+    public int getContentLength(String charset) throws UnsupportedEncodingException {
+      if (charset == null || "UTF-8".equalsIgnoreCase(charset)) {
+        return utf8.length;
+      }
+      return text.getBytes(charset).length;
+    }
+  }
+
+  private final String source;
+  private final String[] text;
+  private final String[] keys;
+  private final ConcurrentMap<String, RenderedPage> rendered = new ConcurrentHashMap<String, RenderedPage>();
+
+  private I18nTemplate(String source, String[] text, String[] keys) {
+    this.source = source;
+    this.text = text;
+    this.keys = keys;
+  }
+
+  /**
+   * @param source
+   *          the page.
+   * @param messageKeyPattern
+   *          the pattern of a message key, group 1 is the key.
+   * @return the compiled page.
+   */
+  public static I18nTemplate compile(String source, Pattern messageKeyPattern) {
+    List<String> text = new ArrayList<String>();
+    List<String> keys = new ArrayList<String>();
+    Matcher m = messageKeyPattern.matcher(source);
+    int last = 0;
+    while (m.find()) {
+      text.add(source.substring(last, m.start()));
+      keys.add(m.group(1));
+      last = m.end();
+    }
+    text.add(source.substring(last));
+    return new I18nTemplate(source, text.toArray(new String[text.size()]), keys
+        .toArray(new String[keys.size()]));
+  }
+
+  /**
+   * @param output
+   *          a page.
+   * @return true if this template was compiled from the page.
+   */
+  public boolean isFor(String output) {
+    return source.equals(output);
+  }
+
+  public int getKeyCount() {
+    return keys.length;
+  }
+
+  /**
+   * @param bundle
+   *          the bundle to take the messages from.
+   * @param showMissingKeys
+   *          true to show keys that are in neither bundle, false to leave them blank.
+   * @return the page rendered with the bundle, from the last time it was rendered with
+   *         the same bundle if possible.
+   */
+  public RenderedPage getRendered(I18nBundle bundle, boolean showMissingKeys) {
+    RenderedPage page = rendered.get(bundle.getLocale());
+    if (page == null || page.bundle != bundle) {
+      page = new RenderedPage(bundle, render(bundle, showMissingKeys));
+      rendered.put(bundle.getLocale(), page);
+    }
+    return page;
+  }
+
+  /**
+   * @param bundle
+   *          the bundle to take the messages from.
+   * @param showMissingKeys
+   *          true to show keys that are in neither bundle, false to leave them blank.
+   * @return the page with every message key replaced.
+   */
+  public String render(I18nBundle bundle, boolean showMissingKeys) {
+    if (keys.length == 0) {
+      return source;
+    }
+    StringBuilder sb = new StringBuilder(source.length() + keys.length * 16);
+    Set<String> missing = null;
+    for (int i = 0; i < keys.length; i++) {
+      sb.append(text[i]);
+      String message = bundle.getMessage(keys[i]);
+      if (message == null) {
+        String msg = "[MESSAGE KEY NOT FOUND '" + keys[i] + "']";
+        if (missing == null) {
+          missing = new HashSet<String>();
+        }
+        if (missing.add(keys[i])) {
+          LOGGER.warn(msg);
+        }
+        if (showMissingKeys) {
+          sb.append(msg);
+        }
+      } else {
+        sb.append(message);
+      }
+    }
+    sb.append(text[keys.length]);
+    return sb.toString();
+  }
+}
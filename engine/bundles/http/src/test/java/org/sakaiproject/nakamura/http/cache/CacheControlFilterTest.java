@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -28,14 +30,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.memory.Cache;
-import org.sakaiproject.nakamura.api.memory.CacheManagerService;
-import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -71,12 +70,6 @@ public class CacheControlFilterTest {
   @Mock
   private FilterConfig filterConfig;
 
-  @Mock
-  private CacheManagerService cacheMangerService;
-
-  @Mock
-  private Cache<Object> cache;
-
   @Before
   public void setup() throws Exception {
     cacheControlFilter = new CacheControlFilter();
@@ -99,6 +92,7 @@ public class CacheControlFilterTest {
   @After
   public void teardown() {
     cacheControlFilter.destroy();
+    cacheControlFilter.deactivate(componentContext);
   }
 
   @Test
@@ -145,14 +139,10 @@ public class CacheControlFilterTest {
     };
     when(response.getOutputStream()).thenReturn(servletOutputStream);
 
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
-    
-    cacheControlFilter.cacheManagerService = cacheMangerService;
-
     cacheControlFilter.doFilter(request, response, new TFilter(true));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    assertNotNull(cacheControlFilter.getResponseCache().get("/cacheable/config.json?null"));
     
     
     
@@ -173,15 +163,14 @@ public class CacheControlFilterTest {
     };
     when(response.getOutputStream()).thenReturn(servletOutputStream);
 
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
     CachedResponse cachedResponse  = populateResponseCapture(true);
-    when(cache.get("/cacheable/config.json?null")).thenReturn(cachedResponse);
-    
-    cacheControlFilter.cacheManagerService = cacheMangerService;
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null", cachedResponse);
 
     cacheControlFilter.doFilter(request, response, null);
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
+    verify(response).setHeader("ETag", cachedResponse.getETag(false));
+    assertEquals(1024, baos.size());
     
     
     
@@ -226,16 +215,66 @@ public class CacheControlFilterTest {
     StringWriter stringWriter = new StringWriter();
     PrintWriter printWriter = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(printWriter);
-    when(cacheMangerService.getCache(CacheControlFilter.class.getName()+"-cache", CacheScope.INSTANCE)).thenReturn(cache);
 
-    cacheControlFilter.cacheManagerService = cacheMangerService;
     cacheControlFilter.doFilter(request, response, new TFilter(false));
 
     verify(response, Mockito.atLeastOnce()).setHeader(anyString(), anyString());
-    
-    verify(cache).put(Mockito.eq("/cacheable/config.json?null"), Matchers.any(CachedResponse.class));
+    assertNotNull(cacheControlFilter.getResponseCache().get("/cacheable/config.json?null"));
+  }
+
+
+  @Test
+  public void checkRequestCachingNotModified() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null", cachedResponse);
+    when(request.getHeader("If-None-Match")).thenReturn(cachedResponse.getETag(false));
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setStatus(304);
+    verify(response, never()).getOutputStream();
+    assertEquals(1, cacheControlFilter.getResponseCache().getNotModified());
+  }
+
+  @Test
+  public void checkRequestCachingGzip() throws Exception {
+    when(request.getMethod()).thenReturn("GET");
+    when(request.getPathInfo()).thenReturn("/cacheable/config.json");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ServletOutputStream servletOutputStream = new ServletOutputStream() {
+      
+      @Override
+      public void write(int b) throws IOException {
+        baos.write(b);
+      }
+    };
+    when(response.getOutputStream()).thenReturn(servletOutputStream);
+    CachedResponse cachedResponse  = populateResponseCapture(true);
+    cacheControlFilter.getResponseCache().put("/cacheable/config.json?null", cachedResponse);
+
+    cacheControlFilter.doFilter(request, response, null);
+
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setHeader("ETag", cachedResponse.getETag(true));
+    // 1024 zero bytes gzip to very little.
+    assertEquals(cachedResponse.getContentLength(true), baos.size());
+    assertEquals(1, cacheControlFilter.getResponseCache().getGzipHits());
   }
 
+  @Test
+  public void checkInvalidationOnChange() throws Exception {
+    ResponseCache responseCache = cacheControlFilter.getResponseCache();
+    responseCache.put("/cacheable/config.json?null", populateResponseCapture(true));
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", "/cacheable/config.json/jcr:content");
+    cacheControlFilter.handleEvent(new Event(
+        "org/apache/sling/api/resource/Resource/CHANGED", props));
+    assertEquals(0, responseCache.getEntries());
+    assertEquals(1, responseCache.getInvalidations());
+  }
 
   private void verifyExpiresHeaderWithPath(String method, String path,
       boolean expectHeader) throws ServletException, IOException {
@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ResponseCacheTest {
+
+  @Test
+  public void testLruEviction() throws IOException {
+    CachedResponse r = response("x");
+    long size = r.getSize();
+    ResponseCache cache = new ResponseCache(size * 10, size * 2, ResponseCache.Eviction.LRU);
+    for (int i = 0; i < 10; i++) {
+      cache.put("/dev/" + i + ".js?null", response("x"));
+    }
+    // keep 0 recently used
+    assertNotNull(cache.get("/dev/0.js?null"));
+    cache.put("/dev/10.js?null", response("x"));
+    assertTrue(cache.getBytes() <= size * 10);
+    assertTrue(cache.getEvictions() > 0);
+    assertNotNull(cache.get("/dev/0.js?null"));
+    assertNull(cache.get("/dev/1.js?null"));
+    assertNotNull(cache.get("/dev/10.js?null"));
+  }
+
+  @Test
+  public void testLfuEviction() throws IOException {
+    CachedResponse r = response("x");
+    long size = r.getSize();
+    ResponseCache cache = new ResponseCache(size * 10, size * 2, ResponseCache.Eviction.LFU);
+    for (int i = 0; i < 10; i++) {
+      cache.put("/dev/" + i + ".js?null", response("x"));
+    }
+    for (int i = 0; i < 10; i++) {
+      if (i != 5) {
+        cache.get("/dev/" + i + ".js?null");
+      }
+    }
+    cache.put("/dev/10.js?null", response("x"));
+    assertNull(cache.get("/dev/5.js?null"));
+    assertNotNull(cache.get("/dev/4.js?null"));
+  }
+
+  @Test
+  public void testEvictionWhileTouched() throws Exception {
+    CachedResponse r = response("x");
+    long size = r.getSize();
+    final ResponseCache cache = new ResponseCache(size * 50, size * 2,
+        ResponseCache.Eviction.LFU);
+    final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+    final long end = System.currentTimeMillis() + 500;
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = offset; System.currentTimeMillis() < end; i++) {
+              // touches keep changing the counts that eviction sorts on.
+              cache.get("/dev/" + (i % 40) + ".js?null");
+              cache.put("/dev/" + (i % 200) + ".js?null", response("x"));
+            }
+          } catch (Throwable e) {
+            failures.add(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(failures.toString(), failures.isEmpty());
+    assertTrue(cache.getBytes() <= size * 50);
+  }
+
+  @Test
+  public void testTooBig() throws IOException {
+    ResponseCache cache = new ResponseCache(1000000, 10, ResponseCache.Eviction.LRU);
+    cache.put("/dev/big.js?null", response("a string longer than 10 bytes"));
+    assertEquals(0, cache.getEntries());
+  }
+
+  @Test
+  public void testInvalidate() throws IOException {
+    ResponseCache cache = new ResponseCache(1000000, 100000, ResponseCache.Eviction.LRU);
+    cache.put("/dev/lib/a.js?null", response("a"));
+    cache.put("/dev/lib/a.js?v=1", response("a"));
+    cache.put("/dev/lib/ab.js?null", response("ab"));
+    cache.put("/dev/lib/b/c.js?null", response("c"));
+    cache.put("/devwidgets/x.html?null", response("x"));
+
+    // a change to the content of a file invalidates the file
+    cache.invalidate("/dev/lib/a.js/jcr:content");
+    assertNull(cache.get("/dev/lib/a.js?null"));
+    assertNull(cache.get("/dev/lib/a.js?v=1"));
+    assertNotNull(cache.get("/dev/lib/ab.js?null"));
+
+    // removing a folder invalidates everything below it, but not its siblings.
+    cache.invalidate("/dev");
+    assertNull(cache.get("/dev/lib/ab.js?null"));
+    assertNull(cache.get("/dev/lib/b/c.js?null"));
+    assertNotNull(cache.get("/devwidgets/x.html?null"));
+    assertEquals(1, cache.getEntries());
+    assertEquals(4, cache.getInvalidations());
+  }
+
+  @Test
+  public void testInvalidateWhilePut() throws Exception {
+    final ResponseCache cache = new ResponseCache(1000000, 100000,
+        ResponseCache.Eviction.LRU);
+    final CachedResponse r = response("a");
+    final long end = System.currentTimeMillis() + 300;
+    Thread putter = new Thread() {
+      @Override
+      public void run() {
+        while (System.currentTimeMillis() < end) {
+          cache.put("/dev/a.js?null", r);
+          cache.put("/dev/a.js?null", r);
+        }
+      }
+    };
+    putter.start();
+    while (putter.isAlive()) {
+      cache.invalidate("/dev/a.js");
+    }
+    // a cached entry must still be found by its path.
+    cache.invalidate("/dev/a.js");
+    assertEquals(0, cache.getEntries());
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void testETags() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append("var x").append(i).append(" = ").append(i).append(";\n");
+    }
+    CachedResponse r = response(sb.toString());
+    assertTrue(r.hasGzip());
+    assertTrue(r.getContentLength(true) < r.getContentLength(false));
+    String etag = r.getETag(false);
+    String gzEtag = r.getETag(true);
+    assertFalse(etag.equals(gzEtag));
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    assertTrue(r.matches(etag));
+    assertTrue(r.matches("\"other\", " + gzEtag));
+    assertTrue(r.matches("W/" + etag));
+    assertTrue(r.matches("*"));
+    assertFalse(r.matches("\"other\""));
+    assertFalse(r.matches(null));
+    // same content, same tag.
+    assertEquals(etag, response(sb.toString()).getETag(false));
+    // small content is not worth gzipping.
+    assertFalse(response("x").hasGzip());
+  }
+
+  private CachedResponse response(String content) throws IOException {
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType("text/javascript");
+    capture.setCharacterEncoding("UTF-8");
+    StringWriter writer = new StringWriter();
+    capture.getWriter(new PrintWriter(writer)).write(content);
+    return new CachedResponse(capture, 3600);
+  }
+}
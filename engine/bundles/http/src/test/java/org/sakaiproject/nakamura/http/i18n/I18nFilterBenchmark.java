@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Measures the i18n filter on the UI pages, comparing the filter before templates and
+ * bundle caching (bundles parsed and every key replaced with indexOf/replace on each
+ * request) with the filter now. The old filter is timed without its two JCR reads, so
+ * the gain in a running server is larger than reported. Not part of the normal test run,
+ * run with <code>mvn test -Dtest=I18nFilterBenchmark</code>. The UI checkout can be set
+ * with <code>-Dbenchmark.ui=../../../FrontEnd</code> and the passes over every page with
+ * <code>-Dbenchmark.passes=200</code>.
+ */
+public class I18nFilterBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(I18nFilterBenchmark.class);
+
+  @Test
+  public void benchmark() throws Exception {
+    File ui = new File(System.getProperty("benchmark.ui", "../../../FrontEnd"));
+    int passes = Integer.getInteger("benchmark.passes", 200);
+    File bundleDir = new File(ui, "dev/bundle");
+    if (!bundleDir.isDirectory()) {
+      LOGGER.warn("No UI found at {}, set -Dbenchmark.ui", ui.getAbsolutePath());
+      return;
+    }
+    final String defaultBundle = read(new File(bundleDir, "default.json"));
+    final String langBundle = read(new File(bundleDir, "en_US.json"));
+    final List<String> paths = new ArrayList<String>();
+    final List<String> pages = new ArrayList<String>();
+    collectPages(new File(ui, "dev"), "/dev", paths, pages);
+    File[] widgets = new File(ui, "devwidgets").listFiles();
+    if (widgets != null) {
+      for (File widget : widgets) {
+        if (widget.isDirectory()) {
+          collectPages(widget, "/devwidgets/" + widget.getName(), paths, pages);
+        }
+      }
+    }
+    long bytes = 0;
+    for (String page : pages) {
+      bytes += page.length();
+    }
+    LOGGER.info("Filtering {} pages, {} chars in all", pages.size(), bytes);
+
+    // the filter now, through mocks that return the bundles.
+    I18nFilter filter = new I18nFilter();
+    filter.modified(new Properties());
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Session session = mock(Session.class);
+    Node bundlesNode = mock(Node.class);
+    Node defaultNode = mock(Node.class, RETURNS_DEEP_STUBS);
+    Node langNode = mock(Node.class, RETURNS_DEEP_STUBS);
+    when(request.getLocale()).thenReturn(new Locale("en", "US"));
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    when(session.getNode(I18nFilter.DEFAULT_BUNDLES_PATH)).thenReturn(bundlesNode);
+    when(bundlesNode.getNode("default.json")).thenReturn(defaultNode);
+    when(bundlesNode.getNode("en_US.json")).thenReturn(langNode);
+    when(defaultNode.getNode("jcr:content").getProperty("jcr:data").getString()).thenReturn(
+        defaultBundle);
+    when(langNode.getNode("jcr:content").getProperty("jcr:data").getString()).thenReturn(
+        langBundle);
+    final StringWriter out = new StringWriter();
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+    final int[] current = new int[1];
+    FilterChain chain = mock(FilterChain.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        ((ServletResponse) invocation.getArguments()[1]).getWriter().write(
+            pages.get(current[0]));
+        return null;
+      }
+    }).when(chain).doFilter(isA(ServletRequest.class), isA(ServletResponse.class));
+
+    // check the two agree before timing them.
+    for (int i = 0; i < pages.size(); i++) {
+      current[0] = i;
+      when(request.getPathInfo()).thenReturn(paths.get(i));
+      out.getBuffer().setLength(0);
+      filter.doFilter(request, response, chain);
+      assertEquals(paths.get(i), legacyFilter(pages.get(i), langBundle, defaultBundle), out
+          .toString());
+    }
+
+    long start = System.nanoTime();
+    for (int p = 0; p < passes; p++) {
+      for (String page : pages) {
+        legacyFilter(page, langBundle, defaultBundle);
+      }
+    }
+    long legacyTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int p = 0; p < passes; p++) {
+      for (int i = 0; i < pages.size(); i++) {
+        current[0] = i;
+        when(request.getPathInfo()).thenReturn(paths.get(i));
+        out.getBuffer().setLength(0);
+        filter.doFilter(request, response, chain);
+      }
+    }
+    long currentTime = System.nanoTime() - start;
+
+    int renders = passes * pages.size();
+    LOGGER.info("Legacy filter {} us/page, filter now {} us/page, over {} pages", new Object[] {
+        legacyTime / 1000 / renders, currentTime / 1000 / renders, renders });
+  }
+
+  /**
+   * The filter as it was, less the JCR reads of the bundles.
+   */
+  private String legacyFilter(String output, String lang, String def) throws Exception {
+    StringBuilder sb = new StringBuilder(output);
+    JSONObject langJson = new JSONObject(lang);
+    JSONObject defaultJson = new JSONObject(def);
+    Matcher m = Pattern.compile(I18nFilter.DEFAULT_MESSAGE_KEY_PATTERN).matcher(output);
+    ArrayList<String> matchedKeys = new ArrayList<String>();
+    while (m.find()) {
+      String msgKey = m.group(0);
+      String key = m.group(1);
+      if (!matchedKeys.contains(key)) {
+        String message = "";
+        if (langJson.has(key)) {
+          message = langJson.getString(key);
+        } else if (defaultJson.has(key)) {
+          message = defaultJson.getString(key);
+        } else {
+          message = "[MESSAGE KEY NOT FOUND '" + key + "']";
+        }
+        int keyStart = sb.indexOf(msgKey);
+        while (keyStart >= 0) {
+          sb.replace(keyStart, keyStart + msgKey.length(), message);
+          keyStart = sb.indexOf(msgKey, keyStart);
+        }
+        matchedKeys.add(key);
+      }
+    }
+    return sb.toString();
+  }
+
+  private void collectPages(File dir, String path, List<String> paths, List<String> pages)
+      throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.isFile() && f.getName().endsWith(".html")) {
+        paths.add(path + "/" + f.getName());
+        pages.add(read(f));
+      }
+    }
+  }
+
+  private String read(File f) throws IOException {
+    Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+    try {
+      StringBuilder sb = new StringBuilder();
+      char[] buffer = new char[4096];
+      for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+        sb.append(buffer, 0, n);
+      }
+      return sb.toString();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.http.i18n;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
@@ -25,6 +26,7 @@ import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -33,6 +35,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.After;
@@ -46,11 +49,13 @@ import org.mockito.Mock;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Properties;
@@ -345,6 +350,62 @@ public class I18nFilterTest {
     assertTrue(output.contains("Wie geht es ihnen?"));
   }
 
+  @Test
+  public void renderedPageIsReused() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__ __MSG__REPLACE_ME_DEFAULT__", false);
+
+    filter.doFilter(request, response, chain);
+    sw.getBuffer().setLength(0);
+    filter.doFilter(request, response, chain);
+
+    // the bundles were read once, for the first request.
+    verify(session, times(1)).getNode(I18nFilter.DEFAULT_BUNDLES_PATH);
+    assertTrue(sw.toString().contains("Yay, In the language bundle! Default replacement"));
+
+    // a change to the bundles reads them again.
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, I18nFilter.DEFAULT_BUNDLES_PATH + "/default.json");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props));
+    filter.doFilter(request, response, chain);
+    verify(session, times(2)).getNode(I18nFilter.DEFAULT_BUNDLES_PATH);
+
+    // a change elsewhere does not.
+    props.put(SlingConstants.PROPERTY_PATH, "/dev/index.html");
+    filter.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props));
+    filter.doFilter(request, response, chain);
+    verify(session, times(2)).getNode(I18nFilter.DEFAULT_BUNDLES_PATH);
+  }
+
+  @Test
+  public void changedPageIsRecompiled() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    writeToResponse("__MSG__REPLACE_ME__", false);
+    filter.doFilter(request, response, chain);
+
+    sw.getBuffer().setLength(0);
+    writeToResponse("__MSG__REPLACE_ME_DEFAULT__", false);
+    filter.doFilter(request, response, chain);
+
+    String output = sw.toString();
+    assertEquals("<html><body>Default replacement</body></html>", output);
+  }
+
+  @Test
+  public void contentLengthIsInBytes() throws Exception {
+    when(request.getPathInfo()).thenReturn("/dev/index.html");
+    when(response.getCharacterEncoding()).thenReturn("UTF-8");
+    when(defaultNode.getNode("jcr:content").getProperty("jcr:data").getString()).thenReturn(
+        "{'REPLACE_ME_DEFAULT':'\u00fcber'}");
+    writeToResponse("__MSG__REPLACE_ME_DEFAULT__", false);
+
+    filter.doFilter(request, response, chain);
+
+    String expected = "<html><body>\u00fcber</body></html>";
+    assertEquals(expected, sw.toString());
+    verify(response).setContentLength(expected.getBytes("UTF-8").length);
+  }
+
   private void writeToResponse(final String key, final boolean useOutputStream) throws IOException, ServletException {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
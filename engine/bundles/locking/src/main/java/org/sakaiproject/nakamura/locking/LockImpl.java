@@ -123,6 +123,7 @@ public class LockImpl implements Lock, ThreadBound {
   /**
    * {@inheritDoc}
    * Perform an unlock, only if local to the current manager and owned by the current thread.
+   * If the owner has acquired the lock more than once, this releases one of those holds.
    * @see org.sakaiproject.nakamura.api.locking.Lock#unlock()
    */
   public void unlock() {
@@ -145,11 +146,25 @@ public class LockImpl implements Lock, ThreadBound {
 
   /**
    * {@inheritDoc}
-   * unbind this lock, performing an unlock in the process.
+   * unbind this lock, releasing all holds in the process.
    * @see org.sakaiproject.nakamura.api.memory.ThreadBound#unbind()
    */
   public void unbind() {
-    unlock();
+    currentLockManger.release(this, true);
+  }
+
+  /**
+   * @return the id of the thread that owns the lock.
+   */
+  protected long getOwnerId() {
+    return ownerId;
+  }
+
+  /**
+   * @return the id of the lock manager instance that created the lock.
+   */
+  protected long getInstanceId() {
+    return instanceId;
   }
 
   /**
@@ -24,22 +24,40 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.locking.LockQueue.Waiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that queues waiting threads per lock id and hands the lock to the
+ * first waiter when it is released, so waiters wake as soon as the lock is free rather
+ * than sleeping and polling. Lock state is held in a table split into stripes, each with
+ * its own monitor, so unrelated locks don't contend. Locks are also published into a
+ * cluster replicated cache so that other nodes can see them; a lock held on another node
+ * can't notify us when it is released, so waiters for those re-check the cache at an
+ * interval.
  */
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -63,19 +81,36 @@ public class LockManagerImpl implements LockManager {
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
 
+  private static final long DEFAULT_TIMEOUT = 30000L;
+  private static final int DEFAULT_STRIPES = 64;
+  private static final long DEFAULT_MAX_HOLD_TIME = 600000L;
+  private static final long DEFAULT_REMOTE_RECHECK_INTERVAL = 100L;
+
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(longValue = DEFAULT_TIMEOUT, description = "The time in ms waitForLock waits before giving up.")
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
+  @Property(intValue = DEFAULT_STRIPES, description = "The number of independent stripes the lock table is split into.")
+  static final String LOCK_STRIPES = "lock.stripes";
+
+  @Property(longValue = DEFAULT_MAX_HOLD_TIME, description = "The time in ms after which a lock that has not been released is considered stale and may be taken by another thread.")
+  static final String LOCK_MAX_HOLD_TIME = "lock.maxHoldTime";
+
+  @Property(longValue = DEFAULT_REMOTE_RECHECK_INTERVAL, description = "The interval in ms at which waiters re-check a lock held by another node in the cluster.")
+  static final String LOCK_REMOTE_RECHECK_INTERVAL = "lock.remoteRecheckInterval";
+
   /**
    * Service dependency, the Cache Manager
    */
   @Reference
   private CacheManagerService cacheManagerService;
   /**
-   * container for Locks.
+   * container for Locks, visible to the whole cluster.
    */
   private Cache<LockImpl> lockMap;
   /**
@@ -100,7 +135,36 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+
+  /**
+   * A part of the lock table, with its own monitor.
+   */
+  private static class Stripe {
+    private ReentrantLock monitor = new ReentrantLock();
+    private Map<String, LockQueue> queues = new HashMap<String, LockQueue>();
+
+    private LockQueue getQueue(String id) {
+      LockQueue q = queues.get(id);
+      if (q == null) {
+        q = new LockQueue();
+        queues.put(id, q);
+      }
+      return q;
+    }
+
+    private void removeIfIdle(String id, LockQueue q) {
+      if (q.isIdle()) {
+        queues.remove(id);
+      }
+    }
+  }
+
+  private volatile Stripe[] stripes;
+  private long timeout = DEFAULT_TIMEOUT;
+  private long maxHoldTime = DEFAULT_MAX_HOLD_TIME;
+  private long remoteRecheckInterval = DEFAULT_REMOTE_RECHECK_INTERVAL;
+  private LockManagerStatistics statistics = new LockManagerStatistics();
+  private ObjectName mbeanName;
 
   /**
    * @throws NoSuchAlgorithmException
@@ -110,6 +174,90 @@ public class LockManagerImpl implements LockManager {
       throws NoSuchAlgorithmException {
     random = SecureRandom.getInstance("SHA1PRNG");
     instanceId = random.nextLong();
+    stripes = createStripes(DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param ctx
+   */
+  @java.lang.SuppressWarnings("unchecked")
+  protected void activate(ComponentContext ctx) {
+    Dictionary<String, Object> properties = ctx.getProperties();
+    configure(toLong(properties.get(LOCK_TIMEOUT), DEFAULT_TIMEOUT), (int) toLong(
+        properties.get(LOCK_STRIPES), DEFAULT_STRIPES), toLong(properties
+        .get(LOCK_MAX_HOLD_TIME), DEFAULT_MAX_HOLD_TIME), toLong(properties
+        .get(LOCK_REMOTE_RECHECK_INTERVAL), DEFAULT_REMOTE_RECHECK_INTERVAL));
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=LockManager,name="
+          + LockManagerImpl.class.getSimpleName());
+      mbeanServer.registerMBean(statistics, mbeanName);
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register lock manager statistics: {} ", e.getMessage());
+      mbeanName = null;
+    }
+  }
+
+  /**
+   * @param ctx
+   */
+  protected void deactivate(ComponentContext ctx) {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (JMException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+      mbeanName = null;
+    }
+  }
+
+  /**
+   * @param timeout
+   *          the time in ms to wait for a lock.
+   * @param nstripes
+   *          the number of stripes in the lock table, only changed while no locks are
+   *          held or waited for, otherwise the existing table is kept.
+   * @param maxHoldTime
+   *          the time in ms after which a held lock is stale.
+   * @param remoteRecheckInterval
+   *          the time in ms between checks of a lock held by another node.
+   */
+  protected void configure(long timeout, int nstripes, long maxHoldTime,
+      long remoteRecheckInterval) {
+    this.timeout = timeout;
+    this.maxHoldTime = maxHoldTime;
+    this.remoteRecheckInterval = Math.max(1L, remoteRecheckInterval);
+    if (nstripes > 0 && nstripes != stripes.length) {
+      resize(nstripes);
+    }
+  }
+
+  /**
+   * Replace the lock table if no stripe holds any lock state, all stripe monitors are
+   * held while checking so nothing can be queued part way through.
+   */
+  private void resize(int nstripes) {
+    Stripe[] current = stripes;
+    int locked = 0;
+    try {
+      boolean idle = true;
+      for (Stripe stripe : current) {
+        stripe.monitor.lock();
+        locked++;
+        idle = idle && stripe.queues.isEmpty();
+      }
+      if (idle) {
+        stripes = createStripes(nstripes);
+      } else {
+        LOGGER.info("Locks are held, keeping {} stripes rather than {} ",
+            current.length, nstripes);
+      }
+    } finally {
+      for (int i = 0; i < locked; i++) {
+        current[i].monitor.unlock();
+      }
+    }
   }
 
   public Lock getLock(String id) {
@@ -121,22 +269,44 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+    long owner = threadId.get();
+    Stripe stripe = lockStripe(id);
+    LockImpl lock = null;
+    boolean owned = false;
+    try {
+      if (create) {
+        LockQueue q = stripe.getQueue(id);
+        if (q.holder != null && q.holder.getOwnerId() == owner) {
+          // already ours, getLock does not count holds so a single unlock releases it.
+          lock = q.holder;
+        } else {
+          lock = tryAcquire(id, q, owner);
+          if (lock != null) {
+            owned = true;
+            statistics.acquired();
+          } else if (q.holder != null) {
+            lock = q.holder;
+          } else {
+            lock = lockMap.get(id);
           }
         }
+        stripe.removeIfIdle(id, q);
+      } else {
+        LockQueue q = stripe.queues.get(id);
+        if (q != null && q.holder != null) {
+          lock = q.holder;
+        } else {
+          lock = lockMap.get(id);
+        }
       }
+    } finally {
+      stripe.monitor.unlock();
     }
     if (lock != null) {
       lock.bind(this);
+      if (owned) {
+        getRequestLocks().put(id, lock);
+      }
     }
     return lock;
   }
@@ -149,19 +319,50 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * Unlock only if the current thread is the owner.
+   * Unlock only if the current thread is the owner. A lock that has been waited for more
+   * than once by its owner is only released when it has been unlocked as many times.
    *
    * @param lock
    */
   protected void unlock(LockImpl lock) {
-    if (lock.isOwner() && lock.isLocked()) {
+    release(lock, false);
+  }
+
+  /**
+   * Release a lock, handing it to the first waiter if there is one.
+   *
+   * @param lock
+   *          the lock.
+   * @param all
+   *          if true release all holds, otherwise just one.
+   */
+  protected void release(LockImpl lock, boolean all) {
+    if (!lock.isOwner() || !lock.isLocked()) {
+      return;
+    }
+    String id = lock.getLocked();
+    Stripe stripe = lockStripe(id);
+    try {
+      LockQueue q = stripe.queues.get(id);
+      if (q == null || q.holder != lock) {
+        // the lock was taken away as stale, it no longer owns anything.
+        lock.setLocked(false);
+        return;
+      }
+      if (!all && --q.holds > 0) {
+        return;
+      }
       if (debug) {
-        LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
+        LOGGER.debug(Thread.currentThread() + " unlocked " + id);
       }
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
-      }
+      q.holder = null;
+      q.holds = 0;
+      lockMap.remove(id);
+      handOff(id, q);
+      stripe.removeIfIdle(id, q);
+    } finally {
+      stripe.monitor.unlock();
     }
   }
 
@@ -179,42 +380,200 @@ public class LockManagerImpl implements LockManager {
     return threadId.get();
   }
 
+  /**
+   * @return the lock manager counters.
+   */
+  protected LockManagerStatistics getStatistics() {
+    return statistics;
+  }
+
   /**
    * {@inheritDoc}
    *
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
     if (debug) {
       LOGGER.debug(Thread.currentThread() + " locking " + id);
     }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+    long owner = threadId.get();
+    long start = System.currentTimeMillis();
+    Stripe stripe = lockStripe(id);
+    LockImpl lock = null;
+    try {
+      LockQueue q = stripe.getQueue(id);
+      lock = tryAcquire(id, q, owner);
+      if (lock != null) {
+        statistics.acquired();
+      } else {
+        lock = await(id, stripe, q, owner, start);
+      }
+    } finally {
+      stripe.monitor.unlock();
+    }
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " lock Granted " + id);
+    }
+    getRequestLocks().put(id, lock);
+    return lock;
+  }
+
+  /**
+   * Queue behind the current holder and wait to be handed the lock. Must be called with
+   * the stripe monitor held.
+   */
+  private LockImpl await(String id, Stripe stripe, LockQueue q, long owner, long start)
+      throws LockTimeoutException {
+    Waiter waiter = new Waiter(stripe.monitor.newCondition(), owner);
+    q.waiters.addLast(waiter);
+    statistics.waiting();
+    long deadline = start + timeout;
+    try {
+      while (waiter.granted == null) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          break;
+        }
+        if (q.holder == null && q.waiters.getFirst() == waiter) {
+          // free here, but held on another node, which can't tell us when it is done.
+          LockImpl lock = tryAcquire(id, q, owner);
+          if (lock != null) {
+            q.waiters.removeFirst();
+            waiter.granted = lock;
+            break;
+          }
+          waiter.condition.await(Math.min(remaining, remoteRecheckInterval),
+              TimeUnit.MILLISECONDS);
+        } else {
+          waiter.condition.await(remaining, TimeUnit.MILLISECONDS);
         }
-        return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (waiter.granted == null) {
+      q.waiters.remove(waiter);
+      statistics.timedOut();
+      if (q.holder == null) {
+        // we may have been holding up the next waiter.
+        q.signalHead();
       }
+      stripe.removeIfIdle(id, q);
+      LOGGER.warn(Thread.currentThread() + " timed out waiting " + timeout
+          + " ms for lock on " + id);
+      throw new LockTimeoutException("Failed to lock node " + id);
+    }
+    statistics.acquiredAfterWait(System.currentTimeMillis() - start);
+    return waiter.granted;
+  }
+
+  /**
+   * Take the lock if this owner already holds it, or if it is free and no one is queued
+   * ahead. Must be called with the stripe monitor held.
+   *
+   * @return the lock if it was granted, null otherwise.
+   */
+  private LockImpl tryAcquire(String id, LockQueue q, long owner) {
+    if (q.holder != null) {
+      if (q.holder.getOwnerId() == owner) {
+        q.holds++;
+        return q.holder;
+      }
+      if (System.currentTimeMillis() - q.acquired < maxHoldTime) {
+        return null;
+      }
+      LOGGER.warn("Lock on {} has been held for more than {} ms, breaking it ", id,
+          maxHoldTime);
+      statistics.staleLockBroken();
+      q.holder.setLocked(false);
+      q.holder = null;
+      q.holds = 0;
+      lockMap.remove(id);
+      handOff(id, q);
+      if (q.holder != null) {
+        return null;
+      }
+    }
+    if (!q.waiters.isEmpty() && q.waiters.getFirst().threadId != owner) {
+      return null;
+    }
+    if (isHeldRemotely(id)) {
+      return null;
+    }
+    return grant(id, q, owner);
+  }
+
+  /**
+   * Give a released lock to the first waiter. Must be called with the stripe monitor
+   * held.
+   */
+  private void handOff(String id, LockQueue q) {
+    if (q.waiters.isEmpty()) {
+      return;
+    }
+    if (isHeldRemotely(id)) {
+      // let the head poll for it.
+      q.signalHead();
+      return;
+    }
+    Waiter head = q.waiters.removeFirst();
+    head.granted = grant(id, q, head.threadId);
+    head.condition.signal();
+  }
+
+  private LockImpl grant(String id, LockQueue q, long owner) {
+    LockImpl lock = new LockImpl(id, random.nextLong(), owner, instanceId);
+    lock.bind(this);
+    q.holder = lock;
+    q.holds = 1;
+    q.acquired = System.currentTimeMillis();
+    lockMap.put(id, lock);
+    return lock;
+  }
+
+  /**
+   * @return true if the cluster lock map shows the lock as held by another node.
+   */
+  private boolean isHeldRemotely(String id) {
+    LockImpl lock = lockMap.get(id);
+    return lock != null && lock.isLocked() && lock.getInstanceId() != instanceId;
+  }
+
+  /**
+   * @return the stripe for the id with its monitor held, retrying if the table was
+   *         replaced while waiting for the monitor.
+   */
+  private Stripe lockStripe(String id) {
+    while (true) {
+      Stripe[] s = stripes;
+      Stripe stripe = s[(id.hashCode() & 0x7fffffff) % s.length];
+      stripe.monitor.lock();
+      if (s == stripes) {
+        return stripe;
+      }
+      stripe.monitor.unlock();
+    }
+  }
+
+  private Stripe[] createStripes(int n) {
+    Stripe[] s = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      s[i] = new Stripe();
+    }
+    return s;
+  }
+
+  private long toLong(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
       try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
-        }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Invalid number {}, using {} ", value, defaultValue);
       }
     }
-    throw new LockTimeoutException("Failed to lock node " + id);
+    return defaultValue;
   }
 
   /**
@@ -228,13 +587,14 @@ public class LockManagerImpl implements LockManager {
     requestLocks.clear();
   }
 
- 
+
   /**
    * @param cacheManagerService
    */
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
-    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED);
+    lockMap = cacheManagerService.getCache(LOCKMAP, CacheScope.CLUSTERREPLICATED,
+        LockImpl.class);
   }
   /**
    * @param cacheManagerService
@@ -243,6 +603,6 @@ public class LockManagerImpl implements LockManager {
     this.cacheManagerService = null;
     lockMap = null;
   }
- 
- 
+
+
 }
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the lock manager.
+ */
+public class LockManagerStatistics implements LockManagerStatisticsMBean {
+
+  private AtomicLong acquisitions = new AtomicLong();
+  private AtomicLong contendedAcquisitions = new AtomicLong();
+  private AtomicLong timeouts = new AtomicLong();
+  private AtomicLong staleLocksBroken = new AtomicLong();
+  private AtomicLong totalWaitTime = new AtomicLong();
+  private AtomicLong maxWaitTime = new AtomicLong();
+  private AtomicInteger currentWaiters = new AtomicInteger();
+
+  void acquired() {
+    acquisitions.incrementAndGet();
+  }
+
+  void waiting() {
+    currentWaiters.incrementAndGet();
+  }
+
+  void acquiredAfterWait(long waited) {
+    currentWaiters.decrementAndGet();
+    acquisitions.incrementAndGet();
+    contendedAcquisitions.incrementAndGet();
+    totalWaitTime.addAndGet(waited);
+    long max = maxWaitTime.get();
+    while (waited > max && !maxWaitTime.compareAndSet(max, waited)) {
+      max = maxWaitTime.get();
+    }
+  }
+
+  void timedOut() {
+    currentWaiters.decrementAndGet();
+    timeouts.incrementAndGet();
+  }
+
+  void staleLockBroken() {
+    staleLocksBroken.incrementAndGet();
+  }
+
+  public long getAcquisitions() {
+    return acquisitions.get();
+  }
+
+  public long getContendedAcquisitions() {
+    return contendedAcquisitions.get();
+  }
+
+  public long getTimeouts() {
+    return timeouts.get();
+  }
+
+  public long getStaleLocksBroken() {
+    return staleLocksBroken.get();
+  }
+
+  public long getTotalWaitTime() {
+    return totalWaitTime.get();
+  }
+
+  public long getMaxWaitTime() {
+    return maxWaitTime.get();
+  }
+
+  public long getAverageWaitTime() {
+    long n = contendedAcquisitions.get();
+    return n == 0 ? 0 : totalWaitTime.get() / n;
+  }
+
+  public int getCurrentWaiters() {
+    return currentWaiters.get();
+  }
+
+  public void reset() {
+    acquisitions.set(0);
+    contendedAcquisitions.set(0);
+    timeouts.set(0);
+    staleLocksBroken.set(0);
+    totalWaitTime.set(0);
+    maxWaitTime.set(0);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+/**
+ * JMX view of the lock manager counters.
+ */
+public interface LockManagerStatisticsMBean {
+
+  /**
+   * @return the number of locks granted, including reentrant acquisitions.
+   */
+  long getAcquisitions();
+
+  /**
+   * @return the number of locks that had to wait because someone else held them.
+   */
+  long getContendedAcquisitions();
+
+  /**
+   * @return the number of waits that timed out.
+   */
+  long getTimeouts();
+
+  /**
+   * @return the number of locks taken from a holder that kept them past the maximum
+   *         hold time.
+   */
+  long getStaleLocksBroken();
+
+  /**
+   * @return the total time spent waiting for contended locks, in ms.
+   */
+  long getTotalWaitTime();
+
+  /**
+   * @return the longest time spent waiting for a lock, in ms.
+   */
+  long getMaxWaitTime();
+
+  /**
+   * @return the mean time spent waiting for a contended lock, in ms.
+   */
+  long getAverageWaitTime();
+
+  /**
+   * @return the number of threads waiting for a lock now.
+   */
+  int getCurrentWaiters();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
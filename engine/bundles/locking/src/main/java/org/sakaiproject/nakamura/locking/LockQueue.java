@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * The local state of a single lock id, the current holder and the threads waiting for
+ * it in arrival order. All access is guarded by the stripe lock that the queue belongs
+ * to.
+ */
+class LockQueue {
+
+  /**
+   * A thread waiting for the lock.
+   */
+  static class Waiter {
+    final Condition condition;
+    final long threadId;
+    /**
+     * Set, under the stripe lock, when the lock is handed to this waiter.
+     */
+    LockImpl granted;
+
+    Waiter(Condition condition, long threadId) {
+      this.condition = condition;
+      this.threadId = threadId;
+    }
+  }
+
+  /**
+   * The lock currently held on this node, null if not held locally.
+   */
+  LockImpl holder;
+  /**
+   * The number of times the holder has acquired the lock without releasing it.
+   */
+  int holds;
+  /**
+   * When the holder acquired the lock.
+   */
+  long acquired;
+  /**
+   * Threads waiting, in the order they arrived.
+   */
+  LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+
+  /**
+   * @return true if nothing holds or waits for the lock, so the queue can be discarded.
+   */
+  boolean isIdle() {
+    return holder == null && waiters.isEmpty();
+  }
+
+  /**
+   * Wake the first waiter so it can check the lock again.
+   */
+  void signalHead() {
+    if (!waiters.isEmpty()) {
+      waiters.getFirst().condition.signal();
+    }
+  }
+}
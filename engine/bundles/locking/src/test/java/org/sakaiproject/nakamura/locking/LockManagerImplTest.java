@@ -22,23 +22,39 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import org.easymock.IAnswer;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  *
  */
 public class LockManagerImplTest {
 
   private Cache<Object> lockCache;
-  private Cache<Object> requestCache;
+  private ThreadLocal<Cache<Object>> requestCache = new ThreadLocal<Cache<Object>>() {
+    @Override
+    protected Cache<Object> initialValue() {
+      return new MapCacheImpl<Object>();
+    }
+  };
   private CacheManagerService cacheManagerService;
   private LockManagerImpl lockManager;
 
@@ -48,15 +64,19 @@ public class LockManagerImplTest {
   @Before
   public void setUp() throws Exception {
     lockCache = new MapCacheImpl<Object>();
-    requestCache = new MapCacheImpl<Object>();
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
         cacheManagerService.getCache("lockmanager.lockmap",
-            CacheScope.CLUSTERREPLICATED)).andReturn(lockCache).anyTimes();
+            CacheScope.CLUSTERREPLICATED, LockImpl.class)).andReturn(lockCache).anyTimes();
     expect(
         cacheManagerService.getCache("lockmanager.requestmap",
-            CacheScope.REQUEST)).andReturn(requestCache).anyTimes();
+            CacheScope.REQUEST)).andAnswer(new IAnswer<Cache<Object>>() {
+              public Cache<Object> answer() throws Throwable {
+                // the request cache is per thread.
+                return requestCache.get();
+              }
+            }).anyTimes();
 
     replay(cacheManagerService);
 
@@ -97,4 +117,151 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testReentrant() throws Exception {
+    Lock l = lockManager.waitForLock("foo");
+    Lock again = lockManager.waitForLock("foo");
+    assertSame(l, again);
+    l.unlock();
+    assertTrue(l.isLocked());
+    l.unlock();
+    assertFalse(l.isLocked());
+    assertEquals(null, lockManager.getLock("foo", false));
+  }
+
+  @Test
+  public void testGetLockIsNotCounted() throws Exception {
+    Lock l = lockManager.getLock("foo");
+    Lock again = lockManager.getLock("foo");
+    assertSame(l, again);
+    l.unlock();
+    assertFalse(l.isLocked());
+    assertEquals(null, lockManager.getLock("foo", false));
+  }
+
+  @Test
+  public void testConfigureWhileHeld() throws Exception {
+    Lock l = lockManager.waitForLock("foo");
+    lockManager.configure(5000, 7, 600000, 20);
+    assertSame(l, lockManager.getLock("foo", false));
+    l.unlock();
+    assertFalse(l.isLocked());
+    assertEquals(null, lockManager.getLock("foo", false));
+    lockManager.configure(5000, 7, 600000, 20);
+    Lock other = lockManager.waitForLock("bar");
+    assertSame(other, lockManager.getLock("bar", false));
+    other.unlock();
+  }
+
+  @Test
+  public void testWaiterWakesOnRelease() throws Exception {
+    Lock l = lockManager.waitForLock("foo");
+    final long[] acquired = new long[1];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+          acquired[0] = System.currentTimeMillis();
+          lockManager.clearLocks();
+        } catch (LockTimeoutException e) {
+          acquired[0] = -1;
+        }
+      }
+    });
+    waiter.start();
+    waitForWaiters(1);
+    long released = System.currentTimeMillis();
+    l.unlock();
+    waiter.join(5000);
+    assertTrue("Waiter should have been granted the lock", acquired[0] > 0);
+    assertTrue("Waiter should wake on release, not poll", acquired[0] - released < 500);
+    assertEquals(1, lockManager.getStatistics().getContendedAcquisitions());
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    lockManager.configure(200, 16, 600000, 50);
+    lockManager.waitForLock("foo");
+    final boolean[] timedOut = new boolean[1];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          lockManager.waitForLock("foo");
+        } catch (LockTimeoutException e) {
+          timedOut[0] = true;
+        }
+      }
+    });
+    waiter.start();
+    waiter.join(5000);
+    assertTrue(timedOut[0]);
+    assertEquals(1, lockManager.getStatistics().getTimeouts());
+    assertEquals(0, lockManager.getStatistics().getCurrentWaiters());
+    lockManager.clearLocks();
+  }
+
+  @Test
+  public void testFairness() throws Exception {
+    Lock l = lockManager.waitForLock("foo");
+    final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 5; i++) {
+      final int n = i;
+      Thread t = new Thread(new Runnable() {
+        public void run() {
+          try {
+            lockManager.waitForLock("foo");
+            order.add(n);
+            lockManager.clearLocks();
+          } catch (LockTimeoutException e) {
+            fail(e.getMessage());
+          }
+        }
+      });
+      t.start();
+      threads.add(t);
+      waitForWaiters(i + 1);
+    }
+    l.unlock();
+    for (Thread t : threads) {
+      t.join(5000);
+    }
+    assertEquals(5, order.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+  }
+
+  @Test
+  public void testLockHeldOnAnotherNode() throws Exception {
+    lockManager.configure(5000, 16, 600000, 20);
+    lockCache.put("foo", new LockImpl("foo", 1L, 2L, lockManager.getInstanceId() + 1));
+    final Lock[] acquired = new Lock[1];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          acquired[0] = lockManager.waitForLock("foo");
+          assertTrue(acquired[0].isOwner());
+          lockManager.clearLocks();
+        } catch (LockTimeoutException e) {
+          fail(e.getMessage());
+        }
+      }
+    });
+    waiter.start();
+    waitForWaiters(1);
+    lockCache.remove("foo");
+    waiter.join(5000);
+    assertNotNull(acquired[0]);
+  }
+
+  private void waitForWaiters(int n) throws InterruptedException {
+    long end = System.currentTimeMillis() + 5000;
+    while (lockManager.getStatistics().getCurrentWaiters() < n
+        && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(n, lockManager.getStatistics().getCurrentWaiters());
+  }
+
 }
@@ -71,13 +71,24 @@ public interface Cache<V> {
   void remove(String key);
 
   /**
-   * Remove the key and any child keys from the cache, this is an expensive
-   * operation.
+   * Remove the key and any child keys from the cache. Child keys are those that
+   * start with the key followed by '/'. The cost is proportional to the number of
+   * keys removed, not the size of the cache.
    *
    * @param key
    */
   void removeChildren(String key);
 
+  /**
+   * List the key and any child keys in the cache, in key order. The cost is
+   * proportional to the number of keys found, not the size of the cache.
+   *
+   * @param key
+   *          The parent key.
+   * @return the key, if it is in the cache, followed by its child keys.
+   */
+  List<String> listChildren(String key);
+
   /**
    * @return
    */
@@ -37,6 +37,20 @@ public interface CacheManagerService {
    */
   <T> Cache<T> getCache(String name, CacheScope scope);
 
+  /**
+   * Get a cache as {@link #getCache(String, CacheScope)} does, naming the classes of the
+   * values it holds. A {@link CacheScope#CLUSTERREPLICATED} cache only accepts values
+   * sent by other nodes that are plain JDK types or of these classes, so any other class
+   * of value the cache holds must be named here.
+   *
+   * @param <T> The type of the elements.
+   * @param name the name of the cache.
+   * @param scope the scope of the cache.
+   * @param valueClasses the classes of the values, their fields are accepted too.
+   * @return the cache suitable for holding the type T
+   */
+  <T> Cache<T> getCache(String name, CacheScope scope, Class<?>... valueClasses);
+
   /**
    * Unbind the the context specified in scope.
    *
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * A single change to a cluster cache, queued locally and shipped to the other nodes in
+ * the cluster by the {@link CacheReplicator}.
+ */
+public class CacheEvent {
+
+  /**
+   * The kinds of change that are propagated.
+   */
+  public enum Type {
+    /**
+     * A value was put, only sent for replicated caches.
+     */
+    PUT(),
+    /**
+     * A single key was removed or, for invalidated caches, changed.
+     */
+    REMOVE(),
+    /**
+     * A key and all keys below it were removed.
+     */
+    REMOVE_CHILDREN(),
+    /**
+     * The whole cache was cleared.
+     */
+    CLEAR();
+  }
+
+  private Type type;
+  private String key;
+  private Object value;
+  private long queued;
+
+  /**
+   * @param type
+   *          the type of change.
+   * @param key
+   *          the key, or prefix for REMOVE_CHILDREN, null for CLEAR.
+   * @param value
+   *          the value for a PUT, null otherwise.
+   */
+  public CacheEvent(Type type, String key, Object value) {
+    this(type, key, value, System.currentTimeMillis());
+  }
+
+  /**
+   * @param type
+   * @param key
+   * @param value
+   * @param queued
+   *          the time in ms when the change was made on the originating node.
+   */
+  public CacheEvent(Type type, String key, Object value, long queued) {
+    this.type = type;
+    this.key = key;
+    this.value = value;
+    this.queued = queued;
+  }
+
+  /**
+   * @return the type of change.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the key or prefix of the change.
+   */
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value of a PUT.
+   */
+  public Object getValue() {
+    return value;
+  }
+
+  /**
+   * @return the time the change was made on the originating node.
+   */
+  public long getQueued() {
+    return queued;
+  }
+
+}
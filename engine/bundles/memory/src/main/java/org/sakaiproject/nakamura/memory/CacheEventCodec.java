@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes a batch of {@link CacheEvent}s into a message body. Keys are written in the
+ * clear and each value is serialized on its own, so that a value whose class cannot be
+ * loaded on the receiving node degrades to a remove of that key rather than losing the
+ * whole batch. Values are only read as the classes the receiving cache accepts, see
+ * {@link ReplicatedClasses}.
+ */
+public class CacheEventCodec {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheEventCodec.class);
+  private static final int VERSION = 1;
+
+  /**
+   * The result of decoding a message body.
+   */
+  public static class Batch {
+    private List<CacheEvent> events;
+    private long oldestQueued;
+
+    Batch(List<CacheEvent> events, long oldestQueued) {
+      this.events = events;
+      this.oldestQueued = oldestQueued;
+    }
+
+    public List<CacheEvent> getEvents() {
+      return events;
+    }
+
+    public long getOldestQueued() {
+      return oldestQueued;
+    }
+  }
+
+  private CacheEventCodec() {
+  }
+
+  /**
+   * Encode a batch of changes. Puts of values that can't be serialized are encoded as
+   * removes.
+   *
+   * @param events
+   *          the changes in order.
+   * @param statistics
+   *          counters to record unserializable values against, may be null.
+   * @return the encoded body.
+   * @throws IOException
+   */
+  public static byte[] encode(List<CacheEvent> events, CacheReplicationStatistics statistics)
+      throws IOException {
+    long oldest = Long.MAX_VALUE;
+    for (CacheEvent e : events) {
+      oldest = Math.min(oldest, e.getQueued());
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeInt(VERSION);
+    out.writeLong(oldest);
+    out.writeInt(events.size());
+    for (CacheEvent e : events) {
+      byte[] value = null;
+      CacheEvent.Type type = e.getType();
+      if (type == CacheEvent.Type.PUT && e.getValue() != null) {
+        value = serialize(e.getValue());
+        if (value == null) {
+          if (statistics != null) {
+            statistics.unserializable();
+          }
+          type = CacheEvent.Type.REMOVE;
+        }
+      }
+      out.writeByte(type.ordinal());
+      out.writeBoolean(e.getKey() != null);
+      if (e.getKey() != null) {
+        out.writeUTF(e.getKey());
+      }
+      if (type == CacheEvent.Type.PUT) {
+        if (value == null) {
+          out.writeInt(-1);
+        } else {
+          out.writeInt(value.length);
+          out.write(value);
+        }
+      }
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  /**
+   * Decode a message body.
+   *
+   * @param body
+   *          the body.
+   * @param classes
+   *          the classes that values may be of, a value of any other class is decoded as
+   *          a remove.
+   * @return the batch of changes.
+   * @throws IOException
+   *           if the body is not a valid batch.
+   */
+  static Batch decode(byte[] body, ReplicatedClasses classes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported cache replication message version " + version);
+    }
+    long oldest = in.readLong();
+    int n = in.readInt();
+    List<CacheEvent> events = new ArrayList<CacheEvent>(n);
+    CacheEvent.Type[] types = CacheEvent.Type.values();
+    for (int i = 0; i < n; i++) {
+      CacheEvent.Type type = types[in.readByte()];
+      String key = in.readBoolean() ? in.readUTF() : null;
+      Object value = null;
+      if (type == CacheEvent.Type.PUT) {
+        int length = in.readInt();
+        if (length >= 0) {
+          byte[] b = new byte[length];
+          in.readFully(b);
+          try {
+            value = deserialize(b, classes);
+          } catch (ClassNotFoundException e) {
+            LOGGER.debug("Unable to load replicated value for {}, removing it locally: {}",
+                key, e.getMessage());
+            type = CacheEvent.Type.REMOVE;
+          }
+        }
+      }
+      events.add(new CacheEvent(type, key, value, oldest));
+    }
+    return new Batch(events, oldest);
+  }
+
+  private static byte[] serialize(Object value) {
+    if (!(value instanceof Serializable)) {
+      return null;
+    }
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(value);
+      oos.close();
+      return baos.toByteArray();
+    } catch (IOException e) {
+      LOGGER.debug("Unable to serialize {}: {}", value.getClass(), e.getMessage());
+      return null;
+    }
+  }
+
+  private static Object deserialize(byte[] b, ReplicatedClasses classes)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream ois = new ReplicatedObjectInputStream(new ByteArrayInputStream(b),
+        classes);
+    try {
+      return ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
+
+  /**
+   * Resolves only the classes that the cache accepts, since the value classes belong to
+   * the bundle that uses the cache, not this one, and the bytes come off the network.
+   */
+  private static class ReplicatedObjectInputStream extends ObjectInputStream {
+    private ReplicatedClasses classes;
+
+    ReplicatedObjectInputStream(InputStream in, ReplicatedClasses classes)
+        throws IOException {
+      super(in);
+      this.classes = classes;
+    }
+
+    @Override
+    protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException,
+        ClassNotFoundException {
+      return classes.resolve(desc.getName());
+    }
+
+    @Override
+    protected Class<?> resolveProxyClass(String[] interfaces) throws IOException,
+        ClassNotFoundException {
+      throw new ClassNotFoundException("Proxies are not replicated");
+    }
+  }
+}
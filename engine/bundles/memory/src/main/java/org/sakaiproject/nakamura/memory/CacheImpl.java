@@ -23,6 +23,7 @@ import net.sf.ehcache.Element;
 import org.sakaiproject.nakamura.api.memory.Cache;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -32,6 +33,7 @@ public class CacheImpl<V> implements Cache<V> {
 
   private String cacheName;
   private net.sf.ehcache.Cache cache;
+  private KeyIndex keyIndex;
 
   /**
    * @param cacheManager
@@ -53,6 +55,7 @@ public class CacheImpl<V> implements Cache<V> {
         }
       }
     }
+    keyIndex = KeyIndexEventListener.getListener(cache).getIndex();
   }
 
   /**
@@ -121,15 +124,26 @@ public class CacheImpl<V> implements Cache<V> {
    */
   public void removeChildren(String key) {
     cache.remove(key);
-    if (!key.endsWith("/")) {
-      key = key + "/";
+    for (String k : keyIndex.children(key)) {
+      cache.remove(k);
     }
-    List<?> keys = cache.getKeys();
-    for (Object k : keys) {
-      if (((String) k).startsWith(key)) {
-        cache.remove(k);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<String> listChildren(String key) {
+    List<String> children = keyIndex.children(key);
+    for (Iterator<String> i = children.iterator(); i.hasNext();) {
+      // the index may still hold keys that have expired but not yet been noticed.
+      Element e = cache.getQuiet(i.next());
+      if (e == null || cache.isExpired(e)) {
+        i.remove();
       }
     }
+    return children;
   }
 
   /**
@@ -22,7 +22,12 @@ import net.sf.ehcache.management.ManagementService;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -33,6 +38,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -41,7 +47,7 @@ import javax.management.MBeanServer;
 /**
  * The <code>CacheManagerServiceImpl</code>
  */
-@Component(immediate = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
+@Component(immediate = true, metatype = true, label = "CacheManagerServiceImpl", description = "Implementation of the Cache Manager Service")
 @Service
 public class CacheManagerServiceImpl implements CacheManagerService {
 
@@ -51,10 +57,27 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   @Property(value = "Cache Manager Service Implementation")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(value = CacheReplicator.DEFAULT_TOPIC, description = "The JMS topic that cluster cache changes are published on, must be the same on all nodes.")
+  static final String REPLICATION_TOPIC = "cache.replication.topic";
+
+  @Property(longValue = CacheReplicator.DEFAULT_FLUSH_INTERVAL, description = "The maximum time in ms a cluster cache change is held before it is sent.")
+  static final String REPLICATION_FLUSH_INTERVAL = "cache.replication.flushInterval";
+
+  @Property(intValue = CacheReplicator.DEFAULT_MAX_BATCH_SIZE, description = "The maximum number of cluster cache changes sent in one message.")
+  static final String REPLICATION_MAX_BATCH_SIZE = "cache.replication.maxBatchSize";
+
+  /**
+   * Optional, without a broker the cluster scoped caches behave as instance caches.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC, bind = "bindConnectionFactoryService", unbind = "unbindConnectionFactoryService")
+  private ConnectionFactoryService connectionFactoryService;
+
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
   private static final Logger logger = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
   private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+  private Map<String, ClusterCacheImpl<?>> clusterCaches = new HashMap<String, ClusterCacheImpl<?>>();
+  private CacheReplicator replicator = new CacheReplicator(this);
   private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
   private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
 
@@ -95,12 +118,56 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     ManagementService.registerMBeans(cacheManager, mBeanServer, true, true,
         true, true);
 
+    replicator.start();
+  }
+
+  /**
+   * @param ctx
+   */
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext ctx) {
+    Dictionary<String, Object> properties = ctx.getProperties();
+    String topic = (String) properties.get(REPLICATION_TOPIC);
+    if (topic == null || topic.trim().length() == 0) {
+      topic = CacheReplicator.DEFAULT_TOPIC;
+    }
+    replicator.configure(topic, toLong(properties.get(REPLICATION_FLUSH_INTERVAL),
+        CacheReplicator.DEFAULT_FLUSH_INTERVAL), (int) toLong(properties
+        .get(REPLICATION_MAX_BATCH_SIZE), CacheReplicator.DEFAULT_MAX_BATCH_SIZE));
+    // started by the constructor, and again if the component is activated after a
+    // deactivate.
+    replicator.start();
+  }
+
+  /**
+   * Send anything still queued and stop the replication thread and connection, so they do
+   * not outlive the component.
+   *
+   * @param ctx
+   */
+  protected void deactivate(ComponentContext ctx) {
+    replicator.stop();
+  }
+
+  protected void bindConnectionFactoryService(ConnectionFactoryService connectionFactoryService) {
+    this.connectionFactoryService = connectionFactoryService;
+    replicator.connect(connectionFactoryService.getDefaultConnectionFactory());
+  }
+
+  protected void unbindConnectionFactoryService(
+      ConnectionFactoryService connectionFactoryService) {
+    if (this.connectionFactoryService == connectionFactoryService) {
+      replicator.flush();
+      replicator.disconnect();
+      this.connectionFactoryService = null;
+    }
   }
 
   /**
    * perform a shutdown
    */
   public void stop() {
+    replicator.stop();
     cacheManager.shutdown();
     // we really want to notify all threads that have maps
   }
@@ -115,9 +182,9 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     case INSTANCE:
       return getInstanceCache(name);
     case CLUSTERINVALIDATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, scope);
     case CLUSTERREPLICATED:
-      return getInstanceCache(name);
+      return getClusterCache(name, scope);
     case REQUEST:
       return getRequestCache(name);
     case THREAD:
@@ -127,6 +194,22 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheManagerService#getCache(java.lang.String,
+   *      org.sakaiproject.nakamura.api.memory.CacheScope, java.lang.Class[])
+   */
+  public <V> Cache<V> getCache(String name, CacheScope scope, Class<?>... valueClasses) {
+    Cache<V> cache = getCache(name, scope);
+    if (cache instanceof ClusterCacheImpl<?>) {
+      for (Class<?> c : valueClasses) {
+        ((ClusterCacheImpl<?>) cache).getValueClasses().register(c);
+      }
+    }
+    return cache;
+  }
+
   /**
    * Generate a cache bound to the thread.
    *
@@ -179,6 +262,54 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     }
   }
 
+  /**
+   * Generate a cache that is held in the instance and whose changes are sent to the rest
+   * of the cluster. Unnamed caches are never shared so they are instance caches.
+   *
+   * @param name
+   * @param scope
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  private <V> Cache<V> getClusterCache(String name, CacheScope scope) {
+    if (name == null) {
+      return getInstanceCache(null);
+    }
+    synchronized (clusterCaches) {
+      ClusterCacheImpl<V> c = (ClusterCacheImpl<V>) clusterCaches.get(name);
+      if (c == null) {
+        c = new ClusterCacheImpl<V>(name, scope, new CacheImpl<V>(cacheManager, name),
+            replicator);
+        clusterCaches.put(name, c);
+        replicator.register(c);
+      } else if (c.getScope() != scope) {
+        logger.warn("Cache {} is {} but was requested as {} ", new Object[] { name,
+            c.getScope(), scope });
+      }
+      return c;
+    }
+  }
+
+  /**
+   * @return the replicator for the cluster caches.
+   */
+  CacheReplicator getReplicator() {
+    return replicator;
+  }
+
+  private long toLong(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    } else if (value != null) {
+      try {
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        logger.warn("Invalid number {}, using {} ", value, defaultValue);
+      }
+    }
+    return defaultValue;
+  }
+
   /**
    * {@inheritDoc}
    *
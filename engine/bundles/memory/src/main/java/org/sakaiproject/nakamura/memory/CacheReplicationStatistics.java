@@ -0,0 +1,190 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replication counters for a single cluster cache.
+ */
+public class CacheReplicationStatistics implements CacheReplicationStatisticsMBean {
+
+  private String cacheName;
+  private ReplicationQueue queue;
+  private AtomicLong eventsQueued = new AtomicLong();
+  private AtomicLong eventsCoalesced = new AtomicLong();
+  private AtomicLong batchesSent = new AtomicLong();
+  private AtomicLong eventsSent = new AtomicLong();
+  private AtomicLong bytesSent = new AtomicLong();
+  private AtomicLong sendFailures = new AtomicLong();
+  private AtomicLong eventsDropped = new AtomicLong();
+  private AtomicLong unserializableValues = new AtomicLong();
+  private AtomicLong batchesReceived = new AtomicLong();
+  private AtomicLong eventsReceived = new AtomicLong();
+  private AtomicLong bytesReceived = new AtomicLong();
+  private AtomicLong receiveFailures = new AtomicLong();
+  private AtomicLong lastReplicationLag = new AtomicLong();
+  private AtomicLong maxReplicationLag = new AtomicLong();
+  private AtomicLong totalReplicationLag = new AtomicLong();
+  private AtomicLong lastSendDelay = new AtomicLong();
+
+  /**
+   * @param cacheName
+   *          the name of the cache.
+   * @param queue
+   *          the queue of pending changes for the cache.
+   */
+  public CacheReplicationStatistics(String cacheName, ReplicationQueue queue) {
+    this.cacheName = cacheName;
+    this.queue = queue;
+  }
+
+  void queued(boolean coalesced) {
+    eventsQueued.incrementAndGet();
+    if (coalesced) {
+      eventsCoalesced.incrementAndGet();
+    }
+  }
+
+  void sent(int events, int bytes, long sendDelay) {
+    batchesSent.incrementAndGet();
+    eventsSent.addAndGet(events);
+    bytesSent.addAndGet(bytes);
+    lastSendDelay.set(sendDelay);
+  }
+
+  void sendFailed() {
+    sendFailures.incrementAndGet();
+  }
+
+  void dropped(int events) {
+    eventsDropped.addAndGet(events);
+  }
+
+  void unserializable() {
+    unserializableValues.incrementAndGet();
+  }
+
+  void received(int events, int bytes, long lag) {
+    batchesReceived.incrementAndGet();
+    eventsReceived.addAndGet(events);
+    bytesReceived.addAndGet(bytes);
+    lastReplicationLag.set(lag);
+    totalReplicationLag.addAndGet(lag);
+    long max = maxReplicationLag.get();
+    while (lag > max && !maxReplicationLag.compareAndSet(max, lag)) {
+      max = maxReplicationLag.get();
+    }
+  }
+
+  void receiveFailed() {
+    receiveFailures.incrementAndGet();
+  }
+
+  public String getCacheName() {
+    return cacheName;
+  }
+
+  public long getEventsQueued() {
+    return eventsQueued.get();
+  }
+
+  public long getEventsCoalesced() {
+    return eventsCoalesced.get();
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public long getBatchesSent() {
+    return batchesSent.get();
+  }
+
+  public long getEventsSent() {
+    return eventsSent.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getSendFailures() {
+    return sendFailures.get();
+  }
+
+  public long getEventsDropped() {
+    return eventsDropped.get();
+  }
+
+  public long getUnserializableValues() {
+    return unserializableValues.get();
+  }
+
+  public long getBatchesReceived() {
+    return batchesReceived.get();
+  }
+
+  public long getEventsReceived() {
+    return eventsReceived.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  public long getReceiveFailures() {
+    return receiveFailures.get();
+  }
+
+  public long getLastReplicationLag() {
+    return lastReplicationLag.get();
+  }
+
+  public long getMaxReplicationLag() {
+    return maxReplicationLag.get();
+  }
+
+  public long getAverageReplicationLag() {
+    long n = batchesReceived.get();
+    return n == 0 ? 0 : totalReplicationLag.get() / n;
+  }
+
+  public long getLastSendDelay() {
+    return lastSendDelay.get();
+  }
+
+  public void reset() {
+    eventsQueued.set(0);
+    eventsCoalesced.set(0);
+    batchesSent.set(0);
+    eventsSent.set(0);
+    bytesSent.set(0);
+    sendFailures.set(0);
+    eventsDropped.set(0);
+    unserializableValues.set(0);
+    batchesReceived.set(0);
+    eventsReceived.set(0);
+    bytesReceived.set(0);
+    receiveFailures.set(0);
+    lastReplicationLag.set(0);
+    maxReplicationLag.set(0);
+    totalReplicationLag.set(0);
+    lastSendDelay.set(0);
+  }
+}
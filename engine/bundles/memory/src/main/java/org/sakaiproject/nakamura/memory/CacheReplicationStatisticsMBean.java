@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+/**
+ * JMX view of the replication counters of a single cluster cache.
+ */
+public interface CacheReplicationStatisticsMBean {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getCacheName();
+
+  /**
+   * @return the number of local changes queued for sending.
+   */
+  long getEventsQueued();
+
+  /**
+   * @return the number of queued changes that replaced an earlier pending change.
+   */
+  long getEventsCoalesced();
+
+  /**
+   * @return the number of changes waiting to be sent.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the number of messages sent.
+   */
+  long getBatchesSent();
+
+  /**
+   * @return the number of changes sent.
+   */
+  long getEventsSent();
+
+  /**
+   * @return the number of message body bytes sent.
+   */
+  long getBytesSent();
+
+  /**
+   * @return the number of sends that failed.
+   */
+  long getSendFailures();
+
+  /**
+   * @return the number of changes dropped because there was no JMS connection.
+   */
+  long getEventsDropped();
+
+  /**
+   * @return the number of puts that were sent as removes because the value could not be
+   *         serialized.
+   */
+  long getUnserializableValues();
+
+  /**
+   * @return the number of messages received from other nodes.
+   */
+  long getBatchesReceived();
+
+  /**
+   * @return the number of changes applied from other nodes.
+   */
+  long getEventsReceived();
+
+  /**
+   * @return the number of message body bytes received.
+   */
+  long getBytesReceived();
+
+  /**
+   * @return the number of received messages that could not be applied.
+   */
+  long getReceiveFailures();
+
+  /**
+   * @return the time in ms between the oldest change in the last received message being
+   *         made on the remote node and being applied here. This depends on the clocks
+   *         of the nodes being in step.
+   */
+  long getLastReplicationLag();
+
+  /**
+   * @return the maximum replication lag seen, in ms.
+   */
+  long getMaxReplicationLag();
+
+  /**
+   * @return the mean replication lag over all received messages, in ms.
+   */
+  long getAverageReplicationLag();
+
+  /**
+   * @return the time in ms the oldest change in the last sent message waited locally
+   *         before it was sent.
+   */
+  long getLastSendDelay();
+
+  /**
+   * Reset all counters.
+   */
+  void reset();
+}
@@ -0,0 +1,504 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jms.BytesMessage;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.Topic;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Sends the changes made to cluster caches on this node to the other nodes over a JMS
+ * topic, and applies the changes made on other nodes. Changes are queued per cache and
+ * sent in batches, either every flush interval or as soon as a cache has a full batch
+ * waiting. Each message carries the changes for a single cache, and messages sent by
+ * this replicator are filtered out with a selector so a node never applies its own
+ * changes.
+ */
+public class CacheReplicator implements MessageListener, ExceptionListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CacheReplicator.class);
+
+  public static final String DEFAULT_TOPIC = "org/sakaiproject/nakamura/memory/replication";
+  public static final long DEFAULT_FLUSH_INTERVAL = 100L;
+  public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+  static final String PROP_SOURCE = "cacheSource";
+  static final String PROP_CACHE_NAME = "cacheName";
+  static final String PROP_CACHE_SCOPE = "cacheScope";
+
+  /**
+   * How long to wait between attempts to connect to the broker.
+   */
+  private static final long RECONNECT_INTERVAL = 30000L;
+
+  private String sourceId = UUID.randomUUID().toString();
+  private CacheManagerService cacheManagerService;
+  private ConcurrentMap<String, ClusterCacheImpl<?>> caches = new ConcurrentHashMap<String, ClusterCacheImpl<?>>();
+  private Set<ObjectName> registeredMBeans = new HashSet<ObjectName>();
+
+  private String topic = DEFAULT_TOPIC;
+  private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+  private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+  private volatile ScheduledExecutorService executor;
+  private ScheduledFuture<?> scheduledFlush;
+  private AtomicBoolean flushRequested = new AtomicBoolean();
+
+  private ConnectionFactory connectionFactory;
+  private Connection connection;
+  private Session publishSession;
+  private MessageProducer producer;
+  private long lastConnectAttempt = 0;
+  private boolean connectionLost = false;
+  private Set<String> droppedWhileDisconnected = new HashSet<String>();
+
+  private Runnable flushTask = new Runnable() {
+    public void run() {
+      flushRequested.set(false);
+      try {
+        flush();
+      } catch (Throwable t) {
+        // never let the scheduled task die.
+        LOGGER.error("Failed to flush cache replication queue " + t.getMessage(), t);
+      }
+    }
+  };
+
+  /**
+   * @param cacheManagerService
+   *          the cache manager used to create replicated caches on demand when changes
+   *          arrive for a cache that has not been used on this node yet.
+   */
+  public CacheReplicator(CacheManagerService cacheManagerService) {
+    this.cacheManagerService = cacheManagerService;
+  }
+
+  /**
+   * Start the flush thread.
+   */
+  public synchronized void start() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Cache Replicator " + sourceId);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      schedule();
+    }
+  }
+
+  /**
+   * Send anything still queued, stop the flush thread and disconnect.
+   */
+  public void stop() {
+    ScheduledExecutorService e = null;
+    synchronized (this) {
+      e = executor;
+      executor = null;
+    }
+    if (e != null) {
+      e.shutdown();
+      try {
+        e.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+    disconnect();
+    unregisterMBeans();
+  }
+
+  /**
+   * Change the replication settings.
+   *
+   * @param topic
+   *          the JMS topic that all nodes in the cluster publish on.
+   * @param flushInterval
+   *          the maximum time in ms a change waits before being sent.
+   * @param maxBatchSize
+   *          the maximum number of changes in one message.
+   */
+  public synchronized void configure(String topic, long flushInterval, int maxBatchSize) {
+    boolean reconnect = !this.topic.equals(topic);
+    boolean reschedule = this.flushInterval != flushInterval;
+    this.topic = topic;
+    this.flushInterval = flushInterval;
+    this.maxBatchSize = maxBatchSize;
+    if (reschedule) {
+      schedule();
+    }
+    if (reconnect && connectionFactory != null) {
+      closeConnection();
+      lastConnectAttempt = 0;
+      ensureConnected();
+    }
+  }
+
+  /**
+   * Start replicating through a broker.
+   *
+   * @param connectionFactory
+   *          a factory for connections to the broker.
+   */
+  public synchronized void connect(ConnectionFactory connectionFactory) {
+    closeConnection();
+    this.connectionFactory = connectionFactory;
+    lastConnectAttempt = 0;
+    ensureConnected();
+  }
+
+  /**
+   * Stop replicating, changes made while disconnected stay local.
+   */
+  public synchronized void disconnect() {
+    closeConnection();
+    connectionFactory = null;
+  }
+
+  /**
+   * @return true if there is a live connection to the broker.
+   */
+  public synchronized boolean isConnected() {
+    return publishSession != null;
+  }
+
+  /**
+   * @return the id that identifies this node in replication messages.
+   */
+  public String getSourceId() {
+    return sourceId;
+  }
+
+  /**
+   * Register a cluster cache for replication.
+   *
+   * @param cache
+   *          the cache.
+   */
+  public void register(ClusterCacheImpl<?> cache) {
+    if (caches.putIfAbsent(cache.getName(), cache) == null) {
+      registerMBean(cache);
+    }
+  }
+
+  /**
+   * Called when a change has been queued.
+   *
+   * @param queueDepth
+   *          the number of changes queued for the cache.
+   */
+  void changed(int queueDepth) {
+    if (queueDepth >= maxBatchSize && flushRequested.compareAndSet(false, true)) {
+      ScheduledExecutorService e = executor;
+      try {
+        if (e != null) {
+          e.execute(flushTask);
+          return;
+        }
+      } catch (RejectedExecutionException ex) {
+        LOGGER.debug("Replicator is stopping, batch will be sent on stop ");
+      }
+      flushRequested.set(false);
+    }
+  }
+
+  /**
+   * Send all queued changes. If there is no connection to the broker the changes are
+   * dropped, and counted as such.
+   */
+  public synchronized void flush() {
+    boolean connected = ensureConnected();
+    for (ClusterCacheImpl<?> cache : caches.values()) {
+      List<CacheEvent> events = cache.drain(maxBatchSize);
+      while (!events.isEmpty()) {
+        if (connected) {
+          connected = send(cache, events);
+        } else {
+          cache.getStatistics().dropped(events.size());
+          if (connectionFactory != null) {
+            droppedWhileDisconnected.add(cache.getName());
+          }
+        }
+        events = cache.drain(maxBatchSize);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    if (!(message instanceof BytesMessage)) {
+      return;
+    }
+    ClusterCacheImpl<?> cache = null;
+    try {
+      String name = message.getStringProperty(PROP_CACHE_NAME);
+      cache = getCache(name, message.getStringProperty(PROP_CACHE_SCOPE));
+      if (cache == null) {
+        // nothing is held for this cache here, so there is nothing to invalidate.
+        return;
+      }
+      BytesMessage bytesMessage = (BytesMessage) message;
+      byte[] body = new byte[(int) bytesMessage.getBodyLength()];
+      bytesMessage.readBytes(body);
+      CacheEventCodec.Batch batch = CacheEventCodec.decode(body, cache.getValueClasses());
+      cache.applyRemote(batch.getEvents());
+      long lag = Math.max(0L, System.currentTimeMillis() - batch.getOldestQueued());
+      cache.getStatistics().received(batch.getEvents().size(), body.length, lag);
+    } catch (JMSException e) {
+      receiveFailed(cache, e);
+    } catch (IOException e) {
+      receiveFailed(cache, e);
+    } catch (RuntimeException e) {
+      receiveFailed(cache, e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.jms.ExceptionListener#onException(javax.jms.JMSException)
+   */
+  public void onException(JMSException exception) {
+    LOGGER.warn("Cache replication connection failed, will reconnect: {} ", exception
+        .getMessage());
+    ScheduledExecutorService e = executor;
+    if (e != null) {
+      // don't close the connection on the broker's thread.
+      try {
+        e.execute(new Runnable() {
+          public void run() {
+            connectionFailed();
+          }
+        });
+        return;
+      } catch (RejectedExecutionException ex) {
+        LOGGER.debug("Replicator is stopping ");
+      }
+    }
+    connectionFailed();
+  }
+
+  private void receiveFailed(ClusterCacheImpl<?> cache, Exception e) {
+    if (cache != null) {
+      cache.getStatistics().receiveFailed();
+    }
+    LOGGER.warn("Failed to apply cache replication message {} ", e.getMessage());
+    LOGGER.debug(e.getMessage(), e);
+  }
+
+  private ClusterCacheImpl<?> getCache(String name, String scope) {
+    ClusterCacheImpl<?> cache = caches.get(name);
+    if (cache == null && name != null && CacheScope.CLUSTERREPLICATED.name().equals(scope)) {
+      // create it now, so that the values are there when this node first uses it.
+      cacheManagerService.getCache(name, CacheScope.CLUSTERREPLICATED);
+      cache = caches.get(name);
+    }
+    return cache;
+  }
+
+  private synchronized void connectionFailed() {
+    closeConnection();
+    connectionLost = true;
+    lastConnectAttempt = System.currentTimeMillis();
+  }
+
+  /**
+   * @return true if the replicator is connected.
+   */
+  private boolean ensureConnected() {
+    if (publishSession != null) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (connectionFactory == null || now - lastConnectAttempt < RECONNECT_INTERVAL) {
+      return false;
+    }
+    lastConnectAttempt = now;
+    try {
+      connection = connectionFactory.createConnection();
+      connection.setExceptionListener(this);
+      publishSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      Topic destination = publishSession.createTopic(topic);
+      producer = publishSession.createProducer(destination);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      Session consumerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+      MessageConsumer consumer = consumerSession.createConsumer(destination, PROP_SOURCE
+          + " <> '" + sourceId + "'", true);
+      consumer.setMessageListener(this);
+      connection.start();
+      LOGGER.info("Cache replication connected to {} as {} ", topic, sourceId);
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to connect cache replication, caches are local until connected: {}",
+          e.getMessage());
+      closeConnection();
+      return false;
+    }
+    if (connectionLost) {
+      recoverFromLostConnection();
+    }
+    return true;
+  }
+
+  /**
+   * Invalidations may have been missed in both directions while disconnected, so drop
+   * anything invalidated caches hold locally and tell the other nodes to do the same for
+   * caches that changed here while the connection was down.
+   */
+  private void recoverFromLostConnection() {
+    connectionLost = false;
+    for (ClusterCacheImpl<?> cache : caches.values()) {
+      if (cache.getScope() == CacheScope.CLUSTERINVALIDATED) {
+        cache.clearLocal();
+        if (droppedWhileDisconnected.contains(cache.getName())) {
+          cache.clear();
+        }
+      } else if (droppedWhileDisconnected.contains(cache.getName())) {
+        LOGGER.warn("Changes to replicated cache {} were lost while disconnected ", cache
+            .getName());
+      }
+    }
+    droppedWhileDisconnected.clear();
+  }
+
+  /**
+   * @return false if the send failed and the connection was closed.
+   */
+  private boolean send(ClusterCacheImpl<?> cache, List<CacheEvent> events) {
+    CacheReplicationStatistics statistics = cache.getStatistics();
+    try {
+      byte[] body = CacheEventCodec.encode(events, statistics);
+      BytesMessage message = publishSession.createBytesMessage();
+      message.setStringProperty(PROP_SOURCE, sourceId);
+      message.setStringProperty(PROP_CACHE_NAME, cache.getName());
+      message.setStringProperty(PROP_CACHE_SCOPE, cache.getScope().name());
+      message.writeBytes(body);
+      producer.send(message);
+      long oldest = Long.MAX_VALUE;
+      for (CacheEvent e : events) {
+        oldest = Math.min(oldest, e.getQueued());
+      }
+      statistics.sent(events.size(), body.length, System.currentTimeMillis() - oldest);
+      return true;
+    } catch (IOException e) {
+      LOGGER.warn("Failed to encode changes to {}: {} ", cache.getName(), e.getMessage());
+      statistics.sendFailed();
+      statistics.dropped(events.size());
+      return true;
+    } catch (JMSException e) {
+      LOGGER.warn("Failed to send changes to {}: {} ", cache.getName(), e.getMessage());
+      statistics.sendFailed();
+      statistics.dropped(events.size());
+      droppedWhileDisconnected.add(cache.getName());
+      closeConnection();
+      connectionLost = true;
+      return false;
+    }
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug(e.getMessage(), e);
+      }
+    }
+    connection = null;
+    publishSession = null;
+    producer = null;
+  }
+
+  private void schedule() {
+    if (executor != null) {
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+      }
+      scheduledFlush = executor.scheduleWithFixedDelay(flushTask, flushInterval,
+          flushInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void registerMBean(ClusterCacheImpl<?> cache) {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName("org.sakaiproject.nakamura:type=CacheReplication,node="
+          + sourceId + ",name=" + ObjectName.quote(cache.getName()));
+      mbeanServer.registerMBean(cache.getStatistics(), name);
+      synchronized (registeredMBeans) {
+        registeredMBeans.add(name);
+      }
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register replication statistics for {}: {} ", cache.getName(),
+          e.getMessage());
+    }
+  }
+
+  private void unregisterMBeans() {
+    MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    synchronized (registeredMBeans) {
+      for (ObjectName name : registeredMBeans) {
+        try {
+          mbeanServer.unregisterMBean(name);
+        } catch (JMException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+      registeredMBeans.clear();
+    }
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.List;
+
+/**
+ * A cache that is held locally, but whose changes are sent to the other nodes in the
+ * cluster. For {@link CacheScope#CLUSTERINVALIDATED} every local change is sent as an
+ * invalidation of the key, for {@link CacheScope#CLUSTERREPLICATED} the value itself is
+ * sent. Changes are queued and sent in batches by the {@link CacheReplicator}.
+ */
+public class ClusterCacheImpl<V> implements Cache<V> {
+
+  private String name;
+  private CacheScope scope;
+  private Cache<V> local;
+  private CacheReplicator replicator;
+  private ReplicationQueue queue = new ReplicationQueue();
+  private CacheReplicationStatistics statistics;
+  private ReplicatedClasses valueClasses = new ReplicatedClasses();
+
+  /**
+   * @param name
+   *          the name of the cache, shared by all nodes.
+   * @param scope
+   *          either CLUSTERINVALIDATED or CLUSTERREPLICATED.
+   * @param local
+   *          the local store.
+   * @param replicator
+   *          the replicator that will send the changes.
+   */
+  public ClusterCacheImpl(String name, CacheScope scope, Cache<V> local,
+      CacheReplicator replicator) {
+    this.name = name;
+    this.scope = scope;
+    this.local = local;
+    this.replicator = replicator;
+    this.statistics = new CacheReplicationStatistics(name, queue);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#put(java.lang.String,
+   *      java.lang.Object)
+   */
+  public V put(String key, V payload) {
+    V previous = local.put(key, payload);
+    if (isReplicated()) {
+      if (payload != null) {
+        valueClasses.register(payload.getClass());
+      }
+      queue(new CacheEvent(CacheEvent.Type.PUT, key, payload));
+    } else {
+      queue(new CacheEvent(CacheEvent.Type.REMOVE, key, null));
+    }
+    return previous;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
+   */
+  public boolean containsKey(String key) {
+    return local.containsKey(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#get(java.lang.String)
+   */
+  public V get(String key) {
+    return local.get(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
+   */
+  public void clear() {
+    local.clear();
+    queue(new CacheEvent(CacheEvent.Type.CLEAR, null, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
+   */
+  public void remove(String key) {
+    local.remove(key);
+    queue(new CacheEvent(CacheEvent.Type.REMOVE, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#removeChildren(java.lang.String)
+   */
+  public void removeChildren(String key) {
+    local.removeChildren(key);
+    queue(new CacheEvent(CacheEvent.Type.REMOVE_CHILDREN, key, null));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<String> listChildren(String key) {
+    return local.listChildren(key);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.Cache#list()
+   */
+  public List<V> list() {
+    return local.list();
+  }
+
+  /**
+   * Apply changes that were made on another node, without sending them on again.
+   *
+   * @param events
+   *          the changes in order.
+   */
+  @SuppressWarnings("unchecked")
+  void applyRemote(List<CacheEvent> events) {
+    for (CacheEvent e : events) {
+      switch (e.getType()) {
+      case PUT:
+        if (isReplicated()) {
+          local.put(e.getKey(), (V) e.getValue());
+        } else {
+          local.remove(e.getKey());
+        }
+        break;
+      case REMOVE:
+        local.remove(e.getKey());
+        break;
+      case REMOVE_CHILDREN:
+        local.removeChildren(e.getKey());
+        break;
+      case CLEAR:
+        local.clear();
+        break;
+      }
+    }
+  }
+
+  /**
+   * Clear the local store without telling the other nodes.
+   */
+  void clearLocal() {
+    local.clear();
+  }
+
+  /**
+   * @param max
+   *          the maximum number of changes.
+   * @return the next batch of changes to send.
+   */
+  List<CacheEvent> drain(int max) {
+    return queue.drain(max);
+  }
+
+  /**
+   * @return the classes that values replicated into this cache may be of.
+   */
+  ReplicatedClasses getValueClasses() {
+    return valueClasses;
+  }
+
+  /**
+   * @return the name of the cache.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the scope of the cache.
+   */
+  public CacheScope getScope() {
+    return scope;
+  }
+
+  /**
+   * @return the replication counters for this cache.
+   */
+  public CacheReplicationStatistics getStatistics() {
+    return statistics;
+  }
+
+  private boolean isReplicated() {
+    return scope == CacheScope.CLUSTERREPLICATED;
+  }
+
+  private void queue(CacheEvent event) {
+    statistics.queued(queue.add(event));
+    replicator.changed(queue.size());
+  }
+
+}
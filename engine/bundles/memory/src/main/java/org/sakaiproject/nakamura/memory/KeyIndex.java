@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index of the keys in a cache, so that a key and its children can be found
+ * without looking at every key. Children of <code>a/b</code> are the keys starting with
+ * <code>a/b/</code>, which in a sorted set are exactly the keys from <code>a/b/</code>
+ * (inclusive) to <code>a/b0</code> (exclusive), since '0' is the character after '/'.
+ */
+public class KeyIndex {
+
+  private ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+
+  /**
+   * @param key
+   *          a key that is now in the cache.
+   */
+  public void add(String key) {
+    if (key != null) {
+      keys.add(key);
+    }
+  }
+
+  /**
+   * @param key
+   *          a key that is no longer in the cache.
+   */
+  public void remove(String key) {
+    if (key != null) {
+      keys.remove(key);
+    }
+  }
+
+  /**
+   * The cache was emptied.
+   */
+  public void clear() {
+    keys.clear();
+  }
+
+  /**
+   * @return the number of keys in the index.
+   */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+   * Find a key and all its children. The result is a copy, so the cache may be modified
+   * while iterating over it.
+   *
+   * @param key
+   *          the parent key.
+   * @return the key, if present, followed by its children in key order. A key ending in
+   *         '/' is its own first child.
+   */
+  public List<String> children(String key) {
+    List<String> found = new ArrayList<String>();
+    String parent = key;
+    if (key.endsWith("/")) {
+      parent = key.substring(0, key.length() - 1);
+    } else if (keys.contains(key)) {
+      found.add(key);
+    }
+    found.addAll(keys.subSet(parent + "/", parent + "0"));
+    return found;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+
+/**
+ * Keeps a {@link KeyIndex} in step with an Ehcache, including elements that Ehcache
+ * expires or evicts on its own. One listener is registered per Ehcache and shared by all
+ * the {@link CacheImpl}s that wrap it.
+ */
+public class KeyIndexEventListener implements CacheEventListener {
+
+  private KeyIndex index = new KeyIndex();
+
+  /**
+   * Find the listener registered with a cache, registering one if there is none.
+   *
+   * @param cache
+   *          the cache.
+   * @return the listener.
+   */
+  public static KeyIndexEventListener getListener(Ehcache cache) {
+    synchronized (cache) {
+      for (Object o : cache.getCacheEventNotificationService().getCacheEventListeners()) {
+        if (o instanceof KeyIndexEventListener) {
+          return (KeyIndexEventListener) o;
+        }
+      }
+      KeyIndexEventListener listener = new KeyIndexEventListener();
+      for (Object key : cache.getKeys()) {
+        listener.index.add((String) key);
+      }
+      cache.getCacheEventNotificationService().registerListener(listener);
+      return listener;
+    }
+  }
+
+  /**
+   * @return the index of keys in the cache.
+   */
+  public KeyIndex getIndex() {
+    return index;
+  }
+
+  public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+    index.add((String) element.getObjectKey());
+  }
+
+  public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+    index.add((String) element.getObjectKey());
+  }
+
+  public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+    index.remove((String) element.getObjectKey());
+  }
+
+  public void notifyElementExpired(Ehcache cache, Element element) {
+    index.remove((String) element.getObjectKey());
+  }
+
+  public void notifyElementEvicted(Ehcache cache, Element element) {
+    index.remove((String) element.getObjectKey());
+  }
+
+  public void notifyRemoveAll(Ehcache cache) {
+    index.clear();
+  }
+
+  public void dispose() {
+    index.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * The index belongs to a single cache, so the listener can't be cloned onto another.
+   *
+   * @see java.lang.Object#clone()
+   */
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    throw new CloneNotSupportedException("KeyIndexEventListener is bound to a single cache");
+  }
+}
@@ -20,13 +20,21 @@ package org.sakaiproject.nakamura.memory;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
- *
+ * A cache backed by a HashMap. Every way of changing the map, including the key, value
+ * and entry views, keeps the key index in step.
  */
 public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
 
@@ -36,6 +44,8 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   private static final long serialVersionUID = -5400056532743570231L;
 
+  private transient KeyIndex keyIndex = new KeyIndex();
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#containsKey(java.lang.String)
@@ -52,12 +62,46 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     return super.get(key);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#put(java.lang.Object, java.lang.Object)
+   */
+  @Override
+  public V put(String key, V value) {
+    keyIndex.add(key);
+    return super.put(key, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#putAll(java.util.Map)
+   */
+  @Override
+  public void putAll(Map<? extends String, ? extends V> m) {
+    for (Map.Entry<? extends String, ? extends V> e : m.entrySet()) {
+      put(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#remove(java.lang.Object)
+   */
+  @Override
+  public V remove(Object key) {
+    V o = super.remove(key);
+    if (key instanceof String) {
+      keyIndex.remove((String) key);
+    }
+    return o;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    V o = super.remove(key);
+    V o = remove((Object) key);
     if ( o instanceof ThreadBound ) {
       ((ThreadBound) o).unbind();
     }
@@ -77,6 +121,7 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
       }
     }
     super.clear();
+    keyIndex.clear();
   }
 
   /**
@@ -85,17 +130,21 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
    */
   public void removeChildren(String key) {
     super.remove(key);
-    if ( !key.endsWith("/") ) {
-      key = key + "/";
-    }
-    Set<String> keys = super.keySet();
-    for ( String k : keys) {
-      if ( (k).startsWith(key) ) {
-        super.remove(k);
-      }
+    keyIndex.remove(key);
+    for ( String k : keyIndex.children(key) ) {
+      super.remove(k);
+      keyIndex.remove(k);
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<String> listChildren(String key) {
+    return keyIndex.children(key);
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#list()
@@ -104,8 +153,182 @@ public class MapCacheImpl<V> extends HashMap<String, V>implements Cache<V>  {
     return new ArrayList<V>(super.values());
   }
 
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#keySet()
+   */
+  @Override
+  public Set<String> keySet() {
+    return new AbstractSet<String>() {
+      @Override
+      public Iterator<String> iterator() {
+        return new IndexedIterator<String>() {
+          @Override
+          protected String get(Map.Entry<String, V> e) {
+            return e.getKey();
+          }
+        };
+      }
 
+      @Override
+      public int size() {
+        return MapCacheImpl.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return MapCacheImpl.this.containsKey(o);
+      }
 
+      @Override
+      public boolean remove(Object o) {
+        if (MapCacheImpl.this.containsKey(o)) {
+          MapCacheImpl.this.remove(o);
+          return true;
+        }
+        return false;
+      }
 
+      @Override
+      public void clear() {
+        MapCacheImpl.this.clear();
+      }
+    };
+  }
 
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#values()
+   */
+  @Override
+  public Collection<V> values() {
+    return new AbstractCollection<V>() {
+      @Override
+      public Iterator<V> iterator() {
+        return new IndexedIterator<V>() {
+          @Override
+          protected V get(Map.Entry<String, V> e) {
+            return e.getValue();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return MapCacheImpl.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return MapCacheImpl.this.containsValue(o);
+      }
+
+      @Override
+      public void clear() {
+        MapCacheImpl.this.clear();
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#entrySet()
+   */
+  @Override
+  public Set<Map.Entry<String, V>> entrySet() {
+    return new AbstractSet<Map.Entry<String, V>>() {
+      @Override
+      public Iterator<Map.Entry<String, V>> iterator() {
+        return new IndexedIterator<Map.Entry<String, V>>() {
+          @Override
+          protected Map.Entry<String, V> get(Map.Entry<String, V> e) {
+            return e;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return MapCacheImpl.this.size();
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        return MapCacheImpl.super.entrySet().contains(o);
+      }
+
+      @Override
+      public boolean remove(Object o) {
+        if (MapCacheImpl.super.entrySet().remove(o)) {
+          Object key = ((Map.Entry<?, ?>) o).getKey();
+          if (key instanceof String) {
+            keyIndex.remove((String) key);
+          }
+          return true;
+        }
+        return false;
+      }
+
+      @Override
+      public void clear() {
+        MapCacheImpl.this.clear();
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see java.util.HashMap#clone()
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public Object clone() {
+    MapCacheImpl<V> copy = (MapCacheImpl<V>) super.clone();
+    copy.rebuildIndex();
+    return copy;
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException,
+      ClassNotFoundException {
+    in.defaultReadObject();
+    rebuildIndex();
+  }
+
+  /**
+   * Give this map its own index of the keys it holds, the index is not copied by clone
+   * or serialization.
+   */
+  private void rebuildIndex() {
+    keyIndex = new KeyIndex();
+    for (String k : super.keySet()) {
+      keyIndex.add(k);
+    }
+  }
+
+  /**
+   * Iterates over the entries of the map, removing a key from the index when it is
+   * removed through the iterator.
+   */
+  private abstract class IndexedIterator<E> implements Iterator<E> {
+    private Iterator<Map.Entry<String, V>> entries = MapCacheImpl.super.entrySet()
+        .iterator();
+    private String last;
+
+    public boolean hasNext() {
+      return entries.hasNext();
+    }
+
+    public E next() {
+      Map.Entry<String, V> e = entries.next();
+      last = e.getKey();
+      return get(e);
+    }
+
+    public void remove() {
+      entries.remove();
+      keyIndex.remove(last);
+    }
+
+    protected abstract E get(Map.Entry<String, V> e);
+  }
 }
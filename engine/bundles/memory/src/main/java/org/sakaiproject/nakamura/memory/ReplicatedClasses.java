@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The classes that values replicated into a cache may be of. Values arrive as Java
+ * serialized bytes from any node that can publish on the topic, so rather than loading
+ * whatever class a message names, only plain JDK value types, the classes named when the
+ * cache was got and the classes of values put into the cache on this node, with the
+ * classes of their fields, are resolved.
+ */
+class ReplicatedClasses {
+
+  private static final Set<String> JDK_CLASSES = Collections
+      .unmodifiableSet(new HashSet<String>(Arrays.asList("java.lang.String",
+          "java.lang.Boolean", "java.lang.Character", "java.lang.Number",
+          "java.lang.Byte", "java.lang.Short", "java.lang.Integer", "java.lang.Long",
+          "java.lang.Float", "java.lang.Double", "java.lang.Enum",
+          "java.math.BigInteger", "java.math.BigDecimal", "java.util.Date",
+          "java.util.ArrayList", "java.util.LinkedList", "java.util.HashMap",
+          "java.util.LinkedHashMap", "java.util.TreeMap", "java.util.HashSet",
+          "java.util.LinkedHashSet", "java.util.TreeSet")));
+  private static final String PRIMITIVE_TYPES = "BCDFIJSZ";
+
+  /**
+   * Classes of values put on this node, by name.
+   */
+  private final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+  /**
+   * Accept values of a class, its serializable superclasses and the classes of its
+   * serialized fields.
+   *
+   * @param c
+   *          the class of a value put into the cache.
+   */
+  void register(Class<?> c) {
+    while (c.isArray()) {
+      c = c.getComponentType();
+    }
+    if (c.isPrimitive() || !Serializable.class.isAssignableFrom(c)
+        || JDK_CLASSES.contains(c.getName()) || classes.putIfAbsent(c.getName(), c) != null) {
+      return;
+    }
+    if (c.getSuperclass() != null) {
+      register(c.getSuperclass());
+    }
+    for (Field f : c.getDeclaredFields()) {
+      int modifiers = f.getModifiers();
+      if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers)) {
+        register(f.getType());
+      }
+    }
+  }
+
+  /**
+   * @param name
+   *          the name of a class in a serialized value.
+   * @return the class.
+   * @throws ClassNotFoundException
+   *           if values of the class are not accepted.
+   */
+  Class<?> resolve(String name) throws ClassNotFoundException {
+    Class<?> c = classes.get(name);
+    if (c != null) {
+      return c;
+    }
+    if (JDK_CLASSES.contains(name)) {
+      return Class.forName(name, false, null);
+    }
+    if (name.startsWith("[")) {
+      int dimensions = 0;
+      while (name.charAt(dimensions) == '[') {
+        dimensions++;
+      }
+      String component = name.substring(dimensions);
+      if (component.length() == 1 && PRIMITIVE_TYPES.indexOf(component.charAt(0)) >= 0) {
+        return Class.forName(name, false, null);
+      }
+      if (component.startsWith("L") && component.endsWith(";")) {
+        Class<?> componentClass = resolve(component.substring(1, component.length() - 1));
+        return Array.newInstance(componentClass, new int[dimensions]).getClass();
+      }
+    }
+    throw new ClassNotFoundException(name + " is not a replicated value class");
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Holds the changes made to a cluster cache that have not yet been sent. Changes to the
+ * same key are coalesced so that only the last change is sent. A CLEAR or
+ * REMOVE_CHILDREN acts as a barrier, any pending change that it covers is dropped since
+ * the barrier will remove it on the remote node anyway, which keeps the ordering of the
+ * remaining changes safe.
+ */
+public class ReplicationQueue {
+
+  /**
+   * Barrier keys start with a character that can never start a cache key that we care
+   * about, so they never collide with a real key.
+   */
+  private static final char BARRIER_PREFIX = '\u0000';
+  private LinkedHashMap<String, CacheEvent> events = new LinkedHashMap<String, CacheEvent>();
+  private long barrierSequence = 0;
+
+  /**
+   * Queue a change.
+   *
+   * @param event
+   *          the change.
+   * @return true if the change replaced a pending change for the same key.
+   */
+  public synchronized boolean add(CacheEvent event) {
+    switch (event.getType()) {
+    case CLEAR:
+      events.clear();
+      events.put(BARRIER_PREFIX + String.valueOf(barrierSequence++), event);
+      return false;
+    case REMOVE_CHILDREN:
+      String key = event.getKey();
+      String prefix = key.endsWith("/") ? key : key + "/";
+      for (Iterator<CacheEvent> i = events.values().iterator(); i.hasNext();) {
+        CacheEvent e = i.next();
+        if (e.getType() != CacheEvent.Type.CLEAR
+            && (key.equals(e.getKey()) || e.getKey().startsWith(prefix))) {
+          i.remove();
+        }
+      }
+      events.put(BARRIER_PREFIX + String.valueOf(barrierSequence++), event);
+      return false;
+    default:
+      // remove first so the change moves to the end of the queue.
+      boolean coalesced = events.remove(event.getKey()) != null;
+      events.put(event.getKey(), event);
+      return coalesced;
+    }
+  }
+
+  /**
+   * Remove up to max changes from the head of the queue.
+   *
+   * @param max
+   *          the maximum number of changes to remove.
+   * @return the changes, in the order they should be applied.
+   */
+  public synchronized List<CacheEvent> drain(int max) {
+    List<CacheEvent> drained = new ArrayList<CacheEvent>(Math.min(max, events.size()));
+    for (Iterator<CacheEvent> i = events.values().iterator(); i.hasNext()
+        && drained.size() < max;) {
+      drained.add(i.next());
+      i.remove();
+    }
+    return drained;
+  }
+
+  /**
+   * @return the number of changes waiting to be sent.
+   */
+  public synchronized int size() {
+    return events.size();
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class CacheEventCodecTest {
+
+  /**
+   * A value class that a node has put into the cache.
+   */
+  static class Registered implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private Inner inner = new Inner();
+  }
+
+  static class Inner implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private String[] names = new String[] { "a", "b" };
+  }
+
+  /**
+   * A serializable class that nothing has put into the cache.
+   */
+  static class Unexpected implements Serializable {
+    private static final long serialVersionUID = 1L;
+  }
+
+  @Test
+  public void testAcceptedClasses() throws Exception {
+    ReplicatedClasses classes = new ReplicatedClasses();
+    classes.register(Registered.class);
+    Map<String, Long> map = new HashMap<String, Long>();
+    map.put("one", 1L);
+
+    List<CacheEvent> decoded = roundTrip(classes, "string", "map", map, "registered",
+        new Registered(), "bytes", new byte[] { 1, 2 });
+    assertEquals("string", decoded.get(0).getValue());
+    assertEquals(map, decoded.get(1).getValue());
+    assertArrayEquals(new String[] { "a", "b" },
+        ((Registered) decoded.get(2).getValue()).inner.names);
+    assertArrayEquals(new byte[] { 1, 2 }, (byte[]) decoded.get(3).getValue());
+  }
+
+  @Test
+  public void testOtherClassesAreRemoved() throws Exception {
+    ReplicatedClasses classes = new ReplicatedClasses();
+    List<CacheEvent> decoded = roundTrip(classes, "unexpected", new Unexpected(),
+        "nested", new ArrayList<Object>(Arrays.asList(new Unexpected())), "kept", 1);
+    assertEquals(CacheEvent.Type.REMOVE, decoded.get(0).getType());
+    assertNull(decoded.get(0).getValue());
+    assertEquals(CacheEvent.Type.REMOVE, decoded.get(1).getType());
+    assertEquals(CacheEvent.Type.PUT, decoded.get(2).getType());
+    assertEquals(1, decoded.get(2).getValue());
+  }
+
+  private List<CacheEvent> roundTrip(ReplicatedClasses classes, Object... keyValues)
+      throws Exception {
+    List<CacheEvent> events = new ArrayList<CacheEvent>();
+    for (int i = 0; i < keyValues.length; i += 2) {
+      events.add(new CacheEvent(CacheEvent.Type.PUT, (String) keyValues[i],
+          keyValues[i + 1]));
+    }
+    return CacheEventCodec.decode(CacheEventCodec.encode(events, null), classes)
+        .getEvents();
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.ConnectionFactory;
+
+/**
+ * Several cache managers sharing one embedded broker, as several nodes would.
+ */
+public class ClusterCacheTest {
+
+  private static final String BROKER_URL = "vm://cluster-cache-test";
+  private static final long WAIT = 5000L;
+  private BrokerService broker;
+  private List<CacheManagerServiceImpl> nodes = new ArrayList<CacheManagerServiceImpl>();
+
+  @Before
+  public void before() throws Exception {
+    broker = new BrokerService();
+    broker.setBrokerName("cluster-cache-test");
+    broker.setPersistent(false);
+    broker.setUseJmx(false);
+    broker.start();
+    final ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(BROKER_URL
+        + "?create=false");
+    ConnectionFactoryService connectionFactoryService = new ConnectionFactoryService() {
+
+      public ConnectionFactory getDefaultPooledConnectionFactory() {
+        return connectionFactory;
+      }
+
+      public ConnectionFactory getDefaultConnectionFactory() {
+        return connectionFactory;
+      }
+
+      public ConnectionFactory createFactory(URI brokerURL) {
+        return new ActiveMQConnectionFactory(brokerURL);
+      }
+
+      public ConnectionFactory createFactory(String brokerURL) {
+        return new ActiveMQConnectionFactory(brokerURL);
+      }
+    };
+    for (int i = 0; i < 3; i++) {
+      CacheManagerServiceImpl node = new CacheManagerServiceImpl();
+      node.bindConnectionFactoryService(connectionFactoryService);
+      assertTrue(node.getReplicator().isConnected());
+      nodes.add(node);
+    }
+  }
+
+  @After
+  public void after() throws Exception {
+    for (CacheManagerServiceImpl node : nodes) {
+      node.stop();
+    }
+    broker.stop();
+  }
+
+  @Test
+  public void testReplicatedPut() throws Exception {
+    Cache<String> a = nodes.get(0).getCache("replicated", CacheScope.CLUSTERREPLICATED);
+    a.put("key1", "value1");
+    a.put("key2", "value2");
+    for (int i = 1; i < nodes.size(); i++) {
+      Cache<String> other = nodes.get(i).getCache("replicated",
+          CacheScope.CLUSTERREPLICATED);
+      waitFor(other, "key2", "value2");
+      assertEquals("value1", other.get("key1"));
+    }
+    a.remove("key1");
+    for (int i = 1; i < nodes.size(); i++) {
+      waitForRemoval(nodes.get(i).<String> getCache("replicated",
+          CacheScope.CLUSTERREPLICATED), "key1");
+    }
+  }
+
+  @Test
+  public void testReplicatedCoalescing() throws Exception {
+    Cache<Integer> a = nodes.get(0).getCache("coalesced", CacheScope.CLUSTERREPLICATED);
+    Cache<Integer> b = nodes.get(1).getCache("coalesced", CacheScope.CLUSTERREPLICATED);
+    CacheReplicator replicator = nodes.get(0).getReplicator();
+    synchronized (replicator) {
+      // hold the flush thread off so that all the puts land in one batch.
+      for (int i = 0; i < 100; i++) {
+        a.put("counter", i);
+      }
+    }
+    waitFor(b, "counter", 99);
+    CacheReplicationStatistics stats = ((ClusterCacheImpl<Integer>) a).getStatistics();
+    assertEquals(100, stats.getEventsQueued());
+    assertTrue(stats.getEventsCoalesced() > 0);
+    assertTrue(stats.getEventsSent() < 100);
+    assertTrue(stats.getBytesSent() > 0);
+    CacheReplicationStatistics received = ((ClusterCacheImpl<Integer>) b).getStatistics();
+    assertTrue(received.getBatchesReceived() > 0);
+    assertTrue(received.getMaxReplicationLag() >= received.getLastReplicationLag());
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    Cache<String> a = nodes.get(0).getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodes.get(1).getCache("invalidated", CacheScope.CLUSTERINVALIDATED);
+    b.put("path/to/node", "stale");
+    b.put("path/to/node/child", "stale child");
+    b.put("path/other", "other");
+    // the put from b invalidates the key on a, not the reverse
+    nodes.get(1).getReplicator().flush();
+
+    a.put("path/to/node", "fresh");
+    waitForRemoval(b, "path/to/node");
+    assertEquals("fresh", a.get("path/to/node"));
+    assertEquals("stale child", b.get("path/to/node/child"));
+
+    a.removeChildren("path/to");
+    waitForRemoval(b, "path/to/node/child");
+    assertEquals("other", b.get("path/other"));
+
+    a.clear();
+    waitForRemoval(b, "path/other");
+  }
+
+  @Test
+  public void testInvalidatedValuesAreNotSent() throws Exception {
+    Cache<String> a = nodes.get(0).getCache("notsent", CacheScope.CLUSTERINVALIDATED);
+    Cache<String> b = nodes.get(1).getCache("notsent", CacheScope.CLUSTERINVALIDATED);
+    a.put("key", "value");
+    nodes.get(0).getReplicator().flush();
+    Thread.sleep(200);
+    assertFalse(b.containsKey("key"));
+  }
+
+  @Test
+  public void testLateJoiningCache() throws Exception {
+    Cache<String> a = nodes.get(0).getCache("late", CacheScope.CLUSTERREPLICATED);
+    a.put("server", "registered");
+    nodes.get(0).getReplicator().flush();
+    long end = System.currentTimeMillis() + WAIT;
+    Cache<String> c = null;
+    while (System.currentTimeMillis() < end) {
+      // the cache is created on the other node when the first change arrives.
+      c = nodes.get(2).getCache("late", CacheScope.CLUSTERREPLICATED);
+      if ("registered".equals(c.get("server"))) {
+        break;
+      }
+      Thread.sleep(20);
+    }
+    assertEquals("registered", c.get("server"));
+  }
+
+  @Test
+  public void testValueClassNamedByReceiver() throws Exception {
+    // only the sending node ever puts a Point.
+    Cache<Point> b = nodes.get(1).getCache("points", CacheScope.CLUSTERREPLICATED,
+        Point.class);
+    Cache<Point> a = nodes.get(0).getCache("points", CacheScope.CLUSTERREPLICATED,
+        Point.class);
+    a.put("origin", new Point(0, 0));
+    a.put("corner", new Point(3, 4));
+    waitFor(b, "corner", new Point(3, 4));
+    assertEquals(new Point(0, 0), b.get("origin"));
+  }
+
+  @Test
+  public void testDisconnectedNodeIsLocal() throws IOException {
+    CacheManagerServiceImpl standalone = new CacheManagerServiceImpl();
+    try {
+      Cache<String> cache = standalone.getCache("standalone", CacheScope.CLUSTERREPLICATED);
+      cache.put("key", "value");
+      standalone.getReplicator().flush();
+      assertEquals("value", cache.get("key"));
+      assertEquals(1, ((ClusterCacheImpl<String>) cache).getStatistics().getEventsDropped());
+    } finally {
+      standalone.stop();
+    }
+  }
+
+  /**
+   * A value class that is not a JDK type.
+   */
+  private static class Point implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private int x;
+    private int y;
+
+    private Point(int x, int y) {
+      this.x = x;
+      this.y = y;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * x + y;
+    }
+  }
+
+  private <T> void waitFor(Cache<T> cache, String key, T value) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT;
+    while (System.currentTimeMillis() < end && !value.equals(cache.get(key))) {
+      Thread.sleep(20);
+    }
+    assertEquals(value, cache.get(key));
+  }
+
+  private void waitForRemoval(Cache<?> cache, String key) throws InterruptedException {
+    long end = System.currentTimeMillis() + WAIT;
+    while (System.currentTimeMillis() < end && cache.containsKey(key)) {
+      Thread.sleep(20);
+    }
+    assertNull(cache.get(key));
+  }
+}
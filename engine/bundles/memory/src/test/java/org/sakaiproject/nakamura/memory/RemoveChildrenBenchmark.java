@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+
+import net.sf.ehcache.CacheManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Compares the old full key scan in removeChildren with the key index, for caches of
+ * 10k, 100k and 1M keys. Not part of the normal test run, run with
+ * <code>mvn test -Dtest=RemoveChildrenBenchmark</code>, sizes can be changed with
+ * <code>-Dbenchmark.sizes=10000,100000</code>.
+ */
+public class RemoveChildrenBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RemoveChildrenBenchmark.class);
+  private static final int CHILDREN = 100;
+  private static final int REMOVALS = 20;
+  private CacheManager cacheManager;
+
+  @Before
+  public void before() {
+    cacheManager = new CacheManager();
+  }
+
+  @After
+  public void after() {
+    cacheManager.shutdown();
+  }
+
+  @Test
+  public void benchmark() {
+    for (String size : System.getProperty("benchmark.sizes", "10000,100000,1000000").split(",")) {
+      int n = Integer.parseInt(size.trim());
+      net.sf.ehcache.Cache ehcache = new net.sf.ehcache.Cache("bench" + n, n + 1, false,
+          true, 0, 0);
+      cacheManager.addCache(ehcache);
+      Cache<String> indexed = new CacheImpl<String>(cacheManager, "bench" + n);
+      fill(indexed, n);
+      long scan = 0;
+      long index = 0;
+      for (int r = 0; r < REMOVALS; r++) {
+        String parent = "site" + (r * 7 % (n / CHILDREN));
+        long start = System.nanoTime();
+        removeChildrenByScan(ehcache, parent);
+        scan += System.nanoTime() - start;
+        refill(indexed, parent);
+        start = System.nanoTime();
+        indexed.removeChildren(parent);
+        index += System.nanoTime() - start;
+        assertEquals(0, indexed.listChildren(parent).size());
+        refill(indexed, parent);
+      }
+      LOGGER.info("{} keys: scan {} us/removeChildren, index {} us/removeChildren",
+          new Object[] { n, scan / REMOVALS / 1000, index / REMOVALS / 1000 });
+      cacheManager.removeCache("bench" + n);
+    }
+  }
+
+  /**
+   * The removeChildren algorithm before the key index.
+   */
+  private void removeChildrenByScan(net.sf.ehcache.Cache cache, String key) {
+    cache.remove(key);
+    if (!key.endsWith("/")) {
+      key = key + "/";
+    }
+    List<?> keys = cache.getKeys();
+    for (Object k : keys) {
+      if (((String) k).startsWith(key)) {
+        cache.remove(k);
+      }
+    }
+  }
+
+  private void fill(Cache<String> cache, int n) {
+    for (int i = 0; i < n / CHILDREN; i++) {
+      refill(cache, "site" + i);
+    }
+  }
+
+  private void refill(Cache<String> cache, String parent) {
+    cache.put(parent, parent);
+    for (int j = 1; j < CHILDREN; j++) {
+      cache.put(parent + "/page" + j, parent);
+    }
+  }
+}
@@ -30,8 +30,14 @@ import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.memory.ThreadBound;
 import org.sakaiproject.nakamura.memory.CacheManagerServiceImpl;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 public class TestCache {
 
@@ -92,6 +98,69 @@ public class TestCache {
     }
   }
 
+  @Test
+  public void testListChildren() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("ListChildrenCache", scope);
+      cache.put("fish", "cat");
+      cache.put("fish/child", "childcat");
+      cache.put("fish/child/child", "childcatchild");
+      cache.put("fishcake", "notachild");
+      cache.put("fish0", "notachild");
+      List<String> children = cache.listChildren("fish");
+      assertEquals(Arrays.asList("fish", "fish/child", "fish/child/child"), children);
+      assertEquals(Arrays.asList("fish/child", "fish/child/child"), cache
+          .listChildren("fish/"));
+      cache.removeChildren("fish");
+      assertTrue(cache.listChildren("fish").isEmpty());
+      assertEquals("notachild", cache.get("fishcake"));
+      assertEquals("notachild", cache.get("fish0"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testRemoveManyChildren() {
+    for (CacheScope scope : CacheScope.values()) {
+      Cache<String> cache = cacheManagerService.getCache("ManyChildrenCache", scope);
+      for (int i = 0; i < 1000; i++) {
+        cache.put("parent/" + i, String.valueOf(i));
+      }
+      cache.put("other", "other");
+      cache.removeChildren("parent");
+      for (int i = 0; i < 1000; i++) {
+        assertNull(cache.get("parent/" + i));
+      }
+      assertEquals("other", cache.get("other"));
+      cache.clear();
+      cacheManagerService.unbind(scope);
+    }
+  }
+
+  @Test
+  public void testMapCacheViewsKeepIndex() {
+    MapCacheImpl<String> cache = new MapCacheImpl<String>();
+    Map<String, String> values = new HashMap<String, String>();
+    values.put("fish", "cat");
+    values.put("fish/a", "a");
+    values.put("fish/b", "b");
+    values.put("fish/c", "c");
+    cache.putAll(values);
+    assertEquals(Arrays.asList("fish", "fish/a", "fish/b", "fish/c"), cache
+        .listChildren("fish"));
+    ((Map<String, String>) cache).remove((Object) "fish/a");
+    cache.keySet().remove("fish/b");
+    for (Iterator<String> i = cache.values().iterator(); i.hasNext();) {
+      if ("c".equals(i.next())) {
+        i.remove();
+      }
+    }
+    assertEquals(Arrays.asList("fish"), cache.listChildren("fish"));
+    cache.entrySet().clear();
+    assertTrue(cache.listChildren("fish").isEmpty());
+  }
+
   @Test
   public void testThreadUnbinding() {
     ThreadBound testItem = createMock(ThreadBound.class);
@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.nakamura.meservice;
 
-import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
@@ -29,7 +28,6 @@ import org.apache.jackrabbit.api.security.principal.PrincipalManager;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
-import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ValueMap;
@@ -37,13 +35,14 @@ import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
-import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
@@ -62,18 +61,12 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TimeZone;
 
-import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -209,49 +202,12 @@ public class MeServlet extends SlingSafeMethodsServlet {
       return;
     }
 
-    // Get the path to the store for this user.
-    Map<String, Integer> contacts = new HashMap<String, Integer>();
-    contacts.put(ACCEPTED.toString().toLowerCase(), 0);
-    contacts.put(INVITED.toString().toLowerCase(), 0);
-    contacts.put(PENDING.toString().toLowerCase(), 0);
-    try {
-      // This could just use ConnectionUtils.getConnectionPathBase, but that util class is
-      // in the private package unfortunately.
-      String store = PersonalUtils.getHomeFolder(au) + "/"
-          + ConnectionConstants.CONTACT_STORE_NAME;
-      store = ISO9075.encodePath(store);
-      StringBuilder statement = new StringBuilder("/jcr:root");
-      statement.append(store);
-      statement.append("//*[@sling:resourceType='sakai/contact' and (");
-      statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(ACCEPTED)
-          .append("' or ");
-      statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(INVITED)
-          .append("' or ");
-      statement.append("@").append(SAKAI_CONNECTION_STATE).append("='").append(PENDING)
-          .append("')]");
-
-      // Execute the query, loop over the results and count the items.
-      QueryManager qm = session.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(statement.toString(), "xpath");
-      QueryResult result = q.execute();
-      NodeIterator iterator = result.getNodes();
-      while (iterator.hasNext()) {
-        Node contact = iterator.nextNode();
-        if (contact.hasProperty(SAKAI_CONNECTION_STATE)) {
-          String state = contact.getProperty(SAKAI_CONNECTION_STATE).getString()
-              .toLowerCase();
-          int count = 0;
-          if (contacts.containsKey(state)) {
-            count = contacts.get(state);
-          }
-          contacts.put(state, count + 1);
-        }
-      }
-    } finally {
-      for (Entry<String, Integer> entry : contacts.entrySet()) {
-        writer.key(entry.getKey());
-        writer.value(entry.getValue());
-      }
+    // The connection manager keeps these counts, so no query is needed.
+    Map<ConnectionState, Integer> counts = connectionManager.getConnectionCounts(userID);
+    for (ConnectionState state : new ConnectionState[] { ACCEPTED, INVITED, PENDING }) {
+      Integer count = counts.get(state);
+      writer.key(state.toString().toLowerCase());
+      writer.value(count == null ? 0 : count.intValue());
     }
     writer.endObject();
   }
@@ -286,22 +242,12 @@ public class MeServlet extends SlingSafeMethodsServlet {
     // Get the path to the store for this user.
     long count = 0;
     try {
+      // The store keeps its own counters, so this does not have to query the store.
       String store = messagingService.getFullPathToStore(au.getID(), session);
-      store = ISO9075.encodePath(store);
-      StringBuilder statement = new StringBuilder("/jcr:root");
-      statement.append(store);
-      statement
-          .append("//*[@sling:resourceType='sakai/message' and @sakai:type='internal' and @sakai:messagebox='inbox' and @sakai:read = false()]");
-
-      // Execute the query, loop over the results and count the items.
-      QueryManager qm = session.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(statement.toString(), "xpath");
-      QueryResult result = q.execute();
-      NodeIterator iterator = result.getNodes();
-      while (iterator.hasNext()) {
-        count++;
-        iterator.next();
-      }
+      Map<String, String> filters = new HashMap<String, String>();
+      filters.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+      filters.put(MessageConstants.PROP_SAKAI_READ, "false");
+      count = messagingService.getMessageCounts(session, store).getCount(filters);
     } finally {
       writer.value(count);
     }
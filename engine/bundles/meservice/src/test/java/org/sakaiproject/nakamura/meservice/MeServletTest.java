@@ -19,8 +19,8 @@ package org.sakaiproject.nakamura.meservice;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
-import static org.sakaiproject.nakamura.api.connections.ConnectionConstants.SAKAI_CONNECTION_STATE;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.ACCEPTED;
+import static org.sakaiproject.nakamura.api.connections.ConnectionState.BLOCKED;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.INVITED;
 import static org.sakaiproject.nakamura.api.connections.ConnectionState.PENDING;
 
@@ -33,9 +33,11 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.testing.jcr.MockNode;
-import org.easymock.EasyMock;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
@@ -54,14 +56,9 @@ import java.util.Map;
 import java.util.Set;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.Workspace;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
@@ -229,22 +226,13 @@ public class MeServletTest extends AbstractEasyMockTest {
     expect(messagingService.getFullPathToStore("jack", session)).andReturn(
         "/path/to/store");
 
-    // Mock the query.
-    Workspace workSpace = createMock(Workspace.class);
-    QueryManager qm = createMock(QueryManager.class);
-    Query q = createMock(Query.class);
-    QueryResult qr = createMock(QueryResult.class);
-    NodeIterator iterator = createMock(NodeIterator.class);
-    expect(session.getWorkspace()).andReturn(workSpace);
-    expect(workSpace.getQueryManager()).andReturn(qm);
-    expect(
-        qm
-            .createQuery(EasyMock.matches(".*\\/path\\/to\\/store.*"), EasyMock
-                .eq("xpath"))).andReturn(q);
-    expect(q.execute()).andReturn(qr);
-    expect(qr.getNodes()).andReturn(iterator);
-    expect(iterator.hasNext()).andReturn(true).times(2).andReturn(false);
-    expect(iterator.next()).andReturn(null).times(2);
+    // The inbox holds two unread messages.
+    Map<MessageCounts.Key, Integer> counts = new HashMap<MessageCounts.Key, Integer>();
+    counts.put(new MessageCounts.Key("inbox", "message", "false"), 2);
+    counts.put(new MessageCounts.Key("inbox", "message", "true"), 3);
+    counts.put(new MessageCounts.Key("outbox", "message", "false"), 1);
+    expect(messagingService.getMessageCounts(session, "/path/to/store")).andReturn(
+        new MessageCounts(counts));
 
     replay();
     servlet.writeMessageCounts(new ExtendedJSONWriter(w), session, au);
@@ -260,30 +248,14 @@ public class MeServletTest extends AbstractEasyMockTest {
 
     Authorizable au = createAuthorizable("jack", false, true);
 
-    // Mock the query.
-    Workspace workSpace = createMock(Workspace.class);
-    QueryManager qm = createMock(QueryManager.class);
-    Query q = createMock(Query.class);
-    QueryResult qr = createMock(QueryResult.class);
-    NodeIterator iterator = createMock(NodeIterator.class);
-    expect(session.getWorkspace()).andReturn(workSpace);
-    expect(workSpace.getQueryManager()).andReturn(qm);
-    expect(
-        qm.createQuery(EasyMock.matches(".*\\/_user\\/j\\/ja\\/jack\\/contacts.*"),
-            EasyMock.eq("xpath"))).andReturn(q);
-    expect(q.execute()).andReturn(qr);
-    expect(qr.getNodes()).andReturn(iterator);
-
-    MockNode pendingNode = new MockNode("/path/to/node");
-    pendingNode.setProperty(SAKAI_CONNECTION_STATE, PENDING.toString());
-    MockNode acceptedNode = new MockNode("/path/to/node");
-    acceptedNode.setProperty(SAKAI_CONNECTION_STATE, ACCEPTED.toString());
-    MockNode invitedNode = new MockNode("/path/to/node");
-    invitedNode.setProperty(SAKAI_CONNECTION_STATE, INVITED.toString());
-
-    expect(iterator.hasNext()).andReturn(true).times(4).andReturn(false);
-    expect(iterator.nextNode()).andReturn(pendingNode).andReturn(invitedNode).andReturn(
-        acceptedNode).andReturn(invitedNode);
+    ConnectionManager connectionManager = createMock(ConnectionManager.class);
+    Map<ConnectionState, Integer> counts = new HashMap<ConnectionState, Integer>();
+    counts.put(PENDING, 1);
+    counts.put(INVITED, 2);
+    counts.put(ACCEPTED, 1);
+    counts.put(BLOCKED, 3);
+    expect(connectionManager.getConnectionCounts("jack")).andReturn(counts);
+    servlet.connectionManager = connectionManager;
 
     replay();
     servlet.writeContactCounts(new ExtendedJSONWriter(w), session, au);
@@ -39,6 +39,14 @@ public interface MessageConstants {
    * The property wether this message has been read or not.
    */
   public static final String PROP_SAKAI_READ = "sakai:read";
+  /**
+   * The category of a message. ex: message, invitation, ..
+   */
+  public static final String PROP_SAKAI_CATEGORY = "sakai:category";
+  /**
+   * The counters of a message store, kept on the store node.
+   */
+  public static final String PROP_SAKAI_MESSAGECOUNTS = "sakai:messagecounts";
   /**
  *
  */
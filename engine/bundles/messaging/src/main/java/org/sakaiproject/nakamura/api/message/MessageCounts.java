@@ -0,0 +1,287 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.message;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_CATEGORY;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_MESSAGEBOX;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_READ;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_TYPE;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.SAKAI_MESSAGE_RT;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.TYPE_INTERNAL;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+/**
+ * The number of internal messages in a message store, by message box, category and read
+ * flag. Any count over those properties can be answered from these counters without a
+ * query. Instances are immutable.
+ */
+public class MessageCounts {
+
+  /**
+   * The properties that messages are counted by.
+   */
+  public static final String[] COUNTED_PROPERTIES = { PROP_SAKAI_MESSAGEBOX,
+      PROP_SAKAI_CATEGORY, PROP_SAKAI_READ };
+
+  /**
+   * The values of the counted properties of a message, a missing property is an empty
+   * value.
+   */
+  public static final class Key {
+    private final String[] values;
+
+    public Key(String box, String category, String read) {
+      values = new String[] { box == null ? "" : box, category == null ? "" : category,
+          read == null ? "" : read };
+    }
+
+    /**
+     * @param message
+     *          a node.
+     * @return the key of the message, or null if the node is not an internal message.
+     * @throws RepositoryException
+     */
+    public static Key of(Node message) throws RepositoryException {
+      if (!message.hasProperty(SLING_RESOURCE_TYPE_PROPERTY)
+          || !SAKAI_MESSAGE_RT.equals(message.getProperty(SLING_RESOURCE_TYPE_PROPERTY)
+              .getString()) || !message.hasProperty(PROP_SAKAI_TYPE)
+          || !TYPE_INTERNAL.equals(message.getProperty(PROP_SAKAI_TYPE).getString())) {
+        return null;
+      }
+      return new Key(getString(message, PROP_SAKAI_MESSAGEBOX), getString(message,
+          PROP_SAKAI_CATEGORY), getString(message, PROP_SAKAI_READ));
+    }
+
+    private static String getString(Node message, String property)
+        throws RepositoryException {
+      if (message.hasProperty(property)) {
+        return message.getProperty(property).getString();
+      }
+      return null;
+    }
+
+    /**
+     * @param property
+     *          one of the {@link MessageCounts#COUNTED_PROPERTIES}.
+     * @return the value of the property.
+     */
+    public String get(String property) {
+      return values[indexOf(property)];
+    }
+
+    private boolean matches(Map<String, String> filters) {
+      for (Entry<String, String> filter : filters.entrySet()) {
+        if (!get(filter.getKey()).equals(filter.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key && Arrays.equals(values, ((Key) obj).values);
+    }
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(values);
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(values);
+    }
+  }
+
+  private final Map<Key, Integer> counts;
+
+  /**
+   * Empty counters.
+   */
+  public MessageCounts() {
+    this(new HashMap<Key, Integer>());
+  }
+
+  /**
+   * @param counts
+   *          the number of messages with each key.
+   */
+  public MessageCounts(Map<Key, Integer> counts) {
+    this.counts = new HashMap<Key, Integer>();
+    for (Entry<Key, Integer> e : counts.entrySet()) {
+      if (e.getValue() > 0) {
+        this.counts.put(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  /**
+   * @param property
+   * @return true if messages are counted by the property.
+   */
+  public static boolean isCounted(String property) {
+    for (String counted : COUNTED_PROPERTIES) {
+      if (counted.equals(property)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int indexOf(String property) {
+    for (int i = 0; i < COUNTED_PROPERTIES.length; i++) {
+      if (COUNTED_PROPERTIES[i].equals(property)) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Messages are not counted by " + property);
+  }
+
+  /**
+   * @return the number of messages.
+   */
+  public int getTotal() {
+    return getCount(new HashMap<String, String>());
+  }
+
+  /**
+   * @param filters
+   *          values that counted properties must have, by property name.
+   * @return the number of messages that match all the filters.
+   */
+  public int getCount(Map<String, String> filters) {
+    int count = 0;
+    for (Entry<Key, Integer> e : counts.entrySet()) {
+      if (e.getKey().matches(filters)) {
+        count += e.getValue();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param property
+   *          the counted property to group by.
+   * @param filters
+   *          values that counted properties must have, by property name.
+   * @return the number of messages that match the filters for each value of the
+   *         property, messages without the property are left out.
+   */
+  public Map<String, Integer> getCountsBy(String property, Map<String, String> filters) {
+    Map<String, Integer> grouped = new HashMap<String, Integer>();
+    for (Entry<Key, Integer> e : counts.entrySet()) {
+      String value = e.getKey().get(property);
+      if (value.length() > 0 && e.getKey().matches(filters)) {
+        Integer count = grouped.get(value);
+        grouped.put(value, count == null ? e.getValue() : count + e.getValue());
+      }
+    }
+    return grouped;
+  }
+
+  /**
+   * Moves a message from one key to another.
+   *
+   * @param before
+   *          the key of the message before the change, null if it was added.
+   * @param after
+   *          the key of the message after the change, null if it was removed.
+   * @return the changed counters, or null if a counter would go below zero, which means
+   *         the counters do not match the store.
+   */
+  public MessageCounts adjust(Key before, Key after) {
+    Map<Key, Integer> adjusted = new HashMap<Key, Integer>(counts);
+    if (before != null) {
+      Integer count = adjusted.get(before);
+      if (count == null) {
+        return null;
+      }
+      adjusted.put(before, count - 1);
+    }
+    if (after != null) {
+      Integer count = adjusted.get(after);
+      adjusted.put(after, count == null ? 1 : count + 1);
+    }
+    return new MessageCounts(adjusted);
+  }
+
+  /**
+   * @return the counters as a JSON object of box, category, read flag and count.
+   * @throws JSONException
+   */
+  public String toJSON() throws JSONException {
+    JSONObject boxes = new JSONObject();
+    for (Entry<Key, Integer> e : counts.entrySet()) {
+      Key key = e.getKey();
+      JSONObject categories = boxes.optJSONObject(key.values[0]);
+      if (categories == null) {
+        categories = new JSONObject();
+        boxes.put(key.values[0], categories);
+      }
+      JSONObject reads = categories.optJSONObject(key.values[1]);
+      if (reads == null) {
+        reads = new JSONObject();
+        categories.put(key.values[1], reads);
+      }
+      reads.put(key.values[2], e.getValue().intValue());
+    }
+    return boxes.toString();
+  }
+
+  /**
+   * @param json
+   *          counters written by {@link #toJSON()}.
+   * @return the counters.
+   * @throws JSONException
+   */
+  public static MessageCounts parse(String json) throws JSONException {
+    Map<Key, Integer> counts = new HashMap<Key, Integer>();
+    JSONObject boxes = new JSONObject(json);
+    for (Iterator<String> b = boxes.keys(); b.hasNext();) {
+      String box = b.next();
+      JSONObject categories = boxes.getJSONObject(box);
+      for (Iterator<String> c = categories.keys(); c.hasNext();) {
+        String category = c.next();
+        JSONObject reads = categories.getJSONObject(category);
+        for (Iterator<String> r = reads.keys(); r.hasNext();) {
+          String read = r.next();
+          counts.put(new Key(box, category, read), reads.getInt(read));
+        }
+      }
+    }
+    return new MessageCounts(counts);
+  }
+
+  @Override
+  public String toString() {
+    return "MessageCounts" + counts;
+  }
+}
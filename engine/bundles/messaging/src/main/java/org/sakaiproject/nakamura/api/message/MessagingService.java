@@ -133,5 +133,46 @@ public interface MessagingService {
    */
   public List<String> expandAliases(String localRecipient);
 
+  /**
+   * Gets the counters of a message store. The counters are kept on the store, if they are
+   * missing they are rebuilt.
+   *
+   * @param session
+   *          A session that can read the store.
+   * @param storePath
+   *          The JCR path to the store.
+   * @return The counters, empty if the session can not see the store.
+   * @throws MessagingException
+   */
+  public MessageCounts getMessageCounts(Session session, String storePath)
+      throws MessagingException;
+
+  /**
+   * Counts the messages in a store with a query and replaces the counters kept on the
+   * store.
+   *
+   * @param storePath
+   *          The JCR path to the store.
+   * @return The counters.
+   * @throws MessagingException
+   */
+  public MessageCounts rebuildMessageCounts(String storePath) throws MessagingException;
+
+  /**
+   * Updates the counters of a store after a message was added, changed or removed. The
+   * caller should hold the lock on the store path from before the change is saved, so
+   * that a rebuild can not count the change as well.
+   *
+   * @param storePath
+   *          The JCR path to the store.
+   * @param before
+   *          The key of the message before the change, null if the message was added.
+   * @param after
+   *          The key of the message after the change, null if the message was removed.
+   * @throws MessagingException
+   */
+  public void updateMessageCounts(String storePath, MessageCounts.Key before,
+      MessageCounts.Key after) throws MessagingException;
+
 
 }
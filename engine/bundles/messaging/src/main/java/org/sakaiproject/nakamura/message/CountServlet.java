@@ -35,6 +35,8 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
+import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,6 +49,7 @@ import java.util.Map.Entry;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.QueryResult;
@@ -64,6 +67,8 @@ import javax.servlet.http.HttpServletResponse;
  * 
  * count.json?filters=sakai:read,sakai:messagebox&values=true,inbox&groupby=sakai:category
  * 
+ * Counts that only filter and group on the messagebox, category and read flag are
+ * answered from the counters kept on the store, anything else queries the store.
  */
 @SlingServlet(methods = {"GET"}, resourceTypes = {"sakai/messagestore"}, selectors = {"count"}, generateComponent = true, generateService = true)
 @Properties(value = {
@@ -111,9 +116,15 @@ public class CountServlet extends SlingSafeMethodsServlet {
     Node node = (Node) request.getResource().adaptTo(Node.class);
 
     try {
+      String storePath = messagingService.getFullPathToStore(request.getRemoteUser(),
+          node.getSession());
+      if (writeFromCounters(request, response, node.getSession(), storePath)) {
+        return;
+      }
+
       // Do the query
       // We do the query on the user his messageStore's path.
-      String messageStorePath = ISO9075.encodePath(messagingService.getFullPathToStore(request.getRemoteUser(), node.getSession()));
+      String messageStorePath = ISO9075.encodePath(storePath);
       // String messageStorePath = node.getPath();
       StringBuilder queryString = new StringBuilder("/jcr:root"
           + messageStorePath + "//*[@sling:resourceType=\"sakai/message\" and @"
@@ -147,19 +158,12 @@ public class CountServlet extends SlingSafeMethodsServlet {
       Query query = queryManager.createQuery(queryString.toString(), "xpath");
       QueryResult result = query.execute();
 
-      response.setContentType("application/json");
-      response.setCharacterEncoding("UTF-8");
-
-      JSONWriter write = new JSONWriter(response.getWriter());
       NodeIterator resultNodes = result.getNodes();
 
       if (request.getRequestParameter("groupedby") == null) {
-        write.object();
-        write.key("count");
         // TODO: getSize iterates over all the nodes, add a JackRabbit service
         // to fetch this number.
-        write.value(resultNodes.getSize());
-        write.endObject();
+        writeCount(response, resultNodes.getSize());
       } else {
         // The user want to group the count by a specified set.
         // We will have to traverse each node, get that property and count each
@@ -178,22 +182,7 @@ public class CountServlet extends SlingSafeMethodsServlet {
           }
         }
 
-        write.object();
-        write.key("count");
-        write.array();
-        for (Entry<String, Integer> e : mapCount.entrySet()) {
-          write.object();
-
-          write.key("group");
-          write.value(e.getKey());
-          write.key("count");
-          write.value(e.getValue());
-
-          write.endObject();
-        }
-        write.endArray();
-        write.endObject();
-
+        writeGroupedCount(response, mapCount);
       }
 
     } catch (RepositoryException e) {
@@ -205,4 +194,85 @@ public class CountServlet extends SlingSafeMethodsServlet {
     }
 
   }
+
+  /**
+   * Answers the request from the counters of the store, if it only filters and groups on
+   * counted properties.
+   *
+   * @return true if the response was written.
+   */
+  private boolean writeFromCounters(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, Session session, String storePath)
+      throws IOException, JSONException {
+    Map<String, String> filters = new HashMap<String, String>();
+    if (request.getRequestParameter("filters") != null
+        && request.getRequestParameter("values") != null) {
+      String[] names = request.getRequestParameter("filters").getString().split(",");
+      String[] values = request.getRequestParameter("values").getString().split(",");
+      if (names.length != values.length) {
+        return false;
+      }
+      for (int i = 0; i < names.length; i++) {
+        if (!MessageCounts.isCounted(names[i]) || filters.containsKey(names[i])) {
+          return false;
+        }
+        filters.put(names[i], values[i]);
+      }
+    }
+    String groupedby = null;
+    if (request.getRequestParameter("groupedby") != null) {
+      groupedby = request.getRequestParameter("groupedby").getString();
+      if (!MessageCounts.isCounted(groupedby)) {
+        return false;
+      }
+    }
+
+    MessageCounts counts;
+    try {
+      counts = messagingService.getMessageCounts(session, storePath);
+    } catch (MessagingException e) {
+      LOGGER.warn("Unable to read the message counts of {}, querying instead: {}",
+          storePath, e.getMessage());
+      return false;
+    }
+    if (groupedby == null) {
+      writeCount(response, counts.getCount(filters));
+    } else {
+      writeGroupedCount(response, counts.getCountsBy(groupedby, filters));
+    }
+    return true;
+  }
+
+  private void writeCount(SlingHttpServletResponse response, long count)
+      throws IOException, JSONException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("count");
+    write.value(count);
+    write.endObject();
+  }
+
+  private void writeGroupedCount(SlingHttpServletResponse response,
+      Map<String, Integer> mapCount) throws IOException, JSONException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    JSONWriter write = new JSONWriter(response.getWriter());
+    write.object();
+    write.key("count");
+    write.array();
+    for (Entry<String, Integer> e : mapCount.entrySet()) {
+      write.object();
+
+      write.key("group");
+      write.value(e.getKey());
+      write.key("count");
+      write.value(e.getValue());
+
+      write.endObject();
+    }
+    write.endArray();
+    write.endObject();
+  }
 }
@@ -23,6 +23,7 @@ import static org.sakaiproject.nakamura.api.message.MessageConstants.EVENT_LOCAT
 import static org.sakaiproject.nakamura.api.message.MessageConstants.PENDINGMESSAGE_EVENT;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_MESSAGEBOX;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_SENDSTATE;
+import static org.sakaiproject.nakamura.api.message.MessageConstants.SAKAI_MESSAGESTORE_RT;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.SAKAI_MESSAGE_RT;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.STATE_NONE;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.STATE_NOTIFIED;
@@ -34,10 +35,17 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.SlingPostProcessor;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
+import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,6 +57,8 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -68,6 +78,15 @@ public class MessagePostProcessor implements SlingPostProcessor {
   @Reference
   protected transient EventAdmin eventAdmin;
 
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  @Reference
+  protected transient MessagingService messagingService;
+
+  @Reference
+  protected transient LockManager lockManager;
+
   /**
    * {@inheritDoc} This post processor is only interested in posts to messages,
    * so it should iterate rapidly through all messages.
@@ -79,6 +98,7 @@ public class MessagePostProcessor implements SlingPostProcessor {
       List<Modification> changes) throws Exception {
     Map<Node, String> messageMap = new HashMap<Node, String>();
     Session s = request.getResourceResolver().adaptTo(Session.class);
+    CountUpdates countUpdates = new CountUpdates(s);
     for (Modification m : changes) {
       try {
         switch (m.getType()) {
@@ -88,6 +108,7 @@ public class MessagePostProcessor implements SlingPostProcessor {
             Item item = s.getItem(getMessageFromModifcation(m));
             if (item != null && item.isNode()) {
               Node n = (Node) item;
+              countUpdates.messageSaved(n);
               // Make sure that this node
               // - represents a message (sling:resourceType=sakai/message)
               // - has a messagebox set to 'outbox'.
@@ -106,6 +127,13 @@ public class MessagePostProcessor implements SlingPostProcessor {
             }
           }
           break;
+        case DELETE:
+          countUpdates.deleted(m.getSource());
+          break;
+        case MOVE:
+        case COPY:
+          countUpdates.moved(m.getSource(), m.getDestination());
+          break;
         }
       } catch (RepositoryException ex) {
         LOGGER.warn("Failed to process on create for {} ", m.getSource(), ex);
@@ -118,8 +146,17 @@ public class MessagePostProcessor implements SlingPostProcessor {
     // Check if we have any nodes that have a pending state and launch an OSGi
     // event
     // we must save changes before launching the event.
-    if ( s.hasPendingChanges() ) {
-      s.save();
+    try {
+      // Hold the store locks over the save, so the counters move in step with the
+      // messages.
+      countUpdates.lockStores();
+      countUpdates.readBefore();
+      if ( s.hasPendingChanges() ) {
+        s.save();
+      }
+      countUpdates.apply();
+    } finally {
+      countUpdates.release();
     }
     for (Entry<Node, String> mm : messageMap.entrySet()) {
       Node n = mm.getKey();
@@ -155,6 +192,188 @@ public class MessagePostProcessor implements SlingPostProcessor {
     s.refresh(true);
   }
 
+  /**
+   * Collects the changes a post makes to the counters of message stores, and applies them
+   * once the post is saved.
+   */
+  private class CountUpdates {
+    private final Session session;
+    /**
+     * The persisted state, as it was before the post is saved.
+     */
+    private Session adminSession;
+    /**
+     * Counter changes keyed by message path.
+     */
+    private Map<String, MessageCounts.Key[]> changes = new HashMap<String, MessageCounts.Key[]>();
+    private Map<String, String> changeStores = new HashMap<String, String>();
+    /**
+     * Stores of the items removed by the post, keyed by item path.
+     */
+    private Map<String, String> deleteStores = new HashMap<String, String>();
+    /**
+     * Stores whose counters are counted again.
+     */
+    private Set<String> rebuilds = new TreeSet<String>();
+    private List<Lock> locks = new ArrayList<Lock>();
+
+    private CountUpdates(Session session) {
+      this.session = session;
+    }
+
+    private Session getAdminSession() throws RepositoryException {
+      if (adminSession == null) {
+        adminSession = slingRepository.loginAdministrative(null);
+      }
+      return adminSession;
+    }
+
+    /**
+     * A message was created or modified by the post.
+     */
+    private void messageSaved(Node n) throws RepositoryException {
+      MessageCounts.Key after = MessageCounts.Key.of(n);
+      String path = n.getPath();
+      if (after == null || changes.containsKey(path)) {
+        return;
+      }
+      String store = findStore(session, path);
+      if (store != null) {
+        // the state before the post is read once the store is locked.
+        changes.put(path, new MessageCounts.Key[] { null, after });
+        changeStores.put(path, store);
+      }
+    }
+
+    /**
+     * An item was removed by the post.
+     */
+    private void deleted(String path) throws RepositoryException {
+      if (findStore(session, path) == null) {
+        return;
+      }
+      String store = findStore(getAdminSession(), path);
+      if (store != null) {
+        deleteStores.put(path, store);
+      }
+    }
+
+    /**
+     * An item was moved or copied by the post.
+     */
+    private void moved(String source, String destination) throws RepositoryException {
+      String store = findStore(session, source);
+      if (store != null) {
+        rebuilds.add(store);
+      }
+      store = findStore(session, destination);
+      if (store != null) {
+        rebuilds.add(store);
+      }
+    }
+
+    /**
+     * Locks the stores that are changed, in order to avoid deadlocking with other posts.
+     */
+    private void lockStores() throws LockTimeoutException {
+      Set<String> stores = new TreeSet<String>(rebuilds);
+      stores.addAll(changeStores.values());
+      stores.addAll(deleteStores.values());
+      for (String store : stores) {
+        locks.add(lockManager.waitForLock(store));
+      }
+    }
+
+    /**
+     * Reads the persisted state of the changed messages. Must be called with the stores
+     * locked, so that no other post saves them between the read and this post's save.
+     */
+    private void readBefore() throws RepositoryException {
+      if (adminSession != null) {
+        adminSession.refresh(false);
+      }
+      for (Entry<String, MessageCounts.Key[]> e : changes.entrySet()) {
+        if (getAdminSession().itemExists(e.getKey())) {
+          e.getValue()[0] = MessageCounts.Key.of((Node) adminSession.getItem(e.getKey()));
+        }
+      }
+      for (Entry<String, String> e : deleteStores.entrySet()) {
+        String path = e.getKey();
+        String store = e.getValue();
+        if (!getAdminSession().itemExists(path) || !adminSession.getItem(path).isNode()) {
+          continue;
+        }
+        MessageCounts.Key before = MessageCounts.Key.of((Node) adminSession.getItem(path));
+        if (before != null) {
+          changes.put(path, new MessageCounts.Key[] { before, null });
+          changeStores.put(path, store);
+        } else if (!store.equals(path)) {
+          // A folder of messages, simpler to count the store again.
+          rebuilds.add(store);
+        }
+      }
+    }
+
+    private void apply() {
+      for (Entry<String, MessageCounts.Key[]> e : changes.entrySet()) {
+        String store = changeStores.get(e.getKey());
+        if (!rebuilds.contains(store)) {
+          try {
+            messagingService.updateMessageCounts(store, e.getValue()[0], e.getValue()[1]);
+          } catch (MessagingException ex) {
+            LOGGER.warn("Message counts of {} not updated: {}", store, ex.getMessage());
+          }
+        }
+      }
+      for (String store : rebuilds) {
+        try {
+          messagingService.rebuildMessageCounts(store);
+        } catch (MessagingException ex) {
+          LOGGER.warn("Message counts of {} not rebuilt: {}", store, ex.getMessage());
+        }
+      }
+    }
+
+    private void release() {
+      for (Lock lock : locks) {
+        lock.unlock();
+      }
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Finds the message store that holds a path.
+   *
+   * @param session
+   *          the session to look in.
+   * @param path
+   *          the path of an item, it need not exist.
+   * @return the path of the store, or null if the path is not in a store.
+   * @throws RepositoryException
+   */
+  private String findStore(Session session, String path) throws RepositoryException {
+    String p = path;
+    while (p.length() > 1) {
+      if (session.itemExists(p)) {
+        Item item = session.getItem(p);
+        if (item.isNode()) {
+          Node n = (Node) item;
+          if (n.hasProperty(SLING_RESOURCE_TYPE_PROPERTY)
+              && SAKAI_MESSAGESTORE_RT.equals(n.getProperty(SLING_RESOURCE_TYPE_PROPERTY)
+                  .getString())) {
+            return n.getPath();
+          }
+        }
+      }
+      int i = p.lastIndexOf('/');
+      p = i <= 0 ? "/" : p.substring(0, i);
+    }
+    return null;
+  }
+
   /**
    * Gets the node for a modification.
    *
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.message;
 
+import static org.sakaiproject.nakamura.api.message.MessageConstants.PROP_SAKAI_MESSAGECOUNTS;
 import static org.sakaiproject.nakamura.api.message.MessageConstants.SAKAI_MESSAGESTORE_RT;
 
 import org.apache.felix.scr.annotations.Component;
@@ -26,11 +27,16 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
@@ -44,6 +50,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -53,11 +60,14 @@ import java.util.regex.Pattern;
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.ValueFormatException;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 /**
  * Service for doing operations with messages.
@@ -76,6 +86,9 @@ public class MessagingServiceImpl implements MessagingService {
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient SlingRepository slingRepository;
+
   private Pattern homePathPattern = Pattern.compile("(~(.*?))/");
 
   private static final Logger LOGGER = LoggerFactory
@@ -140,7 +153,8 @@ public class MessagingServiceImpl implements MessagingService {
       String messagePath = PathUtils.toSimpleShardPath(messagePathBase, messageId, "");
       try {
         msg = JcrUtils.deepGetOrCreateNode(session, messagePath);
-        
+        MessageCounts.Key before = msg.isNew() ? null : MessageCounts.Key.of(msg);
+
         for (Entry<String, Object> e : mapProperties.entrySet()) {
           String val = e.getValue().toString();
           try {
@@ -158,7 +172,15 @@ public class MessagingServiceImpl implements MessagingService {
         if (session.hasPendingChanges()) {
           session.save();
         }
-        
+
+        // Still holding the lock on the store, so a rebuild can not count this twice.
+        MessageCounts.Key after = MessageCounts.Key.of(msg);
+        if (before != null || after != null) {
+          String storePath = getMessageStorePathFromMessageNode(msg);
+          if (storePath != null) {
+            updateMessageCountsQuietly(storePath, before, after);
+          }
+        }
       } catch (RepositoryException e) {
         LOGGER.warn("RepositoryException on trying to save message."
             + e.getMessage());
@@ -203,10 +225,22 @@ public class MessagingServiceImpl implements MessagingService {
     String messageId = sourceMessage.getName();
     String targetNodePath = PathUtils.toSimpleShardPath(targetStore, messageId, "");
     String parent = targetNodePath.substring(0, targetNodePath.lastIndexOf('/'));
-    Node parentNode = JcrUtils.deepGetOrCreateNode(session, parent);
-    LOGGER.info("Created parent node at: " + parentNode.getPath());
-    session.save();
-    session.getWorkspace().copy(sourceMessage.getPath(), targetNodePath);
+    Lock lock;
+    try {
+      lock = lockManager.waitForLock(targetStore);
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock mailbox " + targetStore);
+    }
+    try {
+      Node parentNode = JcrUtils.deepGetOrCreateNode(session, parent);
+      LOGGER.info("Created parent node at: " + parentNode.getPath());
+      session.save();
+      session.getWorkspace().copy(sourceMessage.getPath(), targetNodePath);
+      updateMessageCountsQuietly(targetStore, null, MessageCounts.Key.of((Node) session
+          .getItem(targetNodePath)));
+    } finally {
+      lock.unlock();
+    }
   }
 
 
@@ -287,6 +321,157 @@ public class MessagingServiceImpl implements MessagingService {
     return expanded;
   }
   
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.MessagingService#getMessageCounts(javax.jcr.Session,
+   *      java.lang.String)
+   */
+  public MessageCounts getMessageCounts(Session session, String storePath)
+      throws MessagingException {
+    try {
+      if (!session.itemExists(storePath)) {
+        return new MessageCounts();
+      }
+      Node store = (Node) session.getItem(storePath);
+      if (store.hasProperty(PROP_SAKAI_MESSAGECOUNTS)) {
+        try {
+          return MessageCounts.parse(store.getProperty(PROP_SAKAI_MESSAGECOUNTS)
+              .getString());
+        } catch (JSONException e) {
+          LOGGER.warn("Unreadable message counts on {}, rebuilding them", storePath);
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to read the message counts of {}", storePath, e);
+      throw new MessagingException(500, e.getMessage());
+    }
+    return rebuildMessageCounts(storePath);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.MessagingService#rebuildMessageCounts(java.lang.String)
+   */
+  public MessageCounts rebuildMessageCounts(String storePath) throws MessagingException {
+    Lock lock;
+    try {
+      lock = lockManager.waitForLock(storePath);
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock mailbox " + storePath);
+    }
+    Session adminSession = null;
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      if (!adminSession.itemExists(storePath)) {
+        return new MessageCounts();
+      }
+      Node store = (Node) adminSession.getItem(storePath);
+
+      String queryString = "/jcr:root" + ISO9075.encodePath(storePath)
+          + "//*[@sling:resourceType=\"" + MessageConstants.SAKAI_MESSAGE_RT + "\" and @"
+          + MessageConstants.PROP_SAKAI_TYPE + "=\"" + MessageConstants.TYPE_INTERNAL
+          + "\"]";
+      QueryManager queryManager = adminSession.getWorkspace().getQueryManager();
+      Query query = queryManager.createQuery(queryString, Query.XPATH);
+      Map<MessageCounts.Key, Integer> counts = new HashMap<MessageCounts.Key, Integer>();
+      for (NodeIterator ni = query.execute().getNodes(); ni.hasNext();) {
+        MessageCounts.Key key = MessageCounts.Key.of(ni.nextNode());
+        if (key != null) {
+          Integer count = counts.get(key);
+          counts.put(key, count == null ? 1 : count + 1);
+        }
+      }
+      MessageCounts messageCounts = new MessageCounts(counts);
+      store.setProperty(PROP_SAKAI_MESSAGECOUNTS, messageCounts.toJSON());
+      adminSession.save();
+      LOGGER.debug("Rebuilt the message counts of {}: {}", storePath, messageCounts);
+      return messageCounts;
+    } catch (JSONException e) {
+      LOGGER.warn("Unable to write the message counts of {}", storePath, e);
+      throw new MessagingException(500, e.getMessage());
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to rebuild the message counts of {}", storePath, e);
+      throw new MessagingException(500, e.getMessage());
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+      lock.unlock();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.MessagingService#updateMessageCounts(java.lang.String,
+   *      org.sakaiproject.nakamura.api.message.MessageCounts.Key,
+   *      org.sakaiproject.nakamura.api.message.MessageCounts.Key)
+   */
+  public void updateMessageCounts(String storePath, MessageCounts.Key before,
+      MessageCounts.Key after) throws MessagingException {
+    if (before == null ? after == null : before.equals(after)) {
+      return;
+    }
+    Lock lock;
+    try {
+      lock = lockManager.waitForLock(storePath);
+    } catch (LockTimeoutException e) {
+      throw new MessagingException("Unable to lock mailbox " + storePath);
+    }
+    Session adminSession = null;
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      if (!adminSession.itemExists(storePath)) {
+        return;
+      }
+      Node store = (Node) adminSession.getItem(storePath);
+      if (!store.hasProperty(PROP_SAKAI_MESSAGECOUNTS)) {
+        // Nothing to update, the counters are built when they are next read.
+        return;
+      }
+      MessageCounts counts = null;
+      try {
+        counts = MessageCounts.parse(store.getProperty(PROP_SAKAI_MESSAGECOUNTS)
+            .getString()).adjust(before, after);
+        if (counts != null) {
+          store.setProperty(PROP_SAKAI_MESSAGECOUNTS, counts.toJSON());
+        }
+      } catch (JSONException e) {
+        counts = null;
+      }
+      if (counts == null) {
+        // The counters do not match the store, drop them so they are rebuilt.
+        LOGGER.info("Message counts of {} are out of step, they will be rebuilt",
+            storePath);
+        store.getProperty(PROP_SAKAI_MESSAGECOUNTS).remove();
+      }
+      adminSession.save();
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to update the message counts of {}", storePath, e);
+      throw new MessagingException(500, e.getMessage());
+    } finally {
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Updates the counters of a store, a message that was saved is not failed because its
+   * counters could not be updated.
+   */
+  private void updateMessageCountsQuietly(String storePath, MessageCounts.Key before,
+      MessageCounts.Key after) {
+    try {
+      updateMessageCounts(storePath, before, after);
+    } catch (MessagingException e) {
+      LOGGER.warn("Message counts of {} not updated: {}", storePath, e.getMessage());
+    }
+  }
+
   private String expandHomeDirectoryInPath(Session session, String path)
   throws AccessDeniedException, UnsupportedRepositoryOperationException,
   RepositoryException {
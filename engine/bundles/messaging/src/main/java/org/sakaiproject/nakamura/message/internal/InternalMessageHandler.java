@@ -43,6 +43,7 @@ import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
@@ -162,8 +163,11 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
         if(!recipients.contains(rcpt)){
 
           String toPath = messagingService.getFullPathToMessage(rcpt, messageId, session);
-          
+          String toStore = messagingService.getFullPathToStore(rcpt, session);
+
           try {
+            // The store lock keeps the counters in step with the messages.
+            lockManager.waitForLock(toStore);
             lockManager.waitForLock(toPath);
           } catch (LockTimeoutException e1) {
             throw new MessagingException("Unable to lock destination message store");
@@ -185,6 +189,11 @@ public class InternalMessageHandler implements MessageTransport, MessageProfileW
           if (session.hasPendingChanges()) {
             session.save();
           }
+          try {
+            messagingService.updateMessageCounts(toStore, null, MessageCounts.Key.of(n));
+          } catch (MessagingException e) {
+            LOG.warn("Message counts of {} not updated: {}", toStore, e.getMessage());
+          }
           recipients.add(rcpt);
         }
       }
@@ -21,6 +21,8 @@ import static org.junit.Assert.assertNotSame;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
@@ -35,6 +37,7 @@ import org.apache.sling.commons.testing.jcr.MockNodeIterator;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessagingService;
 
 import java.io.ByteArrayOutputStream;
@@ -144,6 +147,60 @@ public class CountServletTest {
 
   }
 
+  @Test
+  public void testCounters() throws ServletException, IOException, RepositoryException,
+      JSONException {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter write = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(write);
+
+    RequestParameter filtersParam = mock(RequestParameter.class);
+    when(filtersParam.getString()).thenReturn("sakai:messagebox,sakai:read");
+    RequestParameter valuesParam = mock(RequestParameter.class);
+    when(valuesParam.getString()).thenReturn("inbox,false");
+    RequestParameter groupParam = mock(RequestParameter.class);
+    when(groupParam.getString()).thenReturn("sakai:category");
+    when(request.getRemoteUser()).thenReturn("admin");
+    when(request.getRequestParameter("filters")).thenReturn(filtersParam);
+    when(request.getRequestParameter("values")).thenReturn(valuesParam);
+    when(request.getRequestParameter("groupedby")).thenReturn(groupParam);
+
+    Session session = mock(Session.class);
+    MockNode node = new MockNode("/_user/message.count.json");
+    node.setSession(session);
+    Resource resource = mock(Resource.class);
+    when(resource.adaptTo(Node.class)).thenReturn(node);
+    when(request.getResource()).thenReturn(resource);
+
+    Map<MessageCounts.Key, Integer> counts = new HashMap<MessageCounts.Key, Integer>();
+    counts.put(new MessageCounts.Key("inbox", "message", "false"), 4);
+    counts.put(new MessageCounts.Key("inbox", "message", "true"), 7);
+    counts.put(new MessageCounts.Key("inbox", "invitation", "false"), 1);
+    when(messagingService.getFullPathToStore("admin", session)).thenReturn(
+        "/path/to/store");
+    when(messagingService.getMessageCounts(session, "/path/to/store")).thenReturn(
+        new MessageCounts(counts));
+
+    servlet.doGet(request, response);
+
+    // The store was not queried.
+    verify(session, never()).getWorkspace();
+
+    write.flush();
+    JSONObject o = new JSONObject(baos.toString("UTF-8"));
+    JSONArray arr = o.getJSONArray("count");
+    assertEquals(2, arr.length());
+    Map<String, Integer> grouped = new HashMap<String, Integer>();
+    for (int i = 0; i < arr.length(); i++) {
+      grouped.put(arr.getJSONObject(i).getString("group"), arr.getJSONObject(i).getInt(
+          "count"));
+    }
+    assertEquals(4, grouped.get("message").intValue());
+    assertEquals(1, grouped.get("invitation").intValue());
+  }
+
   /**
    * Create a {@link MockNode}.
    * 
@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.apache.sling.commons.testing.jcr.MockNodeIterator;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Session;
+
+/**
+ * Compares counting the unread messages of a store by walking the nodes of a query, as
+ * MeServlet used to, with reading the counters kept on the store. Not part of the normal
+ * test run, run with <code>mvn test -Dtest=MessageCountsBenchmark</code>, the number of
+ * messages can be changed with <code>-Dbenchmark.messages=1000</code>.
+ */
+public class MessageCountsBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MessageCountsBenchmark.class);
+  private static final int ROUNDS = 100;
+
+  @Test
+  public void benchmark() throws Exception {
+    int n = Integer.parseInt(System.getProperty("benchmark.messages", "10000"));
+    String storePath = "/_user/a/ad/admin/message";
+    Node[] messages = new Node[n];
+    Map<MessageCounts.Key, Integer> counts = new HashMap<MessageCounts.Key, Integer>();
+    for (int i = 0; i < n; i++) {
+      MockNode message = new MockNode(storePath + "/msg" + i);
+      message.setProperty(SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT);
+      message.setProperty(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+      message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, i % 4 == 0 ? "outbox"
+          : "inbox");
+      message.setProperty(MessageConstants.PROP_SAKAI_READ, i % 3 == 0 ? "false" : "true");
+      messages[i] = message;
+      MessageCounts.Key key = MessageCounts.Key.of(message);
+      Integer count = counts.get(key);
+      counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    MockNode store = new MockNode(storePath);
+    store.setProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS, new MessageCounts(counts)
+        .toJSON());
+    Session session = mock(Session.class);
+    when(session.itemExists(storePath)).thenReturn(true);
+    when(session.getItem(storePath)).thenReturn(store);
+    MessagingServiceImpl messagingService = new MessagingServiceImpl();
+
+    Map<String, String> filters = new HashMap<String, String>();
+    filters.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    filters.put(MessageConstants.PROP_SAKAI_READ, "false");
+
+    // The query has already matched the unread inbox messages, only the walk over the
+    // result is timed.
+    int queried = 0;
+    long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      queried = 0;
+      NodeIterator iterator = new MockNodeIterator(messages);
+      while (iterator.hasNext()) {
+        Node message = iterator.nextNode();
+        if ("inbox".equals(message.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX)
+            .getString())
+            && "false".equals(message.getProperty(MessageConstants.PROP_SAKAI_READ)
+                .getString())) {
+          queried++;
+        }
+      }
+    }
+    long walk = (System.nanoTime() - start) / ROUNDS;
+
+    int counted = 0;
+    start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      counted = messagingService.getMessageCounts(session, storePath).getCount(filters);
+    }
+    long read = (System.nanoTime() - start) / ROUNDS;
+
+    assertEquals(queried, counted);
+    LOGGER.info("{} messages: query walk {} us, counters {} us", new Object[] { n,
+        walk / 1000, read / 1000 });
+  }
+}
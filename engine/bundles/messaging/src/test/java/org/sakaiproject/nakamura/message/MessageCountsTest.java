@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message;
+
+import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class MessageCountsTest {
+
+  private MessageCounts counts;
+
+  @Before
+  public void setUp() {
+    Map<MessageCounts.Key, Integer> map = new HashMap<MessageCounts.Key, Integer>();
+    map.put(new MessageCounts.Key("inbox", "message", "false"), 3);
+    map.put(new MessageCounts.Key("inbox", "message", "true"), 5);
+    map.put(new MessageCounts.Key("inbox", "invitation", "false"), 1);
+    map.put(new MessageCounts.Key("outbox", null, "true"), 2);
+    counts = new MessageCounts(map);
+  }
+
+  @Test
+  public void testCount() {
+    assertEquals(11, counts.getTotal());
+    assertEquals(4, counts.getCount(filters("sakai:messagebox", "inbox", "sakai:read",
+        "false")));
+    assertEquals(0, counts.getCount(filters("sakai:messagebox", "trash")));
+  }
+
+  @Test
+  public void testCountsBy() {
+    Map<String, Integer> byCategory = counts.getCountsBy("sakai:category", filters(
+        "sakai:messagebox", "inbox"));
+    assertEquals(2, byCategory.size());
+    assertEquals(8, byCategory.get("message").intValue());
+    assertEquals(1, byCategory.get("invitation").intValue());
+
+    // The outbox message has no category, so it is not grouped.
+    byCategory = counts.getCountsBy("sakai:category", filters("sakai:messagebox",
+        "outbox"));
+    assertEquals(0, byCategory.size());
+  }
+
+  @Test
+  public void testAdjust() {
+    MessageCounts.Key unread = new MessageCounts.Key("inbox", "message", "false");
+    MessageCounts.Key read = new MessageCounts.Key("inbox", "message", "true");
+
+    MessageCounts adjusted = counts.adjust(unread, read);
+    assertEquals(2, adjusted.getCount(filters("sakai:messagebox", "inbox", "sakai:read",
+        "false", "sakai:category", "message")));
+    assertEquals(6, adjusted.getCount(filters("sakai:read", "true", "sakai:category",
+        "message")));
+    assertEquals(11, adjusted.getTotal());
+
+    assertEquals(12, counts.adjust(null, unread).getTotal());
+    assertEquals(10, counts.adjust(read, null).getTotal());
+
+    // The instance itself does not change.
+    assertEquals(11, counts.getTotal());
+  }
+
+  @Test
+  public void testAdjustOutOfStep() {
+    MessageCounts.Key trash = new MessageCounts.Key("trash", "message", "true");
+    assertNull(counts.adjust(trash, null));
+  }
+
+  @Test
+  public void testJSON() throws Exception {
+    MessageCounts parsed = MessageCounts.parse(counts.toJSON());
+    assertEquals(11, parsed.getTotal());
+    assertEquals(2, parsed.getCount(filters("sakai:category", "")));
+    assertEquals(1, parsed.getCount(filters("sakai:category", "invitation")));
+  }
+
+  @Test
+  public void testKeyOf() throws Exception {
+    MockNode node = new MockNode("/_user/a/ad/admin/message/ab/cd/ef/gh/msg");
+    assertNull(MessageCounts.Key.of(node));
+
+    node.setProperty(SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT);
+    node.setProperty(MessageConstants.PROP_SAKAI_TYPE, "smtp");
+    assertNull(MessageCounts.Key.of(node));
+
+    node.setProperty(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+    node.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    node.setProperty(MessageConstants.PROP_SAKAI_READ, "false");
+    assertEquals(new MessageCounts.Key("inbox", null, "false"), MessageCounts.Key.of(node));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNotCounted() {
+    counts.getCount(filters("sakai:subject", "hello"));
+  }
+
+  private Map<String, String> filters(String... nameValues) {
+    Map<String, String> filters = new HashMap<String, String>();
+    for (int i = 0; i < nameValues.length; i += 2) {
+      filters.put(nameValues[i], nameValues[i + 1]);
+    }
+    return filters;
+  }
+}
@@ -19,19 +19,28 @@ package org.sakaiproject.nakamura.message;
 
 import static org.apache.sling.jcr.resource.JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.testing.jcr.MockNode;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.ModificationType;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.locking.Lock;
+import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
+import org.sakaiproject.nakamura.api.message.MessagingService;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -113,4 +122,51 @@ public class MessagePostProcessorTest {
 
   }
 
+  @Test
+  public void testCountsReadWithStoreLocked() throws Exception {
+    String store = "/store";
+    String path = store + "/message";
+    String modificationPath = path + "/" + MessageConstants.PROP_SAKAI_READ;
+    List<Modification> changes = new ArrayList<Modification>();
+    changes.add(new Modification(ModificationType.MODIFY, modificationPath,
+        modificationPath));
+
+    Node storeNode = new MockNode(store);
+    storeNode.setProperty(SLING_RESOURCE_TYPE_PROPERTY,
+        MessageConstants.SAKAI_MESSAGESTORE_RT);
+    when(session.itemExists(modificationPath)).thenReturn(true);
+    when(session.itemExists(store)).thenReturn(true);
+    when(session.getItem(store)).thenReturn(storeNode);
+    when(session.getItem(path)).thenReturn(createMessage(path, "true"));
+
+    Session adminSession = mock(Session.class);
+    when(adminSession.itemExists(path)).thenReturn(true);
+    when(adminSession.getItem(path)).thenReturn(createMessage(path, "false"));
+    SlingRepository slingRepository = mock(SlingRepository.class);
+    when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    LockManager lockManager = mock(LockManager.class);
+    when(lockManager.waitForLock(store)).thenReturn(mock(Lock.class));
+    MessagingService messagingService = mock(MessagingService.class);
+    processor.slingRepository = slingRepository;
+    processor.lockManager = lockManager;
+    processor.messagingService = messagingService;
+
+    processor.process(request, changes);
+
+    InOrder order = inOrder(lockManager, adminSession, messagingService);
+    order.verify(lockManager).waitForLock(store);
+    order.verify(adminSession).getItem(path);
+    order.verify(messagingService).updateMessageCounts(eq(store),
+        any(MessageCounts.Key.class), any(MessageCounts.Key.class));
+  }
+
+  private Node createMessage(String path, String read) throws Exception {
+    Node node = new MockNode(path);
+    node.setProperty(SLING_RESOURCE_TYPE_PROPERTY, MessageConstants.SAKAI_MESSAGE_RT);
+    node.setProperty(MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL);
+    node.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+    node.setProperty(MessageConstants.PROP_SAKAI_READ, read);
+    return node;
+  }
+
 }
@@ -32,13 +32,17 @@ import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.commons.testing.jcr.MockNode;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.locking.Lock;
 import org.sakaiproject.nakamura.api.locking.LockManager;
 import org.sakaiproject.nakamura.api.locking.LockTimeoutException;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageCounts;
 import org.sakaiproject.nakamura.api.message.MessagingException;
 import org.sakaiproject.nakamura.api.site.SiteException;
 import org.sakaiproject.nakamura.api.site.SiteService;
@@ -50,6 +54,7 @@ import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
+import javax.jcr.Session;
 import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 
@@ -287,4 +292,59 @@ public class MessagingServiceImplTest {
     assertEquals("/path/to/store", storePath);
 
   }
+
+  @Test
+  public void testGetMessageCounts() throws Exception {
+    String storePath = "/_user/a/ad/admin/message";
+    MockNode store = new MockNode(storePath);
+    store.setProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS, createCounts().toJSON());
+    Session userSession = mock(Session.class);
+    when(userSession.itemExists(storePath)).thenReturn(true);
+    when(userSession.getItem(storePath)).thenReturn(store);
+
+    MessageCounts counts = messagingServiceImpl.getMessageCounts(userSession, storePath);
+    assertEquals(5, counts.getTotal());
+
+    // A store that does not exist yet has no messages.
+    assertEquals(0, messagingServiceImpl.getMessageCounts(userSession, "/no/store")
+        .getTotal());
+  }
+
+  @Test
+  public void testUpdateMessageCounts() throws Exception {
+    String storePath = "/_user/a/ad/admin/message";
+    MockNode store = new MockNode(storePath);
+    store.setProperty(MessageConstants.PROP_SAKAI_MESSAGECOUNTS, createCounts().toJSON());
+    Session adminSession = mock(Session.class);
+    when(adminSession.itemExists(storePath)).thenReturn(true);
+    when(adminSession.getItem(storePath)).thenReturn(store);
+    SlingRepository slingRepository = mock(SlingRepository.class);
+    when(slingRepository.loginAdministrative(null)).thenReturn(adminSession);
+    LockManager lockManager = mock(LockManager.class);
+    Lock lock = mock(Lock.class);
+    when(lockManager.waitForLock(storePath)).thenReturn(lock);
+    messagingServiceImpl.slingRepository = slingRepository;
+    messagingServiceImpl.lockManager = lockManager;
+
+    // The user reads a message.
+    messagingServiceImpl.updateMessageCounts(storePath, new MessageCounts.Key("inbox",
+        "message", "false"), new MessageCounts.Key("inbox", "message", "true"));
+
+    MessageCounts counts = MessageCounts.parse(store.getProperty(
+        MessageConstants.PROP_SAKAI_MESSAGECOUNTS).getString());
+    Map<String, String> unread = new HashMap<String, String>();
+    unread.put(MessageConstants.PROP_SAKAI_READ, "false");
+    assertEquals(1, counts.getCount(unread));
+    assertEquals(5, counts.getTotal());
+    Mockito.verify(adminSession).save();
+    Mockito.verify(adminSession).logout();
+    Mockito.verify(lock).unlock();
+  }
+
+  private MessageCounts createCounts() {
+    Map<MessageCounts.Key, Integer> counts = new HashMap<MessageCounts.Key, Integer>();
+    counts.put(new MessageCounts.Key("inbox", "message", "false"), 2);
+    counts.put(new MessageCounts.Key("inbox", "message", "true"), 3);
+    return new MessageCounts(counts);
+  }
 }
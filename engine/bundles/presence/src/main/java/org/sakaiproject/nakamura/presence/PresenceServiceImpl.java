@@ -67,7 +67,7 @@ public class PresenceServiceImpl implements PresenceService {
     this.cacheManagerService = cacheManagerService;
     // the caches must be replicating in the cluster.
     locationCache = cacheManagerService.getCache(LOCATION_CACHE,
-        CacheScope.CLUSTERREPLICATED);
+        CacheScope.CLUSTERREPLICATED, ConcurrentHashMap.class);
     userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
         CacheScope.CLUSTERREPLICATED);
   }
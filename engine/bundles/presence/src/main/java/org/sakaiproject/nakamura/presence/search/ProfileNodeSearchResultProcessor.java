@@ -36,13 +36,21 @@ import org.sakaiproject.nakamura.api.search.SearchException;
 import org.sakaiproject.nakamura.api.search.SearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchResultSet;
 import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
+import org.sakaiproject.nakamura.api.search.SearchUtil;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
 
 /**
  * Search result processor to write out profile information when search returns home nodes
@@ -55,6 +63,9 @@ import javax.jcr.query.Row;
   @Property(name = SearchConstants.REG_PROCESSOR_NAMES, value = "Profile")
 })
 public class ProfileNodeSearchResultProcessor implements SearchResultProcessor {
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProfileNodeSearchResultProcessor.class);
+
   @Reference
   private SearchServiceFactory searchServiceFactory;
 
@@ -86,7 +97,49 @@ public class ProfileNodeSearchResultProcessor implements SearchResultProcessor {
    */
   public SearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SearchException {
-    return searchServiceFactory.getSearchResultSet(request, query);
+    final SearchResultSet rs = searchServiceFactory.getSearchResultSet(request, query);
+    long nitems = SearchUtil.longRequestParameter(request,
+        SearchConstants.PARAMS_ITEMS_PER_PAGE, SearchConstants.DEFAULT_PAGED_ITEMS);
+
+    // Read the page ahead so the profile providers can be called for all of it at once,
+    // rather than once per row as the rows are written.
+    final RowIterator iterator = rs.getRowIterator();
+    final List<Row> page = new ArrayList<Row>();
+    List<Node> profileNodes = new ArrayList<Node>();
+    try {
+      for (long i = 0; i < nitems && iterator.hasNext(); i++) {
+        Row row = iterator.nextRow();
+        page.add(row);
+        Node homeNode = row.getNode();
+        String profilePath = homeNode.getPath() + "/public/authprofile";
+        Session session = homeNode.getSession();
+        if (session.nodeExists(profilePath)) {
+          profileNodes.add(session.getNode(profilePath));
+        }
+      }
+      profileService.prefetchProfiles(profileNodes);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to prefetch profiles for the search results: {}", e.getMessage());
+    }
+
+    final RowIterator pageIterator = new PagedRowIterator(page, iterator);
+    return new SearchResultSet() {
+      public long getSize() {
+        return rs.getSize();
+      }
+
+      public RowIterator getRowIterator() {
+        return pageIterator;
+      }
+
+      public void setProperties(ValueMap properties) {
+        rs.setProperties(properties);
+      }
+
+      public ValueMap getProperties() {
+        return rs.getProperties();
+      }
+    };
   }
 
   /**
@@ -113,4 +166,57 @@ public class ProfileNodeSearchResultProcessor implements SearchResultProcessor {
     }
     write.endObject();
   }
+
+  /**
+   * The rows that were read ahead, followed by the rest of the result.
+   */
+  private static class PagedRowIterator implements RowIterator {
+    private final Iterator<Row> page;
+    private final RowIterator rest;
+    private long position;
+
+    PagedRowIterator(List<Row> page, RowIterator rest) {
+      this.page = page.iterator();
+      this.rest = rest;
+    }
+
+    public Row nextRow() {
+      position++;
+      if (page.hasNext()) {
+        return page.next();
+      }
+      return rest.nextRow();
+    }
+
+    public Object next() {
+      return nextRow();
+    }
+
+    public boolean hasNext() {
+      return page.hasNext() || rest.hasNext();
+    }
+
+    public void skip(long skipNum) {
+      for (; skipNum > 0 && page.hasNext(); skipNum--) {
+        page.next();
+        position++;
+      }
+      if (skipNum > 0) {
+        rest.skip(skipNum);
+        position += skipNum;
+      }
+    }
+
+    public long getSize() {
+      return rest.getSize();
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 
@@ -59,7 +60,7 @@ public class PresenceServiceImplTest {
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
         cacheManagerService.getCache("presence.location",
-            CacheScope.CLUSTERREPLICATED)).andReturn(presenceLocationCache)
+            CacheScope.CLUSTERREPLICATED, ConcurrentHashMap.class)).andReturn(presenceLocationCache)
         .anyTimes();
     expect(
         cacheManagerService.getCache("presence.status",
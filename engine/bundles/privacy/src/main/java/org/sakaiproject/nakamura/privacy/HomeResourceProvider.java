@@ -20,36 +20,124 @@ package org.sakaiproject.nakamura.privacy;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.api.security.principal.ItemBasedPrincipal;
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.util.ResolutionCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.security.Principal;
 import java.util.Arrays;
+import java.util.Dictionary;
 import java.util.Iterator;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletRequest;
 
 @Component(name = "org.sakaiproject.nakamura.privacy.HomeResourceProvider", immediate = true, metatype = true, description = "%homeprovider.description", label = "%homeprovider.name")
-@Service(value = ResourceProvider.class)
-@Property(name = ResourceProvider.ROOTS, value = { "/", "/group" })
-public class HomeResourceProvider implements ResourceProvider {
+@Service(value = { ResourceProvider.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = ResourceProvider.ROOTS, value = { "/", "/group" }),
+    @Property(name = HomeResourceProvider.CACHE_SIZE, intValue = HomeResourceProvider.DEFAULT_CACHE_SIZE, label = "%homeprovider.cache.size.name", description = "%homeprovider.cache.size.description"),
+    @Property(name = HomeResourceProvider.CACHE_NOT_FOUND_TTL, longValue = HomeResourceProvider.DEFAULT_CACHE_NOT_FOUND_TTL, label = "%homeprovider.cache.notFoundTtl.name", description = "%homeprovider.cache.notFoundTtl.description"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class HomeResourceProvider implements ResourceProvider, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(HomeResourceProvider.class);
   public static final String HOME_RESOURCE_PROVIDER = HomeResourceProvider.class
       .getName();
 
+  static final String CACHE_SIZE = "sakai.homeprovider.cache.size";
+  static final int DEFAULT_CACHE_SIZE = 10000;
+  static final String CACHE_NOT_FOUND_TTL = "sakai.homeprovider.cache.notFoundTtl";
+  static final long DEFAULT_CACHE_NOT_FOUND_TTL = 60000L;
+  private static final String AUTHORIZABLES_ROOT = "/rep:security/rep:authorizables/";
+  private static final String USERS_ROOT = "/rep:security/rep:authorizables/rep:users";
+  private static final String GROUPS_ROOT = "/rep:security/rep:authorizables/rep:groups";
+
+  @Reference
+  protected transient SlingRepository slingRepository;
+
+  /**
+   * The home path of each user and group id, and ids that are not users or groups.
+   */
+  protected ResolutionCache homePaths = new ResolutionCache(DEFAULT_CACHE_SIZE,
+      DEFAULT_CACHE_NOT_FOUND_TTL);
+  private ObjectName mbeanName;
+  /**
+   * An administrative session held to resolve ids, rather than logging in on each miss.
+   * Sessions are not thread safe, guarded by adminLock.
+   */
+  private Session adminSession;
+  private final Object adminLock = new Object();
+
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext context) {
+    Dictionary<String, Object> props = context.getProperties();
+    homePaths.configure(OsgiUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE),
+        OsgiUtil.toLong(props.get(CACHE_NOT_FOUND_TTL), DEFAULT_CACHE_NOT_FOUND_TTL));
+    try {
+      mbeanName = new ObjectName("org.sakaiproject.nakamura:type=ResolutionCache,name="
+          + HomeResourceProvider.class.getSimpleName());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(homePaths, mbeanName);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to register the home path cache with JMX: {}", e.getMessage());
+      mbeanName = null;
+    }
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+      } catch (Exception e) {
+        LOGGER.warn("Unable to unregister the home path cache from JMX: {}", e
+            .getMessage());
+      }
+      mbeanName = null;
+    }
+    homePaths.clear();
+    synchronized (adminLock) {
+      if (adminSession != null) {
+        adminSession.logout();
+        adminSession = null;
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the cached home path of a user or group when its node is added or removed.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && path.startsWith(AUTHORIZABLES_ROOT)) {
+      homePaths.invalidate(path.substring(path.lastIndexOf('/') + 1));
+    }
+  }
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
     LOGGER.info("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
@@ -91,43 +179,81 @@ public class HomeResourceProvider implements ResourceProvider {
         LOGGER.debug("Got Elements Path [{}] ", Arrays.toString(elements));
       }
       if (elements.length >= 1) {
-        Session session = resourceResolver.adaptTo(Session.class);
-        UserManager um = AccessControlUtil.getUserManager(session);
-        Authorizable a = um.getAuthorizable(elements[0]);
+        String homePath = getHomePath(elements[0]);
+        if (homePath != null) {
+          String userPath = homePath;
+          if (elements.length == 2) {
+            userPath = userPath + "/" + elements[1];
+          }
+          Resource r = resourceResolver.resolve(userPath);
+          LOGGER.debug("Resolving [{}] to [{}] ", userPath, r);
+          if (r != null) {
+            // are the last elements the same ?
+            if (getLastElement(r.getPath()).equals(getLastElement(subPath))) {
+              r.getResourceMetadata().put(HomeResourceProvider.HOME_RESOURCE_PROVIDER,
+                  this);
+              return r;
+            } else {
+              if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Rejected [{}] != [{}] ", getLastElement(r.getPath()),
+                    getLastElement(subPath));
+              }
+            }
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param id
+   *          a user or group id.
+   * @return the home path of the user or group, or null if the id is neither.
+   * @throws RepositoryException
+   */
+  private String getHomePath(String id) throws RepositoryException {
+    String homePath = homePaths.get(id);
+    if (homePath != null) {
+      return homePath == ResolutionCache.NOT_FOUND ? null : homePath;
+    }
+    long start = System.nanoTime();
+    // resolved as admin, so that what is cached does not depend on who asked.
+    String principalPath = null;
+    boolean group = false;
+    synchronized (adminLock) {
+      if (adminSession == null) {
+        adminSession = slingRepository.loginAdministrative(null);
+      }
+      try {
+        adminSession.refresh(false);
+        Authorizable a = AccessControlUtil.getUserManager(adminSession).getAuthorizable(
+            id);
         if (a != null) {
           Principal p = a.getPrincipal();
           if (p instanceof ItemBasedPrincipal) {
-            ItemBasedPrincipal ibp = (ItemBasedPrincipal) p;
-            String principalPathStart = "/rep:security/rep:authorizables/rep:users";
-            String targetStart = "/_user";
-            if (a.isGroup()) {
-              principalPathStart = "/rep:security/rep:authorizables/rep:groups";
-              targetStart = "/_group";
-            }
-            String userPath = targetStart
-                + ibp.getPath().substring(principalPathStart.length());
-            if (elements.length == 2) {
-              userPath = userPath + "/" + elements[1];
-            }
-            Resource r = resourceResolver.resolve(userPath);
-            LOGGER.debug("Resolving [{}] to [{}] ", userPath, r);
-            if (r != null) {
-              // are the last elements the same ?
-              if (getLastElement(r.getPath()).equals(getLastElement(subPath))) {
-                r.getResourceMetadata().put(HomeResourceProvider.HOME_RESOURCE_PROVIDER,
-                    this);
-                return r;
-              } else {
-                if (LOGGER.isDebugEnabled()) {
-                  LOGGER.debug("Rejected [{}] != [{}] ", getLastElement(r.getPath()),
-                      getLastElement(subPath));
-                }
-              }
-            }
+            principalPath = ((ItemBasedPrincipal) p).getPath();
+            group = a.isGroup();
           }
         }
+      } catch (RepositoryException e) {
+        adminSession.logout();
+        adminSession = null;
+        throw e;
+      }
+    }
+    if (principalPath != null) {
+      String principalPathStart = USERS_ROOT;
+      String targetStart = "/_user";
+      if (group) {
+        principalPathStart = GROUPS_ROOT;
+        targetStart = "/_group";
       }
+      homePath = targetStart + principalPath.substring(principalPathStart.length());
+      homePaths.put(id, homePath, System.nanoTime() - start);
+      return homePath;
     }
+    homePaths.putNotFound(id, System.nanoTime() - start);
     return null;
   }
 
@@ -20,6 +20,8 @@ package org.sakaiproject.nakamura.api.profile;
 import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.sling.api.resource.ValueMap;
 
+import java.util.List;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -81,6 +83,17 @@ public interface ProfileService {
    */
   ValueMap getProfileMap(Node profileNode) throws RepositoryException;
 
+  /**
+   * Starts fetching the external resources of a number of profiles, without waiting for
+   * them, so that a following {@link #getProfileMap(Node)} or
+   * {@link #getCompactProfileMap(Node)} for those profiles does not have to. Use this
+   * before writing out a page of search results.
+   *
+   * @param profileNodes
+   *          The nodes that represent the top level profile nodes.
+   */
+  void prefetchProfiles(List<Node> profileNodes) throws RepositoryException;
+
   /**
    * Gets the compact profile information from JCR and expands external resources
    * efficiently.
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Provider settings that can be handed to a provider on another thread. The settings and
+ * the provider configuration are copied on the calling thread, so the nodes of the
+ * calling session are not used once the copy is made. The profile node is looked up
+ * again in the session of the thread that calls the provider, see {@link #attach(Session)}.
+ */
+class DetachedProviderSettings implements ProviderSettings {
+
+  private final String provider;
+  private final String path;
+  private final Map<String, String[]> profileSettings;
+  private final Map<String, String[]> providerConfig;
+  private Node node;
+
+  /**
+   * Copy settings, on the thread that owns the session of their nodes.
+   */
+  DetachedProviderSettings(ProviderSettings settings) throws RepositoryException {
+    provider = settings.getProvider();
+    path = settings.getNode().getPath();
+    if (settings instanceof ProviderSettingsImpl) {
+      profileSettings = copyProperties(((ProviderSettingsImpl) settings).getSettingsNode());
+      providerConfig = copyProperties(((ProviderSettingsImpl) settings).getProviderNode());
+    } else {
+      profileSettings = new HashMap<String, String[]>();
+      providerConfig = new HashMap<String, String[]>();
+    }
+  }
+
+  private static Map<String, String[]> copyProperties(Node node)
+      throws RepositoryException {
+    Map<String, String[]> properties = new HashMap<String, String[]>();
+    if (node == null) {
+      return properties;
+    }
+    for (PropertyIterator pi = node.getProperties(); pi.hasNext();) {
+      Property property = pi.nextProperty();
+      if (property.getType() == PropertyType.BINARY) {
+        continue;
+      }
+      Value[] values = property.isMultiple() ? property.getValues()
+          : new Value[] { property.getValue() };
+      String[] strings = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        strings[i] = values[i].getString();
+      }
+      properties.put(property.getName(), strings);
+    }
+    return properties;
+  }
+
+  /**
+   * Look up the profile node in the session that the provider will be called with.
+   *
+   * @return false if the session can not see the node.
+   * @throws RepositoryException
+   */
+  boolean attach(Session session) throws RepositoryException {
+    if (!session.nodeExists(path)) {
+      return false;
+    }
+    node = session.getNode(path);
+    return true;
+  }
+
+  /**
+   * @return the path of the profile node.
+   */
+  String getPath() {
+    return path;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProviderSettings#getProvider()
+   */
+  public String getProvider() {
+    return provider;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProviderSettings#getProviderConfigProperty(java.lang.String)
+   */
+  public String[] getProviderConfigProperty(String propertyName) {
+    return get(providerConfig, propertyName);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProviderSettings#getProfileSettingsProperty(java.lang.String)
+   */
+  public String[] getProfileSettingsProperty(String propertyName) {
+    return get(profileSettings, propertyName);
+  }
+
+  private String[] get(Map<String, String[]> properties, String propertyName) {
+    String[] values = properties.get(propertyName);
+    return values == null ? new String[0] : values.clone();
+  }
+
+  /**
+   * {@inheritDoc}
+   * The node in the session the settings were attached to.
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProviderSettings#getNode()
+   */
+  public Node getNode() {
+    return node;
+  }
+}
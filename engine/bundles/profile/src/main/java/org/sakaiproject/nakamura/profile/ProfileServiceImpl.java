@@ -30,6 +30,8 @@ import static org.sakaiproject.nakamura.api.profile.ProfileConstants.USER_PICTUR
 import static org.sakaiproject.nakamura.api.profile.ProfileConstants.USER_PROFILE_RT;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
@@ -41,23 +43,38 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrPropertyMap;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
+import org.sakaiproject.nakamura.util.ImmediateFuture;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -65,16 +82,177 @@ import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
 /**
- *
+ * Profile providers are run on a bounded pool of threads, a provider that does not
+ * answer within its timeout is ignored and the JCR data is used instead. What the
+ * providers return is held for a time to live, and served while it is refreshed for a
+ * while after that.
  */
-@Component(immediate = true, specVersion = "1.1")
+@Component(immediate = true, metatype = true, specVersion = "1.1")
 @Service(value = ProfileService.class)
 @References(value = { @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider") })
+@Properties(value = {
+    @Property(name = ProfileServiceImpl.PROVIDER_THREADS, intValue = ProfileServiceImpl.DEFAULT_PROVIDER_THREADS),
+    @Property(name = ProfileServiceImpl.PROVIDER_QUEUE, intValue = ProfileServiceImpl.DEFAULT_PROVIDER_QUEUE),
+    @Property(name = ProfileServiceImpl.PROVIDER_TIMEOUT, longValue = ProfileServiceImpl.DEFAULT_PROVIDER_TIMEOUT),
+    @Property(name = ProfileServiceImpl.PROVIDER_TIMEOUTS, value = {}),
+    @Property(name = ProfileServiceImpl.CACHE_SIZE, intValue = ProfileServiceImpl.DEFAULT_CACHE_SIZE),
+    @Property(name = ProfileServiceImpl.CACHE_TTL, longValue = ProfileServiceImpl.DEFAULT_CACHE_TTL),
+    @Property(name = ProfileServiceImpl.CACHE_STALE_TTL, longValue = ProfileServiceImpl.DEFAULT_CACHE_STALE_TTL) })
 public class ProfileServiceImpl implements ProfileService {
 
+  /**
+   * The number of threads that run profile providers.
+   */
+  static final String PROVIDER_THREADS = "sakai.profile.providers.threads";
+  static final int DEFAULT_PROVIDER_THREADS = 10;
+  /**
+   * The number of provider calls that may wait for a thread, beyond that the JCR data is
+   * used.
+   */
+  static final String PROVIDER_QUEUE = "sakai.profile.providers.queue";
+  static final int DEFAULT_PROVIDER_QUEUE = 200;
+  /**
+   * How long to wait for a provider, in ms.
+   */
+  static final String PROVIDER_TIMEOUT = "sakai.profile.providers.timeout";
+  static final long DEFAULT_PROVIDER_TIMEOUT = 2000L;
+  /**
+   * Timeouts for individual providers, as providername=ms.
+   */
+  static final String PROVIDER_TIMEOUTS = "sakai.profile.providers.timeouts";
+  /**
+   * The most provider results to hold.
+   */
+  static final String CACHE_SIZE = "sakai.profile.providers.cache.size";
+  static final int DEFAULT_CACHE_SIZE = 5000;
+  /**
+   * How long a provider result is used without asking the provider again, in ms.
+   */
+  static final String CACHE_TTL = "sakai.profile.providers.cache.ttl";
+  static final long DEFAULT_CACHE_TTL = 300000L;
+  /**
+   * How long a provider result may be used while it is refreshed, in ms.
+   */
+  static final String CACHE_STALE_TTL = "sakai.profile.providers.cache.staleTtl";
+  static final long DEFAULT_CACHE_STALE_TTL = 3600000L;
+
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
+
+  /**
+   * Providers run on the executor are given nodes from a session of their own, as the
+   * session of the request is not safe to use from another thread.
+   */
+  @Reference
+  protected SlingRepository slingRepository;
   public static final Logger LOG = LoggerFactory.getLogger(ProfileServiceImpl.class);
+
+  /**
+   * Runs the providers, null when the component is not active, in which case providers
+   * are run by the calling thread.
+   */
+  private ThreadPoolExecutor executor;
+  private long providerTimeout = DEFAULT_PROVIDER_TIMEOUT;
+  private Map<String, Long> providerTimeouts = new HashMap<String, Long>();
+  protected ProviderResultCache resultCache = new ProviderResultCache(DEFAULT_CACHE_SIZE,
+      DEFAULT_CACHE_TTL, DEFAULT_CACHE_STALE_TTL);
+  /**
+   * Provider calls that have been submitted and not finished, by cache key, so that
+   * concurrent requests for the same profile wait for the same call.
+   */
+  private ConcurrentMap<String, ProvidedFuture> pending = new ConcurrentHashMap<String, ProvidedFuture>();
+
+  /**
+   * What a provider returned for one node, taken from a call made for a list of nodes.
+   */
+  private static class ProvidedFuture implements Future<Map<String, Object>> {
+    private final Future<Map<String, Map<String, Object>>> call;
+    private final String path;
+    private final long deadline;
+
+    ProvidedFuture(Future<Map<String, Map<String, Object>>> call, String path,
+        long deadline) {
+      this.call = call;
+      this.path = path;
+      this.deadline = deadline;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      // the call is shared with other nodes.
+      return false;
+    }
+
+    public Map<String, Object> get() throws InterruptedException, ExecutionException {
+      return call.get().get(path);
+    }
+
+    public Map<String, Object> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return call.get(timeout, unit).get(path);
+    }
+
+    public boolean isCancelled() {
+      return call.isCancelled();
+    }
+
+    public boolean isDone() {
+      return call.isDone();
+    }
+
+    /**
+     * @return the time left before the provider timeout, in ms.
+     */
+    long getRemaining() {
+      return Math.max(0, deadline - System.currentTimeMillis());
+    }
+  }
+
+  protected void activate(ComponentContext context) {
+    Dictionary<?, ?> properties = context.getProperties();
+    int threads = OsgiUtil.toInteger(properties.get(PROVIDER_THREADS),
+        DEFAULT_PROVIDER_THREADS);
+    int queue = OsgiUtil.toInteger(properties.get(PROVIDER_QUEUE), DEFAULT_PROVIDER_QUEUE);
+    providerTimeout = OsgiUtil.toLong(properties.get(PROVIDER_TIMEOUT),
+        DEFAULT_PROVIDER_TIMEOUT);
+    Map<String, Long> timeouts = new HashMap<String, Long>();
+    for (String timeout : OsgiUtil.toStringArray(properties.get(PROVIDER_TIMEOUTS),
+        new String[0])) {
+      int i = timeout.indexOf('=');
+      if (i > 0) {
+        try {
+          timeouts.put(timeout.substring(0, i).trim(), Long.valueOf(timeout.substring(
+              i + 1).trim()));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring provider timeout {}, not a number of ms", timeout);
+        }
+      }
+    }
+    providerTimeouts = timeouts;
+    resultCache.configure(OsgiUtil.toInteger(properties.get(CACHE_SIZE),
+        DEFAULT_CACHE_SIZE), OsgiUtil.toLong(properties.get(CACHE_TTL),
+        DEFAULT_CACHE_TTL), OsgiUtil.toLong(properties.get(CACHE_STALE_TTL),
+        DEFAULT_CACHE_STALE_TTL));
+
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ProfileProvider-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    pending.clear();
+    resultCache.clear();
+  }
   /**
    * {@inheritDoc}
    *
@@ -146,13 +324,7 @@ public class ProfileServiceImpl implements ProfileService {
   public ValueMap getProfileMap(Node profileNode) throws RepositoryException {
     // Get the data from our external providers.
     Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileNode);
-    Map<Node, Future<Map<String, Object>>> providedNodeData = new HashMap<Node, Future<Map<String, Object>>>();
-    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
-      ProfileProvider pp = providers.get(e.getKey());
-      if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
-      }
-    }
+    Map<Node, Future<Map<String, Object>>> providedNodeData = getProvided(providersMap);
     try {
       // Return it as a ValueMap.
       ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
@@ -165,6 +337,205 @@ public class ProfileServiceImpl implements ProfileService {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileService#prefetchProfiles(java.util.List)
+   */
+  public void prefetchProfiles(List<Node> profileNodes) throws RepositoryException {
+    Map<String, List<ProviderSettings>> providersMap = new HashMap<String, List<ProviderSettings>>();
+    for (Node profileNode : profileNodes) {
+      scanForProviders("", profileNode, providersMap);
+    }
+    getProvided(providersMap);
+  }
+
+  /**
+   * Gets what the providers have for the nodes, from the cache where possible. Stale
+   * results are returned as they are and refreshed in the background, nodes that are
+   * being fetched already wait for that call.
+   *
+   * @param providersMap
+   *          The nodes to get, by provider name.
+   * @return The provider data, by node.
+   * @throws RepositoryException
+   */
+  private Map<Node, Future<Map<String, Object>>> getProvided(
+      Map<String, List<ProviderSettings>> providersMap) throws RepositoryException {
+    Map<Node, Future<Map<String, Object>>> provided = new HashMap<Node, Future<Map<String, Object>>>();
+    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
+      String name = e.getKey();
+      ProfileProvider pp = providers.get(name);
+      if (pp == null) {
+        continue;
+      }
+      List<ProviderSettings> load = new ArrayList<ProviderSettings>();
+      List<ProviderSettings> refresh = new ArrayList<ProviderSettings>();
+      for (ProviderSettings settings : e.getValue()) {
+        Node node = settings.getNode();
+        String key = getCacheKey(name, node.getPath());
+        ProviderResultCache.Result result = resultCache.get(key);
+        if (result != null) {
+          provided.put(node, new ImmediateFuture<Map<String, Object>>(result.getData()));
+          if (!resultCache.isFresh(result) && !pending.containsKey(key)) {
+            refresh.add(settings);
+          }
+        } else {
+          ProvidedFuture future = pending.get(key);
+          if (future != null) {
+            provided.put(node, future);
+          } else {
+            load.add(settings);
+          }
+        }
+      }
+      provided.putAll(callProvider(name, pp, load));
+      callProvider(name, pp, refresh);
+    }
+    return provided;
+  }
+
+  /**
+   * Calls a provider for a list of nodes on the provider executor, or on this thread if
+   * there is no executor. What the provider returns is put in the cache. Nodes of the
+   * calling session never leave this thread: the executor is given copies of the
+   * settings, which are attached to an administrative session of the provider thread.
+   *
+   * @param name
+   *          The provider name.
+   * @param pp
+   *          The provider.
+   * @param settings
+   *          The nodes to call the provider for.
+   * @return The provider data, by node. Empty if the executor is too busy to take the
+   *         call.
+   * @throws RepositoryException
+   */
+  private Map<Node, Future<Map<String, Object>>> callProvider(final String name,
+      final ProfileProvider pp, final List<ProviderSettings> settings)
+      throws RepositoryException {
+    Map<Node, Future<Map<String, Object>>> provided = new HashMap<Node, Future<Map<String, Object>>>();
+    if (settings.isEmpty()) {
+      return provided;
+    }
+    final long timeout = getProviderTimeout(name);
+    final Map<String, ProvidedFuture> submitted = new HashMap<String, ProvidedFuture>();
+    ThreadPoolExecutor runner = executor;
+    Callable<Map<String, Map<String, Object>>> body;
+    if (runner == null) {
+      body = new Callable<Map<String, Map<String, Object>>>() {
+        public Map<String, Map<String, Object>> call() throws Exception {
+          return callProvider(name, pp, settings, timeout);
+        }
+      };
+    } else {
+      final List<DetachedProviderSettings> detached = new ArrayList<DetachedProviderSettings>();
+      for (ProviderSettings s : settings) {
+        detached.add(new DetachedProviderSettings(s));
+      }
+      body = new Callable<Map<String, Map<String, Object>>>() {
+        public Map<String, Map<String, Object>> call() throws Exception {
+          Session session = slingRepository.loginAdministrative(null);
+          try {
+            List<ProviderSettings> attached = new ArrayList<ProviderSettings>();
+            for (DetachedProviderSettings s : detached) {
+              if (s.attach(session)) {
+                attached.add(s);
+              } else {
+                LOG.warn("Profile node {} has gone, not calling provider {} for it",
+                    s.getPath(), name);
+              }
+            }
+            return callProvider(name, pp, attached, timeout);
+          } finally {
+            session.logout();
+          }
+        }
+      };
+    }
+    final Callable<Map<String, Map<String, Object>>> work = body;
+    FutureTask<Map<String, Map<String, Object>>> call = new FutureTask<Map<String, Map<String, Object>>>(
+        new Callable<Map<String, Map<String, Object>>>() {
+          public Map<String, Map<String, Object>> call() throws Exception {
+            try {
+              return work.call();
+            } finally {
+              for (Entry<String, ProvidedFuture> e : submitted.entrySet()) {
+                pending.remove(e.getKey(), e.getValue());
+              }
+            }
+          }
+        });
+    long deadline = System.currentTimeMillis() + timeout;
+    for (ProviderSettings s : settings) {
+      Node node = s.getNode();
+      String path = node.getPath();
+      ProvidedFuture future = new ProvidedFuture(call, path, deadline);
+      String key = getCacheKey(name, path);
+      submitted.put(key, future);
+      pending.put(key, future);
+      provided.put(node, future);
+    }
+    if (runner == null) {
+      call.run();
+    } else {
+      try {
+        runner.execute(call);
+      } catch (RejectedExecutionException e) {
+        LOG.warn("Too many profile provider calls waiting, not calling {} for {} nodes",
+            name, settings.size());
+        for (Entry<String, ProvidedFuture> s : submitted.entrySet()) {
+          pending.remove(s.getKey(), s.getValue());
+        }
+        provided.clear();
+      }
+    }
+    return provided;
+  }
+
+  /**
+   * Calls a provider and waits for what it returns, on the thread that owns the session
+   * of the settings nodes.
+   *
+   * @return The provider data, by node path.
+   * @throws RepositoryException
+   */
+  private Map<String, Map<String, Object>> callProvider(String name, ProfileProvider pp,
+      List<ProviderSettings> settings, long timeout) throws RepositoryException,
+      InterruptedException {
+    Map<String, Map<String, Object>> results = new HashMap<String, Map<String, Object>>();
+    if (settings.isEmpty()) {
+      return results;
+    }
+    for (Entry<? extends Node, ? extends Future<Map<String, Object>>> e : pp
+        .getProvidedMap(settings).entrySet()) {
+      String path = e.getKey().getPath();
+      try {
+        Map<String, Object> data = e.getValue().get(timeout, TimeUnit.MILLISECONDS);
+        if (data != null) {
+          results.put(path, data);
+          resultCache.put(getCacheKey(name, path), data);
+        }
+      } catch (TimeoutException ex) {
+        LOG.warn("Profile provider {} did not answer for {} within {} ms",
+            new Object[] { name, path, timeout });
+      } catch (ExecutionException ex) {
+        LOG.warn("Profile provider {} failed for {}: {}", new Object[] { name, path,
+            ex.getMessage() });
+      }
+    }
+    return results;
+  }
+
+  private long getProviderTimeout(String name) {
+    Long timeout = providerTimeouts.get(name);
+    return timeout == null ? providerTimeout : timeout;
+  }
+
+  private String getCacheKey(String provider, String path) {
+    return provider + ":" + path;
+  }
+
   /**
    * Fills the provided map with the JCR info and the external information.
    *
@@ -184,9 +555,13 @@ public class ProfileServiceImpl implements ProfileService {
       ExecutionException {
     // If our map contains this node, that means one of the provides had some information
     // for it.
-    // We will use the provider.
+    // We will use the provider, unless it did not answer in time.
+    Map<String, Object> provided = null;
     if (baseMap.containsKey(node)) {
-      map.putAll(baseMap.get(node).get());
+      provided = waitForProvider(node, baseMap.get(node));
+    }
+    if (provided != null) {
+      map.putAll(provided);
     } else {
 
       // The node wasn't found in the baseMap.
@@ -207,6 +582,36 @@ public class ProfileServiceImpl implements ProfileService {
     }
   }
 
+  /**
+   * Waits for a provider for no longer than the provider timeout.
+   *
+   * @param node
+   *          The node the provider was called for.
+   * @param future
+   *          The provider result.
+   * @return What the provider returned, or null if it failed or did not answer in time.
+   * @throws RepositoryException
+   * @throws InterruptedException
+   */
+  private Map<String, Object> waitForProvider(Node node,
+      Future<Map<String, Object>> future)
+      throws RepositoryException, InterruptedException {
+    long timeout = providerTimeout;
+    if (future instanceof ProvidedFuture) {
+      timeout = ((ProvidedFuture) future).getRemaining();
+    }
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOG.warn("Profile provider did not answer in time for {}, using the stored profile",
+          node.getPath());
+    } catch (ExecutionException e) {
+      LOG.warn("Profile provider failed for {}, using the stored profile: {}", node
+          .getPath(), e.getMessage());
+    }
+    return null;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds what profile providers returned for profile nodes, least recently used first
+ * out. A result is fresh for a time to live, after that it is stale and may still be
+ * served while it is refreshed, until it is past the stale time to live.
+ */
+public class ProviderResultCache {
+
+  /**
+   * A result and when it was provided.
+   */
+  public static class Result {
+    private final Map<String, Object> data;
+    private final long provided;
+
+    Result(Map<String, Object> data, long provided) {
+      this.data = Collections.unmodifiableMap(data);
+      this.provided = provided;
+    }
+
+    public Map<String, Object> getData() {
+      return data;
+    }
+
+    public long getProvided() {
+      return provided;
+    }
+  }
+
+  private final LinkedHashMap<String, Result> results = new LinkedHashMap<String, Result>(
+      16, 0.75f, true);
+  private int maxEntries;
+  private long ttl;
+  private long staleTtl;
+
+  /**
+   * @param maxEntries
+   *          the most results to hold.
+   * @param ttl
+   *          how long a result is fresh, in ms.
+   * @param staleTtl
+   *          how long a result may be served while it is refreshed, in ms.
+   */
+  public ProviderResultCache(int maxEntries, long ttl, long staleTtl) {
+    configure(maxEntries, ttl, staleTtl);
+  }
+
+  public synchronized void configure(int maxEntries, long ttl, long staleTtl) {
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    this.staleTtl = Math.max(ttl, staleTtl);
+    trim();
+  }
+
+  /**
+   * @param key
+   *          the provider and node path.
+   * @return the result, fresh or stale, or null if there is none that can be served.
+   */
+  public synchronized Result get(String key) {
+    Result result = results.get(key);
+    if (result != null && System.currentTimeMillis() - result.provided > staleTtl) {
+      results.remove(key);
+      result = null;
+    }
+    return result;
+  }
+
+  /**
+   * @param result
+   * @return true if the result is within its time to live.
+   */
+  public synchronized boolean isFresh(Result result) {
+    return System.currentTimeMillis() - result.provided <= ttl;
+  }
+
+  public synchronized void put(String key, Map<String, Object> data) {
+    results.put(key, new Result(data, System.currentTimeMillis()));
+    trim();
+  }
+
+  public synchronized int size() {
+    return results.size();
+  }
+
+  public synchronized void clear() {
+    results.clear();
+  }
+
+  private void trim() {
+    Iterator<Result> i = results.values().iterator();
+    while (results.size() > maxEntries && i.hasNext()) {
+      i.next();
+      i.remove();
+    }
+  }
+}
@@ -110,4 +110,18 @@ public class ProviderSettingsImpl implements ProviderSettings {
     return profileNode;
   }
 
+  /**
+   * @return the node holding the settings for the profile node.
+   */
+  Node getSettingsNode() {
+    return settingsNode;
+  }
+
+  /**
+   * @return the node holding the provider configuration, null if there is none.
+   */
+  Node getProviderNode() {
+    return providerNode;
+  }
+
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ *
+ */
+public class DetachedProviderSettingsTest {
+
+  @Test
+  public void testCopiesAndAttaches() throws RepositoryException {
+    Node profileNode = Mockito.mock(Node.class);
+    Mockito.when(profileNode.getPath()).thenReturn("/_user/a/profile/external");
+    Node settingsNode = Mockito.mock(Node.class);
+    Node providerNode = Mockito.mock(Node.class);
+    PropertyIterator settingsProperties = properties(property("settings1", "s1", "s2"));
+    Mockito.when(settingsNode.getProperties()).thenReturn(settingsProperties);
+    PropertyIterator providerProperties = properties(property("config1", "c1"));
+    Mockito.when(providerNode.getProperties()).thenReturn(providerProperties);
+
+    ProviderSettingsImpl settings = Mockito.mock(ProviderSettingsImpl.class);
+    Mockito.when(settings.getProvider()).thenReturn("testprovider");
+    Mockito.when(settings.getNode()).thenReturn(profileNode);
+    Mockito.when(settings.getSettingsNode()).thenReturn(settingsNode);
+    Mockito.when(settings.getProviderNode()).thenReturn(providerNode);
+
+    DetachedProviderSettings detached = new DetachedProviderSettings(settings);
+    // the original nodes are not used once copied.
+    Mockito.reset(profileNode, settingsNode, providerNode);
+
+    Assert.assertEquals("testprovider", detached.getProvider());
+    Assert.assertArrayEquals(new String[] { "s1", "s2" }, detached
+        .getProfileSettingsProperty("settings1"));
+    Assert.assertArrayEquals(new String[] { "c1" }, detached
+        .getProviderConfigProperty("config1"));
+    Assert.assertArrayEquals(new String[] {}, detached.getProviderConfigProperty("config2"));
+    Assert.assertNull(detached.getNode());
+
+    Session session = Mockito.mock(Session.class);
+    Node workerNode = Mockito.mock(Node.class);
+    Mockito.when(session.nodeExists("/_user/a/profile/external")).thenReturn(true);
+    Mockito.when(session.getNode("/_user/a/profile/external")).thenReturn(workerNode);
+    Assert.assertTrue(detached.attach(session));
+    Assert.assertSame(workerNode, detached.getNode());
+
+    Assert.assertFalse(detached.attach(Mockito.mock(Session.class)));
+  }
+
+  private Property property(String name, String... values) throws RepositoryException {
+    Property property = Mockito.mock(Property.class);
+    Mockito.when(property.getName()).thenReturn(name);
+    Mockito.when(property.getType()).thenReturn(PropertyType.STRING);
+    Value[] v = new Value[values.length];
+    for (int i = 0; i < values.length; i++) {
+      v[i] = Mockito.mock(Value.class);
+      Mockito.when(v[i].getString()).thenReturn(values[i]);
+    }
+    Mockito.when(property.isMultiple()).thenReturn(values.length > 1);
+    if (values.length > 1) {
+      Mockito.when(property.getValues()).thenReturn(v);
+    } else {
+      Mockito.when(property.getValue()).thenReturn(v[0]);
+    }
+    return property;
+  }
+
+  private PropertyIterator properties(Property... properties) {
+    PropertyIterator iterator = Mockito.mock(PropertyIterator.class);
+    Boolean[] more = new Boolean[properties.length];
+    for (int i = 0; i < more.length; i++) {
+      more[i] = i + 1 < properties.length;
+    }
+    Mockito.when(iterator.hasNext()).thenReturn(true, more);
+    Property[] rest = new Property[properties.length - 1];
+    System.arraycopy(properties, 1, rest, 0, rest.length);
+    Mockito.when(iterator.nextProperty()).thenReturn(properties[0], rest);
+    return iterator;
+  }
+}
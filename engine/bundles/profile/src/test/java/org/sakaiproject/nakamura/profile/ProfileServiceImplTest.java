@@ -40,6 +40,8 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -115,6 +117,62 @@ public class ProfileServiceImplTest {
     Assert.assertNull(valueMap);
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testProviderResultIsCached() throws Exception {
+    ProfileService ps = setupProfileService();
+    ps.getProfileMap(getBaseNode());
+
+    rescanProfile();
+    StringWriter w = new StringWriter();
+    new ExtendedJSONWriter(w).valueMap(ps.getProfileMap(getBaseNode()));
+    checkResponse(w);
+    Mockito.verify(profileProvider, Mockito.times(1)).getProvidedMap(Mockito.anyList());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testStaleResultIsServedWhileRefreshed() throws Exception {
+    ProfileServiceImpl ps = (ProfileServiceImpl) setupProfileService();
+    // every result is stale as soon as it is provided.
+    ps.resultCache.configure(10, -1, 3600000L);
+    ps.getProfileMap(getBaseNode());
+
+    // the refresh does not answer, the stale result is used.
+    rescanProfile();
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenThrow(
+        new TimeoutException());
+    StringWriter w = new StringWriter();
+    new ExtendedJSONWriter(w).valueMap(ps.getProfileMap(getBaseNode()));
+    checkResponse(w);
+    Mockito.verify(profileProvider, Mockito.times(2)).getProvidedMap(Mockito.anyList());
+  }
+
+  @Test
+  public void testTimeoutFallsBackToStoredProfile() throws Exception {
+    ProfileService ps = setupProfileService();
+    dumpNodeProperties(external, "externalproperties", "storedvalue");
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenThrow(
+        new TimeoutException());
+
+    ValueMap map = ps.getProfileMap(getBaseNode());
+    ValueMap externalMap = (ValueMap) map.get("externalNode");
+    Assert.assertEquals("storedvalue", externalMap.get("externalproperties"));
+    Assert.assertFalse(externalMap.containsKey("externalObject"));
+  }
+
+  /**
+   * Lets the mocked profile be walked again.
+   */
+  private void rescanProfile() throws RepositoryException {
+    Mockito.when(nodeIterator.hasNext()).thenReturn(true, true, true, false, true, true,
+        true, false);
+    Mockito.when(nodeIterator.nextNode()).thenReturn(normal, external, normal2, normal,
+        external, normal2);
+    ExternalNodeConfig.configExternal(external, "externalNode", "",
+        "externalNodeProvider", "/var/profile/config/ldap");
+  }
+
   /**
    * @return
    */
@@ -182,6 +240,7 @@ public class ProfileServiceImplTest {
     ExternalNodeConfig.configExternal(external, "externalNode", "",
         "externalNodeProvider", "/var/profile/config/ldap");
     Mockito.when(baseNode.getPath()).thenReturn("/_user/i/ie/ieb/profile");
+    Mockito.when(external.getPath()).thenReturn("/_user/i/ie/ieb/profile/externalNode");
     Mockito.when(baseNode.getName()).thenReturn("profile");
     Mockito.when(normal.getName()).thenReturn("normal");
     Mockito.when(normal2.getName()).thenReturn("normal2");
@@ -202,6 +261,8 @@ public class ProfileServiceImplTest {
     externalMap.put("subtreeprop", "subtreevalue");
     externalNodeMap.put("externalObject", externalMap);
     Mockito.when(future.get()).thenReturn(externalNodeMap);
+    Mockito.when(future.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenReturn(
+        externalNodeMap);
 
     Mockito.when(profileProvider.getProvidedMap(Mockito.anyList())).thenAnswer(
         new Answer<Map<Node, Future<Map<String, Object>>>>() {
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProviderResultCacheTest {
+
+  @Test
+  public void testFreshAndStale() throws Exception {
+    ProviderResultCache cache = new ProviderResultCache(10, 60000L, 120000L);
+    Assert.assertNull(cache.get("ldap:/a"));
+    cache.put("ldap:/a", data("a"));
+    ProviderResultCache.Result result = cache.get("ldap:/a");
+    Assert.assertEquals("a", result.getData().get("name"));
+    Assert.assertTrue(cache.isFresh(result));
+
+    // past its time to live, but within the stale time to live.
+    cache.configure(10, -1, 120000L);
+    result = cache.get("ldap:/a");
+    Assert.assertNotNull(result);
+    Assert.assertFalse(cache.isFresh(result));
+
+    // past both.
+    cache.configure(10, -1, -1);
+    Assert.assertNull(cache.get("ldap:/a"));
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsEvicted() throws Exception {
+    ProviderResultCache cache = new ProviderResultCache(2, 60000L, 120000L);
+    cache.put("ldap:/a", data("a"));
+    cache.put("ldap:/b", data("b"));
+    cache.get("ldap:/a");
+    cache.put("ldap:/c", data("c"));
+    Assert.assertEquals(2, cache.size());
+    Assert.assertNotNull(cache.get("ldap:/a"));
+    Assert.assertNull(cache.get("ldap:/b"));
+    Assert.assertNotNull(cache.get("ldap:/c"));
+  }
+
+  private Map<String, Object> data(String name) {
+    Map<String, Object> data = new HashMap<String, Object>();
+    data.put("name", name);
+    return data;
+  }
+}
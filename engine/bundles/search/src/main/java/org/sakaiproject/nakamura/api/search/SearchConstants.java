@@ -41,6 +41,10 @@ public interface SearchConstants {
    * The frequency of the aggregate term.
    */
   public static final String JSON_COUNT = "count";
+  /**
+   * True when the totals were counted over only the first results of the query.
+   */
+  public static final String JSON_TOTALS_TRUNCATED = "totalsTruncated";
   
   /**
    * The maximum number of results to count before indicating that there are more than this number.
@@ -102,6 +106,22 @@ public interface SearchConstants {
    * child nodes of the result set will be inspected during the aggregation process.
    */
   public static final String SAKAI_AGGREGATE_CHILDREN = "sakai:aggregate-search-results-children";
+  /**
+   * A property of the search template where there are properties to aggregate, how many
+   * levels of child nodes below each result are inspected. Setting it implies
+   * {@link #SAKAI_AGGREGATE_CHILDREN}, which on its own inspects one level.
+   */
+  public static final String SAKAI_AGGREGATE_DEPTH = "sakai:aggregate-search-results-depth";
+  /**
+   * A property of the search template where there are properties to aggregate, the number
+   * of most frequent values listed for each property.
+   */
+  public static final String SAKAI_AGGREGATE_LIMIT = "sakai:aggregate-search-results-limit";
+  /**
+   * The number of values listed for each aggregated property when the template does not
+   * set {@link #SAKAI_AGGREGATE_LIMIT}.
+   */
+  public static final int DEFAULT_AGGREGATE_LIMIT = 100;
   /**
    * The default amount of items in a page.
    */
@@ -119,4 +139,27 @@ public interface SearchConstants {
    * this node and it's entire tree.
    */
   public static final String SAKAI_EXCLUDE_TREE = "sakai:search-exclude-tree";
+  /**
+   * A property of the search template naming the property its query is ordered by. If
+   * set, the template can be paged with a cursor instead of a page number.
+   */
+  public static final String SAKAI_CURSOR_PROPERTY = "sakai:cursor-property";
+  /**
+   * A property of the search template, ascending or descending, the order of the
+   * {@link #SAKAI_CURSOR_PROPERTY}. Defaults to ascending.
+   */
+  public static final String SAKAI_CURSOR_ORDER = "sakai:cursor-order";
+  /**
+   * The name of the placeholder in the query template that is replaced by the constraint
+   * that resumes the query after the cursor, used as {_cursor?}.
+   */
+  public static final String CURSOR_CONSTRAINT = "_cursor";
+  /**
+   * The request parameter holding the cursor a page of results starts after.
+   */
+  public static final String PARAMS_CURSOR = "cursor";
+  /**
+   * The cursor for the page after this one.
+   */
+  public static final String JSON_NEXT = "next";
 }
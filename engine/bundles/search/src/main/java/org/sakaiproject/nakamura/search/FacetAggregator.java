@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.sakaiproject.nakamura.api.search.Aggregator;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Counts the values of a set of properties, the facets, over the nodes of a result set.
+ * Each node is visited once and all the facets are counted on that visit, each facet
+ * keeps the most frequent values in a {@link FacetCounter} so the memory used does not
+ * grow with the number of distinct values. Optionally child nodes of each node are
+ * counted, to a fixed depth.
+ */
+public class FacetAggregator implements Aggregator {
+
+  private final String[] fields;
+  private final FacetCounter[] counters;
+  /**
+   * The levels of child nodes to count below each node added.
+   */
+  private final int depth;
+  /**
+   * The paths already counted, only kept when child nodes are counted as a child may also
+   * be a result.
+   */
+  private final Set<String> checked;
+  private long rows;
+  private boolean truncated;
+
+  /**
+   * @param fields
+   *          the properties to count.
+   * @param depth
+   *          the levels of child nodes to count, 0 counts only the nodes added.
+   * @param limit
+   *          the number of values listed for each property.
+   */
+  public FacetAggregator(String[] fields, int depth, int limit) {
+    this.fields = new String[fields.length];
+    System.arraycopy(fields, 0, this.fields, 0, fields.length);
+    counters = new FacetCounter[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      counters[i] = new FacetCounter(limit);
+    }
+    this.depth = depth;
+    checked = depth > 0 ? new HashSet<String>() : null;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.Aggregator#add(javax.jcr.Node)
+   */
+  public void add(Node node) throws RepositoryException {
+    if (checked != null && !checked.add(node.getPath())) {
+      return;
+    }
+    count(node);
+    if (depth > 0) {
+      addChildren(node, 1);
+    }
+  }
+
+  /**
+   * Add the nodes of a result set, up to a maximum.
+   *
+   * @param iterator
+   *          the rows of the result set.
+   * @param maxRows
+   *          the most rows to add, the rest are not counted.
+   * @return the number of rows added.
+   * @throws RepositoryException
+   */
+  public long addRows(RowIterator iterator, long maxRows) throws RepositoryException {
+    long n = 0;
+    while (n < maxRows && iterator.hasNext()) {
+      add(iterator.nextRow().getNode());
+      n++;
+    }
+    if (iterator.hasNext()) {
+      truncated = true;
+    }
+    rows += n;
+    return n;
+  }
+
+  private void addChildren(Node node, int level) throws RepositoryException {
+    for (NodeIterator ni = node.getNodes(); ni.hasNext();) {
+      Node child = ni.nextNode();
+      if (checked.add(child.getPath())) {
+        count(child);
+        if (level < depth) {
+          addChildren(child, level + 1);
+        }
+      }
+    }
+  }
+
+  private void count(Node node) throws RepositoryException {
+    for (int i = 0; i < fields.length; i++) {
+      if (node.hasProperty(fields[i])) {
+        Property property = node.getProperty(fields[i]);
+        if (property.isMultiple()) {
+          for (Value v : property.getValues()) {
+            counters[i].add(v.getString());
+          }
+        } else {
+          counters[i].add(property.getString());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of rows added with {@link #addRows(RowIterator, long)}.
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return true if the result set had more rows than were added.
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * @return true if no counts are estimates, see {@link FacetCounter#isExact()}.
+   */
+  public boolean isExact() {
+    for (FacetCounter counter : counters) {
+      if (!counter.isExact()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc} The values of each property are the most frequent, most frequent first.
+   *
+   * @see org.sakaiproject.nakamura.api.search.Aggregator#getAggregate()
+   */
+  public Map<String, Map<String, Integer>> getAggregate() {
+    Map<String, Map<String, Integer>> aggregate = new LinkedHashMap<String, Map<String, Integer>>();
+    for (int i = 0; i < fields.length; i++) {
+      aggregate.put(fields[i], counters[i].getTop());
+    }
+    return aggregate;
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+
+/**
+ * Computes the facet counts of search templates and caches them by template, user and
+ * query. The counts are made in one pass over the rows the query matches, not just the
+ * page being listed. An XPath query rooted at a path, eg /_user/a/alice//* as the files
+ * templates make from /{path}//* or /{_mySpace}//element(*, nt:file), covers that subtree,
+ * and its counts are dropped when a resource in the subtree is added, changed or removed.
+ * Other queries, eg //element(*, sakai:pooled-content), may match anywhere, so rather
+ * than being dropped on every change their counts are held for the time to live, which
+ * applies to all counts.
+ */
+@Component(immediate = true, metatype = true, label = "%facetcache.name", description = "%facetcache.description")
+@Service(value = { FacetCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = FacetCache.CACHE_SIZE, intValue = FacetCache.DEFAULT_CACHE_SIZE, label = "%facetcache.size.name", description = "%facetcache.size.description"),
+    @Property(name = FacetCache.CACHE_TTL, longValue = FacetCache.DEFAULT_CACHE_TTL, label = "%facetcache.ttl.name", description = "%facetcache.ttl.description"),
+    @Property(name = FacetCache.MAX_ROWS, longValue = FacetCache.DEFAULT_MAX_ROWS, label = "%facetcache.maxRows.name", description = "%facetcache.maxRows.description"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class FacetCache implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FacetCache.class);
+  private static final String XPATH_ROOT = "/jcr:root";
+  /**
+   * A step of an XPath location path that is a node name, one that is not a wildcard,
+   * function or predicate. The name may have ISO 9075 escapes, eg _x0031_.
+   */
+  private static final Pattern NAME_STEP = Pattern.compile("[A-Za-z0-9:._\\-]+");
+
+  static final String CACHE_SIZE = "sakai.search.facets.cache.size";
+  static final int DEFAULT_CACHE_SIZE = 500;
+  static final String CACHE_TTL = "sakai.search.facets.cache.ttl";
+  static final long DEFAULT_CACHE_TTL = 60000L;
+  /**
+   * Counting reads every row up to this limit on the request thread, at roughly a
+   * millisecond a row when the nodes are not in memory, so this bounds the time a
+   * request with facets can take. The default is the most results the search servlet
+   * lists, which also limits the rows counted.
+   */
+  static final String MAX_ROWS = "sakai.search.facets.maxRows";
+  static final long DEFAULT_MAX_ROWS = 2500L;
+
+  /**
+   * Counts by template path, user and query, scoped by the subtree the query covers.
+   */
+  private final GenerationCache<Facets, String> cache = new GenerationCache<Facets, String>(
+      DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+  private volatile long maxRows = DEFAULT_MAX_ROWS;
+
+  /**
+   * The counts of a query, and whether they cover all its rows.
+   */
+  static class Facets {
+    private final Map<String, Map<String, Integer>> counts;
+    private final boolean truncated;
+
+    private Facets(Map<String, Map<String, Integer>> counts, boolean truncated) {
+      this.counts = counts;
+      this.truncated = truncated;
+    }
+
+    /**
+     * @return the counts as {@link FacetAggregator#getAggregate()}, not to be modified.
+     */
+    Map<String, Map<String, Integer>> getCounts() {
+      return counts;
+    }
+
+    /**
+     * @return true if only the first rows of the query were counted.
+     */
+    boolean isTruncated() {
+      return truncated;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext context) {
+    Dictionary<String, Object> props = context.getProperties();
+    configure(OsgiUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE), OsgiUtil
+        .toLong(props.get(CACHE_TTL), DEFAULT_CACHE_TTL), OsgiUtil.toLong(props
+        .get(MAX_ROWS), DEFAULT_MAX_ROWS));
+  }
+
+  protected void deactivate(ComponentContext context) {
+    cache.clear();
+  }
+
+  /**
+   * Set the limits and empty the cache.
+   *
+   * @param cacheSize
+   *          the most queries to hold the counts of.
+   * @param ttl
+   *          how long counts are held, in ms.
+   * @param maxRows
+   *          the most rows of a query to count.
+   */
+  void configure(int cacheSize, long ttl, long maxRows) {
+    this.maxRows = maxRows;
+    cache.configure(cacheSize, ttl);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the counts of the queries rooted at a subtree that contains the changed
+   * resource.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      cache.clear();
+      return;
+    }
+    cache.invalidate(new GenerationCache.Filter<String>() {
+      public boolean matches(String scope) {
+        return invalidatedBy(scope, path);
+      }
+    });
+  }
+
+  /**
+   * @return true if the scope is a subtree, and the path is in it or is an ancestor of
+   *         it. A change anywhere can change the counts of a query scoped to the root,
+   *         those are left to expire.
+   */
+  private static boolean invalidatedBy(String scope, String path) {
+    return !"/".equals(scope)
+        && (scope.equals(path) || isAncestor(scope, path) || isAncestor(path, scope));
+  }
+
+  private static boolean isAncestor(String ancestor, String path) {
+    return "/".equals(ancestor) || path.startsWith(ancestor + "/");
+  }
+
+  /**
+   * @param queryString
+   *          the statement of a query.
+   * @return the path of the subtree the query can match in, with ISO 9075 escapes
+   *         decoded, / if that can not be told from the query.
+   */
+  static String getScope(String queryString) {
+    String path = queryString;
+    if (path.startsWith(XPATH_ROOT)) {
+      path = path.substring(XPATH_ROOT.length());
+    }
+    if (!path.startsWith("/")) {
+      return "/";
+    }
+    // The templates put a / in front of parameters that are absolute paths already, so
+    // /{path}//* and /{_mySpace}//* expand to //_user/a/alice//*. Strictly that matches
+    // an _user at any depth, but the trees under the root are not nested elsewhere.
+    path = path.substring(path.startsWith("//") ? 2 : 1);
+    StringBuilder scope = new StringBuilder();
+    for (String step : path.split("/", -1)) {
+      if (!NAME_STEP.matcher(step).matches()) {
+        break;
+      }
+      scope.append('/').append(ISO9075.decode(step));
+    }
+    return scope.length() == 0 ? "/" : scope.toString();
+  }
+
+  /**
+   * Get the facet counts of a query, counting them if they are not cached.
+   *
+   * @param template
+   *          the search template node.
+   * @param query
+   *          the query made from the template.
+   * @param queryString
+   *          the statement of the query.
+   * @param aggregator
+   *          an empty aggregator for the facets of the template.
+   * @param maxRows
+   *          the most rows to count, fewer are counted if the cache is configured so.
+   * @return the counts.
+   * @throws RepositoryException
+   */
+  public Facets getFacets(Node template, Query query, String queryString,
+      FacetAggregator aggregator, long maxRows) throws RepositoryException {
+    String key = template.getPath() + "\n" + template.getSession().getUserID() + "\n"
+        + maxRows + "\n" + queryString;
+    Facets facets = cache.get(key);
+    if (facets != null) {
+      return facets;
+    }
+    String scope = getScope(queryString);
+    long rowLimit = Math.min(this.maxRows, maxRows);
+    long generation = cache.startBuild(scope);
+    try {
+      long start = System.currentTimeMillis();
+      aggregator.addRows(new SakaiSearchRowIterator(query.execute().getRows()), rowLimit);
+      facets = new Facets(Collections.unmodifiableMap(aggregator.getAggregate()),
+          aggregator.isTruncated());
+      if (aggregator.isTruncated()) {
+        LOGGER.info(
+            "Counted facets of the first {} results of {}, the rest are not counted",
+            rowLimit, template.getPath());
+      }
+      LOGGER.debug("Counted facets of {} results in {} ms", aggregator.getRows(), System
+          .currentTimeMillis()
+          - start);
+      cache.put(key, facets, scope, generation);
+    } finally {
+      cache.finishBuild(scope);
+    }
+    return facets;
+  }
+
+  /**
+   * @return the number of requests answered from the cache.
+   */
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  /**
+   * @return the number of requests that had to count.
+   */
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Counts the values of one property and lists the most frequent. At most a fixed number
+ * of distinct values are tracked, when a new value arrives and the counter is full the
+ * less frequent half of the values are dropped. A value that arrives after a drop starts
+ * from the highest count dropped, as it may have been one of them, so its count is an
+ * upper bound. A value that makes up more than one in capacity / 2 of the values added
+ * is never dropped. The counts are exact while the number of distinct values stays
+ * within the capacity.
+ */
+public class FacetCounter {
+
+  /**
+   * The fewest values tracked, however few are listed.
+   */
+  static final int MIN_CAPACITY = 1000;
+  /**
+   * The number of values tracked for each value listed.
+   */
+  static final int CAPACITY_FACTOR = 10;
+
+  /**
+   * A mutable count, so that counting a value does not box a new Integer.
+   */
+  private static final class Count {
+    private int count;
+
+    private Count(int count) {
+      this.count = count;
+    }
+  }
+
+  private static final Comparator<Entry<String, Count>> BY_COUNT = new Comparator<Entry<String, Count>>() {
+    public int compare(Entry<String, Count> a, Entry<String, Count> b) {
+      int c = b.getValue().count - a.getValue().count;
+      return c != 0 ? c : a.getKey().compareTo(b.getKey());
+    }
+  };
+
+  private final int limit;
+  private final int capacity;
+  private final Map<String, Count> counts = new HashMap<String, Count>();
+  /**
+   * The highest count dropped so far.
+   */
+  private int dropped;
+
+  /**
+   * @param limit
+   *          the number of values to list.
+   */
+  public FacetCounter(int limit) {
+    this(limit, Math.max(MIN_CAPACITY, limit * CAPACITY_FACTOR));
+  }
+
+  /**
+   * @param limit
+   *          the number of values to list.
+   * @param capacity
+   *          the number of distinct values to track, at least twice the limit.
+   */
+  FacetCounter(int limit, int capacity) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("Limit must be at least 1, was " + limit);
+    }
+    if (capacity < limit * 2) {
+      throw new IllegalArgumentException("Capacity must be at least twice the limit, was "
+          + capacity);
+    }
+    this.limit = limit;
+    this.capacity = capacity;
+  }
+
+  /**
+   * Count one occurrence of a value.
+   *
+   * @param value
+   */
+  public void add(String value) {
+    Count count = counts.get(value);
+    if (count == null) {
+      if (counts.size() >= capacity) {
+        drop();
+      }
+      count = new Count(dropped);
+      counts.put(value, count);
+    }
+    count.count++;
+  }
+
+  /**
+   * Drop the less frequent half of the values.
+   */
+  private void drop() {
+    List<Entry<String, Count>> entries = new ArrayList<Entry<String, Count>>(counts
+        .entrySet());
+    Collections.sort(entries, BY_COUNT);
+    int keep = capacity / 2;
+    dropped = Math.max(dropped, entries.get(keep).getValue().count);
+    for (Iterator<Entry<String, Count>> i = entries.listIterator(keep); i.hasNext();) {
+      counts.remove(i.next().getKey());
+    }
+  }
+
+  /**
+   * @return true if no value has been dropped, so the counts are exact.
+   */
+  public boolean isExact() {
+    return dropped == 0;
+  }
+
+  /**
+   * @return the most frequent values and their counts, most frequent first.
+   */
+  public Map<String, Integer> getTop() {
+    List<Entry<String, Count>> entries = new ArrayList<Entry<String, Count>>(counts
+        .entrySet());
+    Collections.sort(entries, BY_COUNT);
+    Map<String, Integer> top = new LinkedHashMap<String, Integer>();
+    for (Entry<String, Count> e : entries) {
+      if (top.size() == limit) {
+        break;
+      }
+      top.put(e.getKey(), e.getValue().count);
+    }
+    return top;
+  }
+}
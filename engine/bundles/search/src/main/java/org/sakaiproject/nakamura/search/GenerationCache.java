@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A least recently used cache of values that are built from the repository outside its
+ * lock and dropped on resource events. Each value has a scope, what it was built from,
+ * and the scopes of the values being built are held too. An invalidation drops the values
+ * whose scope it matches, and if it matches a value being built moves the cache on a
+ * generation, so that value is not cached as it may have missed the change. Two requests
+ * for the same key may both build it.
+ *
+ * @param <V>
+ *          the type of the values.
+ * @param <S>
+ *          the type of the scopes.
+ */
+public class GenerationCache<V, S> {
+
+  /**
+   * The time to live of values that are held until they are dropped.
+   */
+  public static final long FOREVER = Long.MAX_VALUE;
+
+  /**
+   * Tells which scopes a change touches.
+   */
+  public interface Filter<S> {
+    /**
+     * @return true if a value with the scope may be changed.
+     */
+    boolean matches(S scope);
+  }
+
+  private static final class Entry<V, S> {
+    private final V value;
+    private final S scope;
+    private final long expires;
+
+    private Entry(V value, S scope, long expires) {
+      this.value = value;
+      this.scope = scope;
+      this.expires = expires;
+    }
+  }
+
+  private int maxSize;
+  private long ttl;
+  private final Map<String, Entry<V, S>> entries = new LinkedHashMap<String, Entry<V, S>>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 5021735860135642749L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry<V, S>> eldest) {
+      return size() > maxSize;
+    }
+  };
+  /**
+   * The scopes of the values being built, once for each build.
+   */
+  private final List<S> building = new ArrayList<S>();
+  private long generation;
+  private long hits;
+  private long misses;
+
+  /**
+   * @param maxSize
+   *          the most values to hold, 0 to not cache.
+   * @param ttl
+   *          how long a value is held, in ms, or {@link #FOREVER}.
+   */
+  public GenerationCache(int maxSize, long ttl) {
+    configure(maxSize, ttl);
+  }
+
+  /**
+   * Set the limits and empty the cache.
+   */
+  public synchronized void configure(int maxSize, long ttl) {
+    this.maxSize = maxSize;
+    this.ttl = ttl;
+    clear();
+  }
+
+  /**
+   * @param key
+   *          the key.
+   * @return the value, or null if it has to be built.
+   */
+  public synchronized V get(String key) {
+    Entry<V, S> entry = entries.get(key);
+    if (entry != null) {
+      if (entry.expires > System.currentTimeMillis()) {
+        hits++;
+        return entry.value;
+      }
+      entries.remove(key);
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Note that a value is being built, call {@link #finishBuild(Object)} when it is done,
+   * whether or not it was built.
+   *
+   * @param scope
+   *          what the value is built from, as far as it is known.
+   * @return the generation to pass to {@link #put(String, Object, Object, long)}.
+   */
+  public synchronized long startBuild(S scope) {
+    building.add(scope);
+    return generation;
+  }
+
+  /**
+   * @param scope
+   *          the scope given to {@link #startBuild(Object)}.
+   */
+  public synchronized void finishBuild(S scope) {
+    building.remove(scope);
+  }
+
+  /**
+   * Hold a value, unless something it may depend on was invalidated since it started to
+   * be built.
+   *
+   * @param key
+   *          the key.
+   * @param value
+   *          the value.
+   * @param scope
+   *          what the value was built from.
+   * @param generation
+   *          the generation from {@link #startBuild(Object)}.
+   */
+  public synchronized void put(String key, V value, S scope, long generation) {
+    if (generation == this.generation && maxSize > 0) {
+      long now = System.currentTimeMillis();
+      long expires = ttl > FOREVER - now ? FOREVER : now + ttl;
+      entries.put(key, new Entry<V, S>(value, scope, expires));
+    }
+  }
+
+  /**
+   * Drop the values whose scope matches, and do not cache the values being built whose
+   * scope matches.
+   *
+   * @param filter
+   *          the scopes the change touches.
+   */
+  public synchronized void invalidate(Filter<S> filter) {
+    for (Iterator<Entry<V, S>> i = entries.values().iterator(); i.hasNext();) {
+      if (filter.matches(i.next().scope)) {
+        i.remove();
+      }
+    }
+    for (S scope : building) {
+      if (filter.matches(scope)) {
+        generation++;
+        break;
+      }
+    }
+  }
+
+  /**
+   * Drop every value, and do not cache the values being built.
+   */
+  public synchronized void clear() {
+    generation++;
+    entries.clear();
+  }
+
+  /**
+   * @return the number of gets answered from the cache.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return the number of gets that had to build.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+}
@@ -0,0 +1,378 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.sakaiproject.nakamura.api.search.SearchConstants.CURSOR_CONSTRAINT;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CURSOR_ORDER;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CURSOR_PROPERTY;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
+
+import org.apache.jackrabbit.util.ISO8601;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.wrappers.SlingHttpServletRequestWrapper;
+import org.sakaiproject.nakamura.api.search.SearchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Keyset paging for a search template whose query is ordered on a single property. The
+ * cursor holds the value of that property on the last result of a page, and the number of
+ * results at the end of the page that had that value. The query for the next page is
+ * constrained to start at that value, so only those few results are skipped, rather than
+ * every result on the earlier pages.
+ *
+ * The template names the property with
+ * {@link org.sakaiproject.nakamura.api.search.SearchConstants#SAKAI_CURSOR_PROPERTY},
+ * orders its query on it and puts a {_cursor?} placeholder where the constraint can be
+ * added, eg
+ *
+ * <pre>
+ * //*[@sling:resourceType='sakai/message'{_cursor?}] order by @jcr:created descending
+ * </pre>
+ *
+ * Results that do not have the property can not be paged past. Results with the same value
+ * must be returned in the same order by each query, which is the case while they are not
+ * changed.
+ */
+public class SearchCursor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchCursor.class);
+  private static final char SEPARATOR = '\n';
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private final String property;
+  private final boolean descending;
+  private final String value;
+  private final int type;
+  private final long ties;
+
+  /**
+   * The value and ties of the last result returned.
+   */
+  private String lastValue;
+  private int lastType;
+  private long lastTies;
+
+  SearchCursor(String property, boolean descending, String value, int type, long ties) {
+    this.property = property;
+    this.descending = descending;
+    this.value = value;
+    this.type = type;
+    this.ties = ties;
+    lastValue = value;
+    lastType = type;
+    lastTies = ties;
+  }
+
+  /**
+   * @param request
+   *          the search request.
+   * @param template
+   *          the search template.
+   * @return the cursor the request starts from, a cursor without a value if the request
+   *         starts at the beginning, or null if the template can not be paged with a
+   *         cursor.
+   * @throws SearchException
+   *           if the request holds a cursor that is not valid for the template.
+   * @throws RepositoryException
+   */
+  public static SearchCursor fromRequest(SlingHttpServletRequest request, Node template)
+      throws SearchException, RepositoryException {
+    if (!template.hasProperty(SAKAI_CURSOR_PROPERTY)) {
+      return null;
+    }
+    String property = template.getProperty(SAKAI_CURSOR_PROPERTY).getString();
+    boolean descending = template.hasProperty(SAKAI_CURSOR_ORDER)
+        && "descending".equalsIgnoreCase(template.getProperty(SAKAI_CURSOR_ORDER)
+            .getString());
+    RequestParameter token = request.getRequestParameter(PARAMS_CURSOR);
+    if (token == null || token.getString().length() == 0) {
+      return new SearchCursor(property, descending, null, PropertyType.UNDEFINED, 0);
+    }
+    if (!template.getProperty(SAKAI_QUERY_TEMPLATE).getString().contains(
+        "{" + CURSOR_CONSTRAINT)) {
+      LOGGER.warn("Search template {} has a {} but no {{}?} in its query", new Object[] {
+          template.getPath(), SAKAI_CURSOR_PROPERTY, CURSOR_CONSTRAINT });
+      throw new SearchException(500, "This search can not be paged with a cursor.");
+    }
+    return decode(property, descending, token.getString());
+  }
+
+  /**
+   * @param property
+   *          the property the template is ordered on.
+   * @param descending
+   *          true if the template is in descending order.
+   * @param token
+   *          the token written by {@link #getNext()}.
+   * @return the cursor.
+   * @throws SearchException
+   *           if the token is not valid for the property.
+   */
+  static SearchCursor decode(String property, boolean descending, String token)
+      throws SearchException {
+    try {
+      String[] parts = new String(fromHex(token), "UTF-8").split(
+          String.valueOf(SEPARATOR), 4);
+      if (parts.length == 4 && property.equals(parts[0])) {
+        int type = PropertyType.valueFromName(parts[1]);
+        long ties = Long.parseLong(parts[2]);
+        // dates and numbers go into the query as they are.
+        if (ties >= 0 && parts[3].equals(canonical(type, parts[3]))) {
+          return new SearchCursor(property, descending, parts[3], type, ties);
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      LOGGER.debug("Invalid cursor {} ", token, e);
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    throw new SearchException(400, "Invalid cursor.");
+  }
+
+  /**
+   * @return true if the request continues from an earlier page.
+   */
+  public boolean isResumed() {
+    return value != null;
+  }
+
+  /**
+   * @param queryLanguage
+   *          the language of the template.
+   * @return the constraint that starts the query at the cursor, to replace {_cursor?}, or
+   *         an empty string for the first page.
+   * @throws SearchException
+   *           if the language is not supported.
+   */
+  public String getConstraint(String queryLanguage) throws SearchException {
+    if (value == null) {
+      return "";
+    }
+    String op = descending ? " <= " : " >= ";
+    if (Query.XPATH.equals(queryLanguage)) {
+      String literal;
+      if (type == PropertyType.DATE) {
+        literal = "xs:dateTime('" + value + "')";
+      } else if (isNumber(type)) {
+        literal = value;
+      } else {
+        literal = "'" + value.replace("'", "''") + "'";
+      }
+      return " and @" + property + op + literal;
+    } else if (Query.SQL.equals(queryLanguage)) {
+      String literal;
+      if (type == PropertyType.DATE) {
+        literal = "TIMESTAMP '" + value + "'";
+      } else if (isNumber(type)) {
+        literal = value;
+      } else {
+        literal = "'" + value.replace("'", "''") + "'";
+      }
+      return " and " + property + op + literal;
+    }
+    throw new SearchException(500, "Cursor paging is not supported for " + queryLanguage);
+  }
+
+  /**
+   * @return the number of results at the start of the query that were returned on the
+   *         earlier page.
+   */
+  public long getSkip() {
+    return ties;
+  }
+
+  /**
+   * @param request
+   *          the search request.
+   * @return the request without the page number, so the query is not paged again by the
+   *         result processor.
+   */
+  public SlingHttpServletRequest wrapRequest(SlingHttpServletRequest request) {
+    return new SlingHttpServletRequestWrapper(request) {
+      @Override
+      public RequestParameter getRequestParameter(String name) {
+        if (PARAMS_PAGE.equals(name)) {
+          return null;
+        }
+        return super.getRequestParameter(name);
+      }
+    };
+  }
+
+  /**
+   * @param iterator
+   *          the results of the query.
+   * @return an iterator over the same results, that keeps the value of each result
+   *         returned so {@link #getNext()} can continue after it.
+   */
+  public RowIterator track(final RowIterator iterator) {
+    return new RowIterator() {
+
+      public Row nextRow() {
+        Row row = iterator.nextRow();
+        record(row);
+        return row;
+      }
+
+      public Object next() {
+        return nextRow();
+      }
+
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      public void skip(long skipNum) {
+        // skipped results are not returned, so they are not recorded.
+        for (long i = 0; i < skipNum; i++) {
+          iterator.nextRow();
+        }
+      }
+
+      public long getSize() {
+        return iterator.getSize();
+      }
+
+      public long getPosition() {
+        return iterator.getPosition();
+      }
+
+      public void remove() {
+        iterator.remove();
+      }
+    };
+  }
+
+  private void record(Row row) {
+    try {
+      Node node = row.getNode();
+      if (node != null && node.hasProperty(property)) {
+        // a multi valued property throws a ValueFormatException here.
+        Value v = node.getProperty(property).getValue();
+        String s = v.getString();
+        if (s.equals(lastValue)) {
+          lastTies++;
+        } else {
+          lastValue = s;
+          lastType = v.getType();
+          lastTies = 1;
+        }
+        return;
+      }
+      LOGGER.warn("Search result {} has no {}, it can not be paged past", node == null
+          ? null : node.getPath(), property);
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to read {} of a search result: {}", property, e.getMessage());
+    }
+    lastValue = null;
+  }
+
+  /**
+   * @return the token for the page after the results returned so far, or null if there
+   *         is no way to continue after them.
+   */
+  public String getNext() {
+    if (lastValue == null) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(property).append(SEPARATOR);
+    sb.append(PropertyType.nameFromValue(lastType)).append(SEPARATOR);
+    sb.append(lastTies).append(SEPARATOR).append(lastValue);
+    try {
+      return toHex(sb.toString().getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.error(e.getMessage(), e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the value as the repository writes a value of the type, so that a value that
+   *         is put into a query unquoted can only be a date or a number.
+   * @throws IllegalArgumentException
+   *           if the value is not of the type.
+   */
+  private static String canonical(int type, String value) {
+    switch (type) {
+    case PropertyType.DATE:
+      Calendar date = ISO8601.parse(value);
+      if (date == null) {
+        throw new IllegalArgumentException("Not a date");
+      }
+      return ISO8601.format(date);
+    case PropertyType.LONG:
+      return String.valueOf(Long.parseLong(value));
+    case PropertyType.DOUBLE:
+      double d = Double.parseDouble(value);
+      if (Double.isNaN(d) || Double.isInfinite(d)) {
+        throw new IllegalArgumentException("Not a finite number");
+      }
+      return String.valueOf(d);
+    case PropertyType.DECIMAL:
+      return new BigDecimal(value).toString();
+    default:
+      return value;
+    }
+  }
+
+  private static boolean isNumber(int type) {
+    return type == PropertyType.LONG || type == PropertyType.DOUBLE
+        || type == PropertyType.DECIMAL;
+  }
+
+  private static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  private static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd length");
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int hi = Character.digit(hex.charAt(i * 2), 16);
+      int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+      if (hi < 0 || lo < 0) {
+        throw new IllegalArgumentException("Not hex");
+      }
+      bytes[i] = (byte) ((hi << 4) + lo);
+    }
+    return bytes;
+  }
+}
@@ -17,11 +17,15 @@
  */
 package org.sakaiproject.nakamura.search;
 
+import static org.sakaiproject.nakamura.api.search.SearchConstants.CURSOR_CONSTRAINT;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.DEFAULT_AGGREGATE_LIMIT;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.DEFAULT_PAGED_ITEMS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_COUNT;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_NAME;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_NEXT;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_TOTALS;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.JSON_TOTALS_TRUNCATED;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_BATCH_PROCESSOR_NAMES;
@@ -29,6 +33,8 @@ import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_PROCESSOR
 import static org.sakaiproject.nakamura.api.search.SearchConstants.REG_PROVIDER_NAMES;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE_CHILDREN;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE_DEPTH;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE_LIMIT;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_LIMIT_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
@@ -70,7 +76,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
-import org.sakaiproject.nakamura.api.search.Aggregator;
 import org.sakaiproject.nakamura.api.search.MissingParameterException;
 import org.sakaiproject.nakamura.api.search.SearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
@@ -130,7 +135,19 @@ import javax.servlet.http.HttpServletResponse;
         + "        -sakai:propertyprovider - the name of a Property Provider used to populate the properties \n"
         + "                                  to be used in the query \n"
         + "        -sakai:batchresultprocessor - the name of a SearchResultProcessor to be used processing \n"
-        + "                                      the result set.\n" + "</pre>",
+        + "                                      the result set.\n"
+        + "        -sakai:cursor-property - optional, the property the query is ordered on. The results \n"
+        + "                                 can then be paged with a cursor, the query template marks \n"
+        + "                                 where the cursor constraint goes with {_cursor?}.\n"
+        + "        -sakai:cursor-order - ascending (the default) or descending.\n"
+        + "        -sakai:aggregate-search-results - optional, properties whose values are counted over \n"
+        + "                                          the results and listed in totals. No more \n"
+        + "                                          results are counted than can be listed, \n"
+        + "                                          totalsTruncated is true when some are not.\n"
+        + "        -sakai:aggregate-search-results-limit - the number of values listed for each property, \n"
+        + "                                                most frequent first, 100 by default.\n"
+        + "        -sakai:aggregate-search-results-depth - the levels of child nodes of each result that \n"
+        + "                                                are also counted, 0 by default.\n" + "</pre>",
     "For example:",
     "<pre>" + "/var/search/content\n" + "{  \n"
         + "   \"sakai:query-language\": \"xpath\", \n"
@@ -170,6 +187,8 @@ import javax.servlet.http.HttpServletResponse;
         + "  ]\n" + "}\n" + "</pre>" }, parameters = {
     @ServiceParameter(name = "items", description = { "The number of items per page in the result set." }),
     @ServiceParameter(name = "page", description = { "The page number to start listing the results on." }),
+    @ServiceParameter(name = "cursor", description = { "For templates with a sakai:cursor-property, the next value of an earlier response, "
+        + "to list the results after that page. The page number is ignored. An empty cursor starts at the first page." }),
     @ServiceParameter(name = "*", description = { "Any other parameters may be used by the template." }) }, response = {
     @ServiceResponse(code = 200, description = "A search response simular to the above will be emitted "),
     @ServiceResponse(code = 403, description = "The search template is not located under /var "),
@@ -249,6 +268,9 @@ public class SearchServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient FacetCache facetCache;
+
   private Pattern homePathPattern = Pattern.compile("^(.*)(~([\\w-]*?))/");
 
   @Override
@@ -284,19 +306,25 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         }
 
         // Get the aggregator
-        Aggregator aggregator = null;
+        FacetAggregator aggregator = null;
         if (node.hasProperty(SAKAI_AGGREGATE)) {
           Value[] aggregatePropertyValues = JcrUtils.getValues(node, SAKAI_AGGREGATE);
           String[] aggregateProperties = new String[aggregatePropertyValues.length];
           for (int i = 0; i < aggregatePropertyValues.length; i++) {
             aggregateProperties[i] = aggregatePropertyValues[i].getString();
           }
-          boolean withChildren = false;
-          if (node.hasProperty(SAKAI_AGGREGATE_CHILDREN)) {
-            withChildren = "true".equals(node.getProperty(SAKAI_AGGREGATE_CHILDREN)
-                .getString());
+          int depth = 0;
+          if (node.hasProperty(SAKAI_AGGREGATE_DEPTH)) {
+            depth = Math.max(0, (int) node.getProperty(SAKAI_AGGREGATE_DEPTH).getLong());
+          } else if (node.hasProperty(SAKAI_AGGREGATE_CHILDREN)
+              && "true".equals(node.getProperty(SAKAI_AGGREGATE_CHILDREN).getString())) {
+            depth = 1;
+          }
+          int limit = DEFAULT_AGGREGATE_LIMIT;
+          if (node.hasProperty(SAKAI_AGGREGATE_LIMIT)) {
+            limit = Math.max(1, (int) node.getProperty(SAKAI_AGGREGATE_LIMIT).getLong());
           }
-          aggregator = new AggregateCount(aggregateProperties, withChildren);
+          aggregator = new FacetAggregator(aggregateProperties, depth, limit);
         }
 
         // Check if the users wants results who are too far in the resultset to get.
@@ -306,6 +334,24 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         long nitems = SearchUtil.longRequestParameter(request, PARAMS_ITEMS_PER_PAGE,
             DEFAULT_PAGED_ITEMS);
         long page = SearchUtil.longRequestParameter(request, PARAMS_PAGE, 0);
+
+        // A template ordered on a property can be paged with a cursor. The query then
+        // starts after the last result of the previous page, so no page is too deep.
+        SearchCursor cursor = null;
+        SlingHttpServletRequest queryRequest = request;
+        try {
+          cursor = SearchCursor.fromRequest(request, node);
+        } catch (SearchException e) {
+          response.sendError(e.getCode(), e.getMessage());
+          return;
+        }
+        if (cursor != null && cursor.isResumed()) {
+          page = 0;
+          queryRequest = cursor.wrapRequest(request);
+        } else if (page > 0) {
+          // The ties at the start of an offset page are not known.
+          cursor = null;
+        }
         long offset = page * nitems;
         long resultSize = Math.max(nitems, offset);
         if (limitResults && resultSize > maximumResults) {
@@ -316,21 +362,49 @@ public class SearchServlet extends SlingSafeMethodsServlet {
 
         // KERN-1147 Response better when all parameters haven't been provided for a query
         String queryString = null;
+        String facetQueryString = null;
         try {
           queryString = processQueryTemplate(request, node, queryTemplate,  queryLanguage,
-              propertyProviderName);
+              propertyProviderName, cursor == null ? null : cursor
+                  .getConstraint(queryLanguage));
+          // The facets are counted over the whole query, not from the cursor on, so that
+          // each page has the same facets.
+          if (aggregator != null) {
+            facetQueryString = cursor != null && cursor.isResumed() ? processQueryTemplate(
+                request, node, queryTemplate, queryLanguage, propertyProviderName, null)
+                : queryString;
+          }
         } catch (MissingParameterException e) {
           response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
           return;
+        } catch (SearchException e) {
+          response.sendError(e.getCode(), e.getMessage());
+          return;
         }
 
         queryString = expandHomeDirectoryInQuery(node, queryString);
+        if (facetQueryString != null) {
+          facetQueryString = expandHomeDirectoryInQuery(node, facetQueryString);
+        }
 
         // Create the query.
         LOGGER.debug("Posting Query {} ", queryString);
         QueryManager queryManager = node.getSession().getWorkspace().getQueryManager();
         Query query = queryManager.createQuery(queryString, queryLanguage);
 
+        // The facets are counted over all the results of the query, not only this page,
+        // so the processors are not given the aggregator. No more results are counted than
+        // could be listed.
+        FacetCache.Facets aggregate = null;
+        if (aggregator != null) {
+          Query facetQuery = query;
+          if (!facetQueryString.equals(queryString)) {
+            facetQuery = queryManager.createQuery(facetQueryString, queryLanguage);
+          }
+          aggregate = facetCache.getFacets(node, facetQuery, facetQueryString, aggregator,
+              limitResults ? maximumResults : Long.MAX_VALUE);
+        }
+
         boolean useBatch = false;
         // Get the
         SearchBatchResultProcessor searchBatchProcessor = defaultSearchBatchProcessor;
@@ -357,14 +431,14 @@ public class SearchServlet extends SlingSafeMethodsServlet {
           // Prepare the result set.
           // This allows a processor to do other queries and manipulate the results.
           if (useBatch) {
-            rs = searchBatchProcessor.getSearchResultSet(request, query);
+            rs = searchBatchProcessor.getSearchResultSet(queryRequest, query);
             if ( !(rs instanceof SearchResultSetImpl) ) {
               SearchException ex = new SearchException(500, "Invalid Implementation  "+searchBatchProcessor+" is not creating a SearchResultSet using the SearchServiceFactory ");
               LOGGER.error(ex.getMessage(), ex);
               throw ex;
             }
           } else {
-            rs = searchProcessor.getSearchResultSet(request, query);
+            rs = searchProcessor.getSearchResultSet(queryRequest, query);
             if ( !(rs instanceof SearchResultSetImpl) ) {
               SearchException ex = new SearchException(500, "Invalid Implementation  "+searchProcessor+" is not creating a SearchResultSet using the SearchServiceFactory ");
               LOGGER.error(ex.getMessage(), ex);
@@ -390,9 +464,16 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         write.array();
 
         RowIterator iterator = rs.getRowIterator();
+        if (cursor != null) {
+          iterator = cursor.track(iterator);
+          // Skip the results with the cursor value that were on the previous page.
+          for (long i = 0; i < cursor.getSkip() && iterator.hasNext(); i++) {
+            iterator.skip(1);
+          }
+        }
         if (useBatch) {
           LOGGER.info("Using batch processor for results");
-          searchBatchProcessor.writeNodes(request, write, aggregator, iterator);
+          searchBatchProcessor.writeNodes(request, write, null, iterator);
         } else {
           LOGGER.info("Using regular processor for results");
           // We don't skip any rows ourselves here.
@@ -402,7 +483,7 @@ public class SearchServlet extends SlingSafeMethodsServlet {
             Row row = iterator.nextRow();
 
             // Write the result for this row.
-            searchProcessor.writeNode(request, write, aggregator, row);
+            searchProcessor.writeNode(request, write, null, row);
           }
         }
         write.endArray();
@@ -412,11 +493,18 @@ public class SearchServlet extends SlingSafeMethodsServlet {
         write.key(TOTAL);
         write.value(rs.getSize() + offset);
 
-        if (aggregator != null) {
-          Map<String, Map<String, Integer>> aggregate = aggregator.getAggregate();
+        if (cursor != null && iterator.hasNext()) {
+          String next = cursor.getNext();
+          if (next != null) {
+            write.key(JSON_NEXT);
+            write.value(next);
+          }
+        }
+
+        if (aggregate != null) {
           write.key(JSON_TOTALS);
           write.object();
-          for (Entry<String, Map<String, Integer>> t : aggregate.entrySet()) {
+          for (Entry<String, Map<String, Integer>> t : aggregate.getCounts().entrySet()) {
             write.key(t.getKey());
             write.array();
             for (Entry<String, Integer> v : t.getValue().entrySet()) {
@@ -430,6 +518,8 @@ public class SearchServlet extends SlingSafeMethodsServlet {
             write.endArray();
           }
           write.endObject();
+          write.key(JSON_TOTALS_TRUNCATED);
+          write.value(aggregate.isTruncated());
         }
         write.endObject();
       }
@@ -474,7 +564,25 @@ public class SearchServlet extends SlingSafeMethodsServlet {
   protected String processQueryTemplate(SlingHttpServletRequest request,
       Node queryTemplateNode, String queryTemplate, String queryLanguage, String propertyProviderName)
       throws MissingParameterException, ValueFormatException, RepositoryException {
+    return processQueryTemplate(request, queryTemplateNode, queryTemplate, queryLanguage,
+        propertyProviderName, null);
+  }
+
+  /**
+   * Processes a template as {@link #processQueryTemplate(SlingHttpServletRequest, Node,
+   * String, String, String)} does, replacing {_cursor?} with the constraint of a cursor.
+   *
+   * @param cursorConstraint
+   *          the constraint from {@link SearchCursor#getConstraint(String)}, or null.
+   */
+  protected String processQueryTemplate(SlingHttpServletRequest request,
+      Node queryTemplateNode, String queryTemplate, String queryLanguage,
+      String propertyProviderName, String cursorConstraint)
+      throws MissingParameterException, ValueFormatException, RepositoryException {
     Map<String, String> propertiesMap = loadUserProperties(request, propertyProviderName);
+    if (cursorConstraint != null) {
+      propertiesMap.put(CURSOR_CONSTRAINT, cursorConstraint);
+    }
     Map<String, String> filteredRequestParametersMap = new HashMap<String, String>();
 
 
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
+import org.apache.sling.jcr.jackrabbit.server.index.TermCloudExtractor;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Builds term clouds, the most frequent words, of the content under a node such as a
+ * site or a user's home, from the term vectors in the search index. Only the nodes the
+ * session can read are counted, so clouds are cached by path and user. A cached cloud is
+ * dropped when a resource inside it, or above it, is added, changed or removed, which
+ * are the changes that update the index of the subtree.
+ */
+@Component(immediate = true, metatype = true, label = "%termcloud.name", description = "%termcloud.description")
+@Service(value = { TermCloudService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = TermCloudService.CACHE_SIZE, intValue = TermCloudService.DEFAULT_CACHE_SIZE, label = "%termcloud.size.name", description = "%termcloud.size.description"),
+    @Property(name = TermCloudService.MAX_NODES, intValue = TermCloudService.DEFAULT_MAX_NODES, label = "%termcloud.maxNodes.name", description = "%termcloud.maxNodes.description"),
+    @Property(name = TermCloudService.MAX_TERMS, intValue = TermCloudService.DEFAULT_MAX_TERMS, label = "%termcloud.maxTerms.name", description = "%termcloud.maxTerms.description"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class TermCloudService implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudService.class);
+
+  static final String CACHE_SIZE = "sakai.search.termcloud.cache.size";
+  static final int DEFAULT_CACHE_SIZE = 200;
+  static final String MAX_NODES = "sakai.search.termcloud.maxNodes";
+  static final int DEFAULT_MAX_NODES = 2000;
+  static final String MAX_TERMS = "sakai.search.termcloud.maxTerms";
+  static final int DEFAULT_MAX_TERMS = 100;
+
+  private volatile int maxNodes = DEFAULT_MAX_NODES;
+  private volatile int maxTerms = DEFAULT_MAX_TERMS;
+  /**
+   * The top terms by path and user, scoped by the path.
+   */
+  private final GenerationCache<List<CloudTerm>, String> cache = new GenerationCache<List<CloudTerm>, String>(
+      DEFAULT_CACHE_SIZE, GenerationCache.FOREVER);
+
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext context) {
+    Dictionary<String, Object> props = context.getProperties();
+    maxNodes = OsgiUtil.toInteger(props.get(MAX_NODES), DEFAULT_MAX_NODES);
+    maxTerms = Math.max(1, OsgiUtil.toInteger(props.get(MAX_TERMS), DEFAULT_MAX_TERMS));
+    cache.configure(OsgiUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE),
+        GenerationCache.FOREVER);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    cache.clear();
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the clouds of the subtrees that contain the changed resource, and those under
+   * it.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null) {
+      cache.clear();
+      return;
+    }
+    cache.invalidate(new GenerationCache.Filter<String>() {
+      public boolean matches(String scope) {
+        return overlaps(scope, path);
+      }
+    });
+  }
+
+  /**
+   * @return true if either path is the same as or an ancestor of the other.
+   */
+  private static boolean overlaps(String a, String b) {
+    return a.equals(b) || isAncestor(a, b) || isAncestor(b, a);
+  }
+
+  private static boolean isAncestor(String ancestor, String path) {
+    return "/".equals(ancestor) || path.startsWith(ancestor + "/");
+  }
+
+  /**
+   * Get the most frequent terms in the content under a node, building the cloud if it is
+   * not cached.
+   *
+   * @param node
+   *          the root of the subtree, read through the session of the user.
+   * @param count
+   *          the most terms to return, no more than the configured maximum are returned.
+   * @return the terms, most frequent first, not to be modified.
+   * @throws RepositoryException
+   */
+  public List<CloudTerm> getTerms(Node node, int count) throws RepositoryException {
+    String path = node.getPath();
+    String key = path + "\n" + node.getSession().getUserID();
+    List<CloudTerm> terms = cache.get(key);
+    if (terms == null) {
+      long generation = cache.startBuild(path);
+      try {
+        terms = build(node, maxNodes, maxTerms);
+        cache.put(key, terms, path, generation);
+      } finally {
+        cache.finishBuild(path);
+      }
+    }
+    return head(terms, count);
+  }
+
+  private List<CloudTerm> head(List<CloudTerm> terms, int count) {
+    if (count >= terms.size()) {
+      return terms;
+    }
+    return terms.subList(0, Math.max(0, count));
+  }
+
+  /**
+   * Add the nodes under the root, breadth first, to a term cloud.
+   */
+  private List<CloudTerm> build(Node root, int nodeLimit, int termLimit)
+      throws RepositoryException {
+    long start = System.currentTimeMillis();
+    // hold more terms than are returned so that terms that are frequent overall but
+    // rare in each node are not evicted.
+    TermCloudExtractor extractor = createExtractor(root.getSession(), Math.max(1000,
+        termLimit * 10));
+    int nodes = 0;
+    boolean truncated = false;
+    try {
+      LinkedList<Node> queue = new LinkedList<Node>();
+      queue.add(root);
+      while (!queue.isEmpty()) {
+        Node node = queue.removeFirst();
+        extractor.add(node);
+        nodes++;
+        // only queue the nodes that will be added.
+        NodeIterator children = node.getNodes();
+        while (children.hasNext()) {
+          if (nodes + queue.size() >= nodeLimit) {
+            truncated = true;
+            break;
+          }
+          queue.add(children.nextNode());
+        }
+      }
+      if (truncated) {
+        LOGGER.info("Built the term cloud of the first {} nodes under {}, the rest are not counted",
+            nodeLimit, root.getPath());
+      }
+    } finally {
+      extractor.close();
+    }
+    LOGGER.debug("Built the term cloud of {} nodes in {} ms", nodes, System
+        .currentTimeMillis()
+        - start);
+    return extractor.getTopTerms(termLimit);
+  }
+
+  /**
+   * @return an extractor reading the index of the workspace of the session.
+   * @throws RepositoryException
+   */
+  protected TermCloudExtractor createExtractor(Session session, int size)
+      throws RepositoryException {
+    return new TermCloudExtractor(session.getWorkspace().getQueryManager(), size);
+  }
+
+  /**
+   * @return the number of requests answered from the cache.
+   */
+  public long getHitCount() {
+    return cache.getHitCount();
+  }
+
+  /**
+   * @return the number of requests that had to build a cloud.
+   */
+  public long getMissCount() {
+    return cache.getMissCount();
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceExtension;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the most frequent terms in the content under a site or a home, as a term cloud.
+ * Building a cloud walks the nodes under it, so it is only bound to those resource types
+ * rather than to any node, and only for users that are logged in.
+ */
+@ServiceDocumentation(name = "Term Cloud Servlet", shortDescription = "Lists the most frequent terms under a site or home.", description = "Lists the most frequent terms in the content under a site, a user's home or a group's home, for a tag cloud. Only the content the user can read is counted.", bindings = @ServiceBinding(type = BindingType.TYPE, bindings = { "sakai/site", "sakai/user-home", "sakai/group-home" }, selectors = @ServiceSelector(name = "termcloud", description = "Lists the term cloud of the resource and its descendants."), extensions = @ServiceExtension(name = "json", description = "The terms in json format.")), methods = @ServiceMethod(name = "GET", description = {
+    "Lists the most frequent terms, most frequent first. The url is of the form "
+        + "http://host/resource.termcloud.json ",
+    "Example<br>"
+        + "<pre>curl http://localhost:8080/sites/physics.termcloud.json?items=3</pre>"
+        + "<pre>{\"path\":\"/sites/physics\",\"terms\":[{\"term\":\"quantum\",\"count\":42},{\"term\":\"field\",\"count\":17},{\"term\":\"energy\",\"count\":9}]}</pre>" }, parameters = { @ServiceParameter(name = "items", description = "The number of terms to list, 25 by default. The term cloud service limits the most that can be listed.") }, response = {
+    @ServiceResponse(code = 200, description = "Success, the terms are returned."),
+    @ServiceResponse(code = 401, description = "The user is not logged in."),
+    @ServiceResponse(code = 404, description = "The resource was not a node."),
+    @ServiceResponse(code = 500, description = "Failure with HTML explanation.") }))
+@SlingServlet(resourceTypes = { "sakai/site", "sakai/user-home", "sakai/group-home" }, methods = "GET", selectors = "termcloud", extensions = "json")
+public class TermCloudServlet extends SlingSafeMethodsServlet {
+
+  private static final long serialVersionUID = -3412938571934265771L;
+  private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudServlet.class);
+  static final String PARAMS_ITEMS = "items";
+  static final int DEFAULT_ITEMS = 25;
+  private static final String ANON_USERID = "anonymous";
+
+  @Reference
+  protected transient TermCloudService termCloudService;
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+    String user = request.getRemoteUser();
+    if (user == null || ANON_USERID.equals(user)) {
+      response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+          "User must be logged in to list terms");
+      return;
+    }
+    Node node = request.getResource().adaptTo(Node.class);
+    if (node == null) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    int items = DEFAULT_ITEMS;
+    String itemsParam = request.getParameter(PARAMS_ITEMS);
+    if (itemsParam != null) {
+      try {
+        items = Math.max(1, Integer.parseInt(itemsParam));
+      } catch (NumberFormatException e) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid items "
+            + itemsParam);
+        return;
+      }
+    }
+    try {
+      String path = node.getPath();
+      List<CloudTerm> terms = termCloudService.getTerms(node, items);
+      response.setContentType("application/json");
+      response.setCharacterEncoding("UTF-8");
+      JSONWriter write = new JSONWriter(response.getWriter());
+      write.object();
+      write.key("path");
+      write.value(path);
+      write.key("terms");
+      write.array();
+      for (CloudTerm term : terms) {
+        write.object();
+        write.key("term");
+        write.value(term.getName());
+        write.key("count");
+        write.value(term.getCount());
+        write.endObject();
+      }
+      write.endArray();
+      write.endObject();
+    } catch (RepositoryException e) {
+      LOGGER.info("Caught RepositoryException {}", e.getMessage());
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    } catch (JSONException e) {
+      LOGGER.info("Caught JSONException {}", e.getMessage());
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+    }
+  }
+}
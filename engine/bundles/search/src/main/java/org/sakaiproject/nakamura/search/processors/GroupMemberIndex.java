@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.processors;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.util.Text;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.search.GenerationCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Holds the members of groups, with the members of each group's managers group, as
+ * {@link MemberSet}s. The sets are read with an admin session and shared by all users. A
+ * group's set is dropped when the group or its managers group changes, which is how a
+ * change to rep:members arrives.
+ */
+@Component(immediate = true, metatype = true, label = "%groupmemberindex.name", description = "%groupmemberindex.description")
+@Service(value = { GroupMemberIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = GroupMemberIndex.CACHE_SIZE, intValue = GroupMemberIndex.DEFAULT_CACHE_SIZE, label = "%groupmemberindex.size.name", description = "%groupmemberindex.size.description"),
+    @Property(name = EventConstants.EVENT_TOPIC, value = { SlingConstants.TOPIC_RESOURCE_ADDED,
+        SlingConstants.TOPIC_RESOURCE_CHANGED, SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true) })
+public class GroupMemberIndex implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberIndex.class);
+
+  static final String CACHE_SIZE = "sakai.search.groupmembers.cache.size";
+  static final int DEFAULT_CACHE_SIZE = 1000;
+  private static final String GROUPS_ROOT = "/rep:security/rep:authorizables/rep:groups/";
+
+  /**
+   * The scope of a set being read. Its managers group is not known until it is read, so
+   * it depends on every group.
+   */
+  private static final Set<String> ANY_GROUP = Collections.emptySet();
+
+  @Reference
+  protected SlingRepository slingRepository;
+
+  private final MemberIdTable table = new MemberIdTable();
+  /**
+   * Members by group id, scoped by the ids of the groups they were read from.
+   */
+  private final GenerationCache<MemberSet, Set<String>> cache = new GenerationCache<MemberSet, Set<String>>(
+      DEFAULT_CACHE_SIZE, GenerationCache.FOREVER);
+
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext context) {
+    Dictionary<String, Object> props = context.getProperties();
+    cache.configure(OsgiUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE),
+        GenerationCache.FOREVER);
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop the members of any group whose node, or a node below it, changed.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path == null || !path.startsWith(GROUPS_ROOT)) {
+      return;
+    }
+    // The group node is one of the path elements, the others are intermediate folders or
+    // below the group, dropping entries that depend on them does no harm.
+    final Set<String> changed = new HashSet<String>();
+    for (String name : path.substring(GROUPS_ROOT.length()).split("/")) {
+      changed.add(Text.unescapeIllegalJcrChars(name));
+    }
+    cache.invalidate(new GenerationCache.Filter<Set<String>>() {
+      public boolean matches(Set<String> groupIds) {
+        if (groupIds == ANY_GROUP) {
+          return true;
+        }
+        for (String groupId : groupIds) {
+          if (changed.contains(groupId)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    });
+  }
+
+  /**
+   * @param groupId
+   *          the id of the group.
+   * @return the declared members of the group and of its managers group, or null if
+   *         there is no such group.
+   * @throws RepositoryException
+   */
+  MemberSet getMembers(String groupId) throws RepositoryException {
+    MemberSet members = cache.get(groupId);
+    if (members != null) {
+      return members;
+    }
+
+    Set<String> groupIds = new HashSet<String>();
+    Collection<String> memberIds = new LinkedHashSet<String>();
+    Session adminSession = slingRepository.loginAdministrative(null);
+    long generation = cache.startBuild(ANY_GROUP);
+    try {
+      UserManager um = AccessControlUtil.getUserManager(adminSession);
+      Authorizable authorizable = um.getAuthorizable(groupId);
+      if (authorizable == null || !authorizable.isGroup()) {
+        return null;
+      }
+      Group group = (Group) authorizable;
+      groupIds.add(groupId);
+      addDeclaredMembers(memberIds, group);
+      if (group.hasProperty(UserConstants.PROP_MANAGERS_GROUP)) {
+        Value[] values = group.getProperty(UserConstants.PROP_MANAGERS_GROUP);
+        if (values != null && values.length == 1) {
+          String managerGroupId = values[0].getString();
+          // depend on the managers group even if it is missing, it may be created.
+          groupIds.add(managerGroupId);
+          Authorizable managerGroup = um.getAuthorizable(managerGroupId);
+          if (managerGroup != null && managerGroup.isGroup()) {
+            addDeclaredMembers(memberIds, (Group) managerGroup);
+          } else {
+            LOGGER.warn("Unable to find manager's group [" + managerGroupId + "]");
+          }
+        }
+      }
+      members = MemberSet.create(table, memberIds);
+      cache.put(groupId, members, groupIds, generation);
+    } finally {
+      adminSession.logout();
+      cache.finishBuild(ANY_GROUP);
+    }
+    return members;
+  }
+
+  private void addDeclaredMembers(Collection<String> memberIds, Group group)
+      throws RepositoryException {
+    Iterator<Authorizable> members = group.getDeclaredMembers();
+    while (members.hasNext()) {
+      memberIds.add(members.next().getID());
+    }
+  }
+}
@@ -24,41 +24,58 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.api.security.user.Authorizable;
-import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.sling.api.SlingHttpServletRequest;
-import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
 import org.sakaiproject.nakamura.api.search.SearchPropertyProvider;
-import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.Dictionary;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.Value;
 
 /**
  *
  */
-@Component
+@Component(metatype = true, label = "%groupmembers.provider.name", description = "%groupmembers.provider.description")
 @Service
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = SearchConstants.REG_PROVIDER_NAMES, value = "GroupMembers")
+    @Property(name = SearchConstants.REG_PROVIDER_NAMES, value = "GroupMembers"),
+    @Property(name = GroupMembersSearchPropertyProvider.QUERY_LIMIT, intValue = GroupMembersSearchPropertyProvider.DEFAULT_QUERY_LIMIT, label = "%groupmembers.provider.queryLimit.name", description = "%groupmembers.provider.queryLimit.description")
 })
 public class GroupMembersSearchPropertyProvider implements SearchPropertyProvider {
   private static final Logger logger = LoggerFactory
       .getLogger(GroupMembersSearchPropertyProvider.class);
 
+  /**
+   * The request attribute holding the {@link MemberSet} to filter results with, set when
+   * there are too many members to put in the query.
+   */
+  static final String MEMBERS_ATTRIBUTE = GroupMembersSearchPropertyProvider.class
+      .getName()
+      + ".members";
+
+  static final String QUERY_LIMIT = "sakai.search.groupmembers.queryLimit";
+  // 900 is the number raydavis said we should split on. This can be tuned as needed.
+  static final int DEFAULT_QUERY_LIMIT = 900;
+
   @Reference
-  protected SlingRepository slingRepository;
+  protected GroupMemberIndex groupMemberIndex;
+
+  private int queryLimit = DEFAULT_QUERY_LIMIT;
+
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext context) {
+    Dictionary<String, Object> props = context.getProperties();
+    queryLimit = OsgiUtil.toInteger(props.get(QUERY_LIMIT), DEFAULT_QUERY_LIMIT);
+  }
 
   /**
    * {@inheritDoc}
@@ -83,91 +100,33 @@ public class GroupMembersSearchPropertyProvider implements SearchPropertyProvide
         throw new IllegalArgumentException("Must provide group to search within.");
       }
 
-      // get the authorizable associated to the requested group name
-      Group group = (Group) um.getAuthorizable(groupName);
-      if (group == null) {
+      // get the authorizable associated to the requested group name, the members are
+      // only listed if the user can see the group.
+      Authorizable group = um.getAuthorizable(groupName);
+      MemberSet members = null;
+      if (group != null && group.isGroup()) {
+        // the declared members of the requested group and of its managers group
+        members = groupMemberIndex.getMembers(groupName);
+      }
+      if (members == null) {
         throw new IllegalArgumentException("Unable to find group [" + groupName + "]");
       }
 
-      LinkedHashSet<String> memberIds = new LinkedHashSet<String>();
-
-      // collect the declared members of the requested group
-      addDeclaredMembers(memberIds, group);
-
-      // get the managers group for the requested group and collect its members
-      addDeclaredManagerMembers(memberIds, group);
-
       boolean includeSelf = Boolean.parseBoolean(request.getParameter("includeSelf"));
-      String currentUser = request.getRemoteUser();
       if (!includeSelf) {
-        memberIds.remove(currentUser);
+        members = members.excluding(request.getRemoteUser());
       }
 
-      // 900 is the number raydavis said we should split on. This can be tuned as needed.
-      if (memberIds.size() > 900) {
+      if (members.size() > queryLimit) {
         // more than the threshold; pass along for post processing
-        request.setAttribute("memberIds", memberIds);
+        request.setAttribute(MEMBERS_ATTRIBUTE, members);
       } else {
         // update the query to filter before writing nodes
-        String users = StringUtils.join(memberIds, "' or rep:userId='");
+        String users = StringUtils.join(members.getUserIds(), "' or rep:userId='");
         propertiesMap.put("_groupQuery", "and (rep:userId='" + users + "')");
       }
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
     }
   }
-
-  /**
-   * Add any declared members of {@link group} to {@link memberIds}.
-   *
-   * @param memberIds List to collect member IDs.
-   * @param group Group to plunder through for member IDs.
-   * @throws RepositoryException
-   */
-  private void addDeclaredMembers(Collection<String> memberIds, Group group)
-      throws RepositoryException {
-    Iterator<Authorizable> members = group.getDeclaredMembers();
-    while (members.hasNext()) {
-      String memberId = members.next().getID();
-      if (!memberIds.contains(memberId)) {
-        memberIds.add(memberId);
-      }
-    }
-  }
-
-  /**
-   * Add any declared manager members of {@link group} to {@link memberIds}.
-   *
-   * @param memberIds List to collect member IDs.
-   * @param group Group to plunder through for manager member IDs.
-   * @param um UserManager for digging up the manager group.
-   * @throws RepositoryException
-   */
-  private void addDeclaredManagerMembers(Collection<String> memberIds, Group group)
-      throws RepositoryException {
-
-    Session adminSession = null;
-
-    try {
-      adminSession = slingRepository.loginAdministrative(null);
-      UserManager um = AccessControlUtil.getUserManager(adminSession);
-
-      if (group.hasProperty(UserConstants.PROP_MANAGERS_GROUP)) {
-        Value[] values = group.getProperty(UserConstants.PROP_MANAGERS_GROUP);
-        if (values != null && values.length == 1) {
-          String managerGroupId = values[0].getString();
-          Group managerGroup = (Group) um.getAuthorizable(managerGroupId);
-          if (managerGroup != null) {
-            addDeclaredMembers(memberIds, managerGroup);
-          } else {
-            logger.warn("Unable to find manager's group [" + managerGroupId + "]");
-          }
-        }
-      }
-    } finally {
-      if (adminSession != null) {
-        adminSession.logout();
-      }
-    }
-  }
 }
@@ -30,8 +30,6 @@ import org.sakaiproject.nakamura.api.search.ValidatingRowIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Set;
-
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.Query;
@@ -63,23 +61,22 @@ public class GroupMembersSearchResultProcessor extends NodeSearchBatchResultProc
       // Get the query result.
       QueryResult rs = query.execute();
 
-      @SuppressWarnings("unchecked")
-      final Set<String> memberIds = (Set<String>) request.getAttribute("memberIds");
+      // Set by the property provider when the group is too large to put in the query.
+      final MemberSet members = (MemberSet) request
+          .getAttribute(GroupMembersSearchPropertyProvider.MEMBERS_ATTRIBUTE);
 
       // Do the paging on the iterator.
-      
       ValidatingRowIterator iterator = new ValidatingRowIterator(rs.getRows()) {
 
+        {
+          loadNextRow();
+        }
+
         @Override
         protected boolean isValid(Node node) {
           try {
-            if (memberIds != null && node.hasProperty("rep:userId")) {
-              boolean isMember = false;
-              String username = node.getProperty("rep:userId").getString();
-              if (memberIds.contains(username)) {
-                isMember = true;
-              }
-              return isMember;
+            if (members != null && node.hasProperty("rep:userId")) {
+              return members.contains(node.getProperty("rep:userId").getString());
             } else {
               return true;
             }
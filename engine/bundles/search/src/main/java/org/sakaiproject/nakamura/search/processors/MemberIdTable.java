@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each user id a small int, so that sets of members can be held as sets of ints.
+ * Ids are never removed, a table holds at most every id that has been a member of a
+ * group.
+ */
+class MemberIdTable {
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+  /**
+   * The user id of each int. Guarded by this.
+   */
+  private final List<String> userIds = new ArrayList<String>();
+
+  /**
+   * @param userId
+   * @return the int of the user id, given one if it does not have one.
+   */
+  int intern(String userId) {
+    Integer id = ids.get(userId);
+    if (id != null) {
+      return id;
+    }
+    synchronized (this) {
+      id = ids.get(userId);
+      if (id == null) {
+        id = userIds.size();
+        userIds.add(userId);
+        ids.put(userId, id);
+      }
+      return id;
+    }
+  }
+
+  /**
+   * @param userId
+   * @return the int of the user id, or -1 if it does not have one. It does not take a
+   *         lock.
+   */
+  int find(String userId) {
+    Integer id = ids.get(userId);
+    return id == null ? -1 : id;
+  }
+
+  /**
+   * @param id
+   * @return the user id of the int.
+   */
+  synchronized String get(int id) {
+    return userIds.get(id);
+  }
+
+  /**
+   * @return the number of user ids in the table.
+   */
+  synchronized int size() {
+    return userIds.size();
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.processors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An immutable set of user ids, held as the ints of a {@link MemberIdTable}. A set is a
+ * bitmap over the ints, or a sorted array of them when that is smaller, which it is for
+ * groups that are small compared to the number of ids in the table. A member is found in
+ * constant time in a bitmap, and in log time of the size of a small group in an array.
+ */
+class MemberSet {
+
+  private final MemberIdTable table;
+  /**
+   * The sorted ints of the members, null if held in {@link #bits}.
+   */
+  private final int[] sorted;
+  /**
+   * The ints of the members, null if held in {@link #sorted}.
+   */
+  private final BitSet bits;
+  /**
+   * The int of a user that is not a member of this set, although it is of the set it was
+   * made from, -1 if none.
+   */
+  private final int excluded;
+  private final int size;
+
+  private MemberSet(MemberIdTable table, int[] sorted, BitSet bits, int excluded, int size) {
+    this.table = table;
+    this.sorted = sorted;
+    this.bits = bits;
+    this.excluded = excluded;
+    this.size = size;
+  }
+
+  /**
+   * @param table
+   *          the table to give the user ids ints from.
+   * @param userIds
+   *          the members, duplicates are ignored.
+   * @return the set of members.
+   */
+  static MemberSet create(MemberIdTable table, Collection<String> userIds) {
+    int[] ids = new int[userIds.size()];
+    int n = 0;
+    for (String userId : userIds) {
+      ids[n++] = table.intern(userId);
+    }
+    Arrays.sort(ids);
+    // drop duplicates
+    int size = 0;
+    for (int i = 0; i < n; i++) {
+      if (size == 0 || ids[size - 1] != ids[i]) {
+        ids[size++] = ids[i];
+      }
+    }
+    int maxId = size == 0 ? 0 : ids[size - 1];
+    // an int takes 32 bits, a bitmap one for every int up to the largest.
+    if ((long) size * 32 < maxId + 1) {
+      int[] sorted = new int[size];
+      System.arraycopy(ids, 0, sorted, 0, size);
+      return new MemberSet(table, sorted, null, -1, size);
+    }
+    BitSet bits = new BitSet(maxId + 1);
+    for (int i = 0; i < size; i++) {
+      bits.set(ids[i]);
+    }
+    return new MemberSet(table, null, bits, -1, size);
+  }
+
+  private boolean containsId(int id) {
+    if (id < 0 || id == excluded) {
+      return false;
+    }
+    if (bits != null) {
+      return bits.get(id);
+    }
+    return Arrays.binarySearch(sorted, id) >= 0;
+  }
+
+  /**
+   * @param userId
+   * @return true if the user is a member.
+   */
+  boolean contains(String userId) {
+    return containsId(table.find(userId));
+  }
+
+  /**
+   * @return the number of members.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param userId
+   *          the user to leave out, may be null.
+   * @return a set of the same members without a user, sharing the members of this set.
+   */
+  MemberSet excluding(String userId) {
+    if (userId == null) {
+      return this;
+    }
+    int id = table.find(userId);
+    if (!containsId(id)) {
+      return this;
+    }
+    return new MemberSet(table, sorted, bits, id, size - 1);
+  }
+
+  /**
+   * @return the user ids of the members.
+   */
+  List<String> getUserIds() {
+    List<String> userIds = new ArrayList<String>(size);
+    if (bits != null) {
+      for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+        if (id != excluded) {
+          userIds.add(table.get(id));
+        }
+      }
+    } else {
+      for (int id : sorted) {
+        if (id != excluded) {
+          userIds.add(table.get(id));
+        }
+      }
+    }
+    return userIds;
+  }
+}
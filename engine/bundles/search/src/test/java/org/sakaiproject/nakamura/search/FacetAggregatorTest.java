@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import junit.framework.Assert;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+
+import static org.easymock.EasyMock.expect;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ *
+ */
+public class FacetAggregatorTest extends AbstractEasyMockTest {
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+  }
+
+  @Test
+  public void testCount() throws RepositoryException {
+    String[] checkFields = new String[] { "sakai:tag" };
+    FacetAggregator aggregate = new FacetAggregator(checkFields, 1, 10);
+
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("sling:resourceType", "foo/bar");
+    properties.put("sakai:tag", "foo");
+
+    for (int i = 0; i < 50; i++) {
+      Node node = createNode(properties, "/foo/bar/" + i, 0);
+      aggregate.add(node);
+    }
+    // Create 2 extra nodes we should have already processed.
+    Node sameNodeA = createNode(properties, "/foo/bar/0", 0);
+    aggregate.add(sameNodeA);
+    Node sameNodeB = createNode(properties, "/foo/bar/1", 0);
+    aggregate.add(sameNodeB);
+    Node nodeWithChilds = createNode(properties, "/foo/bar/bla", 1);
+    aggregate.add(nodeWithChilds);
+
+    Map<String, Map<String, Integer>> map = aggregate.getAggregate();
+
+    Assert.assertEquals(52, Integer.parseInt(map.get("sakai:tag").get("foo")
+        .toString()));
+    Assert.assertTrue(aggregate.isExact());
+  }
+
+  @Test
+  public void testDepth() throws RepositoryException {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("sakai:tag", "foo");
+
+    // A node with a child and a grandchild.
+    FacetAggregator noChildren = new FacetAggregator(new String[] { "sakai:tag" }, 0, 10);
+    noChildren.add(createNode(properties, "/foo", 2));
+    Assert.assertEquals(1, noChildren.getAggregate().get("sakai:tag").get("foo")
+        .intValue());
+
+    FacetAggregator children = new FacetAggregator(new String[] { "sakai:tag" }, 1, 10);
+    children.add(createNode(properties, "/foo", 2));
+    Assert.assertEquals(2, children.getAggregate().get("sakai:tag").get("foo")
+        .intValue());
+
+    FacetAggregator grandChildren = new FacetAggregator(new String[] { "sakai:tag" }, 2,
+        10);
+    grandChildren.add(createNode(properties, "/foo", 2));
+    Assert.assertEquals(3, grandChildren.getAggregate().get("sakai:tag").get("foo")
+        .intValue());
+  }
+
+  @Test
+  public void testFacets() throws RepositoryException {
+    FacetAggregator aggregate = new FacetAggregator(new String[] { "sakai:tag",
+        "sakai:type" }, 0, 2);
+    List<Node> nodes = new ArrayList<Node>();
+    String[] tags = { "a", "b", "a", "c", "a", "b" };
+    for (int i = 0; i < tags.length; i++) {
+      Map<String, String> properties = new HashMap<String, String>();
+      properties.put("sakai:tag", tags[i]);
+      if (i % 2 == 0) {
+        properties.put("sakai:type", "even");
+      }
+      nodes.add(createNode(properties, "/foo/" + i, 0));
+    }
+    Assert.assertEquals(4, aggregate.addRows(new MockRowIterator(nodes), 4));
+    Assert.assertTrue(aggregate.isTruncated());
+    Assert.assertEquals(2, aggregate.addRows(new MockRowIterator(nodes.subList(4, 6)), 4));
+    Assert.assertEquals(6, aggregate.getRows());
+
+    Map<String, Map<String, Integer>> map = aggregate.getAggregate();
+    // Only the 2 most frequent, most frequent first.
+    Iterator<Entry<String, Integer>> tagCounts = map.get("sakai:tag").entrySet()
+        .iterator();
+    Entry<String, Integer> first = tagCounts.next();
+    Assert.assertEquals("a", first.getKey());
+    Assert.assertEquals(3, first.getValue().intValue());
+    Entry<String, Integer> second = tagCounts.next();
+    Assert.assertEquals("b", second.getKey());
+    Assert.assertEquals(2, second.getValue().intValue());
+    Assert.assertFalse(tagCounts.hasNext());
+    Assert.assertEquals(3, map.get("sakai:type").get("even").intValue());
+  }
+
+  @Test
+  public void testMultipleValues() throws RepositoryException {
+    Value a = EasyMock.createMock(Value.class);
+    expect(a.getString()).andReturn("a").anyTimes();
+    Value b = EasyMock.createMock(Value.class);
+    expect(b.getString()).andReturn("b").anyTimes();
+    Property prop = EasyMock.createMock(Property.class);
+    expect(prop.isMultiple()).andReturn(true).anyTimes();
+    expect(prop.getValues()).andReturn(new Value[] { a, b, a }).anyTimes();
+    Node node = EasyMock.createMock(Node.class);
+    expect(node.hasProperty("sakai:tag")).andReturn(true).anyTimes();
+    expect(node.getProperty("sakai:tag")).andReturn(prop).anyTimes();
+    EasyMock.replay(a, b, prop, node);
+
+    FacetAggregator aggregate = new FacetAggregator(new String[] { "sakai:tag" }, 0, 10);
+    aggregate.add(node);
+    Map<String, Integer> counts = aggregate.getAggregate().get("sakai:tag");
+    Assert.assertEquals(2, counts.get("a").intValue());
+    Assert.assertEquals(1, counts.get("b").intValue());
+  }
+
+  /**
+   * Create a node with a couple of string properties, and a chain of descendants with the
+   * same properties.
+   */
+  protected Node createNode(Map<String, String> properties, String path, int levels)
+      throws RepositoryException {
+    Node node = EasyMock.createMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    for (Entry<String, String> e : properties.entrySet()) {
+      String key = e.getKey();
+      String pvalue = e.getValue();
+
+      Property prop = createMock(Property.class);
+      expect(prop.getType()).andReturn(PropertyType.STRING).anyTimes();
+      expect(prop.isMultiple()).andReturn(false).anyTimes();
+      expect(prop.getString()).andReturn(pvalue).anyTimes();
+      EasyMock.replay(prop);
+
+      expect(node.hasProperty(key)).andReturn(true).anyTimes();
+      expect(node.getProperty(key)).andReturn(prop).anyTimes();
+
+    }
+    expect(node.hasProperty(EasyMock.isA(String.class))).andReturn(false).anyTimes();
+    if (levels > 0) {
+      expect(node.hasNodes()).andReturn(true).anyTimes();
+      NodeIterator nodeIterator = createMock(NodeIterator.class);
+      expect(nodeIterator.hasNext()).andReturn(true);
+      Node childNode = createNode(properties, path + "/child", levels - 1);
+      expect(nodeIterator.nextNode()).andReturn(childNode);
+      expect(nodeIterator.hasNext()).andReturn(false);
+      EasyMock.replay(nodeIterator);
+      expect(node.getNodes()).andReturn(nodeIterator).anyTimes();
+    } else {
+      expect(node.hasNodes()).andReturn(false).anyTimes();
+      NodeIterator nodeIterator = createMock(NodeIterator.class);
+      expect(nodeIterator.hasNext()).andReturn(false);
+      expect(node.getNodes()).andReturn(nodeIterator).anyTimes();
+      EasyMock.replay(nodeIterator);
+    }
+    EasyMock.replay(node);
+
+    return node;
+
+  }
+}
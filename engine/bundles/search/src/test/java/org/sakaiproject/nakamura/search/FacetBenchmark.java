@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Times counting 5 facets over a large result set with {@link FacetAggregator}, against
+ * counting every value in nested maps as the aggregation used to. The facets range from a
+ * handful of values to more distinct values than the aggregator tracks. Not part of the
+ * normal test run, run with <code>mvn test -Dtest=FacetBenchmark</code>, the number of
+ * rows and the values listed can be changed with
+ * <code>-Dbenchmark.rows=200000 -Dbenchmark.limit=50</code>.
+ */
+public class FacetBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(FacetBenchmark.class);
+  private static final String[] FACETS = { "sakai:type", "sakai:mimetype", "sakai:owner",
+      "sakai:tag", "sakai:folder" };
+  /**
+   * The number of distinct values of each facet.
+   */
+  private static final int[] CARDINALITY = { 5, 50, 1000, 5000, 20000 };
+  /**
+   * The number of distinct nodes, the rows cycle through them.
+   */
+  private static final int NODES = 20000;
+  private static final int ROUNDS = 5;
+
+  @Test
+  public void benchmark() throws Exception {
+    int rows = Integer.parseInt(System.getProperty("benchmark.rows", "100000"));
+    int limit = Integer.parseInt(System.getProperty("benchmark.limit", "100"));
+
+    Random random = new Random(42);
+    List<Node> distinct = new ArrayList<Node>();
+    for (int i = 0; i < NODES; i++) {
+      MockNode node = new MockNode("/var/content/" + (i % 100) + "/node" + i);
+      for (int f = 0; f < FACETS.length; f++) {
+        // Skewed, so a few values of each facet are far more frequent than the rest.
+        int v = (int) (CARDINALITY[f] * Math.pow(random.nextDouble(), 3));
+        node.setProperty(FACETS[f], FACETS[f] + v);
+      }
+      distinct.add(node);
+    }
+    List<Node> nodes = new ArrayList<Node>(rows);
+    for (int i = 0; i < rows; i++) {
+      nodes.add(distinct.get(i % NODES));
+    }
+
+    // Warm up both.
+    Map<String, Map<String, Integer>> facets = countFacets(nodes, limit);
+    Map<String, Map<String, Integer>> legacy = countLegacy(nodes);
+
+    long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      facets = countFacets(nodes, limit);
+    }
+    long facetTime = (System.nanoTime() - start) / ROUNDS;
+
+    start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      legacy = countLegacy(nodes);
+    }
+    long legacyTime = (System.nanoTime() - start) / ROUNDS;
+
+    // The most frequent value of each facet is the same either way.
+    for (String facet : FACETS) {
+      Map.Entry<String, Integer> top = facets.get(facet).entrySet().iterator().next();
+      assertEquals(legacy.get(facet).get(top.getKey()), top.getValue());
+      LOGGER.info("{}: {} distinct values, {} listed", new Object[] { facet,
+          legacy.get(facet).size(), facets.get(facet).size() });
+    }
+    LOGGER.info("{} rows, {} facets: facet aggregator {} ms, nested maps {} ms",
+        new Object[] { rows, FACETS.length, facetTime / 1000000, legacyTime / 1000000 });
+  }
+
+  private Map<String, Map<String, Integer>> countFacets(List<Node> nodes, int limit)
+      throws RepositoryException {
+    FacetAggregator aggregator = new FacetAggregator(FACETS, 0, limit);
+    aggregator.addRows(new MockRowIterator(nodes), Long.MAX_VALUE);
+    return aggregator.getAggregate();
+  }
+
+  /**
+   * Counts every value of every facet, as the aggregation used to.
+   */
+  private Map<String, Map<String, Integer>> countLegacy(List<Node> nodes)
+      throws RepositoryException {
+    Map<String, Map<String, Integer>> counts = new HashMap<String, Map<String, Integer>>();
+    for (String facet : FACETS) {
+      counts.put(facet, new HashMap<String, Integer>());
+    }
+    RowIterator iterator = new MockRowIterator(nodes);
+    while (iterator.hasNext()) {
+      Node node = iterator.nextRow().getNode();
+      for (String facet : FACETS) {
+        Map<String, Integer> values = counts.get(facet);
+        if (node.hasProperty(facet)) {
+          String value = node.getProperty(facet).getString();
+          if (values.containsKey(value)) {
+            values.put(value, values.get(value) + 1);
+          } else {
+            values.put(value, 1);
+          }
+        }
+      }
+    }
+    return counts;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.easymock.EasyMock.expect;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_EXCLUDE_TREE;
+
+import junit.framework.Assert;
+
+import org.apache.jackrabbit.util.ISO9075;
+import org.apache.sling.api.SlingConstants;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+
+/**
+ *
+ */
+public class FacetCacheTest extends AbstractEasyMockTest {
+
+  private static final String[] FACETS = new String[] { "sakai:tag" };
+  // The query templates of var/search/files and var/search/pool in the files bundle.
+  private static final String FILES = "/{path}//*[{_typesWhere}{_tags}{_ids}{_sites}] order by @{sortOn|jcr:score} {sortOrder|descending}";
+  private static final String MYFILES = "/{_mySpace}//element(*, nt:file)[(jcr:contains(., '{q}') or jcr:contains(jcr:content, '{q}') or fn:name() = '{q}'){_usedin?}{_tags?}] order by @{sortOn|jcr:score} {sortOrder|descending}";
+  private static final String ALLFILES = "//element(*, nt:file)[(jcr:contains(., '{q}') or jcr:contains(jcr:content, '{q}')){_tags?}{_usedin?}] order by @{sortOn|jcr:score} {sortOrder|descending}";
+  private static final String POOL_FILES = "//element(*, sakai:pooled-content)[members/*/*/{group}/@sakai:pooled-content-manager='{group}' or members/*/*/{group}/@sakai:pooled-content-viewer='{group}'] order by @{sortOn|jcr:score} {sortOrder|descending}";
+  private FacetCache cache;
+  private Node template;
+  private Query query;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    cache = new FacetCache();
+
+    Session session = createNiceMock(Session.class);
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    template = createNiceMock(Node.class);
+    expect(template.getPath()).andReturn("/var/search/files").anyTimes();
+    expect(template.getSession()).andReturn(session).anyTimes();
+
+    // Each execution of the query returns the same 3 results.
+    query = createMock(Query.class);
+    expect(query.execute()).andAnswer(new IAnswer<QueryResult>() {
+      public QueryResult answer() throws Throwable {
+        return createResult("a", "b", "a");
+      }
+    }).anyTimes();
+    EasyMock.replay(session, template, query);
+  }
+
+  @Test
+  public void testCached() throws RepositoryException {
+    FacetCache.Facets facets = cache.getFacets(template, query, "q",
+        new FacetAggregator(FACETS, 0, 10), 2500);
+    Assert.assertEquals(2, facets.getCounts().get("sakai:tag").get("a").intValue());
+    Assert.assertEquals(1, facets.getCounts().get("sakai:tag").get("b").intValue());
+    Assert.assertEquals(0, cache.getHitCount());
+
+    Assert.assertSame(facets, cache.getFacets(template, query, "q", new FacetAggregator(
+        FACETS, 0, 10), 2500));
+    Assert.assertEquals(1, cache.getHitCount());
+
+    // Another query is counted again.
+    Assert.assertNotSame(facets, cache.getFacets(template, query, "other",
+        new FacetAggregator(FACETS, 0, 10), 2500));
+    Assert.assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testInvalidated() throws RepositoryException {
+    String q = expand(MYFILES, "{_mySpace}", "/_user/a/al/alice/public");
+    FacetCache.Facets facets = cache.getFacets(template, query, q,
+        new FacetAggregator(FACETS, 0, 10), 2500);
+
+    // A change outside the subtree of the query leaves the counts.
+    changed("/somewhere/else");
+    Assert.assertSame(facets, cache.getFacets(template, query, q, new FacetAggregator(
+        FACETS, 0, 10), 2500));
+
+    changed("/_user/a/al/alice/public/doc");
+    Assert.assertNotSame(facets, cache.getFacets(template, query, q,
+        new FacetAggregator(FACETS, 0, 10), 2500));
+    Assert.assertEquals(1, cache.getHitCount());
+    Assert.assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testUnscopedQueryExpires() throws RepositoryException {
+    FacetCache.Facets facets = cache.getFacets(template, query, "q",
+        new FacetAggregator(FACETS, 0, 10), 2500);
+    // A query that can match anywhere is not dropped on each change.
+    changed("/somewhere/else");
+    Assert.assertSame(facets, cache.getFacets(template, query, "q", new FacetAggregator(
+        FACETS, 0, 10), 2500));
+
+    cache.configure(10, -1, 10);
+    facets = cache.getFacets(template, query, "q", new FacetAggregator(FACETS, 0, 10),
+        2500);
+    Assert.assertNotSame(facets, cache.getFacets(template, query, "q",
+        new FacetAggregator(FACETS, 0, 10), 2500));
+  }
+
+  @Test
+  public void testTruncated() throws RepositoryException {
+    FacetCache.Facets facets = cache.getFacets(template, query, "q", new FacetAggregator(
+        FACETS, 0, 10), 2);
+    Assert.assertTrue(facets.isTruncated());
+    Assert.assertEquals(1, facets.getCounts().get("sakai:tag").get("a").intValue());
+    Assert.assertEquals(1, facets.getCounts().get("sakai:tag").get("b").intValue());
+    Assert.assertFalse(cache.getFacets(template, query, "q",
+        new FacetAggregator(FACETS, 0, 10), 2500).isTruncated());
+
+    // The configured limit applies when it is lower.
+    cache.configure(10, 60000, 1);
+    facets = cache.getFacets(template, query, "q", new FacetAggregator(FACETS, 0, 10),
+        2500);
+    Assert.assertTrue(facets.isTruncated());
+    Assert.assertEquals(1, facets.getCounts().get("sakai:tag").get("a").intValue());
+    Assert.assertNull(facets.getCounts().get("sakai:tag").get("b"));
+  }
+
+  @Test
+  public void testScope() {
+    // {path} is given as an absolute path, or relative to the root.
+    Assert.assertEquals("/sites/physics", FacetCache.getScope(expand(FILES, "{path}",
+        "/sites/physics")));
+    Assert.assertEquals("/sites/physics", FacetCache.getScope(expand(FILES, "{path}",
+        "sites/physics")));
+    // The servlet makes {path} of ~alice/public into the public folder of alice.
+    Assert.assertEquals("/_user/a/al/alice/public", FacetCache.getScope(expand(FILES,
+        "{path}", "_user/a/al/alice/public")));
+    // {_mySpace} is an absolute path escaped with ISO 9075.
+    Assert.assertEquals("/_user/a/al/alice/public", FacetCache.getScope(expand(MYFILES,
+        "{_mySpace}", ISO9075.encodePath("/_user/a/al/alice/public"))));
+    Assert.assertEquals("/_user/1/12/123/public", FacetCache.getScope(expand(MYFILES,
+        "{_mySpace}", ISO9075.encodePath("/_user/1/12/123/public"))));
+    // Queries of all the files or pooled content can match anywhere.
+    Assert.assertEquals("/", FacetCache.getScope(expand(ALLFILES, "{q}", "physics")));
+    Assert.assertEquals("/", FacetCache.getScope(expand(POOL_FILES, "{group}",
+        "g-physics")));
+    Assert.assertEquals("/", FacetCache.getScope(expand(FILES, "{path}", "")));
+
+    Assert.assertEquals("/_user/a/alice", FacetCache
+        .getScope("/jcr:root/_user/a/alice//*[@sakai:tag]"));
+    Assert.assertEquals("/", FacetCache.getScope("select * from nt:base"));
+  }
+
+  /**
+   * Expand a query template as the search servlet does for the parameter, and with the
+   * defaults or nothing for the rest.
+   */
+  private String expand(String template, String parameter, String value) {
+    return template.replace(parameter, value).replace("{sortOn|jcr:score}", "jcr:score")
+        .replace("{sortOrder|descending}", "descending").replaceAll("\\{[^}]*\\}", "");
+  }
+
+  private void changed(String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, path);
+    cache.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props));
+  }
+
+  private QueryResult createResult(String... tags) throws RepositoryException {
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < tags.length; i++) {
+      Property property = createNiceMock(Property.class);
+      expect(property.getString()).andReturn(tags[i]).anyTimes();
+      expect(property.getBoolean()).andReturn(false).anyTimes();
+      Node node = createNiceMock(Node.class);
+      expect(node.getPath()).andReturn("/content/" + i).anyTimes();
+      expect(node.hasProperty(SAKAI_EXCLUDE_TREE)).andReturn(true).anyTimes();
+      expect(node.getProperty(SAKAI_EXCLUDE_TREE)).andReturn(property).anyTimes();
+      expect(node.hasProperty("sakai:tag")).andReturn(true).anyTimes();
+      expect(node.getProperty("sakai:tag")).andReturn(property).anyTimes();
+      EasyMock.replay(property, node);
+      nodes.add(node);
+    }
+    QueryResult result = createNiceMock(QueryResult.class);
+    expect(result.getRows()).andReturn(new MockRowIterator(nodes)).anyTimes();
+    EasyMock.replay(result);
+    return result;
+  }
+}
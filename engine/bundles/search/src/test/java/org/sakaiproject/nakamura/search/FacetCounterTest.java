@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+
+public class FacetCounterTest {
+
+  @Test
+  public void testTop() {
+    FacetCounter counter = new FacetCounter(2);
+    String[] values = { "b", "a", "c", "a", "b", "a", "d" };
+    for (String value : values) {
+      counter.add(value);
+    }
+    Map<String, Integer> top = counter.getTop();
+    assertEquals(2, top.size());
+    Iterator<Entry<String, Integer>> i = top.entrySet().iterator();
+    Entry<String, Integer> e = i.next();
+    assertEquals("a", e.getKey());
+    assertEquals(3, e.getValue().intValue());
+    e = i.next();
+    assertEquals("b", e.getKey());
+    assertEquals(2, e.getValue().intValue());
+    assertTrue(counter.isExact());
+  }
+
+  @Test
+  public void testTiesInValueOrder() {
+    FacetCounter counter = new FacetCounter(3);
+    counter.add("c");
+    counter.add("a");
+    counter.add("b");
+    assertEquals("[a, b, c]", counter.getTop().keySet().toString());
+  }
+
+  @Test
+  public void testFrequentValuesKept() {
+    FacetCounter counter = new FacetCounter(2, 50);
+    // Far more distinct values than the counter tracks, with 2 frequent ones among them.
+    for (int i = 0; i < 1000; i++) {
+      counter.add("rare" + i);
+      if (i % 4 == 0) {
+        counter.add("frequent");
+      }
+      if (i % 10 == 0) {
+        counter.add("common");
+      }
+    }
+    assertFalse(counter.isExact());
+    Map<String, Integer> top = counter.getTop();
+    assertEquals("[frequent, common]", top.keySet().toString());
+    // Counts are upper bounds once values have been dropped.
+    assertTrue(top.get("frequent") >= 250);
+    assertTrue(top.get("common") >= 100);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoLimit() {
+    new FacetCounter(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCapacityBelowLimit() {
+    new FacetCounter(10, 15);
+  }
+}
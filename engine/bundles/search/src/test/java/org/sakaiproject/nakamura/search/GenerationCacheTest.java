@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ *
+ */
+public class GenerationCacheTest {
+
+  private GenerationCache.Filter<String> under(final String path) {
+    return new GenerationCache.Filter<String>() {
+      public boolean matches(String scope) {
+        return scope.equals(path) || scope.startsWith(path + "/");
+      }
+    };
+  }
+
+  @Test
+  public void testInvalidated() {
+    GenerationCache<String, String> cache = new GenerationCache<String, String>(10,
+        GenerationCache.FOREVER);
+    Assert.assertNull(cache.get("a"));
+    cache.put("a", "A", "/sites/a", cache.startBuild("/sites/a"));
+    cache.put("b", "B", "/sites/b", cache.startBuild("/sites/b"));
+    Assert.assertEquals("A", cache.get("a"));
+
+    cache.invalidate(under("/sites/a"));
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals("B", cache.get("b"));
+    Assert.assertEquals(2, cache.getHitCount());
+    Assert.assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testChangeWhileBuilding() {
+    GenerationCache<String, String> cache = new GenerationCache<String, String>(10,
+        GenerationCache.FOREVER);
+    // a change to something else leaves the value to be cached.
+    long generation = cache.startBuild("/sites/a");
+    cache.invalidate(under("/sites/b"));
+    cache.put("a", "A", "/sites/a", generation);
+    cache.finishBuild("/sites/a");
+    Assert.assertEquals("A", cache.get("a"));
+
+    // a change to what is being built does not.
+    generation = cache.startBuild("/sites/b");
+    cache.invalidate(under("/sites"));
+    cache.put("b", "B", "/sites/b", generation);
+    cache.finishBuild("/sites/b");
+    Assert.assertNull(cache.get("b"));
+  }
+
+  @Test
+  public void testLimits() throws InterruptedException {
+    GenerationCache<String, String> cache = new GenerationCache<String, String>(2,
+        GenerationCache.FOREVER);
+    cache.put("a", "A", "/a", cache.startBuild("/a"));
+    cache.put("b", "B", "/b", cache.startBuild("/b"));
+    cache.get("a");
+    cache.put("c", "C", "/c", cache.startBuild("/c"));
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals("A", cache.get("a"));
+
+    cache.configure(2, 1);
+    cache.put("a", "A", "/a", cache.startBuild("/a"));
+    Thread.sleep(10);
+    Assert.assertNull(cache.get("a"));
+
+    cache.configure(0, GenerationCache.FOREVER);
+    cache.put("a", "A", "/a", cache.startBuild("/a"));
+    Assert.assertNull(cache.get("a"));
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_CURSOR;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CURSOR_ORDER;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CURSOR_PROPERTY;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_QUERY_TEMPLATE;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.SearchException;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.query.Query;
+import javax.jcr.query.RowIterator;
+
+/**
+ *
+ */
+public class SearchCursorTest {
+
+  private static final String SORT = "sakai:sort";
+
+  private MockNode template;
+
+  @Before
+  public void setUp() throws Exception {
+    template = new MockNode("/var/search/sorted");
+    template.setProperty(SAKAI_QUERY_TEMPLATE, "//*[@sakai:type='x'{_cursor?}] order by @"
+        + SORT);
+    template.setProperty(SAKAI_CURSOR_PROPERTY, SORT);
+  }
+
+  @Test
+  public void testNotConfigured() throws Exception {
+    MockNode plain = new MockNode("/var/search/plain");
+    plain.setProperty(SAKAI_QUERY_TEMPLATE, "//*[@sakai:type='x']");
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    replay(request);
+    assertNull(SearchCursor.fromRequest(request, plain));
+  }
+
+  @Test
+  public void testFirstPage() throws Exception {
+    SearchCursor cursor = SearchCursor.fromRequest(createRequest(null), template);
+    assertFalse(cursor.isResumed());
+    assertEquals("", cursor.getConstraint(Query.XPATH));
+    assertEquals(0, cursor.getSkip());
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    // First page of four: a, b, b, c
+    SearchCursor cursor = SearchCursor.fromRequest(createRequest(null), template);
+    RowIterator rows = cursor.track(createRows("a", "b", "b", "c", "c", "d"));
+    for (int i = 0; i < 4; i++) {
+      rows.nextRow();
+    }
+    String next = cursor.getNext();
+
+    // The next page starts at c, and skips the one c that was returned.
+    cursor = SearchCursor.fromRequest(createRequest(next), template);
+    assertTrue(cursor.isResumed());
+    assertEquals(" and @sakai:sort >= 'c'", cursor.getConstraint(Query.XPATH));
+    assertEquals(1, cursor.getSkip());
+
+    rows = cursor.track(createRows("c", "c", "d"));
+    rows.skip(cursor.getSkip());
+    assertEquals("c", rows.nextRow().getNode().getProperty(SORT).getString());
+    assertEquals("d", rows.nextRow().getNode().getProperty(SORT).getString());
+    assertEquals(" and @sakai:sort >= 'd'", SearchCursor.decode(SORT, false,
+        cursor.getNext()).getConstraint(Query.XPATH));
+  }
+
+  @Test
+  public void testTiesAcrossPages() throws Exception {
+    SearchCursor cursor = SearchCursor.fromRequest(createRequest(null), template);
+    RowIterator rows = cursor.track(createRows("x", "x", "x", "x", "x"));
+    rows.nextRow();
+    rows.nextRow();
+    cursor = SearchCursor.decode(SORT, false, cursor.getNext());
+    assertEquals(2, cursor.getSkip());
+
+    // The whole of the second page has the same value, so its ties add to the first.
+    rows = cursor.track(createRows("x", "x", "x", "x", "x"));
+    rows.skip(cursor.getSkip());
+    rows.nextRow();
+    rows.nextRow();
+    cursor = SearchCursor.decode(SORT, false, cursor.getNext());
+    assertEquals(4, cursor.getSkip());
+  }
+
+  @Test
+  public void testConstraints() throws Exception {
+    SearchCursor date = new SearchCursor("jcr:created", true, "2010-03-01T10:00:00.000Z",
+        PropertyType.DATE, 1);
+    assertEquals(" and @jcr:created <= xs:dateTime('2010-03-01T10:00:00.000Z')", date
+        .getConstraint(Query.XPATH));
+    assertEquals(" and jcr:created <= TIMESTAMP '2010-03-01T10:00:00.000Z'", date
+        .getConstraint(Query.SQL));
+
+    SearchCursor number = new SearchCursor("size", false, "42", PropertyType.LONG, 1);
+    assertEquals(" and @size >= 42", number.getConstraint(Query.XPATH));
+
+    SearchCursor string = new SearchCursor("name", false, "o'brien", PropertyType.STRING,
+        1);
+    assertEquals(" and @name >= 'o''brien'", string.getConstraint(Query.XPATH));
+    assertEquals(" and name >= 'o''brien'", string.getConstraint(Query.SQL));
+  }
+
+  @Test
+  public void testDescending() throws Exception {
+    template.setProperty(SAKAI_CURSOR_ORDER, "descending");
+    String token = new SearchCursor(SORT, true, "m", PropertyType.STRING, 3).getNext();
+    SearchCursor cursor = SearchCursor.fromRequest(createRequest(token), template);
+    assertEquals(" and @sakai:sort <= 'm'", cursor.getConstraint(Query.XPATH));
+    assertEquals(3, cursor.getSkip());
+  }
+
+  @Test
+  public void testInvalidCursors() throws Exception {
+    assertInvalid("not a cursor");
+    assertInvalid("abc");
+    // A cursor from another template.
+    assertInvalid(new SearchCursor("other", false, "a", PropertyType.STRING, 1).getNext());
+    // A number that is not a number would go into the query as it is.
+    assertInvalid(new SearchCursor(SORT, false, "1 or 1=1", PropertyType.LONG, 1)
+        .getNext());
+    assertInvalid(new SearchCursor(SORT, false, "1e3", PropertyType.LONG, 1).getNext());
+    assertInvalid(new SearchCursor(SORT, false, "NaN", PropertyType.DOUBLE, 1).getNext());
+    // So would a date.
+    assertInvalid(new SearchCursor(SORT, false, "2010-03-01') or (@a='a",
+        PropertyType.DATE, 1).getNext());
+    assertInvalid(new SearchCursor(SORT, false, "2010-03-01T10:00:00.000Z' or 'a'='a",
+        PropertyType.DATE, 1).getNext());
+    assertInvalid(new SearchCursor(SORT, false, "2010-03-01T10:00:00Z", PropertyType.DATE,
+        1).getNext());
+  }
+
+  @Test
+  public void testDateCursor() throws Exception {
+    String token = new SearchCursor(SORT, true, "2010-03-01T10:00:00.000+01:00",
+        PropertyType.DATE, 2).getNext();
+    SearchCursor cursor = SearchCursor.decode(SORT, true, token);
+    assertEquals(" and @sakai:sort <= xs:dateTime('2010-03-01T10:00:00.000+01:00')",
+        cursor.getConstraint(Query.XPATH));
+    assertEquals(2, cursor.getSkip());
+  }
+
+  @Test
+  public void testTemplateWithoutPlaceholder() throws Exception {
+    template.setProperty(SAKAI_QUERY_TEMPLATE, "//*[@sakai:type='x'] order by @" + SORT);
+    String token = new SearchCursor(SORT, false, "m", PropertyType.STRING, 1).getNext();
+    try {
+      SearchCursor.fromRequest(createRequest(token), template);
+      fail("A template without {_cursor?} can not be resumed");
+    } catch (SearchException e) {
+      assertEquals(500, e.getCode());
+    }
+  }
+
+  private void assertInvalid(String token) {
+    try {
+      SearchCursor.decode(SORT, false, token);
+      fail("Cursor should not be accepted: " + token);
+    } catch (SearchException e) {
+      assertEquals(400, e.getCode());
+    }
+  }
+
+  private SlingHttpServletRequest createRequest(String cursor) {
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    if (cursor == null) {
+      expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(null).anyTimes();
+    } else {
+      RequestParameter param = createMock(RequestParameter.class);
+      expect(param.getString()).andReturn(cursor).anyTimes();
+      replay(param);
+      expect(request.getRequestParameter(PARAMS_CURSOR)).andReturn(param).anyTimes();
+    }
+    replay(request);
+    return request;
+  }
+
+  private RowIterator createRows(String... values) throws RepositoryException {
+    List<Node> nodes = new ArrayList<Node>();
+    for (int i = 0; i < values.length; i++) {
+      MockNode node = new MockNode("/path/to/node" + i);
+      node.setProperty(SORT, values[i]);
+      nodes.add(node);
+    }
+    return new MockRowIterator(nodes);
+  }
+}
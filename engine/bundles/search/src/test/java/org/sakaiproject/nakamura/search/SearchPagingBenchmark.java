@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.commons.testing.jcr.MockNode;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.query.Query;
+import javax.jcr.query.Row;
+import javax.jcr.query.RowIterator;
+
+/**
+ * Compares the time to read a page of search results at increasing page numbers, skipping
+ * over the earlier pages as offset paging does, with starting at a cursor. The index is
+ * simulated by a sorted list of nodes, the cursor constraint by starting the list at the
+ * cursor value, so only the reading and filtering of rows after the query is timed. Not
+ * part of the normal test run, run with <code>mvn test -Dtest=SearchPagingBenchmark</code>,
+ * the number of results and the pages timed can be changed with
+ * <code>-Dbenchmark.results=20000 -Dbenchmark.pages=1,10,100,400</code>.
+ */
+public class SearchPagingBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchPagingBenchmark.class);
+  private static final String SORT = "sakai:sort";
+  private static final int ITEMS = 25;
+  private static final int ROUNDS = 20;
+
+  @Test
+  public void benchmark() throws Exception {
+    int n = Integer.parseInt(System.getProperty("benchmark.results", "10000"));
+    List<Node> nodes = new ArrayList<Node>();
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < n; i++) {
+      // pairs of results share a value, so the cursor has ties to skip.
+      String value = String.format("%08d", i / 2);
+      MockNode node = new MockNode("/var/content/" + (i % 100) + "/node" + i);
+      node.setProperty(SORT, value);
+      nodes.add(node);
+      values.add(value);
+    }
+
+    String[] pages = System.getProperty("benchmark.pages", "1,10,50,200,399").split(",");
+    int lastPage = 0;
+    for (String page : pages) {
+      lastPage = Math.max(lastPage, Integer.parseInt(page.trim()));
+    }
+
+    // Walk the pages with a cursor, keeping the cursor for the start of each page.
+    String[] cursors = new String[lastPage + 1];
+    SearchCursor cursor = new SearchCursor(SORT, false, null, PropertyType.UNDEFINED, 0);
+    for (int page = 0; page <= lastPage; page++) {
+      cursors[page] = page == 0 ? null : cursor.getNext();
+      cursor = page == 0 ? cursor : SearchCursor.decode(SORT, false, cursors[page]);
+      readCursorPage(nodes, values, cursor);
+    }
+
+    for (String p : pages) {
+      int page = Integer.parseInt(p.trim());
+      Row offsetFirst = null;
+      long start = System.nanoTime();
+      for (int r = 0; r < ROUNDS; r++) {
+        offsetFirst = readOffsetPage(nodes, page);
+      }
+      long offset = (System.nanoTime() - start) / ROUNDS;
+
+      Row cursorFirst = null;
+      start = System.nanoTime();
+      for (int r = 0; r < ROUNDS; r++) {
+        SearchCursor c = page == 0 ? new SearchCursor(SORT, false, null,
+            PropertyType.UNDEFINED, 0) : SearchCursor.decode(SORT, false, cursors[page]);
+        cursorFirst = readCursorPage(nodes, values, c);
+      }
+      long keyset = (System.nanoTime() - start) / ROUNDS;
+
+      assertEquals(offsetFirst.getNode().getPath(), cursorFirst.getNode().getPath());
+      LOGGER.info("{} results, page {}: offset {} us, cursor {} us", new Object[] { n,
+          page, offset / 1000, keyset / 1000 });
+    }
+  }
+
+  private Row readOffsetPage(List<Node> nodes, int page) {
+    RowIterator iterator = new SakaiSearchRowIterator(new MockRowIterator(nodes));
+    iterator.skip((long) page * ITEMS);
+    return readPage(iterator);
+  }
+
+  private Row readCursorPage(List<Node> nodes, List<String> values, SearchCursor cursor) {
+    int from = 0;
+    if (cursor.isResumed()) {
+      // What the index does with the cursor constraint.
+      from = firstAtLeast(values, cursorValue(cursor));
+    }
+    RowIterator iterator = cursor.track(new SakaiSearchRowIterator(new MockRowIterator(
+        nodes.subList(from, nodes.size()))));
+    iterator.skip(cursor.getSkip());
+    return readPage(iterator);
+  }
+
+  private Row readPage(RowIterator iterator) {
+    Row first = null;
+    for (int i = 0; i < ITEMS && iterator.hasNext(); i++) {
+      Row row = iterator.nextRow();
+      if (first == null) {
+        first = row;
+      }
+    }
+    return first;
+  }
+
+  private String cursorValue(SearchCursor cursor) {
+    try {
+      String constraint = cursor.getConstraint(Query.XPATH);
+      return constraint.substring(constraint.indexOf('\'') + 1, constraint.lastIndexOf('\''));
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private int firstAtLeast(List<String> values, String value) {
+    int lo = 0;
+    int hi = values.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (values.get(mid).compareTo(value) < 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
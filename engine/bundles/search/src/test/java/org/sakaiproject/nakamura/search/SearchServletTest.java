@@ -5,6 +5,7 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_AGGREGATE;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_CURSOR_PROPERTY;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_LIMIT_RESULTS;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.SearchConstants.SAKAI_QUERY_LANGUAGE;
@@ -125,6 +126,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_LIMIT_RESULTS)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_CURSOR_PROPERTY)).andReturn(false).anyTimes();
 
     Resource resource = createMock(Resource.class);
     expect(resource.getPath()).andReturn("/var/dummy");
@@ -214,6 +216,7 @@ public class SearchServletTest extends AbstractEasyMockTest {
     expect(queryNode.hasProperty(SAKAI_BATCHRESULTPROCESSOR)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_AGGREGATE)).andReturn(false).anyTimes();
     expect(queryNode.hasProperty(SAKAI_LIMIT_RESULTS)).andReturn(false).anyTimes();
+    expect(queryNode.hasProperty(SAKAI_CURSOR_PROPERTY)).andReturn(false).anyTimes();
 
     Resource resource = createMock(Resource.class);
     expect(resource.getPath()).andReturn("/var/dummy");
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.easymock.EasyMock.expect;
+
+import junit.framework.Assert;
+
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
+import org.apache.sling.jcr.jackrabbit.server.index.TermCloudExtractor;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ *
+ */
+public class TermCloudServiceTest extends AbstractEasyMockTest {
+
+  private TermCloudService service;
+  private Session session;
+  private List<String> added;
+  private int closed;
+  private Node site;
+  private Node page;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    added = new ArrayList<String>();
+    service = new TermCloudService() {
+      @Override
+      protected TermCloudExtractor createExtractor(Session session, int size) {
+        return new TermCloudExtractor() {
+          @Override
+          public void add(Node node) throws RepositoryException {
+            added.add(node.getPath());
+          }
+
+          @Override
+          public List<CloudTerm> getTopTerms(int count) {
+            List<CloudTerm> terms = new ArrayList<CloudTerm>();
+            for (int i = 0; i < count; i++) {
+              terms.add(createTerm("term" + i, 100 - i));
+            }
+            return terms;
+          }
+
+          @Override
+          public void close() {
+            closed++;
+          }
+        };
+      }
+    };
+
+    session = createNiceMock(Session.class);
+    expect(session.getUserID()).andReturn("alice").anyTimes();
+    EasyMock.replay(session);
+    page = createNode("/sites/physics/pages/a");
+    site = createNode("/sites/physics", createNode("/sites/physics/pages", page));
+  }
+
+  @Test
+  public void testBuildsSubtree() throws RepositoryException {
+    List<CloudTerm> terms = service.getTerms(site, 3);
+    Assert.assertEquals(3, terms.size());
+    Assert.assertEquals("term0", terms.get(0).getName());
+    Assert.assertEquals(Arrays.asList("/sites/physics", "/sites/physics/pages",
+        "/sites/physics/pages/a"), added);
+    Assert.assertEquals(1, closed);
+  }
+
+  @Test
+  public void testCached() throws RepositoryException {
+    service.getTerms(site, 3);
+    Assert.assertEquals(0, service.getHitCount());
+    // a different count is answered from the same cloud.
+    Assert.assertEquals(5, service.getTerms(site, 5).size());
+    Assert.assertEquals(1, service.getHitCount());
+    Assert.assertEquals(3, added.size());
+  }
+
+  @Test
+  public void testInvalidatedInside() throws RepositoryException {
+    service.getTerms(site, 3);
+    service.getTerms(page, 3);
+    sendEvent("/sites/physics/pages/a/b");
+    service.getTerms(site, 3);
+    service.getTerms(page, 3);
+    Assert.assertEquals(0, service.getHitCount());
+    Assert.assertEquals(4, service.getMissCount());
+  }
+
+  @Test
+  public void testInvalidatedAbove() throws RepositoryException {
+    service.getTerms(page, 3);
+    sendEvent("/sites");
+    service.getTerms(page, 3);
+    Assert.assertEquals(0, service.getHitCount());
+  }
+
+  @Test
+  public void testNotInvalidatedElsewhere() throws RepositoryException {
+    service.getTerms(site, 3);
+    service.getTerms(page, 3);
+    sendEvent("/sites/physics2");
+    sendEvent("/sites/physics/other");
+    service.getTerms(site, 3);
+    service.getTerms(page, 3);
+    // the site contains the other change, the page does not.
+    Assert.assertEquals(1, service.getHitCount());
+  }
+
+  private void sendEvent(String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, path);
+    service.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props));
+  }
+
+  private CloudTerm createTerm(final String name, final int count) {
+    return new CloudTerm() {
+      public String getName() {
+        return name;
+      }
+
+      public int getCount() {
+        return count;
+      }
+    };
+  }
+
+  private Node createNode(String path, final Node... children) throws RepositoryException {
+    Node node = createNiceMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    expect(node.getSession()).andReturn(session).anyTimes();
+    expect(node.getNodes()).andAnswer(new IAnswer<NodeIterator>() {
+      public NodeIterator answer() throws Throwable {
+        return createIterator(children);
+      }
+    }).anyTimes();
+    EasyMock.replay(node);
+    return node;
+  }
+
+  private NodeIterator createIterator(Node... nodes) {
+    final Iterator<Node> i = Arrays.asList(nodes).iterator();
+    NodeIterator iterator = createNiceMock(NodeIterator.class);
+    expect(iterator.hasNext()).andAnswer(new IAnswer<Boolean>() {
+      public Boolean answer() throws Throwable {
+        return i.hasNext();
+      }
+    }).anyTimes();
+    expect(iterator.nextNode()).andAnswer(new IAnswer<Node>() {
+      public Node answer() throws Throwable {
+        return i.next();
+      }
+    }).anyTimes();
+    EasyMock.replay(iterator);
+    return iterator;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.easymock.EasyMock.expect;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.junit.Test;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ *
+ */
+public class TermCloudServletTest extends AbstractEasyMockTest {
+
+  @Test
+  public void testAnonymous() throws IOException, ServletException {
+    // no term cloud service, the cloud is not built.
+    TermCloudServlet servlet = new TermCloudServlet();
+
+    SlingHttpServletRequest request = createMock(SlingHttpServletRequest.class);
+    expect(request.getRemoteUser()).andReturn("anonymous");
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+        "User must be logged in to list terms");
+    replay();
+
+    servlet.doGet(request, response);
+    verify();
+  }
+}
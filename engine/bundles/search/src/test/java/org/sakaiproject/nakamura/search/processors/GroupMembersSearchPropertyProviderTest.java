@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.processors;
+
+import static org.easymock.EasyMock.expect;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.search.SearchResultSet;
+import org.sakaiproject.nakamura.api.search.SearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
+import org.sakaiproject.nakamura.testutils.easymock.MockRowIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+import javax.jcr.query.RowIterator;
+
+/**
+ *
+ */
+public class GroupMembersSearchPropertyProviderTest extends AbstractEasyMockTest {
+
+  private static final String GROUP = "g-course";
+  private static final String MANAGERS = "g-course-managers";
+
+  private GroupMemberIndex index;
+  private GroupMembersSearchPropertyProvider provider;
+  private UserManager adminUserManager;
+  private int logins;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    index = new GroupMemberIndex();
+    provider = new GroupMembersSearchPropertyProvider();
+    provider.groupMemberIndex = index;
+  }
+
+  @Test
+  public void testSmallGroup() throws Exception {
+    List<String> members = Arrays.asList("alice", "bob", "carol");
+    setUpGroups(members, Arrays.asList("dave"));
+
+    Map<String, String> propertiesMap = new HashMap<String, String>();
+    SlingHttpServletRequest request = createRequest("bob", false);
+    provider.loadUserProperties(request, propertiesMap);
+
+    // everyone but the current user, in the query.
+    String query = propertiesMap.get("_groupQuery");
+    assertTrue(query.startsWith("and (rep:userId='"));
+    Set<String> inQuery = new HashSet<String>(Arrays.asList(query.substring(
+        "and (rep:userId='".length(), query.length() - "')".length()).split(
+        "' or rep:userId='")));
+    assertEquals(new HashSet<String>(Arrays.asList("alice", "carol", "dave")), inQuery);
+  }
+
+  @Test
+  public void testLargeGroup() throws Exception {
+    List<String> members = new ArrayList<String>();
+    for (int i = 0; i < 20000; i++) {
+      members.add("student" + i);
+    }
+    setUpGroups(members, Arrays.asList("teacher"));
+
+    Map<String, String> propertiesMap = new HashMap<String, String>();
+    SlingHttpServletRequest request = createRequest("student7", false);
+    provider.loadUserProperties(request, propertiesMap);
+    assertNull(propertiesMap.get("_groupQuery"));
+    MemberSet set = (MemberSet) request
+        .getAttribute(GroupMembersSearchPropertyProvider.MEMBERS_ATTRIBUTE);
+    assertEquals(20000, set.size());
+
+    // filter profiles as the result processor does.
+    List<Node> profiles = new ArrayList<Node>();
+    profiles.add(createProfile("/profiles/student1", "student1"));
+    profiles.add(createProfile("/profiles/student7", "student7"));
+    profiles.add(createProfile("/profiles/teacher", "teacher"));
+    profiles.add(createProfile("/profiles/outsider", "outsider"));
+    profiles.add(createProfile("/profiles/student19999", "student19999"));
+    profiles.add(createProfile("/profiles/no-user", null));
+    List<String> listed = listPaths(request, profiles);
+    assertEquals(Arrays.asList("/profiles/student1", "/profiles/teacher",
+        "/profiles/student19999", "/profiles/no-user"), listed);
+  }
+
+  @Test
+  public void testCachedUntilMembersChange() throws Exception {
+    setUpGroups(Arrays.asList("alice"), Arrays.asList("dave"));
+    provider.loadUserProperties(createRequest("alice", true), new HashMap<String, String>());
+    provider.loadUserProperties(createRequest("alice", true), new HashMap<String, String>());
+    assertEquals(1, logins);
+
+    // a change elsewhere does not drop the members.
+    index.handleEvent(changed("/rep:security/rep:authorizables/rep:groups/g/g-/g-other"));
+    provider.loadUserProperties(createRequest("alice", true), new HashMap<String, String>());
+    assertEquals(1, logins);
+
+    // nor does a change to a user.
+    index.handleEvent(changed("/rep:security/rep:authorizables/rep:users/a/al/alice"));
+    provider.loadUserProperties(createRequest("alice", true), new HashMap<String, String>());
+    assertEquals(1, logins);
+
+    // a change to the managers group does.
+    index.handleEvent(changed("/rep:security/rep:authorizables/rep:groups/g/g-/" + MANAGERS));
+    provider.loadUserProperties(createRequest("alice", true), new HashMap<String, String>());
+    assertEquals(2, logins);
+
+    // and so does a change to the group.
+    index.handleEvent(changed("/rep:security/rep:authorizables/rep:groups/g/g-/" + GROUP));
+    provider.loadUserProperties(createRequest("alice", true), new HashMap<String, String>());
+    assertEquals(3, logins);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownGroup() throws Exception {
+    setUpGroups(Arrays.asList("alice"), Arrays.asList("dave"));
+    SlingHttpServletRequest request = createNiceMock(SlingHttpServletRequest.class);
+    UserManager um = createNiceMock(UserManager.class);
+    expect(um.getAuthorizable("g-missing")).andReturn(null);
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+    ResourceResolver resolver = createNiceMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    expect(request.getParameter("q")).andReturn("*").anyTimes();
+    expect(request.getParameter("group")).andReturn("g-missing").anyTimes();
+    EasyMock.replay(request, um, session, resolver);
+    provider.loadUserProperties(request, new HashMap<String, String>());
+  }
+
+  /**
+   * The admin session the index reads groups with.
+   */
+  private void setUpGroups(List<String> members, List<String> managers) throws Exception {
+    adminUserManager = createNiceMock(UserManager.class);
+    Group group = createGroup(GROUP, members);
+    Group managersGroup = createGroup(MANAGERS, managers);
+    expect(group.hasProperty(UserConstants.PROP_MANAGERS_GROUP)).andReturn(true).anyTimes();
+    Value managersId = createNiceMock(Value.class);
+    expect(managersId.getString()).andReturn(MANAGERS).anyTimes();
+    expect(group.getProperty(UserConstants.PROP_MANAGERS_GROUP)).andReturn(
+        new Value[] { managersId }).anyTimes();
+    expect(adminUserManager.getAuthorizable(GROUP)).andReturn(group).anyTimes();
+    expect(adminUserManager.getAuthorizable(MANAGERS)).andReturn(managersGroup).anyTimes();
+    EasyMock.replay(group, managersGroup, managersId, adminUserManager);
+
+    final JackrabbitSession adminSession = createNiceMock(JackrabbitSession.class);
+    expect(adminSession.getUserManager()).andReturn(adminUserManager).anyTimes();
+    SlingRepository repository = createNiceMock(SlingRepository.class);
+    expect(repository.loginAdministrative(null)).andAnswer(
+        new IAnswer<JackrabbitSession>() {
+          public JackrabbitSession answer() throws Throwable {
+            logins++;
+            return adminSession;
+          }
+        }).anyTimes();
+    EasyMock.replay(adminSession, repository);
+    index.slingRepository = repository;
+  }
+
+  private Group createGroup(String id, final List<String> memberIds)
+      throws RepositoryException {
+    final List<Authorizable> members = new ArrayList<Authorizable>();
+    for (String memberId : memberIds) {
+      Authorizable member = createNiceMock(Authorizable.class);
+      expect(member.getID()).andReturn(memberId).anyTimes();
+      EasyMock.replay(member);
+      members.add(member);
+    }
+    Group group = createNiceMock(Group.class);
+    expect(group.getID()).andReturn(id).anyTimes();
+    expect(group.isGroup()).andReturn(true).anyTimes();
+    expect(group.getDeclaredMembers()).andAnswer(new IAnswer<Iterator<Authorizable>>() {
+      public Iterator<Authorizable> answer() throws Throwable {
+        return members.iterator();
+      }
+    }).anyTimes();
+    return group;
+  }
+
+  /**
+   * A request by a user, who can see the group.
+   */
+  private SlingHttpServletRequest createRequest(String user, boolean includeSelf)
+      throws RepositoryException {
+    Group visible = createNiceMock(Group.class);
+    expect(visible.isGroup()).andReturn(true).anyTimes();
+    UserManager um = createNiceMock(UserManager.class);
+    expect(um.getAuthorizable(GROUP)).andReturn(visible).anyTimes();
+    JackrabbitSession session = createNiceMock(JackrabbitSession.class);
+    expect(session.getUserManager()).andReturn(um).anyTimes();
+    ResourceResolver resolver = createNiceMock(ResourceResolver.class);
+    expect(resolver.adaptTo(Session.class)).andReturn(session).anyTimes();
+
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    SlingHttpServletRequest request = createNiceMock(SlingHttpServletRequest.class);
+    expect(request.getResourceResolver()).andReturn(resolver).anyTimes();
+    expect(request.getParameter("q")).andReturn("*").anyTimes();
+    expect(request.getParameter("group")).andReturn(GROUP).anyTimes();
+    expect(request.getParameter("includeSelf")).andReturn(String.valueOf(includeSelf))
+        .anyTimes();
+    expect(request.getRemoteUser()).andReturn(user).anyTimes();
+    final Capture<String> name = new Capture<String>();
+    final Capture<Object> value = new Capture<Object>();
+    request.setAttribute(EasyMock.capture(name), EasyMock.capture(value));
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      public Object answer() throws Throwable {
+        attributes.put(name.getValue(), value.getValue());
+        return null;
+      }
+    }).anyTimes();
+    expect(request.getAttribute(EasyMock.isA(String.class))).andAnswer(
+        new IAnswer<Object>() {
+          public Object answer() throws Throwable {
+            return attributes.get(EasyMock.getCurrentArguments()[0]);
+          }
+        }).anyTimes();
+    EasyMock.replay(visible, um, session, resolver, request);
+    return request;
+  }
+
+  private Node createProfile(String path, String userId) throws RepositoryException {
+    Node node = createNiceMock(Node.class);
+    expect(node.getPath()).andReturn(path).anyTimes();
+    if (userId != null) {
+      Property property = createNiceMock(Property.class);
+      expect(property.getString()).andReturn(userId).anyTimes();
+      EasyMock.replay(property);
+      expect(node.hasProperty("rep:userId")).andReturn(true).anyTimes();
+      expect(node.getProperty("rep:userId")).andReturn(property).anyTimes();
+    }
+    EasyMock.replay(node);
+    return node;
+  }
+
+  /**
+   * @return the paths of the profiles the result processor lets through.
+   */
+  private List<String> listPaths(SlingHttpServletRequest request, List<Node> profiles)
+      throws Exception {
+    QueryResult queryResult = createNiceMock(QueryResult.class);
+    expect(queryResult.getRows()).andReturn(new MockRowIterator(profiles));
+    Query query = createNiceMock(Query.class);
+    expect(query.execute()).andReturn(queryResult);
+    Capture<RowIterator> filtered = new Capture<RowIterator>();
+    SearchServiceFactory factory = createNiceMock(SearchServiceFactory.class);
+    expect(factory.getSearchResultSet(EasyMock.capture(filtered), EasyMock.anyInt()))
+        .andReturn(createNiceMock(SearchResultSet.class));
+    EasyMock.replay(queryResult, query, factory);
+
+    GroupMembersSearchResultProcessor processor = new GroupMembersSearchResultProcessor();
+    processor.searchServiceFactory = factory;
+    processor.getSearchResultSet(request, query);
+
+    List<String> paths = new ArrayList<String>();
+    for (RowIterator i = filtered.getValue(); i.hasNext();) {
+      paths.add(i.nextRow().getPath());
+    }
+    assertFalse(paths.isEmpty());
+    return paths;
+  }
+
+  private Event changed(String path) {
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, props);
+  }
+}
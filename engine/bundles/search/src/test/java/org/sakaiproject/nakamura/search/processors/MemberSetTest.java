@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.processors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ */
+public class MemberSetTest {
+
+  @Test
+  public void testSmallGroup() {
+    MemberIdTable table = new MemberIdTable();
+    // other groups give out lots of ints first, so this set is held as an array.
+    for (int i = 0; i < 1000; i++) {
+      table.intern("other" + i);
+    }
+    List<String> members = Arrays.asList("alice", "bob", "carol", "bob");
+    assertSameMembers(table, members, "bob");
+  }
+
+  @Test
+  public void testLargeGroup() {
+    MemberIdTable table = new MemberIdTable();
+    for (int i = 0; i < 5000; i++) {
+      table.intern("other" + i);
+    }
+    List<String> members = new ArrayList<String>();
+    for (int i = 0; i < 20000; i++) {
+      members.add("student" + i);
+    }
+    // some members are also in other groups.
+    for (int i = 0; i < 5000; i += 7) {
+      members.add("other" + i);
+    }
+    assertSameMembers(table, members, "student42");
+  }
+
+  @Test
+  public void testEmptyGroup() {
+    MemberSet set = MemberSet.create(new MemberIdTable(), new ArrayList<String>());
+    assertEquals(0, set.size());
+    assertFalse(set.contains("alice"));
+    assertTrue(set.getUserIds().isEmpty());
+  }
+
+  @Test
+  public void testExcludingNonMember() {
+    MemberIdTable table = new MemberIdTable();
+    table.intern("mallory");
+    MemberSet set = MemberSet.create(table, Arrays.asList("alice", "bob"));
+    assertSame(set, set.excluding("mallory"));
+    assertSame(set, set.excluding("nobody"));
+    assertSame(set, set.excluding(null));
+  }
+
+  /**
+   * Check a member set answers as a set of strings does, with and without a user.
+   */
+  private void assertSameMembers(MemberIdTable table, List<String> members, String self) {
+    Set<String> expected = new HashSet<String>(members);
+    MemberSet set = MemberSet.create(table, members);
+    assertEquals(expected.size(), set.size());
+    assertEquals(expected, new HashSet<String>(set.getUserIds()));
+
+    List<String> candidates = new ArrayList<String>(members);
+    for (int i = 0; i < 6000; i++) {
+      candidates.add("other" + i);
+    }
+    candidates.add("never-seen");
+    for (String candidate : candidates) {
+      assertEquals(candidate, expected.contains(candidate), set.contains(candidate));
+    }
+
+    MemberSet withoutSelf = set.excluding(self);
+    expected.remove(self);
+    assertEquals(expected.size(), withoutSelf.size());
+    assertEquals(expected, new HashSet<String>(withoutSelf.getUserIds()));
+    for (String candidate : candidates) {
+      assertEquals(candidate, expected.contains(candidate), withoutSelf.contains(candidate));
+    }
+    // the set excluded from is unchanged.
+    assertTrue(set.contains(self));
+  }
+}
@@ -27,7 +27,7 @@ import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.easymock.EasyMock;
 import org.junit.Test;
-import org.sakaiproject.nakamura.search.AggregateCount;
+import org.sakaiproject.nakamura.search.FacetAggregator;
 import org.sakaiproject.nakamura.search.SearchServiceFactoryImpl;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
@@ -75,7 +75,7 @@ public class NodeSearchBatchResultProcessorTest extends AbstractEasyMockTest {
 
 
     replay();
-    AggregateCount aggregator = new AggregateCount(new String[] { "test" }, false);
+    FacetAggregator aggregator = new FacetAggregator(new String[] { "test" }, 0, 10);
 
     StringWriter stringWriter = new StringWriter();
     JSONWriter write = new JSONWriter(stringWriter);
@@ -29,7 +29,7 @@ import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.easymock.EasyMock;
 import org.junit.Test;
 import org.sakaiproject.nakamura.api.search.SearchException;
-import org.sakaiproject.nakamura.search.AggregateCount;
+import org.sakaiproject.nakamura.search.FacetAggregator;
 import org.sakaiproject.nakamura.search.SearchServiceFactoryImpl;
 import org.sakaiproject.nakamura.testutils.easymock.AbstractEasyMockTest;
 
@@ -74,7 +74,7 @@ public class PagecontentSearchResultProcessorTest extends AbstractEasyMockTest {
     EasyMock.expect(request.getRequestPathInfo()).andReturn(pathInfo);
 
     replay();
-    AggregateCount aggregator = new AggregateCount(new String[] { "test" }, false);
+    FacetAggregator aggregator = new FacetAggregator(new String[] { "test" }, 0, 10);
 
 
     StringWriter stringWriter = new StringWriter();
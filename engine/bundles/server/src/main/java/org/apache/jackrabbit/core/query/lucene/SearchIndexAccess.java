@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.query.lucene;
+
+import org.apache.jackrabbit.core.query.QueryHandler;
+import org.apache.lucene.index.IndexReader;
+
+import java.io.IOException;
+
+/**
+ * Opens readers on the Lucene index behind a {@link SearchIndex}, for code outside
+ * this package that needs to read the index directly, such as the term cloud.
+ */
+public final class SearchIndexAccess {
+
+  private SearchIndexAccess() {
+  }
+
+  /**
+   * Open a reader on the index of a query handler. The reader sees the index as it is
+   * now, including the volatile index, and must be closed by the caller.
+   *
+   * @param handler
+   *          the query handler of a workspace.
+   * @return a reader on the index.
+   * @throws IOException
+   *           if the reader could not be opened.
+   * @throws IllegalArgumentException
+   *           if the handler is not a {@link SearchIndex}.
+   */
+  public static IndexReader getIndexReader(QueryHandler handler) throws IOException {
+    if (!(handler instanceof SearchIndex)) {
+      throw new IllegalArgumentException("Query handler should have been a SearchIndex, but was "
+          + (handler == null ? null : handler.getClass()));
+    }
+    return ((SearchIndex) handler).getIndexReader();
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization.acl;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.ISO8601Date;
+
+import javax.jcr.security.AccessControlEntry;
+
+/**
+ * An ACE read from an ACL node, with everything that does not depend on the user or the
+ * node being evaluated worked out once: the principal, the privileges, grant or deny and
+ * the active and inactive periods of rules based ACEs. Instances are immutable, so they
+ * can be shared by every compilation that sees the ACL node.
+ */
+final class CompiledAce {
+
+  private static final long DAY = 24L * 3600L * 1000L;
+
+  private final String aceName;
+  private final String principalName;
+  private final boolean rules;
+  private final AccessControlEntry entry;
+  private final boolean group;
+  private final boolean everyone;
+  private final boolean allow;
+  private final String[] privilegeNames;
+  private final long[] activeRanges;
+  private final long[] inactiveRanges;
+  private final String ruleProcessor;
+
+  /**
+   * @param aceName
+   *          the name of the ACE node.
+   * @param principalName
+   *          the principal the ACE applies to, without any rules prefix.
+   * @param rules
+   *          true if the ACE was for a rules principal.
+   * @param entry
+   *          the entry to evaluate, null if the principal could not be found.
+   * @param group
+   *          true if the principal is a group.
+   * @param everyone
+   *          true if the principal is everyone.
+   * @param allow
+   *          true for a grant, false for a deny.
+   * @param privilegeNames
+   *          the names of the privileges.
+   * @param activeRanges
+   *          pairs of start and end times, in ms, of the periods when the ACE is active,
+   *          empty if it has none.
+   * @param inactiveRanges
+   *          pairs of start and end times of the periods when the ACE is not active.
+   * @param ruleProcessor
+   *          the name of the rule processor that decides if the ACE is active, null if
+   *          none.
+   */
+  CompiledAce(String aceName, String principalName, boolean rules,
+      AccessControlEntry entry, boolean group, boolean everyone, boolean allow,
+      String[] privilegeNames, long[] activeRanges, long[] inactiveRanges,
+      String ruleProcessor) {
+    this.aceName = aceName;
+    this.principalName = principalName;
+    this.rules = rules;
+    this.entry = entry;
+    this.group = group;
+    this.everyone = everyone;
+    this.allow = allow;
+    this.privilegeNames = privilegeNames;
+    this.activeRanges = activeRanges;
+    this.inactiveRanges = inactiveRanges;
+    this.ruleProcessor = ruleProcessor;
+  }
+
+  /**
+   * Parse the ranges of a rules based ACE into pairs of times, with the same meaning as
+   * {@link ISO8601Date#before(long)} and {@link ISO8601Date#after(long)}: a range is in
+   * force when its start is before the time and its end after it.
+   *
+   * @param ranges
+   *          ranges in the form <code>from/to</code>.
+   * @return pairs of start and end times.
+   * @throws IllegalArgumentException
+   *           if a range can't be parsed.
+   */
+  static long[] parseRanges(String[] ranges) {
+    long[] parsed = new long[ranges.length * 2];
+    for (int i = 0; i < ranges.length; i++) {
+      String[] range = StringUtils.split(ranges[i], '/');
+      if (range == null || range.length < 2) {
+        throw new IllegalArgumentException("Invalid range " + ranges[i]);
+      }
+      ISO8601Date from = new ISO8601Date(range[0]);
+      ISO8601Date to = new ISO8601Date(range[1]);
+      // a date on its own starts at the end of the day.
+      parsed[i * 2] = from.getTimeInMillis() + (from.isDate() ? DAY : 0L);
+      parsed[i * 2 + 1] = to.getTimeInMillis();
+    }
+    return parsed;
+  }
+
+  /**
+   * The check that used to be made by reading the ACE node on every compilation.
+   *
+   * @param now
+   *          the time to check.
+   * @return false if the periods on a rules based ACE make it inactive at the time.
+   */
+  boolean isActive(long now) {
+    if (!rules) {
+      return true;
+    }
+    if (activeRanges.length != 0) {
+      return inRange(activeRanges, now);
+    }
+    return !inRange(inactiveRanges, now);
+  }
+
+  private static boolean inRange(long[] ranges, long now) {
+    for (int i = 0; i < ranges.length; i += 2) {
+      if (ranges[i] < now && ranges[i + 1] > now) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  String getAceName() {
+    return aceName;
+  }
+
+  String getPrincipalName() {
+    return principalName;
+  }
+
+  boolean isRules() {
+    return rules;
+  }
+
+  AccessControlEntry getEntry() {
+    return entry;
+  }
+
+  boolean isGroup() {
+    return group;
+  }
+
+  boolean isEveryone() {
+    return everyone;
+  }
+
+  boolean isAllow() {
+    return allow;
+  }
+
+  String[] getPrivilegeNames() {
+    return privilegeNames;
+  }
+
+  String getRuleProcessor() {
+    return ruleProcessor;
+  }
+}
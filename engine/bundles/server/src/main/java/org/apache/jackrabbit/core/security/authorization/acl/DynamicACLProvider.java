@@ -28,12 +28,12 @@ import org.apache.jackrabbit.core.DynamicSecurityManager;
 import org.apache.jackrabbit.core.NodeImpl;
 import org.apache.jackrabbit.core.SessionImpl;
 import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.observation.SynchronousEventListener;
 import org.apache.jackrabbit.core.security.authorization.AccessControlConstants;
 import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
 import org.apache.jackrabbit.core.security.principal.EveryonePrincipal;
 import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.RuleProcessorManager;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.DynamicPrincipalManager;
-import org.apache.sling.jcr.jackrabbit.server.security.dynamic.ISO8601Date;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.RuleProcessor;
 import org.apache.sling.jcr.jackrabbit.server.security.dynamic.RulesBasedAce;
 import org.slf4j.Logger;
@@ -47,15 +47,19 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.AccessDeniedException;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.NodeIterator;
 import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.UnsupportedRepositoryOperationException;
 import javax.jcr.Value;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
 import javax.jcr.security.AccessControlEntry;
 import javax.jcr.security.AccessControlManager;
 import javax.jcr.security.Privilege;
@@ -66,11 +70,27 @@ import javax.jcr.security.Privilege;
 public class DynamicACLProvider extends ACLProvider {
 
   private static final Logger LOG = LoggerFactory.getLogger(DynamicACLProvider.class);
+  /**
+   * The number of ACL nodes whose compiled ACEs are kept.
+   */
+  private static final int ACL_CACHE_SIZE = 10000;
+  private static final long[] NO_RANGES = new long[0];
+  private static final String[] NO_STRINGS = new String[0];
   private String userId;
   private DynamicPrincipalManager dynamicPrincipalManager;
   private LRUMap staticPrincipals = new LRUMap(1000);
   private NodeId rootNodeId;
   private RuleProcessorManager ruleProccesorManager;
+  /**
+   * Compiled ACEs keyed by the path of their ACL node.
+   */
+  private LRUMap aclCache = new LRUMap(ACL_CACHE_SIZE);
+  /**
+   * Incremented whenever an ACL changes, so an ACL read during the change is not cached.
+   */
+  private AtomicLong aclGeneration = new AtomicLong();
+  private AclCacheInvalidator aclCacheInvalidator;
+  private String policyPathElement;
 
 
   // This creates a second systemEditor that we can see, hopefully it wont cause problems having 2 of these.
@@ -100,6 +120,35 @@ public class DynamicACLProvider extends ACLProvider {
     rootNodeId = node.getNodeId();
     systemEditor = new ACLEditor(systemSession, this);
 
+    policyPathElement = "/" + resolver.getJCRName(N_POLICY);
+    aclCacheInvalidator = new AclCacheInvalidator();
+    int events = Event.PROPERTY_ADDED | Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED
+        | Event.NODE_ADDED | Event.NODE_REMOVED;
+    String[] ntNames = new String[] { resolver.getJCRName(NT_REP_ACE),
+        resolver.getJCRName(NT_REP_ACL), resolver.getJCRName(NT_REP_ACCESS_CONTROLLABLE) };
+    observationMgr.addEventListener(aclCacheInvalidator, events, node.getPath(), true,
+        null, ntNames, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.jackrabbit.core.security.authorization.AbstractAccessControlProvider#close()
+   */
+  @Override
+  public void close() {
+    if (aclCacheInvalidator != null) {
+      try {
+        observationMgr.removeEventListener(aclCacheInvalidator);
+      } catch (RepositoryException e) {
+        LOG.debug("Unable to unregister ACL cache listener: {} ", e.getMessage());
+      }
+      aclCacheInvalidator = null;
+    }
+    synchronized (aclCache) {
+      aclCache.clear();
+    }
+    super.close();
   }
 
   /**
@@ -126,20 +175,21 @@ public class DynamicACLProvider extends ACLProvider {
 
   /**
    * Inner class used to collect ACEs for a given set of principals throughout the node
-   * hierarchy.
+   * hierarchy. The ACEs of each ACL node come from the compiled ACE cache, so only the
+   * checks that depend on the user and the context node are made here.
    */
   private class Entries {
 
     private final Collection<String> principalNames;
     private final List<AccessControlEntry> userAces = new ArrayList<AccessControlEntry>();
     private final List<AccessControlEntry> groupAces = new ArrayList<AccessControlEntry>();
+    private final long now = System.currentTimeMillis();
     private StringBuilder construct;
-    private boolean forceDebug = true;
 
     private Entries(NodeImpl node, Collection<String> principalNames)
         throws RepositoryException {
       this.principalNames = principalNames;
-      if ( LOG.isDebugEnabled() || forceDebug ) {
+      if ( LOG.isDebugEnabled() ) {
         construct = new StringBuilder();
         construct.append("\nPath:").append(node.getPath());
       }
@@ -147,18 +197,15 @@ public class DynamicACLProvider extends ACLProvider {
     }
 
     private void collectEntries(NodeImpl node, NodeImpl contextNode) throws RepositoryException {
-      // if the given node is access-controlled, construct a new ACL and add
-      // it to the list
-      if (isAccessControlled(node)) {
-        // build acl for the access controlled node
-        NodeImpl aclNode = node.getNode(N_POLICY);
-        // collectEntries(aclNode, principalNamesToEntries);
-        collectEntriesFromAcl(aclNode, contextNode);
-      }
-      // recursively look for access controlled parents up the hierarchy.
-      if (!rootNodeId.equals(node.getId())) {
-        NodeImpl parentNode = (NodeImpl) node.getParent();
-        collectEntries(parentNode, contextNode);
+      // walk up the hierarchy, collecting the entries of each access controlled node.
+      while (true) {
+        if (isAccessControlled(node)) {
+          collectEntriesFromAcl(node.getNode(N_POLICY), contextNode);
+        }
+        if (rootNodeId.equals(node.getId())) {
+          break;
+        }
+        node = (NodeImpl) node.getParent();
       }
     }
 
@@ -171,101 +218,226 @@ public class DynamicACLProvider extends ACLProvider {
      *           if an error occurs
      */
     private void collectEntriesFromAcl(NodeImpl aclNode, NodeImpl contextNode) throws RepositoryException {
-      if ( LOG.isDebugEnabled() || forceDebug ) {
+      if ( construct != null ) {
         construct.append(":ACLNode:").append(aclNode.getPath());
         construct.append("\n");
       }
-      SessionImpl sImpl = (SessionImpl) aclNode.getSession();
-      PrincipalManager principalMgr = sImpl.getPrincipalManager();
-      AccessControlManager acMgr = sImpl.getAccessControlManager();
-
-      // first collect aces present on the given aclNode.
-      List<AccessControlEntry> gaces = new ArrayList<AccessControlEntry>();
-      List<AccessControlEntry> uaces = new ArrayList<AccessControlEntry>();
-
-      ACLTemplate template = (ACLTemplate) systemEditor.getACL(aclNode);
-      NodeIterator itr = aclNode.getNodes();
-      while (itr.hasNext()) {
-        NodeImpl aceNode = (NodeImpl) itr.nextNode();
-        String principalName = aceNode.getProperty(
-            AccessControlConstants.P_PRINCIPAL_NAME).getString();
-        RulesPrincipal rp = null;
-        try {
-          rp = new RulesPrincipal(principalName);
-          principalName = rp.getPrincipalName();
-        } catch ( IllegalArgumentException e ) {
-          LOG.debug("Principal {} is not a rules principal ",principalName, e);
+      /**
+       * NOTE: access control entries must be collected in reverse order in order to
+       * assert proper evaluation, so the entries of this ACL are inserted at the start
+       * of the section of each list that belongs to it, except for everyone, which goes
+       * at the end.
+       */
+      int groupStart = groupAces.size();
+      int userStart = userAces.size();
+      for (CompiledAce ace : getCompiledAces(aclNode)) {
+        if (!ace.isActive(now)) {
+          continue;
         }
-        if ( rp == null || isAceActiveCheap(aceNode) ) {
-          // only process aceNode if 'principalName' is contained in the given set
-          // or the dynamicPrincialManager says the user has the principal.
-
-          if (principalNames.contains(principalName)
-              || hasPrincipal(principalName, aclNode, contextNode,
-                  userId)) {
-            if ( rp == null || isAceActiveExpensive(aceNode,contextNode,userId) ) {
-              Principal princ = principalMgr.getPrincipal(principalName);
-
-              Value[] privValues = getValues(aceNode.getProperty(AccessControlConstants.P_PRIVILEGES));
-              Privilege[] privs = new Privilege[privValues.length];
-              if ( LOG.isDebugEnabled() || forceDebug ) {
-                construct.append("[Matched,");
-                construct.append((princ instanceof Group)?"group,":"user,");
-                construct.append(aceNode
-                    .isNodeType(AccessControlConstants.NT_REP_GRANT_ACE)?"grant,":"deny,").append(principalName);
-                for (int i = 0; i < privValues.length; i++) {
-                  construct.append(",").append(privValues[i].getString());
-                }
-                construct.append("]\n");
-              }
-              for (int i = 0; i < privValues.length; i++) {
-                privs[i] = acMgr.privilegeFromName(privValues[i].getString());
-              }
-              // create a new ACEImpl (omitting validation check)
-              AccessControlEntry ace = template.createEntry(princ, privs, aceNode
-                  .isNodeType(AccessControlConstants.NT_REP_GRANT_ACE));
-              // add it to the proper list (e.g. separated by principals)
-              /**
-               * NOTE: access control entries must be collected in reverse order in order to
-               * assert proper evaluation.
-               */
-              if (EveryonePrincipal.getInstance().getName().equals(princ.getName()) ) {
-                gaces.add(ace);
-              } else if (princ instanceof Group) {
-                gaces.add(0, ace);
-              } else {
-                uaces.add(0, ace);
+        String principalName = ace.getPrincipalName();
+        // only process the ace if 'principalName' is contained in the given set
+        // or the dynamicPrincialManager says the user has the principal.
+        if (principalNames.contains(principalName)
+            || hasPrincipal(principalName, aclNode, contextNode, userId)) {
+          if (!ace.isRules() || isRuleActive(ace, aclNode, contextNode)) {
+            AccessControlEntry entry = ace.getEntry();
+            if (entry == null) {
+              LOG.debug("Principal {} not found, ignoring ACE {} ", principalName, ace.getAceName());
+              continue;
+            }
+            if ( construct != null ) {
+              construct.append("[Matched,");
+              construct.append(ace.isGroup() ? "group," : "user,");
+              construct.append(ace.isAllow() ? "grant," : "deny,").append(principalName);
+              for (String privilegeName : ace.getPrivilegeNames()) {
+                construct.append(",").append(privilegeName);
               }
-            } else if ( LOG.isDebugEnabled()  || forceDebug) {
-
-              construct.append("[Not Active,").append(principalName).append("]\n");
+              construct.append("]\n");
+            }
+            if (ace.isEveryone()) {
+              groupAces.add(entry);
+            } else if (ace.isGroup()) {
+              groupAces.add(groupStart, entry);
+            } else {
+              userAces.add(userStart, entry);
             }
-          } else if ( LOG.isDebugEnabled()  || forceDebug){
-            construct.append("[Ignored,").append(principalName).append("]\n");
+          } else if ( construct != null ) {
+            construct.append("[Not Active,").append(principalName).append("]\n");
           }
+        } else if ( construct != null ) {
+          construct.append("[Ignored,").append(principalName).append("]\n");
         }
       }
-
-      // add the lists of aces to the overall lists that contain the entries
-      // throughout the hierarchy.
-      if (!gaces.isEmpty()) {
-        groupAces.addAll(gaces);
-      }
-      if (!uaces.isEmpty()) {
-        userAces.addAll(uaces);
-      }
     }
 
-
     @SuppressWarnings("unchecked")
     private Iterator<AccessControlEntry> iterator() {
-      if ( forceDebug) {
+      if ( construct != null ) {
         LOG.debug("User {} ACE {} ",userId,construct);
       }
       return new IteratorChain(userAces.iterator(), groupAces.iterator());
     }
   }
 
+  /**
+   * Only rules based ACEs with a rule processor need the ACE node, everything else about
+   * the ACE is already known.
+   */
+  private boolean isRuleActive(CompiledAce ace, NodeImpl aclNode, NodeImpl contextNode)
+      throws RepositoryException {
+    if (ace.getRuleProcessor() == null) {
+      return true;
+    }
+    return isAceActiveExpensive((NodeImpl) aclNode.getNode(ace.getAceName()), contextNode,
+        userId);
+  }
+
+  /**
+   * @param aclNode
+   *          the ACL node.
+   * @return the compiled ACEs of the ACL node, from the cache if they have been compiled
+   *         since the ACL last changed.
+   * @throws RepositoryException
+   */
+  private CompiledAce[] getCompiledAces(NodeImpl aclNode) throws RepositoryException {
+    String path = aclNode.getPath();
+    CompiledAce[] aces;
+    synchronized (aclCache) {
+      aces = (CompiledAce[]) aclCache.get(path);
+    }
+    if (aces == null) {
+      // if the ACL changes while it is being read, the result may be stale so it is not
+      // kept.
+      long generation = aclGeneration.get();
+      aces = compileAces(aclNode);
+      synchronized (aclCache) {
+        if (generation == aclGeneration.get()) {
+          aclCache.put(path, aces);
+        }
+      }
+    }
+    return aces;
+  }
+
+  /**
+   * Read the ACE nodes of an ACL node.
+   *
+   * @param aclNode
+   *          the ACL node.
+   * @return the compiled ACEs, in node order.
+   * @throws RepositoryException
+   */
+  private CompiledAce[] compileAces(NodeImpl aclNode) throws RepositoryException {
+    SessionImpl sImpl = (SessionImpl) aclNode.getSession();
+    PrincipalManager principalMgr = sImpl.getPrincipalManager();
+    AccessControlManager acMgr = sImpl.getAccessControlManager();
+    ACLTemplate template = (ACLTemplate) systemEditor.getACL(aclNode);
+    List<CompiledAce> aces = new ArrayList<CompiledAce>();
+    NodeIterator itr = aclNode.getNodes();
+    while (itr.hasNext()) {
+      NodeImpl aceNode = (NodeImpl) itr.nextNode();
+      String principalName = aceNode.getProperty(
+          AccessControlConstants.P_PRINCIPAL_NAME).getString();
+      boolean rules = false;
+      long[] activeRanges = NO_RANGES;
+      long[] inactiveRanges = NO_RANGES;
+      String ruleProcessor = null;
+      try {
+        RulesPrincipal rp = new RulesPrincipal(principalName);
+        principalName = rp.getPrincipalName();
+        rules = true;
+      } catch ( IllegalArgumentException e ) {
+        LOG.debug("Principal {} is not a rules principal ",principalName, e);
+      }
+      if (rules) {
+        try {
+          activeRanges = CompiledAce.parseRanges(getStrings(RulesBasedAce.P_ACTIVE_RANGE, aceNode));
+          inactiveRanges = CompiledAce.parseRanges(getStrings(RulesBasedAce.P_INACTIVE_RANGE, aceNode));
+        } catch ( Exception e ) {
+          // an error in processing has to default to active
+          LOG.debug("Invalid active ranges on {} {} ", aceNode.getPath(), e.getMessage());
+          activeRanges = NO_RANGES;
+          inactiveRanges = NO_RANGES;
+        }
+        if ( aceNode.hasProperty(RulesBasedAce.P_RULEPROCESSOR)) {
+          ruleProcessor = aceNode.getProperty(RulesBasedAce.P_RULEPROCESSOR).getString();
+        }
+      }
+      boolean allow = aceNode.isNodeType(AccessControlConstants.NT_REP_GRANT_ACE);
+      Value[] privValues = getValues(aceNode.getProperty(AccessControlConstants.P_PRIVILEGES));
+      String[] privNames = new String[privValues.length];
+      Privilege[] privs = new Privilege[privValues.length];
+      for (int i = 0; i < privValues.length; i++) {
+        privNames[i] = privValues[i].getString();
+        privs[i] = acMgr.privilegeFromName(privNames[i]);
+      }
+      Principal princ = principalMgr.getPrincipal(principalName);
+      AccessControlEntry entry = null;
+      if (princ != null) {
+        // create a new ACEImpl (omitting validation check)
+        entry = template.createEntry(princ, privs, allow);
+      }
+      aces.add(new CompiledAce(aceNode.getName(), principalName, rules, entry,
+          princ instanceof Group, princ != null
+              && EveryonePrincipal.getInstance().getName().equals(princ.getName()), allow,
+          privNames, activeRanges, inactiveRanges, ruleProcessor));
+    }
+    return aces.toArray(new CompiledAce[aces.size()]);
+  }
+
+  /**
+   * Drop the compiled ACEs of ACL nodes that have changed. Any change to an ACL or ACE
+   * node drops the ACL it is in, removing a node drops every ACL below it.
+   */
+  private class AclCacheInvalidator implements SynchronousEventListener {
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see javax.jcr.observation.EventListener#onEvent(javax.jcr.observation.EventIterator)
+     */
+    public void onEvent(EventIterator events) {
+      while (events.hasNext()) {
+        try {
+          Event event = events.nextEvent();
+          String path = event.getPath();
+          int i = path.indexOf(policyPathElement);
+          if (i >= 0 && isPolicyPathElement(path, i)) {
+            invalidate(path.substring(0, i + policyPathElement.length()), false);
+          } else if (event.getType() == Event.NODE_REMOVED) {
+            invalidate(path, true);
+          }
+        } catch (RepositoryException e) {
+          LOG.warn("Unable to process ACL change, clearing ACL cache ", e);
+          synchronized (aclCache) {
+            aclGeneration.incrementAndGet();
+            aclCache.clear();
+          }
+        }
+      }
+    }
+
+    private boolean isPolicyPathElement(String path, int i) {
+      int end = i + policyPathElement.length();
+      return end == path.length() || path.charAt(end) == '/';
+    }
+
+    private void invalidate(String path, boolean descendants) {
+      synchronized (aclCache) {
+        aclGeneration.incrementAndGet();
+        aclCache.remove(path);
+        if (descendants) {
+          String prefix = path.endsWith("/") ? path : path + "/";
+          for (Iterator<?> i = aclCache.keySet().iterator(); i.hasNext();) {
+            if (((String) i.next()).startsWith(prefix)) {
+              i.remove();
+            }
+          }
+        }
+      }
+    }
+  }
+
   /**
    * A more expensive check on the Ace to see if its active. The user will already have this principal so this can look wider than just the node.
    * @param aceNode
@@ -305,34 +477,10 @@ public class DynamicACLProvider extends ACLProvider {
     // should only be here if the principal is a RulesPrincipal
     try {
       RulesPrincipal.checkValid(aceNode.getProperty(AccessControlConstants.P_PRINCIPAL_NAME).getString());
-      long now = System.currentTimeMillis();
-
-      Value[] activeRanges = getValues(RulesBasedAce.P_ACTIVE_RANGE, aceNode);
-      if ( activeRanges.length != 0 ) {
-        for ( Value r : activeRanges) {
-          String[] range = StringUtils.split(r.getString(),'/');
-          ISO8601Date from = new ISO8601Date(range[0]);
-          ISO8601Date to = new ISO8601Date(range[1]);
-          if ( from.before(now) && to.after(now) ) {
-            return true;
-
-          }
-        }
-        return false; // it had active times but none matched
-      }
-
-      Value[] inactiveRanges = getValues(RulesBasedAce.P_INACTIVE_RANGE,aceNode);
-      if ( inactiveRanges.length != 0 ) {
-        for ( Value r : inactiveRanges) {
-          String[] range = StringUtils.split(r.getString(),'/');
-          ISO8601Date from = new ISO8601Date(range[0]);
-          ISO8601Date to = new ISO8601Date(range[1]);
-          if ( from.before(now) && to.after(now) ) {
-            return false;
-          }
-        }
-      }
-      return true;
+      return new CompiledAce(aceNode.getName(), null, true, null, false, false, true, null,
+          CompiledAce.parseRanges(getStrings(RulesBasedAce.P_ACTIVE_RANGE, aceNode)),
+          CompiledAce.parseRanges(getStrings(RulesBasedAce.P_INACTIVE_RANGE, aceNode)),
+          null).isActive(System.currentTimeMillis());
     } catch ( IllegalArgumentException e ) {
       LOG.debug("Was not a rules based acl {} ", e.getMessage());
       return true; // its not a rules based ACL so it must be active.
@@ -343,24 +491,29 @@ public class DynamicACLProvider extends ACLProvider {
   }
 
   /**
-   * Get the range of ACLs taking into account multiple property nameing, required by the ACL node schema. (it cant hold array properties)
-   * @param property
+   * Get the range of ACLs taking into account multiple property nameing, required by the
+   * ACL node schema. (it cant hold array properties). The properties are named
+   * propertyName, propertyName0, propertyName1 ..., they are found with one name pattern
+   * rather than probing for each name.
+   * @param propertyName
+   * @param node
    * @return
    * @throws RepositoryException
    */
-  private Value[] getValues(String propertyName, NodeImpl node) throws RepositoryException {
-    List<Value> values = new ArrayList<Value>();
-    if ( node.hasProperty(propertyName)) {
-      values.add(node.getProperty(propertyName).getValue());
-    }
-    for ( int i = 0; i < 100; i++ ) {
-      if ( node.hasProperty(propertyName+i)) {
-        values.add(node.getProperty(propertyName+i).getValue());
-      } else {
-        break;
+  private String[] getStrings(String propertyName, NodeImpl node) throws RepositoryException {
+    List<String> values = null;
+    PropertyIterator pi = node.getProperties(propertyName + "*");
+    while (pi.hasNext()) {
+      Property p = pi.nextProperty();
+      String suffix = p.getName().substring(propertyName.length());
+      if (suffix.length() == 0 || StringUtils.isNumeric(suffix)) {
+        if (values == null) {
+          values = new ArrayList<String>();
+        }
+        values.add(p.getString());
       }
     }
-    return values.toArray(new Value[values.size()]);
+    return values == null ? NO_STRINGS : values.toArray(new String[values.size()]);
   }
 
   private Value[] getValues(Property property) throws RepositoryException {
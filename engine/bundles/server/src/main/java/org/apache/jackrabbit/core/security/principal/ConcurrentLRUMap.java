@@ -2,109 +2,176 @@ package org.apache.jackrabbit.core.security.principal;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
- * @param <K>
- * @param <V>
+ * A bounded map that evicts the least recently used entries. The map is split into
+ * segments by key hash, each segment is an access ordered {@link LinkedHashMap} with its
+ * own lock and its share of the capacity, so a put that overflows a segment evicts that
+ * segment's eldest entry in constant time, and threads working on different segments
+ * do not contend. The eviction order is least recently used within a segment, which is
+ * a close approximation of global LRU.
+ *
+ * Views returned by {@link #keySet()}, {@link #values()} and {@link #entrySet()} are
+ * snapshots.
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  /**
+   * One segment of the map. All access is made holding the lock.
+   */
+  private static final class Segment<K, V> extends LinkedHashMap<K, V> {
 
-    protected long last;
-    protected V value;
-    private K key;
+    private static final long serialVersionUID = -2203757425788426235L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private long hits;
+    private long misses;
+    private long evictions;
 
-    public Holder(K key, V value) {
-      this.key = key;
-      this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
+    private Segment(int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
     }
 
     @Override
-    public boolean equals(Object obj) {
-      try {
-        @SuppressWarnings("unchecked")
-        Holder<T> t = (Holder<T>) obj;
-        return value.equals(t.value);
-      } catch (ClassCastException e) {
-        return false;
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > capacity) {
+        evictions++;
+        return true;
       }
+      return false;
     }
-
   }
 
   /**
-   * 
+   *
    */
   private static final long serialVersionUID = 6397790801684912025L;
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private static final int DEFAULT_MAX_SIZE = 100;
+  /**
+   * The most segments a map is split into.
+   */
+  private static final int MAX_SEGMENTS = 32;
+  /**
+   * The fewest entries a segment should hold, fewer segments are used for small maps so
+   * that the eviction order stays close to LRU.
+   */
+  private static final int MIN_SEGMENT_SIZE = 8;
+  private final Segment<K, V>[] segments;
+  private final int maxSize;
 
   public ConcurrentLRUMap() {
+    this(DEFAULT_MAX_SIZE);
   }
 
+  @SuppressWarnings("unchecked")
   public ConcurrentLRUMap(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Size must be at least 1, was " + size);
+    }
     maxSize = size;
+    int n = 1;
+    while (n < MAX_SEGMENTS && size / (n * 2) >= MIN_SEGMENT_SIZE) {
+      n = n * 2;
+    }
+    segments = new Segment[n];
+    for (int i = 0; i < n; i++) {
+      // share the capacity exactly, the first segments take any remainder.
+      segments[i] = new Segment<K, V>(size / n + (i < size % n ? 1 : 0));
+    }
+  }
+
+  private Segment<K, V> segmentFor(Object key) {
+    int h = key.hashCode();
+    // spread the bits so keys whose hashes differ only in the high bits use different
+    // segments.
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & (segments.length - 1)];
   }
 
   public int size() {
-    return delegate.size();
+    int size = 0;
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        size += segment.size();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return size;
   }
 
   public boolean isEmpty() {
-    return delegate.isEmpty();
+    return size() == 0;
   }
 
   public boolean containsKey(Object key) {
-    return delegate.containsKey(key);
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return segment.containsKey(key);
+    } finally {
+      segment.lock.unlock();
+    }
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        if (segment.containsValue(value)) {
+          return true;
+        }
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return false;
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
-
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+  public V get(Object key) {
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      V v = segment.get(key);
+      if (v == null && !segment.containsKey(key)) {
+        segment.misses++;
+      } else {
+        segment.hits++;
       }
+      return v;
+    } finally {
+      segment.lock.unlock();
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+  }
+
+  public V put(K key, V value) {
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return segment.put(key, value);
+    } finally {
+      segment.lock.unlock();
     }
-    return v.value;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
-      return null;
+    Segment<K, V> segment = segmentFor(key);
+    segment.lock.lock();
+    try {
+      return segment.remove(key);
+    } finally {
+      segment.lock.unlock();
     }
-    return v.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
@@ -114,24 +181,54 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
   }
 
   public void clear() {
-    delegate.clear();
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        segment.clear();
+      } finally {
+        segment.lock.unlock();
+      }
+    }
   }
 
   public Set<K> keySet() {
-    return delegate.keySet();
+    Set<K> keys = new HashSet<K>();
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        keys.addAll(segment.keySet());
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return keys;
   }
 
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        values.addAll(segment.values());
+      } finally {
+        segment.lock.unlock();
+      }
     }
     return values;
   }
 
   public Set<Entry<K, V>> entrySet() {
+    Map<K, V> copy = new HashMap<K, V>();
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        copy.putAll(segment);
+      } finally {
+        segment.lock.unlock();
+      }
+    }
     Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
+    for (final Entry<K, V> e : copy.entrySet()) {
       set.add(new Entry<K, V>() {
 
         public K getKey() {
@@ -139,27 +236,77 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
         }
 
         public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
+          return e.getValue();
         }
 
         public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
-          }
-          return h.value;
+          e.setValue(value);
+          return put(e.getKey(), value);
         }
       });
     }
     return set;
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
+  /**
+   * @return the most entries the map holds.
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return the number of gets that found an entry.
+   */
+  public long getHitCount() {
+    long hits = 0;
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        hits += segment.hits;
+      } finally {
+        segment.lock.unlock();
+      }
     }
-    v.last = System.currentTimeMillis();
-    return v.value;
+    return hits;
+  }
+
+  /**
+   * @return the number of gets that did not find an entry.
+   */
+  public long getMissCount() {
+    long misses = 0;
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        misses += segment.misses;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return misses;
+  }
+
+  /**
+   * @return the number of entries evicted to keep the map within its size.
+   */
+  public long getEvictionCount() {
+    long evictions = 0;
+    for (Segment<K, V> segment : segments) {
+      segment.lock.lock();
+      try {
+        evictions += segment.evictions;
+      } finally {
+        segment.lock.unlock();
+      }
+    }
+    return evictions;
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentLRUMap[size=" + size() + ", maxSize=" + maxSize + ", hits="
+        + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+        + getEvictionCount() + "]";
   }
 }
@@ -66,6 +66,12 @@ import java.util.Set;
  */
 public class DefaultPrincipalProvider extends AbstractPrincipalProvider implements SynchronousEventListener {
 
+    /**
+     * Option key for the number of group memberships to cache, defaults to
+     * the {@link #MAXSIZE_KEY} value.
+     */
+    public static final String MEMBERSHIP_MAXSIZE_KEY = "membershipCacheMaxSize";
+
     /**
      * the default logger
      */
@@ -75,7 +81,7 @@ public class DefaultPrincipalProvider extends AbstractPrincipalProvider implemen
      * a cache for group memberships: maps principal-name to a set of principals
      * representing the members.
      */
-    private final Map<String, Set<Principal>> membershipCache;
+    private volatile Map<String, Set<Principal>> membershipCache;
 
     /**
      * Principal-Base of this Provider
@@ -170,6 +176,9 @@ public class DefaultPrincipalProvider extends AbstractPrincipalProvider implemen
             options.put(NEGATIVE_ENTRY_KEY, "true");
         }
         super.init(options);
+        int maxSize = Integer.parseInt(options.getProperty(MEMBERSHIP_MAXSIZE_KEY,
+                options.getProperty(MAXSIZE_KEY, "1000")));
+        membershipCache = new ConcurrentLRUMap<String, Set<Principal>>(maxSize);
     }
 
     //--------------------------------------------------< PrincipalProvider >---
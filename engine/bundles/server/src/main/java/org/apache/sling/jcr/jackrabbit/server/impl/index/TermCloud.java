@@ -21,18 +21,25 @@ import org.apache.sling.jcr.jackrabbit.server.index.CloudTerm;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * A term cloud is a store of {@link Term}s which accepts the addition of new
  * terms and provides an iterator to list {@link Term}s in order of occurrence.
  * The term cloud is constructed with a maximum size, and if there are more
- * terms in the cloud than this size, the least significant terms will be
- * evicted. Callers should ensure that the size of the cloud allows frequent but
- * low counted terms to influence the cloud by making the max size greater than
- * the number of terms required, ie 1.5 times the number of requried terms in
- * the cloud.
+ * than twice this many terms in the cloud, all but the most significant
+ * maximum size terms will be evicted. Callers should ensure that the size of
+ * the cloud allows frequent but low counted terms to influence the cloud by
+ * making the max size greater than the number of terms required, ie 1.5 times
+ * the number of requried terms in the cloud.
+ *
+ * Terms are held by name, so adding a term is a constant time lookup, and the
+ * most significant terms are selected with a heap the size of the number of
+ * terms wanted rather than by sorting every term.
  */
 public class TermCloud {
 
@@ -41,17 +48,16 @@ public class TermCloud {
      */
     private static final long serialVersionUID = 3363155684386506288L;
     /**
-     * Internal store of terms.
+     * Internal store of terms by name.
      */
-    private List<CloudTermImpl> termList;
+    private Map<String, CloudTermImpl> terms;
     private int maxSize;
-    private boolean sorted = false;
 
     /**
      * Create a TermCloud
      */
     public TermCloud(int maxSize) {
-        termList = new ArrayList<CloudTermImpl>(maxSize + 1);
+        terms = new HashMap<String, CloudTermImpl>();
         this.maxSize = maxSize;
     }
 
@@ -63,20 +69,40 @@ public class TermCloud {
      *            the terms to add or merge.
      */
     public synchronized void add(CloudTermImpl term) {
-        for (CloudTermImpl t : termList) {
-            if (term.isSameTerm(t)) {
-                t.merge(term);
-                sorted = false;
-                return;
+        CloudTermImpl t = terms.get(term.getName());
+        if (t != null) {
+            t.merge(term);
+            return;
+        }
+        terms.put(term.getName(), term);
+        if (terms.size() > maxSize * 2) {
+            // evict in one pass once the cloud has doubled, rather than one
+            // term at a time on every add.
+            List<CloudTermImpl> keep = select(maxSize, Integer.MIN_VALUE);
+            terms.clear();
+            for (CloudTermImpl k : keep) {
+                terms.put(k.getName(), k);
             }
         }
-        sorted = false;
-        termList.add(term);
-        if (termList.size() > maxSize) {
-            Collections.sort(termList);
-            termList.remove(termList.size() - 1);
-            sorted = true;
+    }
+
+    /**
+     * Get the most significant terms in the cloud, most significant first.
+     * Terms with the same count are in name order.
+     * 
+     * @param count
+     *            the most terms to return.
+     * @param limit
+     *            the lowest count a term may have to be returned.
+     * @return an unmodifiable snapshot of the terms.
+     */
+    public synchronized List<CloudTerm> getTopTerms(int count, int limit) {
+        List<CloudTermImpl> top = select(count, limit);
+        List<CloudTerm> snapshot = new ArrayList<CloudTerm>(top.size());
+        for (CloudTermImpl t : top) {
+            snapshot.add(new CloudTermImpl(t.getName(), t.getCount()));
         }
+        return Collections.unmodifiableList(snapshot);
     }
 
     /**
@@ -86,35 +112,34 @@ public class TermCloud {
      * @return
      */
     public synchronized Iterator<CloudTerm> iterator(final int limit) {
-        if (!sorted) {
-            Collections.sort(termList);
-            sorted = true;
-        }
-        final Iterator<CloudTermImpl> iTermList = termList.iterator();
-        return new Iterator<CloudTerm>() {
-
-            private CloudTermImpl current;
-
-            public boolean hasNext() {
-                if (iTermList.hasNext()) {
-                    current = iTermList.next();
-                    if (current.getCount() >= limit) {
-                        return true;
-                    }
-                }
-                current = null;
-                return false;
-            }
+        return getTopTerms(maxSize, limit).iterator();
+    }
 
-            public CloudTerm next() {
-                return current;
+    /**
+     * Select the most significant terms using a heap whose head is the least
+     * significant term kept so far.
+     */
+    private List<CloudTermImpl> select(int count, int limit) {
+        int size = Math.min(count, terms.size());
+        if (size <= 0) {
+            return new ArrayList<CloudTermImpl>();
+        }
+        PriorityQueue<CloudTermImpl> heap = new PriorityQueue<CloudTermImpl>(size + 1,
+                Collections.<CloudTermImpl> reverseOrder());
+        for (CloudTermImpl t : terms.values()) {
+            if (t.getCount() < limit) {
+                continue;
             }
-
-            public void remove() {
-                throw new UnsupportedOperationException();
+            if (heap.size() < size) {
+                heap.add(t);
+            } else if (t.compareTo(heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
             }
-
-        };
+        }
+        List<CloudTermImpl> top = new ArrayList<CloudTermImpl>(heap);
+        Collections.sort(top);
+        return top;
     }
 
 }
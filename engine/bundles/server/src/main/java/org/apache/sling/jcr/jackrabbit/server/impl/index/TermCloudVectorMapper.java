@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  *
@@ -72,4 +73,13 @@ public class TermCloudVectorMapper extends TermVectorMapper {
         return termCloud.iterator(limit);
     }
 
+    /**
+     * @param count
+     *            the most terms to return.
+     * @return the most frequent terms mapped so far, most frequent first.
+     */
+    public List<CloudTerm> getTopTerms(int count) {
+        return termCloud.getTopTerms(count, 1);
+    }
+
 }
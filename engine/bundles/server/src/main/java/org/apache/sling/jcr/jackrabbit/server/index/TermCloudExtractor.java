@@ -17,7 +17,9 @@
  */
 package org.apache.sling.jcr.jackrabbit.server.index;
 
+import org.apache.jackrabbit.core.query.QueryHandler;
 import org.apache.jackrabbit.core.query.lucene.FieldNames;
+import org.apache.jackrabbit.core.query.lucene.SearchIndexAccess;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermDocs;
@@ -28,26 +30,44 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.query.QueryManager;
 
 /**
- *
+ * Builds a term cloud from the fulltext term vectors of nodes in the search index.
+ * An extractor holds a reader open on the index from when it is created until it is
+ * closed, so it sees the index as it was when it was created, and must be closed once
+ * all the nodes have been added.
  */
 public class TermCloudExtractor {
     private static final Logger LOGGER = LoggerFactory.getLogger(TermCloudExtractor.class);
     private IndexReader indexReader;
     private TermCloudVectorMapper cloudTermVectorMapper;
 
-    public TermCloudExtractor(QueryManager queryManager, int maxSize) {
-        indexReader = adaptTo(queryManager, "searchMgr", "handler", "index");
-        if (indexReader == null) {
+    /**
+     * @param queryManager
+     *            the query manager of the workspace to read the index of.
+     * @param maxSize
+     *            the number of terms the cloud holds, see {@link TermCloudVectorMapper}.
+     * @throws RepositoryException
+     *             if the index could not be opened.
+     */
+    public TermCloudExtractor(QueryManager queryManager, int maxSize)
+            throws RepositoryException {
+        QueryHandler queryHandler = adaptTo(queryManager, "searchMgr", "handler");
+        if (queryHandler == null) {
             throw new IllegalArgumentException(
-                    "Failed to get index Reader from Query Manager, which should have been a QueryManagerImpl, but was "
+                    "Failed to get the Query Handler from Query Manager, which should have been a QueryManagerImpl, but was "
                             + queryManager.getClass());
         }
+        try {
+            indexReader = SearchIndexAccess.getIndexReader(queryHandler);
+        } catch (IOException e) {
+            throw new RepositoryException("Failed to open the search index " + e.getMessage(), e);
+        }
         cloudTermVectorMapper = new TermCloudVectorMapper(maxSize);
     }
 
@@ -100,4 +120,28 @@ public class TermCloudExtractor {
     public Iterator<CloudTerm> termIteator(int limit) {
         return cloudTermVectorMapper.iterator(limit);
     }
+
+    /**
+     * @param count
+     *            the most terms to return.
+     * @return the most frequent terms of the nodes added, most frequent first, terms
+     *         with the same frequency in name order.
+     */
+    public List<CloudTerm> getTopTerms(int count) {
+        return cloudTermVectorMapper.getTopTerms(count);
+    }
+
+    /**
+     * Release the index reader, the terms already extracted remain available.
+     */
+    public void close() {
+        if (indexReader != null) {
+            try {
+                indexReader.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close index reader " + e.getMessage());
+            }
+            indexReader = null;
+        }
+    }
 }
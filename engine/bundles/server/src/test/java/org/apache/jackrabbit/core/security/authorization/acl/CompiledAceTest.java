@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.authorization.acl;
+
+import org.apache.sling.jcr.jackrabbit.server.security.dynamic.ISO8601Date;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CompiledAceTest {
+
+  private static final String[] RANGES = new String[] {
+      "2010-03-17T06:33:00Z/2010-03-18T06:33:00Z", "2010-12-24/2010-12-27",
+      "2011-01-01T00:00:00+01:00/2011-01-02T00:00:00-05:00" };
+
+  private CompiledAce rulesAce(String[] active, String[] inactive) {
+    return new CompiledAce("ace", "user", true, null, false, false, true, new String[0],
+        CompiledAce.parseRanges(active), CompiledAce.parseRanges(inactive), null);
+  }
+
+  @Test
+  public void testParseMatchesISO8601Date() {
+    for (String range : RANGES) {
+      String[] parts = range.split("/");
+      ISO8601Date from = new ISO8601Date(parts[0]);
+      ISO8601Date to = new ISO8601Date(parts[1]);
+      long[] parsed = CompiledAce.parseRanges(new String[] { range });
+      for (long t = from.getTimeInMillis() - 2L * 86400000L; t < to.getTimeInMillis()
+          + 2L * 86400000L; t += 3600000L) {
+        boolean expected = from.before(t) && to.after(t);
+        Assert.assertEquals(range + " at " + t, expected, parsed[0] < t && parsed[1] > t);
+      }
+    }
+  }
+
+  @Test
+  public void testActiveRanges() {
+    CompiledAce ace = rulesAce(new String[] { RANGES[0] }, new String[0]);
+    long inside = new ISO8601Date("2010-03-17T12:00:00Z").getTimeInMillis();
+    long outside = new ISO8601Date("2010-03-19T12:00:00Z").getTimeInMillis();
+    Assert.assertTrue(ace.isActive(inside));
+    Assert.assertFalse(ace.isActive(outside));
+  }
+
+  @Test
+  public void testInactiveRanges() {
+    CompiledAce ace = rulesAce(new String[0], new String[] { RANGES[0] });
+    long inside = new ISO8601Date("2010-03-17T12:00:00Z").getTimeInMillis();
+    long outside = new ISO8601Date("2010-03-19T12:00:00Z").getTimeInMillis();
+    Assert.assertFalse(ace.isActive(inside));
+    Assert.assertTrue(ace.isActive(outside));
+  }
+
+  @Test
+  public void testNoRanges() {
+    Assert.assertTrue(rulesAce(new String[0], new String[0]).isActive(
+        System.currentTimeMillis()));
+    CompiledAce plain = new CompiledAce("ace", "user", false, null, false, false, true,
+        new String[0], new long[0], new long[0], null);
+    Assert.assertTrue(plain.isActive(System.currentTimeMillis()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBadRange() {
+    CompiledAce.parseRanges(new String[] { "2010-03-17T06:33:00Z" });
+  }
+}
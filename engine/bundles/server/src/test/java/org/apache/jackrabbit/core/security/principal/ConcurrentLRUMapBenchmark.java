@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the sort on put eviction that ConcurrentLRUMap used to do with the segmented
+ * map, with 16, 32 and 64 threads doing 90% gets and 10% puts over a skewed key set
+ * twice the size of the map. Not part of the normal test run, run with
+ * <code>mvn test -Dtest=ConcurrentLRUMapBenchmark</code>, thread counts can be changed
+ * with <code>-Dbenchmark.threads=16,32</code>.
+ */
+public class ConcurrentLRUMapBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ConcurrentLRUMapBenchmark.class);
+  private static final int MAX_SIZE = 1000;
+  private static final int KEYS = MAX_SIZE * 2;
+  private static final int OPERATIONS = 20000;
+
+  /**
+   * The get and put of ConcurrentLRUMap before the segments.
+   */
+  private static class LegacyLRUMap {
+    private static class Holder {
+      private final String key;
+      private final Object value;
+      private volatile long last = System.currentTimeMillis();
+
+      private Holder(String key, Object value) {
+        this.key = key;
+        this.value = value;
+      }
+    }
+
+    private final Map<String, Holder> delegate = new ConcurrentHashMap<String, Holder>();
+
+    private Object get(String key) {
+      Holder v = delegate.get(key);
+      if (v == null) {
+        return null;
+      }
+      v.last = System.currentTimeMillis();
+      return v.value;
+    }
+
+    private void put(String key, Object value) {
+      if (delegate.size() > MAX_SIZE) {
+        List<Holder> l = new ArrayList<Holder>(delegate.values());
+        Collections.sort(l, new Comparator<Holder>() {
+          public int compare(Holder o1, Holder o2) {
+            return (int) (o1.last - o2.last);
+          }
+        });
+        int i = 0;
+        while (delegate.size() > MAX_SIZE && i < l.size()) {
+          delegate.remove(l.get(i++).key);
+        }
+      }
+      delegate.put(key, new Holder(key, value));
+    }
+  }
+
+  private interface Operations {
+    Object get(String key);
+
+    void put(String key, Object value);
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    final String[] keys = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = "/rep:security/rep:authorizables/rep:groups/g/gr/group" + i;
+    }
+    for (String t : System.getProperty("benchmark.threads", "16,32,64").split(",")) {
+      int threads = Integer.parseInt(t.trim());
+      final LegacyLRUMap legacy = new LegacyLRUMap();
+      long legacyTime = run(threads, keys, new Operations() {
+        public Object get(String key) {
+          return legacy.get(key);
+        }
+
+        public void put(String key, Object value) {
+          legacy.put(key, value);
+        }
+      });
+      final ConcurrentLRUMap<String, Object> segmented = new ConcurrentLRUMap<String, Object>(
+          MAX_SIZE);
+      long segmentedTime = run(threads, keys, new Operations() {
+        public Object get(String key) {
+          return segmented.get(key);
+        }
+
+        public void put(String key, Object value) {
+          segmented.put(key, value);
+        }
+      });
+      LOGGER.info("{} threads: legacy {} ns/op, segmented {} ns/op, {}", new Object[] {
+          threads, legacyTime / ((long) threads * OPERATIONS),
+          segmentedTime / ((long) threads * OPERATIONS), segmented });
+    }
+  }
+
+  private long run(int threads, final String[] keys, final Operations map)
+      throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final Random random = new Random(t);
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < OPERATIONS; i++) {
+              // squaring a uniform value favours the low keys, like a few busy users.
+              double r = random.nextDouble();
+              String key = keys[(int) (r * r * keys.length)];
+              if (i % 10 == 0 || map.get(key) == null) {
+                map.put(key, key);
+              }
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    return System.nanoTime() - begin;
+  }
+}
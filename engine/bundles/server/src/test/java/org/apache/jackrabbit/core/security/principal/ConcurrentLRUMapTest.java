@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Map.Entry;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest {
+
+  @Test
+  public void testPutGet() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    assertNull(map.put("a", "1"));
+    assertEquals("1", map.put("a", "2"));
+    assertEquals("2", map.get("a"));
+    assertTrue(map.containsKey("a"));
+    assertTrue(map.containsValue("2"));
+    assertEquals(1, map.size());
+    assertEquals("2", map.remove("a"));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    // small enough to be a single segment, so the order is exact.
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(3);
+    map.put("a", "a");
+    map.put("b", "b");
+    map.put("c", "c");
+    map.get("a");
+    map.put("d", "d");
+    assertEquals(3, map.size());
+    assertTrue(map.containsKey("a"));
+    assertFalse(map.containsKey("b"));
+    assertTrue(map.containsKey("c"));
+    assertTrue(map.containsKey("d"));
+    assertEquals(1, map.getEvictionCount());
+  }
+
+  @Test
+  public void testNeverExceedsMaxSize() {
+    ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(1000);
+    for (int i = 0; i < 100000; i++) {
+      map.put(i, i);
+      assertTrue(map.size() <= 1000);
+    }
+    assertEquals(1000, map.size());
+    assertEquals(99000, map.getEvictionCount());
+    assertEquals(1000, map.getMaxSize());
+  }
+
+  @Test
+  public void testStatistics() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>();
+    map.put("a", "a");
+    map.put("n", null);
+    map.get("a");
+    map.get("a");
+    map.get("n");
+    map.get("missing");
+    assertEquals(3, map.getHitCount());
+    assertEquals(1, map.getMissCount());
+    assertEquals(0, map.getEvictionCount());
+  }
+
+  @Test
+  public void testViews() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+    for (int i = 0; i < 50; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    assertEquals(50, map.keySet().size());
+    assertEquals(50, map.values().size());
+    assertEquals(50, map.entrySet().size());
+    for (Entry<String, String> e : map.entrySet()) {
+      e.setValue(e.getValue() + "x");
+    }
+    assertEquals("v7x", map.get("k7"));
+    map.clear();
+    assertEquals(0, map.size());
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullKey() {
+    new ConcurrentLRUMap<String, String>().put(null, "a");
+  }
+
+  @Test
+  public void testConcurrentAccess() throws Exception {
+    final ConcurrentLRUMap<Integer, Integer> map = new ConcurrentLRUMap<Integer, Integer>(
+        500);
+    final CountDownLatch done = new CountDownLatch(8);
+    final AtomicInteger failures = new AtomicInteger();
+    for (int t = 0; t < 8; t++) {
+      final int seed = t;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 20000; i++) {
+              int k = (i * 31 + seed) % 2000;
+              map.put(k, k);
+              Integer v = map.get(k);
+              if (v != null && v.intValue() != k) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch (RuntimeException e) {
+            failures.incrementAndGet();
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, failures.get());
+    assertTrue(map.size() <= 500);
+    assertEquals(8 * 20000, map.getHitCount() + map.getMissCount());
+  }
+}
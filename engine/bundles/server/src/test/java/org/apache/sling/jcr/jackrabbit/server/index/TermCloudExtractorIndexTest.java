@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.sling.jcr.jackrabbit.server.index;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.sling.jcr.jackrabbit.server.impl.security.dynamic.RepositoryBaseTest;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+/**
+ * Extracts a term cloud from a known corpus in a real repository.
+ */
+public class TermCloudExtractorIndexTest {
+
+  private static final String[] CORPUS = { "apple banana apple cherry", "apple banana",
+      "banana apple durian" };
+
+  @Test
+  public void testTopTerms() throws IOException, RepositoryException, InterruptedException {
+    Repository repository = RepositoryBaseTest.getRepositoryBase().getRepository();
+    Session session = repository.login(new SimpleCredentials("admin", "admin"
+        .toCharArray()));
+    Node cloudNode = session.getRootNode().addNode("termcloudtest", "nt:unstructured");
+    for (int i = 0; i < CORPUS.length; i++) {
+      cloudNode.addNode("doc" + i, "nt:unstructured").setProperty("text", CORPUS[i]);
+    }
+    // outside the subtree, so must not be counted.
+    Node otherNode = session.getRootNode().addNode("termcloudother", "nt:unstructured");
+    otherNode.setProperty("text", "zebra zebra zebra zebra zebra");
+    session.save();
+    session.logout();
+
+    Thread.sleep(100);
+
+    session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+    try {
+      TermCloudExtractor extractor = new TermCloudExtractor(session.getWorkspace()
+          .getQueryManager(), 100);
+      try {
+        NodeIterator ni = session.getNode("/termcloudtest").getNodes();
+        while (ni.hasNext()) {
+          extractor.add(ni.nextNode());
+        }
+      } finally {
+        extractor.close();
+      }
+
+      assertEquals("[apple:4, banana:3, cherry:1]", names(extractor.getTopTerms(3)));
+      assertEquals("[apple:4, banana:3, cherry:1, durian:1]", names(extractor
+          .getTopTerms(10)));
+      // the terms remain after the reader is closed.
+      assertEquals("[apple:4]", names(extractor.getTopTerms(1)));
+    } finally {
+      session.logout();
+    }
+  }
+
+  private String names(List<CloudTerm> terms) {
+    List<String> names = new ArrayList<String>();
+    for (CloudTerm t : terms) {
+      names.add(t.getName() + ":" + t.getCount());
+    }
+    return names.toString();
+  }
+}
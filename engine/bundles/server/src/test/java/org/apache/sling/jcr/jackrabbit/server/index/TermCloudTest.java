@@ -27,6 +27,7 @@ import org.apache.sling.jcr.jackrabbit.server.impl.index.TermCloud;
 import org.junit.Test;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  *
@@ -104,6 +105,47 @@ public class TermCloudTest {
 
         }
     }
+
+    @Test
+    public void testTopTerms() {
+        TermCloud tc = new TermCloud(10);
+        tc.add(new CloudTermImpl("c", 2));
+        tc.add(new CloudTermImpl("b", 2));
+        tc.add(new CloudTermImpl("a", 1));
+        tc.add(new CloudTermImpl("d", 3));
+        List<CloudTerm> top = tc.getTopTerms(3, 0);
+        assertEquals(3, top.size());
+        assertEquals("d", top.get(0).getName());
+        assertEquals("b", top.get(1).getName());
+        assertEquals("c", top.get(2).getName());
+        assertEquals(2, tc.getTopTerms(10, 2).size());
+        assertEquals(0, tc.getTopTerms(0, 0).size());
+
+        // the snapshot does not change as terms are added.
+        tc.add(new CloudTermImpl("d", 3));
+        assertEquals(3, top.get(0).getCount());
+        assertEquals(6, tc.getTopTerms(1, 0).get(0).getCount());
+    }
+
+    @Test
+    public void testEvictKeepsFrequentTerms() {
+        TermCloud tc = new TermCloud(10);
+        for (int i = 0; i < 1000; i++) {
+            tc.add(new CloudTermImpl("frequent" + (i % 5), 1));
+            tc.add(new CloudTermImpl("rare" + i, 1));
+        }
+        List<CloudTerm> top = tc.getTopTerms(5, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("frequent" + i, top.get(i).getName());
+        }
+        Iterator<CloudTerm> itc = tc.iterator(-1);
+        int n = 0;
+        while (itc.hasNext()) {
+            itc.next();
+            n++;
+        }
+        assertEquals(10, n);
+    }
     
     
 
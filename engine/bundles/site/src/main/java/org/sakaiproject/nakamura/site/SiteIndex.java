@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The paths of all the sites in the repository, by site name, so that sites can be found
+ * without a query. The name of a site is the last element of its path. The index is
+ * loaded once and then kept current by site node events, until it is loaded it is not
+ * ready and callers should fall back to searching. A lookup that is searched for and not
+ * found can be held as a miss, until a site is added or the miss expires.
+ */
+public class SiteIndex {
+
+  private static final String[] NO_PATHS = new String[0];
+  private static final int MAX_MISSES = 1000;
+  /**
+   * A search made by one user can miss a site another user can read, so misses are not
+   * held for long.
+   */
+  private static final long MISS_TTL = 60000L;
+
+  private final Map<String, Set<String>> byName = new HashMap<String, Set<String>>();
+  private final TreeSet<String> paths = new TreeSet<String>();
+  /**
+   * The paths removed while a load was running, null when not loading.
+   */
+  private Set<String> removedDuringLoad;
+  private boolean ready;
+  /**
+   * When each lookup that was not found expires, oldest first.
+   */
+  private final Map<String, Long> misses = new LinkedHashMap<String, Long>() {
+    private static final long serialVersionUID = 3580637711302357092L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_MISSES;
+    }
+  };
+  /**
+   * Incremented when a site is added, so that a search that started before the site was
+   * added is not held as a miss.
+   */
+  private long generation;
+
+  /**
+   * @return true once the index has been loaded.
+   */
+  public synchronized boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * @param name
+   *          the name of a site.
+   * @return the paths of the sites with that name, empty if there are none.
+   */
+  public synchronized String[] getPaths(String name) {
+    Set<String> named = byName.get(name);
+    if (named == null) {
+      return NO_PATHS;
+    }
+    return named.toArray(new String[named.size()]);
+  }
+
+  /**
+   * @param path
+   *          a path.
+   * @return true if there is a site at the path.
+   */
+  public synchronized boolean contains(String path) {
+    return paths.contains(path);
+  }
+
+  /**
+   * Add a site.
+   *
+   * @param path
+   *          the path of the site.
+   */
+  public synchronized void add(String path) {
+    if (path == null || !path.startsWith("/") || !paths.add(path)) {
+      return;
+    }
+    generation++;
+    misses.clear();
+    String name = nameOf(path);
+    Set<String> named = byName.get(name);
+    if (named == null) {
+      named = new LinkedHashSet<String>();
+      byName.put(name, named);
+    }
+    named.add(path);
+  }
+
+  /**
+   * Remove a site, and any sites below it.
+   *
+   * @param path
+   *          the path that was removed or is no longer a site.
+   * @param descendants
+   *          true to remove the sites below the path as well.
+   */
+  public synchronized void remove(String path, boolean descendants) {
+    if (path == null) {
+      return;
+    }
+    if (removedDuringLoad != null) {
+      removedDuringLoad.add(path);
+    }
+    drop(path);
+    if (descendants) {
+      String prefix = path.endsWith("/") ? path : path + "/";
+      // every path below the prefix sorts between prefix and prefix with its trailing /
+      // replaced by the next character.
+      String end = prefix.substring(0, prefix.length() - 1) + "0";
+      for (Iterator<String> i = paths.subSet(prefix, end).iterator(); i.hasNext();) {
+        String below = i.next();
+        i.remove();
+        dropName(below);
+      }
+    }
+  }
+
+  /**
+   * Start loading the index. Sites removed from now until the load finishes are not
+   * added by {@link #finishLoad(Collection)}.
+   */
+  public synchronized void startLoad() {
+    removedDuringLoad = new HashSet<String>();
+  }
+
+  /**
+   * Finish loading the index with the sites that were found.
+   *
+   * @param found
+   *          the paths of the sites that were found.
+   */
+  public synchronized void finishLoad(Collection<String> found) {
+    Set<String> removed = removedDuringLoad;
+    removedDuringLoad = null;
+    for (String path : found) {
+      if (removed == null || !isRemoved(path, removed)) {
+        add(path);
+      }
+    }
+    ready = true;
+  }
+
+  /**
+   * @return the generation to give {@link #addMiss(String, long)} for a search that
+   *         starts now.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * @param key
+   *          a lookup.
+   * @return true if the lookup was searched for recently and not found.
+   */
+  public synchronized boolean isMissed(String key) {
+    Long expires = misses.get(key);
+    if (expires == null) {
+      return false;
+    }
+    if (expires < System.currentTimeMillis()) {
+      misses.remove(key);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Hold a lookup that was searched for and not found.
+   *
+   * @param key
+   *          the lookup.
+   * @param generation
+   *          the generation from {@link #getGeneration()} when the search started.
+   */
+  public synchronized void addMiss(String key, long generation) {
+    if (generation == this.generation) {
+      misses.put(key, System.currentTimeMillis() + MISS_TTL);
+    }
+  }
+
+  public synchronized int size() {
+    return paths.size();
+  }
+
+  public synchronized void clear() {
+    byName.clear();
+    paths.clear();
+    removedDuringLoad = null;
+    ready = false;
+    generation++;
+    misses.clear();
+  }
+
+  private boolean isRemoved(String path, Set<String> removed) {
+    for (String p = path; p.length() > 1; p = p.substring(0, Math.max(1, p.lastIndexOf('/')))) {
+      if (removed.contains(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void drop(String path) {
+    if (paths.remove(path)) {
+      dropName(path);
+    }
+  }
+
+  private void dropName(String path) {
+    String name = nameOf(path);
+    Set<String> named = byName.get(name);
+    if (named != null) {
+      named.remove(path);
+      if (named.isEmpty()) {
+        byName.remove(name);
+      }
+    }
+  }
+
+  private static String nameOf(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The flattened membership of a site: the ids of every user and group that is a member
+ * directly or through a group, and the names used to sort users. Only ids are held, so
+ * the membership can be shared by sessions, callers look up the authorizables of the page
+ * they need. Sorted orders are worked out on first use and kept.
+ */
+public class SiteMembers {
+
+  private static final String[] NO_NAMES = new String[2];
+
+  private final String[] users;
+  private final String[] groups;
+  /**
+   * First and last name by user id.
+   */
+  private final Map<String, String[]> names;
+  private final Set<String> ids;
+  private final long created = System.currentTimeMillis();
+  private final ConcurrentMap<String, String[]> orders = new ConcurrentHashMap<String, String[]>();
+
+  /**
+   * @param users
+   *          the ids of the users, in the order they were found.
+   * @param groups
+   *          the ids of the groups, in the order they were found.
+   * @param names
+   *          the first and last names of users that have them, by id.
+   */
+  public SiteMembers(Collection<String> users, Collection<String> groups,
+      Map<String, String[]> names) {
+    this.users = users.toArray(new String[users.size()]);
+    this.groups = groups.toArray(new String[groups.size()]);
+    this.names = names;
+    ids = new HashSet<String>(users);
+    ids.addAll(groups);
+  }
+
+  /**
+   * @param sort
+   *          the order, null or empty for the order the users were found.
+   * @return the ids of all the users, do not modify.
+   */
+  public String[] getUsers(Sort[] sort) {
+    return order("u", users, sort);
+  }
+
+  /**
+   * @param sort
+   *          the order, null or empty for the order the groups were found.
+   * @return the ids of all the groups, do not modify.
+   */
+  public String[] getGroups(Sort[] sort) {
+    return order("g", groups, sort);
+  }
+
+  public int getUserCount() {
+    return users.length;
+  }
+
+  public int getGroupCount() {
+    return groups.length;
+  }
+
+  /**
+   * @param id
+   *          a user or group id.
+   * @return true if the user or group is part of this membership.
+   */
+  public boolean contains(String id) {
+    return ids.contains(id);
+  }
+
+  /**
+   * @return when the membership was built.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  private String[] order(String kind, String[] list, Sort[] sort) {
+    if (sort == null || sort.length == 0) {
+      return list;
+    }
+    StringBuilder key = new StringBuilder(kind);
+    for (Sort s : sort) {
+      key.append(';').append(s.getField()).append(',').append(s.getOrder());
+    }
+    String[] sorted = orders.get(key.toString());
+    if (sorted == null) {
+      sorted = list.clone();
+      // stable, so ties keep the order the members were found in.
+      Arrays.sort(sorted, comparator(sort));
+      orders.put(key.toString(), sorted);
+    }
+    return sorted;
+  }
+
+  private Comparator<String> comparator(final Sort[] sort) {
+    return new Comparator<String>() {
+      public int compare(String id1, String id2) {
+        for (Sort s : sort) {
+          String c1 = getField(id1, s.getField());
+          String c2 = getField(id2, s.getField());
+          int i = SortOrder.desc.equals(s.getOrder()) ? c2.compareTo(c1) : c1
+              .compareTo(c2);
+          if (i != 0) {
+            return i;
+          }
+        }
+        return 0;
+      }
+    };
+  }
+
+  private String getField(String id, SortField field) {
+    String[] name = names.get(id);
+    if (name == null) {
+      name = NO_NAMES;
+    }
+    String value;
+    switch (field) {
+    case firstName:
+      value = name[0];
+      break;
+    case lastName:
+      value = name[1];
+      break;
+    default:
+      value = id;
+    }
+    return value == null ? "" : value;
+  }
+}
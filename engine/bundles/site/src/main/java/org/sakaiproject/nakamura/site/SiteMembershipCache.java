@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the membership of recently used sites, by site path and by the user it was built
+ * for, as each user only sees the members that they can read. Entries are dropped when a
+ * user or group that is part of them changes, when the site node changes, when they are
+ * older than the maximum age, and least recently used site first when there are too many.
+ *
+ * An invalidation that may touch a membership being built moves the cache on a
+ * generation, a membership built while the generation moved is not cached as it may have
+ * missed the change. Changes to other resources do not, so busy content does not keep
+ * memberships from being cached.
+ */
+public class SiteMembershipCache {
+
+  private final LinkedHashMap<String, Map<String, SiteMembers>> sites = new LinkedHashMap<String, Map<String, SiteMembers>>(
+      16, 0.75f, true);
+  private int maxEntries;
+  private long maxAge;
+  private long generation;
+  /**
+   * The paths of the sites whose membership is being built, once for each build.
+   */
+  private final List<String> building = new ArrayList<String>();
+  /**
+   * The number of memberships held, over all sites.
+   */
+  private int size;
+
+  /**
+   * @param maxEntries
+   *          the most memberships to hold, one for each site and user.
+   * @param maxAge
+   *          how long to hold a membership, in ms.
+   */
+  public SiteMembershipCache(int maxEntries, long maxAge) {
+    configure(maxEntries, maxAge);
+  }
+
+  public synchronized void configure(int maxEntries, long maxAge) {
+    this.maxEntries = maxEntries;
+    this.maxAge = maxAge;
+    trim();
+  }
+
+  /**
+   * Note that the membership of a site is being built, call
+   * {@link #finishBuild(String)} when it is done.
+   *
+   * @param sitePath
+   *          the path of the site.
+   * @return the generation to pass to {@link #put(String, String, SiteMembers, long)}.
+   */
+  public synchronized long startBuild(String sitePath) {
+    building.add(sitePath);
+    return generation;
+  }
+
+  /**
+   * @param sitePath
+   *          the path of the site given to {@link #startBuild(String)}.
+   */
+  public synchronized void finishBuild(String sitePath) {
+    building.remove(sitePath);
+  }
+
+  /**
+   * @param sitePath
+   *          the path of the site.
+   * @param userID
+   *          the user the membership was built for.
+   * @return the membership of the site, or null if it is not held.
+   */
+  public synchronized SiteMembers get(String sitePath, String userID) {
+    Map<String, SiteMembers> users = sites.get(sitePath);
+    if (users == null) {
+      return null;
+    }
+    SiteMembers members = users.get(userID);
+    if (members != null && System.currentTimeMillis() - members.getCreated() > maxAge) {
+      users.remove(userID);
+      size--;
+      if (users.isEmpty()) {
+        sites.remove(sitePath);
+      }
+      members = null;
+    }
+    return members;
+  }
+
+  /**
+   * Hold the membership of a site, unless something was invalidated since it started to
+   * be built.
+   *
+   * @param sitePath
+   *          the path of the site.
+   * @param userID
+   *          the user the membership was built for.
+   * @param members
+   *          the membership.
+   * @param generation
+   *          the generation from before the membership was built.
+   */
+  public synchronized void put(String sitePath, String userID, SiteMembers members,
+      long generation) {
+    if (generation == this.generation) {
+      Map<String, SiteMembers> users = sites.get(sitePath);
+      if (users == null) {
+        users = new HashMap<String, SiteMembers>();
+        sites.put(sitePath, users);
+      }
+      if (users.put(userID, members) == null) {
+        size++;
+      }
+      trim();
+    }
+  }
+
+  /**
+   * Drop every membership that a user or group is part of.
+   *
+   * @param id
+   *          the id of the user or group that changed.
+   */
+  public synchronized void invalidateAuthorizable(String id) {
+    generation++;
+    for (Iterator<Map<String, SiteMembers>> i = sites.values().iterator(); i.hasNext();) {
+      Map<String, SiteMembers> users = i.next();
+      for (Iterator<SiteMembers> j = users.values().iterator(); j.hasNext();) {
+        if (j.next().contains(id)) {
+          j.remove();
+          size--;
+        }
+      }
+      if (users.isEmpty()) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Drop a site, and any sites below it. The generation moves if the membership of one
+   * of those sites is being built, whether or not it is held.
+   *
+   * @param path
+   *          the path that changed.
+   * @param descendants
+   *          true to drop the sites below the path as well.
+   */
+  public synchronized void invalidateSite(String path, boolean descendants) {
+    String prefix = path.endsWith("/") ? path : path + "/";
+    for (String sitePath : building) {
+      if (sitePath.equals(path) || (descendants && sitePath.startsWith(prefix))) {
+        generation++;
+        break;
+      }
+    }
+    remove(sites.remove(path));
+    if (descendants) {
+      for (Iterator<Map.Entry<String, Map<String, SiteMembers>>> i = sites.entrySet()
+          .iterator(); i.hasNext();) {
+        Map.Entry<String, Map<String, SiteMembers>> e = i.next();
+        if (e.getKey().startsWith(prefix)) {
+          i.remove();
+          remove(e.getValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of memberships held.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized void clear() {
+    generation++;
+    sites.clear();
+    size = 0;
+  }
+
+  private void remove(Map<String, SiteMembers> users) {
+    if (users != null) {
+      size -= users.size();
+    }
+  }
+
+  private void trim() {
+    Iterator<Map<String, SiteMembers>> i = sites.values().iterator();
+    while (size > maxEntries && i.hasNext()) {
+      remove(i.next());
+      i.remove();
+    }
+  }
+}
@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.nakamura.site;
 
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -29,15 +28,23 @@ import org.apache.jackrabbit.api.security.user.Authorizable;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.User;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.personal.PersonalUtils;
 import org.sakaiproject.nakamura.api.site.SiteException;
 import org.sakaiproject.nakamura.api.site.SiteService;
 import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
 import org.sakaiproject.nakamura.api.user.AuthorizablePostProcessService;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.sakaiproject.nakamura.version.VersionService;
@@ -45,10 +52,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.AbstractCollection;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.jcr.Item;
 import javax.jcr.Node;
@@ -66,11 +78,14 @@ import javax.jcr.query.QueryResult;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * The <code>SiteServiceImpl</code> provides a Site Service implementatoin.
+ * The <code>SiteServiceImpl</code> provides a Site Service implementatoin. The flattened
+ * membership of sites is cached, and dropped by user, group and site change events.
+ * Sites are found by name and URI through an index of site paths that is loaded on
+ * activation and kept current by site node events.
  */
-@Component(immediate = true, label = "%siteService.impl.label", description = "%siteService.impl.desc")
+@Component(immediate = true, metatype = true, label = "%siteService.impl.label", description = "%siteService.impl.desc")
 @Service
-public class SiteServiceImpl implements SiteService {
+public class SiteServiceImpl implements SiteService, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SiteServiceImpl.class);
 
@@ -91,10 +106,30 @@ public class SiteServiceImpl implements SiteService {
    */
   public static final String DEFAULT_SITE = "/sites/default.html";
 
+  @org.apache.felix.scr.annotations.Property(intValue = SiteServiceImpl.DEFAULT_MEMBERSHIP_CACHE_SIZE, label = "%siteService.membershipCache.size.label", description = "%siteService.membershipCache.size.desc")
+  public static final String MEMBERSHIP_CACHE_SIZE = "site.membershipCache.size";
+  public static final int DEFAULT_MEMBERSHIP_CACHE_SIZE = 500;
+
+  @org.apache.felix.scr.annotations.Property(longValue = SiteServiceImpl.DEFAULT_MEMBERSHIP_CACHE_MAXAGE, label = "%siteService.membershipCache.maxAge.label", description = "%siteService.membershipCache.maxAge.desc")
+  public static final String MEMBERSHIP_CACHE_MAXAGE = "site.membershipCache.maxAge";
+  public static final long DEFAULT_MEMBERSHIP_CACHE_MAXAGE = 300000L;
+
+  @org.apache.felix.scr.annotations.Property(value = { UserConstants.TOPIC_USER_UPDATE,
+      UserConstants.TOPIC_USER_DELETED, UserConstants.TOPIC_GROUP_UPDATE, UserConstants.TOPIC_GROUP_DELETED,
+      SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+      SlingConstants.TOPIC_RESOURCE_REMOVED }, propertyPrivate = true)
+  static final String EVENT_TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * The flattened membership of recently used sites.
+   */
+  protected SiteMembershipCache membershipCache = new SiteMembershipCache(
+      DEFAULT_MEMBERSHIP_CACHE_SIZE, DEFAULT_MEMBERSHIP_CACHE_MAXAGE);
+
   /**
-   * The maximum size of any list before we truncate. The user is warned.
+   * The paths of all the sites by name.
    */
-  private static final int MAXLISTSIZE = 10000;
+  protected SiteIndex siteIndex = new SiteIndex();
 
   /**
    * The OSGi Event Admin Service.
@@ -216,6 +251,7 @@ public class SiteServiceImpl implements SiteService {
       if ( session.hasPendingChanges()) {
         session.save();
       }
+      membershipCache.invalidateAuthorizable(targetGroup.getID());
     } catch (RepositoryException e) {
       LOGGER.warn(e.getMessage(), e);
       throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
@@ -266,6 +302,7 @@ public class SiteServiceImpl implements SiteService {
         throw new SiteException(HttpServletResponse.SC_CONFLICT, "User " + user
             + " was not a member of " + requestedGroup);
       }
+      membershipCache.invalidateAuthorizable(targetGroup.getID());
       postEvent(SiteEvent.unjoinedSite, site, targetGroup, null);
 
     } catch (RepositoryException e) {
@@ -408,6 +445,90 @@ public class SiteServiceImpl implements SiteService {
     return Joinable.no;
   }
 
+  @SuppressWarnings("unchecked")
+  protected void activate(ComponentContext ctx) {
+    Dictionary<String, Object> properties = ctx.getProperties();
+    membershipCache.configure(OsgiUtil.toInteger(properties.get(MEMBERSHIP_CACHE_SIZE),
+        DEFAULT_MEMBERSHIP_CACHE_SIZE), OsgiUtil.toLong(properties
+        .get(MEMBERSHIP_CACHE_MAXAGE), DEFAULT_MEMBERSHIP_CACHE_MAXAGE));
+    loadSiteIndex();
+  }
+
+  protected void deactivate(ComponentContext ctx) {
+    membershipCache.clear();
+    siteIndex.clear();
+  }
+
+  /**
+   * Load the index with every site in the repository. If this fails the index is not
+   * ready and sites are found by searching.
+   */
+  protected void loadSiteIndex() {
+    siteIndex.startLoad();
+    Session session = null;
+    try {
+      session = slingRepository.loginAdministrative(null);
+      QueryManager queryManager = session.getWorkspace().getQueryManager();
+      Query query = queryManager.createQuery("//*[@sling:resourceType=\""
+          + SiteService.SITE_RESOURCE_TYPE + "\"]", Query.XPATH);
+      List<String> found = new ArrayList<String>();
+      for (NodeIterator ni = query.execute().getNodes(); ni.hasNext();) {
+        found.add(ni.nextNode().getPath());
+      }
+      siteIndex.finishLoad(found);
+      LOGGER.info("Loaded the site index with {} sites", siteIndex.size());
+    } catch (RepositoryException e) {
+      siteIndex.clear();
+      LOGGER.warn("Unable to load the site index, sites will be searched for: {}", e
+          .getMessage());
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drop cached site membership when a user or group changes, or when a site node
+   * changes or is removed. Keep the site index current as site nodes are added, changed
+   * and removed.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (SlingConstants.TOPIC_RESOURCE_ADDED.equals(topic)) {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (SiteService.SITE_RESOURCE_TYPE.equals(event
+          .getProperty(SlingConstants.PROPERTY_RESOURCE_TYPE))) {
+        siteIndex.add(path);
+      }
+    } else if (SlingConstants.TOPIC_RESOURCE_CHANGED.equals(topic)) {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null) {
+        membershipCache.invalidateSite(path, false);
+        Object resourceType = event.getProperty(SlingConstants.PROPERTY_RESOURCE_TYPE);
+        if (SiteService.SITE_RESOURCE_TYPE.equals(resourceType)) {
+          siteIndex.add(path);
+        } else if (resourceType != null) {
+          siteIndex.remove(path, false);
+        }
+      }
+    } else if (SlingConstants.TOPIC_RESOURCE_REMOVED.equals(topic)) {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null) {
+        membershipCache.invalidateSite(path, true);
+        siteIndex.remove(path, true);
+      }
+    } else {
+      Object id = event.getProperty(UserConstants.EVENT_PROP_USERID);
+      if (id != null) {
+        membershipCache.invalidateAuthorizable(String.valueOf(id));
+      }
+    }
+  }
+
   protected void bindEventAdmin(EventAdmin eventAdmin) {
     this.eventAdmin = eventAdmin;
   }
@@ -467,36 +588,14 @@ public class SiteServiceImpl implements SiteService {
    */
   public Iterator<Group> getGroups(Node site, int start, int nitems, Sort[] sort)
       throws SiteException {
-    MembershipTree membership = getMembershipTree(site, true);
-    if (sort != null && sort.length > 0) {
-      Comparator<GroupKey> comparitor = buildCompoundComparator(sort);
-      List<GroupKey> sortedList = Lists.sortedCopy(membership.getGroups().keySet(), comparitor);
-      Iterator<GroupKey> sortedIterator = sortedList.listIterator(start);
-      return unwrapGroups(Iterators.limit(sortedIterator, nitems));
+    String[] groups = getSiteMembers(site).getGroups(sort);
+    try {
+      return new AuthorizablePage<Group>(Group.class, AccessControlUtil
+          .getUserManager(site.getSession()), groups, start, nitems);
+    } catch (RepositoryException e) {
+      LOGGER.warn(e.getMessage(), e);
+      throw new SiteException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
     }
-
-    // no sort requested.
-
-    List<GroupKey> finalList = Lists.immutableList(membership.getGroups().keySet());
-    Iterator<GroupKey> unsortedIterator = finalList.listIterator(start);
-    return unwrapGroups(Iterators.limit(unsortedIterator, nitems));
-  }
-
-  public Iterator<Group> unwrapGroups(final Iterator<GroupKey> underlying) {
-    return new Iterator<Group>() {
-
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
-
-      public Group next() {
-        return underlying.next().getGroup();
-      }
-
-      public void remove() {
-        underlying.remove();
-      }
-    };
   }
 
   /**
@@ -505,250 +604,228 @@ public class SiteServiceImpl implements SiteService {
    * @see org.sakaiproject.nakamura.api.site.SiteService#getMembers(javax.jcr.Node, int,
    *      int, org.sakaiproject.nakamura.api.site.Sort[])
    */
-  public AbstractCollection<User> getMembers(Node site, int start, int nitems, Sort[] sort) {
-    MembershipTree membership = getMembershipTree(site, true);
-    if (sort != null && sort.length > 0) {
-      Comparator<UserKey> comparitor = buildCompoundComparator(sort);
-      List<UserKey> sortedList = Lists.sortedCopy(membership.getUsers().keySet(), comparitor);
-      Iterator<UserKey> sortedIterator = sortedList.listIterator(start);
-      return returnCollection(sortedIterator, nitems, sortedList.size());
-    }
-
-    // no sort requested.
-    List<UserKey> finalList = Lists.immutableList(membership.getUsers().keySet());
-    Iterator<UserKey> unsortedIterator = finalList.listIterator(start);
-    return returnCollection(unsortedIterator, nitems, finalList.size());
-  }
-
-  private AbstractCollection<User> returnCollection(final Iterator<UserKey> iterator, final int nitems, final int totalSize) {
+  public AbstractCollection<User> getMembers(final Node site, final int start,
+      final int nitems, Sort[] sort) {
+    final String[] users = getSiteMembers(site).getUsers(sort);
     return new AbstractCollection<User>() {
 
       @Override
       public Iterator<User> iterator() {
-        return unwrapUsers(Iterators.limit(iterator, nitems));
+        try {
+          return new AuthorizablePage<User>(User.class, AccessControlUtil
+              .getUserManager(site.getSession()), users, start, nitems);
+        } catch (RepositoryException e) {
+          LOGGER.warn(e.getMessage(), e);
+          return new AuthorizablePage<User>(User.class, null, users, 0, 0);
+        }
       }
 
       @Override
       public int size() {
-        return totalSize;
+        return users.length;
       }
     };
   }
 
-  public Iterator<User> unwrapUsers(final Iterator<UserKey> underlying) {
-    return new Iterator<User>() {
+  public int getMemberCount(Node site) {
+    return getSiteMembers(site).getUserCount();
+  }
 
-      public boolean hasNext() {
-        return underlying.hasNext();
-      }
+  /**
+   * Looks up a page of authorizables by id as it is iterated, skipping ids that no longer
+   * resolve to the expected type.
+   */
+  private static final class AuthorizablePage<T extends Authorizable> implements
+      Iterator<T> {
+    private final Class<T> type;
+    private final UserManager userManager;
+    private final String[] ids;
+    private final int end;
+    private int next;
+    private T lookahead;
+
+    private AuthorizablePage(Class<T> type, UserManager userManager, String[] ids,
+        int start, int nitems) {
+      this.type = type;
+      this.userManager = userManager;
+      this.ids = ids;
+      this.next = Math.max(0, Math.min(start, ids.length));
+      this.end = (int) Math.min((long) next + Math.max(0, nitems), ids.length);
+    }
 
-      public User next() {
-        return underlying.next().getUser();
+    public boolean hasNext() {
+      while (lookahead == null && next < end) {
+        String id = ids[next++];
+        try {
+          Authorizable a = userManager.getAuthorizable(id);
+          if (type.isInstance(a)) {
+            lookahead = type.cast(a);
+          } else {
+            LOGGER.debug("Site member {} is no longer a {} ", id, type.getSimpleName());
+          }
+        } catch (RepositoryException e) {
+          LOGGER.warn("Unable to look up site member {}: {} ", id, e.getMessage());
+        }
       }
+      return lookahead != null;
+    }
 
-      public void remove() {
-        underlying.remove();
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
       }
-    };
-  }
+      T a = lookahead;
+      lookahead = null;
+      return a;
+    }
 
-  public int getMemberCount(Node site) {
-    return getMembershipTree(site, false).getUsers().size();
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
   }
 
   /**
-   * Builds a membership tree of users and groups for the site, because of the tree like
-   * nature of membership we may want to think of a more efficient way of performing this
-   * operation, however, there are no queries to perform this and it may be better to have
-   * this in memory. We are taking a google like approach to this operation, limiting the
-   * set to a practical size. If this become a real problem, then we might want to put the
-   * members of a site into a JPA mapped table, although that will require a tree cache
-   * invalidation scheme to keep upto date. Membership is derived not always declared.
-   * 
+   * Get the membership of the site from the cache, building it if it is not there. The
+   * membership is built with the session of the site node, so it is held for the user of
+   * that session.
    * 
    * @param site
    *          the site
-   * @param lookupProfile
-   *          If a profile should be looked up for all the users of this site. (true will
-   *          be much slower!)
-   * @return a membership tree
+   * @return the membership of the site.
    */
-  private MembershipTree getMembershipTree(Node site, boolean lookupProfile) {
-    Map<GroupKey, Membership> groups = Maps.newLinkedHashMap();
-    Map<UserKey, Membership> users = Maps.newLinkedHashMap();
+  private SiteMembers getSiteMembers(Node site) {
+    String sitePath = null;
     try {
-      Session session = site.getSession();
-      UserManager userManager = AccessControlUtil.getUserManager(site.getSession());
-      if (site.hasProperty(SiteService.AUTHORIZABLE)) {
-        Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
-        for (Value v : values) {
-          String id = v.getString();
-          Authorizable a = userManager.getAuthorizable(id);
-          if (a instanceof Group) {
-            // FIXME: a is never a Group Key (bug?)
-            if (!groups.containsKey(a)) {
-              groups.put(new GroupKey((Group) a), new Membership(null, a));
-              populateMembers((Group) a, groups, users, session);
-            }
-          } else if (a instanceof User) {
-            // FIXME: a is never a User Key (bug?)
-            if (!users.containsKey(a)) {
-              Node profileNode = null;
-              if (lookupProfile) {
-                String profilePath = PersonalUtils.getProfilePath(a);
-                try {
-                  profileNode = (Node) session.getItem(profilePath);
-                } catch ( PathNotFoundException e ) {
-                  LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-                }
-              }
-              users.put(new UserKey((User) a, profileNode), new Membership(null, a));
-            }
-          } else if (a == null) {
-            // if a is null
-            LOGGER.warn("Authorizable could not be resolved from id: {}", id);
-          } else {
-            // if a is not one of the known types
-            LOGGER.warn("Cannot handle Authorizable {} of type {}", a,  a
-                .getClass());
-          }
+      sitePath = site.getPath();
+      String userID = site.getSession().getUserID();
+      SiteMembers members = membershipCache.get(sitePath, userID);
+      if (members == null) {
+        long generation = membershipCache.startBuild(sitePath);
+        try {
+          members = buildSiteMembers(site);
+          membershipCache.put(sitePath, userID, members, generation);
+        } finally {
+          membershipCache.finishBuild(sitePath);
         }
-
-        // might want to cache the unsorted lists at this point, although they are already
-        // cached by JCR.
-      } else {
-        LOGGER.info(
-            "Site ({}) does not have Authorizable property ({}) and thus has no memberships", site
-                .getPath(), SiteService.AUTHORIZABLE);
       }
+      return members;
     } catch (RepositoryException ex) {
       // dont change this warn into {} form, doing so will prevent the exception being displayed.
-      LOGGER.warn("Failed to build membership Tree for  site ["+site+"] ", ex);
+      LOGGER.warn("Failed to build membership for site [" + sitePath + "] ", ex);
+      return new SiteMembers(new ArrayList<String>(), new ArrayList<String>(),
+          new HashMap<String, String[]>());
     }
-    return new MembershipTree(groups, users);
   }
 
   /**
-   * Build a compound set of comparators for performing sorts.
+   * Flattens the membership of the site into the ids of all its users and groups,
+   * following nested groups, and reads the names of the users for sorting. Membership is
+   * derived not always declared, so this is done once per site and cached until a member
+   * changes.
    * 
-   * @param sort
-   *          the sort array to base the compound set
-   * @return the first comparator in the set.
+   * @param site
+   *          the site
+   * @return the membership of the site.
+   * @throws RepositoryException
    */
-  @SuppressWarnings("unchecked")
-  private <T extends AuthorizableKey> Comparator<T> buildCompoundComparator(Sort[] sort) {
-    if (sort.length == 0) {
-      return null;
-    }
-    final Comparator<T>[] comparitors = new Comparator[sort.length];
-    int i = 0;
-    for (final Sort s : sort) {
-
-      final int next = i + 1;
-      comparitors[i++] = new Comparator<T>() {
-
-        /**
-         * Compare the objects
-         */
-        public int compare(T o1, T o2) {
-          try {
-            String c1 = o1.getAuthorizable().getID();
-            String c2 = o2.getAuthorizable().getID();
-            switch (s.getField()) {
-            case firstName:
-              c1 = o1.getFirstName();
-              c2 = o2.getFirstName();
-              break;
-            case id:
-              c1 = o1.getAuthorizable().getID();
-              c2 = o2.getAuthorizable().getID();
-              break;
-            case lastName:
-              c1 = o1.getLastName();
-              c2 = o2.getLastName();
-              break;
-            }
-            switch (s.getOrder()) {
-            case asc:
-              int i = c1.compareTo(c2);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            case desc:
-              i = c2.compareTo(c1);
-              if (i == 0) {
-                i = compareNext(o1, o2);
-              }
-              return i;
-            }
-          } catch (RepositoryException e) {
-          }
-          return 0;
-        }
-
-        /**
-         * Chain to the next comparator in the ordering list.
-         * 
-         * @param o1
-         *          the first object to compare.
-         * @param o2
-         *          the second object to compare.
-         * @return the result of the next comparator in the chain or 0 if this is the last
-         *         one.
-         */
-        private int compareNext(T o1, T o2) {
-          if (next < comparitors.length) {
-            return comparitors[next].compare(o1, o2);
+  private SiteMembers buildSiteMembers(Node site) throws RepositoryException {
+    Set<String> groups = new LinkedHashSet<String>();
+    Set<String> users = new LinkedHashSet<String>();
+    Map<String, String[]> names = new HashMap<String, String[]>();
+    Session session = site.getSession();
+    UserManager userManager = AccessControlUtil.getUserManager(session);
+    if (site.hasProperty(SiteService.AUTHORIZABLE)) {
+      Value[] values = getPropertyValues(site, SiteService.AUTHORIZABLE);
+      for (Value v : values) {
+        String id = v.getString();
+        Authorizable a = userManager.getAuthorizable(id);
+        if (a instanceof Group) {
+          if (groups.add(a.getID())) {
+            populateMembers((Group) a, groups, users, names, session);
           }
-          return 0;
+        } else if (a instanceof User) {
+          addUser((User) a, users, names, session);
+        } else if (a == null) {
+          // if a is null
+          LOGGER.warn("Authorizable could not be resolved from id: {}", id);
+        } else {
+          // if a is not one of the known types
+          LOGGER.warn("Cannot handle Authorizable {} of type {}", a, a.getClass());
         }
-      };
+      }
+    } else {
+      LOGGER.info(
+          "Site ({}) does not have Authorizable property ({}) and thus has no memberships",
+          site.getPath(), SiteService.AUTHORIZABLE);
     }
-    return comparitors[0];
+    return new SiteMembers(users, groups, names);
   }
 
   /**
-   * Recursively build a list of groups for the group avoiding duplicates or infinite
-   * recursion.
+   * Recursively add the members of a group, visiting each group once so that cycles
+   * terminate.
    * 
    * @param group
    *          the group for which we want to know all members.
    * @param groups
-   *          the groups associated with the site.
+   *          the ids of the groups associated with the site.
    * @param users
-   *          the users associated with the sites, extracted from groups
+   *          the ids of the users associated with the site, extracted from groups
+   * @param names
+   *          the names of the users.
    * @param session
    *          the session to grab the profile node for users.
    * @throws RepositoryException
    */
-  private void populateMembers(Group group, Map<GroupKey, Membership> groups,
-      Map<UserKey, Membership> users, Session session) throws RepositoryException {
+  private void populateMembers(Group group, Set<String> groups, Set<String> users,
+      Map<String, String[]> names, Session session) throws RepositoryException {
     for (Iterator<Authorizable> igm = group.getDeclaredMembers(); igm.hasNext();) {
       Authorizable a = igm.next();
-      // FIXME: a is not a GroupKey, so this can never be true (Bug?)
-      if (!groups.containsKey(a)) {
-        if (a instanceof Group) {
-          groups.put(new GroupKey((Group) a), new Membership(group, a));
-          populateMembers((Group) a, groups, users, session);
-        } else {
-          String profilePath = PersonalUtils.getProfilePath(a);
-          Node profileNode = null;
-          try {
-            profileNode = (Node) session.getItem(profilePath);
-          } catch ( PathNotFoundException e ) {
-            LOGGER.warn("User {} does not have a profile at {} ", a.getID(), profilePath);
-          }
-          LOGGER.debug("Populate Members adding profile {} {} ",profileNode,profilePath);
-          users.put(new UserKey((User) a, profileNode), new Membership(group, a));
+      if (a instanceof Group) {
+        if (groups.add(a.getID())) {
+          populateMembers((Group) a, groups, users, names, session);
         }
+      } else if (a instanceof User) {
+        addUser((User) a, users, names, session);
       }
-      if (users.size() > MAXLISTSIZE || groups.size() > MAXLISTSIZE) {
-        LOGGER
-            .warn("Large site listing, please consider using dynamic membership rather than explicit members groups parent Group {} "
-                + group.getID());
-        return;
+    }
+  }
+
+  /**
+   * Add a user and the names that users are sorted by, from the profile if there is one.
+   */
+  private void addUser(User user, Set<String> users, Map<String, String[]> names,
+      Session session) throws RepositoryException {
+    if (!users.add(user.getID())) {
+      return;
+    }
+    String firstName = SortField.firstName.toString();
+    String lastName = SortField.lastName.toString();
+    String[] name = new String[2];
+    String profilePath = PersonalUtils.getProfilePath(user);
+    Node profileNode = null;
+    try {
+      profileNode = (Node) session.getItem(profilePath);
+    } catch (PathNotFoundException e) {
+      LOGGER.warn("User {} does not have a profile at {} ", user.getID(), profilePath);
+    }
+    if (profileNode == null) {
+      if (user.hasProperty(firstName)) {
+        name[0] = user.getProperty(firstName)[0].getString();
       }
+      if (user.hasProperty(lastName)) {
+        name[1] = user.getProperty(lastName)[0].getString();
+      }
+    } else {
+      if (profileNode.hasProperty(firstName)) {
+        name[0] = profileNode.getProperty(firstName).getString();
+      }
+      if (profileNode.hasProperty(lastName)) {
+        name[1] = profileNode.getProperty(lastName).getString();
+      }
+    }
+    if (name[0] != null || name[1] != null) {
+      names.put(user.getID(), name);
     }
   }
 
@@ -794,7 +871,54 @@ public class SiteServiceImpl implements SiteService {
    * @see org.sakaiproject.nakamura.api.site.SiteService#findSiteByURI(javax.jcr.Session, java.lang.String)
    */
   public Node findSiteByURI(Session session, String uriPath) throws SiteException {
+    if (siteIndex.isReady()) {
+      // Assume that the last part in the url is the siteid.
+      String siteName = uriPath.substring(uriPath.lastIndexOf("/") + 1);
+      String[] named = siteIndex.getPaths(siteName);
+      boolean known = false;
+      for (String path = uriPath; !path.equals("/"); path = PathUtils
+          .getParentReference(path)) {
+        // Check if it is a site.
+        if (siteIndex.contains(path)) {
+          Node siteNode = getSiteNode(session, path);
+          if (siteNode != null) {
+            return siteNode;
+          }
+          known = true;
+        }
+        // Check if it is a bigstore holding a site with that name.
+        if (named.length > 0) {
+          String shardPath = PathUtils.toSimpleShardPath(path, siteName, "");
+          for (String sitePath : named) {
+            if (sitePath.equals(shardPath)) {
+              Node siteNode = getSiteNode(session, sitePath);
+              if (siteNode != null) {
+                return siteNode;
+              }
+              known = true;
+            }
+          }
+        }
+      }
+      // A site the session can not read would not be found by searching either.
+      if (known || siteIndex.isMissed(uriPath)) {
+        return null;
+      }
+      // The index may have missed an event, look for the site as well.
+      long generation = siteIndex.getGeneration();
+      Node siteNode = searchSiteByURI(session, uriPath);
+      if (siteNode == null) {
+        siteIndex.addMiss(uriPath, generation);
+      }
+      return indexed(siteNode);
+    }
+    return searchSiteByURI(session, uriPath);
+  }
 
+  /**
+   * Find a site by walking up from the URI, without the site index.
+   */
+  private Node searchSiteByURI(Session session, String uriPath) throws SiteException {
     try {
       Node node = JcrUtils.getFirstExistingNode(session, uriPath);
       if (node == null) {
@@ -837,6 +961,34 @@ public class SiteServiceImpl implements SiteService {
    * @see org.sakaiproject.nakamura.api.site.SiteService#findSiteByName(javax.jcr.Session, java.lang.String)
    */
   public Node findSiteByName(Session session, String siteName) throws SiteException {
+    if (siteIndex.isReady()) {
+      String[] named = siteIndex.getPaths(siteName);
+      for (String path : named) {
+        Node siteNode = getSiteNode(session, path);
+        if (siteNode != null) {
+          return siteNode;
+        }
+      }
+      // A site the session can not read would not be found by searching either.
+      String key = "name:" + siteName;
+      if (named.length > 0 || siteIndex.isMissed(key)) {
+        return null;
+      }
+      // The index may have missed an event, look for the site as well.
+      long generation = siteIndex.getGeneration();
+      Node siteNode = searchSiteByName(session, siteName);
+      if (siteNode == null) {
+        siteIndex.addMiss(key, generation);
+      }
+      return indexed(siteNode);
+    }
+    return searchSiteByName(session, siteName);
+  }
+
+  /**
+   * Find a site by name with a query, without the site index.
+   */
+  private Node searchSiteByName(Session session, String siteName) {
     try {
       QueryManager queryManager = session.getWorkspace().getQueryManager();
       String queryString = "//*[@sling:resourceType=\"" + SiteService.SITE_RESOURCE_TYPE
@@ -864,6 +1016,44 @@ public class SiteServiceImpl implements SiteService {
     return null;
   }
 
+  /**
+   * Add a site that was found without the index to the index.
+   *
+   * @return the site.
+   */
+  private Node indexed(Node siteNode) {
+    if (siteNode != null) {
+      try {
+        LOGGER.info("Site {} was not in the site index, adding it", siteNode.getPath());
+        siteIndex.add(siteNode.getPath());
+      } catch (RepositoryException e) {
+        LOGGER.warn("Unable to index site: {}", e.getMessage());
+      }
+    }
+    return siteNode;
+  }
+
+  /**
+   * @param session
+   *          the session to read the site with.
+   * @param path
+   *          the path of an indexed site.
+   * @return the site node, or null if the session cannot see it or it is no longer a site.
+   */
+  private Node getSiteNode(Session session, String path) {
+    try {
+      if (session.itemExists(path)) {
+        Item item = session.getItem(path);
+        if (isSite(item)) {
+          return (Node) item;
+        }
+      }
+    } catch (RepositoryException e) {
+      LOGGER.warn("Unable to retrieve site {}: {}", path, e.getMessage());
+    }
+    return null;
+  }
+
   /**
    * 
    * {@inheritDoc}
@@ -908,6 +1098,7 @@ public class SiteServiceImpl implements SiteService {
 
       // Version the entire site tree.
       versionNodeAndChildren(siteNode, creator.getID(), session);
+      siteIndex.add(siteNode.getPath());
 
       return siteNode;
     } catch (RepositoryException e) {
@@ -939,6 +1130,7 @@ public class SiteServiceImpl implements SiteService {
 
       // Version the entire site.
       versionNodeAndChildren(siteNode, creator.getID(), session);
+      siteIndex.add(siteNode.getPath());
 
       // Return the top site node.
       return siteNode;
@@ -964,9 +1156,14 @@ public class SiteServiceImpl implements SiteService {
       LOGGER.debug("Moving site ({}) to new dir ({})", fromPath, sitePath);
       Workspace workspace = session.getWorkspace();
       workspace.move(fromPath, sitePath);
+      membershipCache.invalidateSite(fromPath, true);
+      siteIndex.remove(fromPath, true);
 
       // Get the new top node.
       Node siteNode = (Node) session.getItem(sitePath);
+      if (isSite(siteNode)) {
+        siteIndex.add(siteNode.getPath());
+      }
 
       // Return the top node for the NEW site.
       return siteNode;
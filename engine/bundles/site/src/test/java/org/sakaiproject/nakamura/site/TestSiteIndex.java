@@ -0,0 +1,212 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.jcr.resource.JcrResourceConstants;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.site.SiteService;
+import org.sakaiproject.nakamura.util.PathUtils;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+public class TestSiteIndex {
+
+  @Test
+  public void testAddAndRemove() {
+    SiteIndex index = new SiteIndex();
+    index.add("/sites/physics");
+    index.add("/sites/archive/physics");
+    index.add("/sites/chemistry");
+    index.add("/sites/chemistry/labs");
+    assertArrayEquals(new String[] { "/sites/physics", "/sites/archive/physics" }, index
+        .getPaths("physics"));
+    assertTrue(index.contains("/sites/chemistry/labs"));
+
+    index.remove("/sites/physics", false);
+    assertArrayEquals(new String[] { "/sites/archive/physics" }, index
+        .getPaths("physics"));
+
+    // removing a tree takes the sites below it, but not siblings sharing the prefix.
+    index.add("/sites/chemistry2");
+    index.remove("/sites/chemistry", true);
+    assertEquals(0, index.getPaths("labs").length);
+    assertEquals(0, index.getPaths("chemistry").length);
+    assertTrue(index.contains("/sites/chemistry2"));
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testLoad() {
+    SiteIndex index = new SiteIndex();
+    assertFalse(index.isReady());
+    index.startLoad();
+    // events that arrive while the load is running.
+    index.add("/sites/new");
+    index.remove("/sites/old", true);
+    index.finishLoad(Arrays.asList("/sites/old", "/sites/old/child", "/sites/kept"));
+    assertTrue(index.isReady());
+    assertTrue(index.contains("/sites/new"));
+    assertTrue(index.contains("/sites/kept"));
+    assertFalse(index.contains("/sites/old"));
+    assertFalse(index.contains("/sites/old/child"));
+  }
+
+  @Test
+  public void testFindSite() throws Exception {
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.siteIndex.startLoad();
+    siteService.siteIndex.finishLoad(Arrays.asList("/sites/hidden/physics"));
+
+    Session session = mock(Session.class);
+    String shardPath = PathUtils.toSimpleShardPath("/sites", "physics", "");
+    Node site = createSite(session, shardPath);
+    queryReturns(session);
+
+    // a site of the same name the session cannot see is passed over.
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, shardPath);
+    props.put(SlingConstants.PROPERTY_RESOURCE_TYPE, SiteService.SITE_RESOURCE_TYPE);
+    siteService.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, props));
+
+    assertSame(site, siteService.findSiteByName(session, "physics"));
+    assertSame(site, siteService.findSiteByURI(session, "/sites/physics"));
+    assertSame(site, siteService.findSiteByURI(session, shardPath + "/pages/index"));
+    assertNull(siteService.findSiteByName(session, "chemistry"));
+
+    props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, "/sites");
+    siteService.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_REMOVED, props));
+    assertNull(siteService.findSiteByName(session, "physics"));
+  }
+
+  @Test
+  public void testFindSiteNotIndexed() throws Exception {
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.siteIndex.startLoad();
+    siteService.siteIndex.finishLoad(Arrays.asList("/sites/chemistry"));
+
+    // the index missed the site, the query finds it and it is indexed.
+    Session session = mock(Session.class);
+    Node site = createSite(session, "/sites/physics");
+    when(site.getPath()).thenReturn("/sites/physics");
+    queryReturns(session, site);
+    assertSame(site, siteService.findSiteByName(session, "physics"));
+    assertTrue(siteService.siteIndex.contains("/sites/physics"));
+  }
+
+  @Test
+  public void testMissHeld() throws Exception {
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.siteIndex.startLoad();
+    siteService.siteIndex.finishLoad(Arrays.asList("/sites/chemistry"));
+
+    // a name that is not found is only searched for once.
+    Session session = mock(Session.class);
+    queryReturns(session);
+    assertNull(siteService.findSiteByName(session, "s-unknown"));
+    assertNull(siteService.findSiteByName(session, "s-unknown"));
+    verify(session, times(1)).getWorkspace();
+
+    // until a site is added.
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(SlingConstants.PROPERTY_PATH, "/sites/biology");
+    props.put(SlingConstants.PROPERTY_RESOURCE_TYPE, SiteService.SITE_RESOURCE_TYPE);
+    siteService.handleEvent(new Event(SlingConstants.TOPIC_RESOURCE_ADDED, props));
+    assertNull(siteService.findSiteByName(session, "s-unknown"));
+    verify(session, times(2)).getWorkspace();
+  }
+
+  @Test
+  public void testUnreadableNotSearched() throws Exception {
+    SiteServiceImpl siteService = new SiteServiceImpl();
+    siteService.siteIndex.startLoad();
+    siteService.siteIndex.finishLoad(Arrays.asList("/sites/hidden/physics"));
+
+    // the index knows the site, the session can not read it.
+    Session session = mock(Session.class);
+    queryReturns(session);
+    assertNull(siteService.findSiteByName(session, "physics"));
+    assertNull(siteService.findSiteByURI(session, "/sites/hidden/physics/pages"));
+    verify(session, never()).getWorkspace();
+    verify(session, never()).getItem("/sites/hidden/physics/pages");
+  }
+
+  private void queryReturns(Session session, Node... nodes) throws RepositoryException {
+    Workspace workspace = mock(Workspace.class);
+    QueryManager queryManager = mock(QueryManager.class);
+    Query query = mock(Query.class);
+    QueryResult result = mock(QueryResult.class);
+    NodeIterator iterator = mock(NodeIterator.class);
+    when(session.getWorkspace()).thenReturn(workspace);
+    when(workspace.getQueryManager()).thenReturn(queryManager);
+    when(queryManager.createQuery(anyString(), eq(Query.XPATH))).thenReturn(query);
+    when(query.execute()).thenReturn(result);
+    when(result.getNodes()).thenReturn(iterator);
+    when(iterator.getSize()).thenReturn((long) nodes.length);
+    if (nodes.length > 0) {
+      Boolean[] more = new Boolean[nodes.length];
+      for (int i = 0; i < more.length; i++) {
+        more[i] = i + 1 < nodes.length;
+      }
+      when(iterator.hasNext()).thenReturn(true, more);
+      Node[] rest = new Node[nodes.length - 1];
+      System.arraycopy(nodes, 1, rest, 0, rest.length);
+      when(iterator.nextNode()).thenReturn(nodes[0], rest);
+    }
+  }
+
+  private Node createSite(Session session, String path) throws RepositoryException {
+    Node site = mock(Node.class);
+    Property resourceType = mock(Property.class);
+    when(resourceType.getString()).thenReturn(SiteService.SITE_RESOURCE_TYPE);
+    when(site.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)).thenReturn(
+        true);
+    when(site.getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)).thenReturn(
+        resourceType);
+    when(session.itemExists(path)).thenReturn(true);
+    when(session.getItem(path)).thenReturn(site);
+    return site;
+  }
+}
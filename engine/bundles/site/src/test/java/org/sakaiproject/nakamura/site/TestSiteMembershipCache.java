@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.site;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.site.Sort;
+import org.sakaiproject.nakamura.api.site.SortField;
+import org.sakaiproject.nakamura.api.site.SortOrder;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TestSiteMembershipCache {
+
+  private SiteMembers createMembers() {
+    Map<String, String[]> names = new HashMap<String, String[]>();
+    names.put("alice", new String[] { "Alice", "Smith" });
+    names.put("bob", new String[] { "Bob", "Jones" });
+    names.put("carol", new String[] { "Carol", "Smith" });
+    return new SiteMembers(Arrays.asList("carol", "bob", "alice", "dave"), Arrays
+        .asList("g-course", "g-tutors"), names);
+  }
+
+  @Test
+  public void testSortedMembers() {
+    SiteMembers members = createMembers();
+    assertEquals(4, members.getUserCount());
+    assertArrayEquals(new String[] { "carol", "bob", "alice", "dave" }, members
+        .getUsers(null));
+    assertArrayEquals(new String[] { "alice", "bob", "carol", "dave" }, members
+        .getUsers(new Sort[] { new Sort(SortField.id, SortOrder.asc) }));
+    // dave has no names so sorts first, the Smiths by first name descending.
+    assertArrayEquals(new String[] { "dave", "bob", "carol", "alice" }, members
+        .getUsers(new Sort[] { new Sort(SortField.lastName, SortOrder.asc),
+            new Sort(SortField.firstName, SortOrder.desc) }));
+    assertArrayEquals(new String[] { "g-tutors", "g-course" }, members
+        .getGroups(new Sort[] { new Sort(SortField.id, SortOrder.desc) }));
+  }
+
+  @Test
+  public void testInvalidateAuthorizable() {
+    SiteMembershipCache cache = new SiteMembershipCache(10, 60000);
+    cache.put("/sites/a", "alice", createMembers(), cache.startBuild("/sites/a"));
+    cache.put("/sites/b", "alice", new SiteMembers(Arrays.asList("erin"), Arrays
+        .asList("g-other"), new HashMap<String, String[]>()), cache.startBuild("/sites/b"));
+
+    cache.invalidateAuthorizable("g-tutors");
+    assertNull(cache.get("/sites/a", "alice"));
+    assertNotNull(cache.get("/sites/b", "alice"));
+  }
+
+  @Test
+  public void testHeldByUser() {
+    SiteMembershipCache cache = new SiteMembershipCache(10, 60000);
+    SiteMembers members = createMembers();
+    cache.put("/sites/a", "alice", members, cache.startBuild("/sites/a"));
+    assertNull(cache.get("/sites/a", "bob"));
+    cache.put("/sites/a", "bob", createMembers(), cache.startBuild("/sites/a"));
+    assertEquals(2, cache.size());
+    assertSame(members, cache.get("/sites/a", "alice"));
+
+    cache.invalidateSite("/sites/a", false);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidateSite() {
+    SiteMembershipCache cache = new SiteMembershipCache(10, 60000);
+    cache.put("/sites/a", "alice", createMembers(), cache.startBuild("/sites/a"));
+    cache.put("/sites/a/b", "alice", createMembers(), cache.startBuild("/sites/a/b"));
+
+    cache.invalidateSite("/sites/a/b/page", false);
+    assertEquals(2, cache.size());
+
+    cache.invalidateSite("/sites", true);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testSiteBuiltDuringChangeIsNotCached() {
+    SiteMembershipCache cache = new SiteMembershipCache(10, 60000);
+    long generation = cache.startBuild("/sites/a");
+    // the site is not held yet, it is being built.
+    cache.invalidateSite("/sites/a", false);
+    cache.put("/sites/a", "alice", createMembers(), generation);
+    assertNull(cache.get("/sites/a", "alice"));
+  }
+
+  @Test
+  public void testOtherChangeDuringBuild() {
+    SiteMembershipCache cache = new SiteMembershipCache(10, 60000);
+    long generation = cache.startBuild("/sites/a");
+    // changes outside the site being built, or below it, leave it to be cached.
+    cache.invalidateSite("/sites/b", false);
+    cache.invalidateSite("/sites/a/page", false);
+    cache.invalidateSite("/sites/ab", true);
+    cache.put("/sites/a", "alice", createMembers(), generation);
+    cache.finishBuild("/sites/a");
+    assertNotNull(cache.get("/sites/a", "alice"));
+
+    // removing a parent of the site is a change to it.
+    generation = cache.startBuild("/sites/b");
+    cache.invalidateSite("/sites", true);
+    cache.put("/sites/b", "alice", createMembers(), generation);
+    assertNull(cache.get("/sites/b", "alice"));
+  }
+
+  @Test
+  public void testBuiltDuringChangeIsNotCached() {
+    SiteMembershipCache cache = new SiteMembershipCache(10, 60000);
+    long generation = cache.startBuild("/sites/a");
+    cache.invalidateAuthorizable("bob");
+    cache.put("/sites/a", "alice", createMembers(), generation);
+    assertNull(cache.get("/sites/a", "alice"));
+  }
+
+  @Test
+  public void testLimits() throws InterruptedException {
+    SiteMembershipCache cache = new SiteMembershipCache(2, 60000);
+    cache.put("/sites/a", "alice", createMembers(), cache.startBuild("/sites/a"));
+    cache.put("/sites/b", "alice", createMembers(), cache.startBuild("/sites/b"));
+    cache.get("/sites/a", "alice");
+    cache.put("/sites/c", "alice", createMembers(), cache.startBuild("/sites/c"));
+    assertNull(cache.get("/sites/b", "alice"));
+    assertNotNull(cache.get("/sites/a", "alice"));
+
+    cache.configure(2, 1);
+    Thread.sleep(10);
+    assertNull(cache.get("/sites/a", "alice"));
+  }
+}
@@ -39,7 +39,9 @@ public class TestSiteService extends AbstractEasyMockTest {
     Node siteNode = createMock(Node.class);
     JackrabbitSession session = createMock(JackrabbitSession.class);
     expect(siteNode.getSession()).andReturn(session).anyTimes();
-    expect(session.getUserManager()).andReturn(userManager);
+    expect(siteNode.getPath()).andReturn("/sites/test").anyTimes();
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    expect(session.getUserID()).andReturn("admin").anyTimes();
     Node profileNode = createMock(Node.class);
     expect(session.getItem("/_user/a/ad/admin/public/authprofile")).andReturn(profileNode).anyTimes();
     expect(profileNode.hasProperty(SortField.firstName.toString())).andReturn(true).anyTimes();
@@ -55,10 +57,12 @@ public class TestSiteService extends AbstractEasyMockTest {
     Group group2 = createMock(Group.class);
     expect(userManager.getAuthorizable("group1")).andReturn(group1);
     expect(userManager.getAuthorizable("group2")).andReturn(group2);
-    expect(group1.getDeclaredMembers()).andReturn(createUserIterator("admin"));
+    User admin = createUser("admin");
+    expect(group1.getDeclaredMembers()).andReturn(createUserIterator(admin));
     expect(group1.getID()).andReturn("group1").anyTimes();
-    expect(group2.getDeclaredMembers()).andReturn(createUserIterator("admin"));
+    expect(group2.getDeclaredMembers()).andReturn(createUserIterator(admin));
     expect(group2.getID()).andReturn("group2").anyTimes();
+    expect(userManager.getAuthorizable("admin")).andReturn(admin).anyTimes();
 
     replay();
     AbstractCollection<User> users = siteService.getMembers(siteNode, 0, 3, null); 
@@ -71,10 +75,14 @@ public class TestSiteService extends AbstractEasyMockTest {
       userNames.add(result.getID());
     }
     assertEquals("Expected one user back", 1, userNames.size());
+    assertEquals(1, users.size());
+
+    // served from the cache the second time.
+    assertEquals(1, siteService.getMemberCount(siteNode));
     verify();
   }
 
-  private Iterator<Authorizable> createUserIterator(String userName) throws RepositoryException {
+  private User createUser(String userName) throws RepositoryException {
     final User mockUser = createMock(User.class);
     expect(mockUser.getID()).andReturn(userName).anyTimes();
     expect(mockUser.isGroup()).andReturn(false).anyTimes();
@@ -88,6 +96,10 @@ public class TestSiteService extends AbstractEasyMockTest {
     expect(mockUser.getProperty("path")).andReturn(new Value[] { v }).anyTimes();
     EasyMock.replay(p);
     EasyMock.replay(v);
+    return mockUser;
+  }
+
+  private Iterator<Authorizable> createUserIterator(final User mockUser) {
     return new Iterator<Authorizable>() {
 
       boolean had = false;
@@ -38,6 +38,14 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -118,15 +126,13 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ");
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      String cookieValue = encodeField(hmac(serverId, secretKeyId, expiringSecretKey,
+          cookiePayload));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -136,6 +142,12 @@ public class TokenStore {
      * @throws SecureCookieException
      */
     public String decode(String value) throws SecureCookieException {
+      VerifiedCookie verified = getVerifiedCookie(value);
+      if (verified != null) {
+        this.secretKeyId = verified.secretKeyId;
+        this.serverId = verified.serverId;
+        return verified.userId;
+      }
       String[] parts = StringUtils.split(value, "@");
       if (parts != null && parts.length == 4) {        
         this.secretKeyId = Integer.parseInt(parts[1].substring(0, 1));
@@ -156,9 +168,18 @@ public class TokenStore {
             if ( debugCookies ) {
               LOG.info("Decoding with server:{} keyno:{} secret:{} user:{} cookeiTime:{} cookie:{}",new Object[]{serverId, secretKeyId, encodeField(secretKey.getEncoded()), userId, cookieTime, value} );
             }
-            String hmac = encode(cookieTime, userId);
-            if (value.equals(hmac)) {
-              return userId;
+            // The HMAC is checked against the payload as sent. Split drops empty
+            // parts, so the lengths must add up for the payload to be the cookie as
+            // issued.
+            String cookiePayload = parts[1] + "@" + parts[2] + "@" + parts[3];
+            if (value.length() == parts[0].length() + 1 + cookiePayload.length()) {
+              String hmac = encodeField(hmac(serverId, secretKeyId, expiringSecretKey,
+                  cookiePayload));
+              if (constantTimeEquals(parts[0], hmac)) {
+                cacheVerifiedCookie(value, new VerifiedCookie(userId, serverId,
+                    secretKeyId, expiringSecretKey, cookieTime));
+                return userId;
+              }
             }
           } catch (ArrayIndexOutOfBoundsException e) {
             LOG.error(e.getMessage(), e);
@@ -185,8 +206,99 @@ public class TokenStore {
 
   }
 
+  /**
+   * A cookie value whose HMAC has been checked, so it does not need to be checked again
+   * before it expires, or before the key it was checked with is replaced.
+   */
+  private static final class VerifiedCookie {
+    private final String userId;
+    private final String serverId;
+    private final int secretKeyId;
+    private final SecretKey secretKey;
+    private final byte[] encoded;
+    private final long expires;
+    /**
+     * When the value was last used, from System.nanoTime(). Written without a lock, so
+     * eviction works from an approximate order.
+     */
+    private volatile long lastUsed = System.nanoTime();
+
+    private VerifiedCookie(String userId, String serverId, int secretKeyId,
+        ExpiringSecretKey expiringSecretKey, long expires) {
+      this.userId = userId;
+      this.serverId = serverId;
+      this.secretKeyId = secretKeyId;
+      this.secretKey = expiringSecretKey.getSecretKey();
+      this.encoded = expiringSecretKey.getSecretKeyData().getEncoded();
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * Idle Mac instances initialised with one secret key. Mac instances are not thread
+   * safe and expensive to create, so each request borrows one and hands it back.
+   */
+  private static final class MacPool {
+    private final SecretKey secretKey;
+    private final byte[] encoded;
+    private final Queue<Mac> idle = new ConcurrentLinkedQueue<Mac>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private MacPool(ExpiringSecretKey expiringSecretKey) {
+      this.secretKey = expiringSecretKey.getSecretKey();
+      this.encoded = expiringSecretKey.getSecretKeyData().getEncoded();
+    }
+
+    /**
+     * @return true if this pool was initialised with the key.
+     */
+    private boolean isFor(ExpiringSecretKey expiringSecretKey) {
+      return isSameKey(secretKey, encoded, expiringSecretKey);
+    }
+
+    private Mac borrow() throws NoSuchAlgorithmException, InvalidKeyException {
+      Mac m = idle.poll();
+      if (m != null) {
+        idleCount.decrementAndGet();
+        return m;
+      }
+      m = Mac.getInstance(HMAC_SHA1);
+      m.init(secretKey);
+      return m;
+    }
+
+    private void release(Mac m) {
+      m.reset();
+      if (idleCount.incrementAndGet() <= MAX_IDLE_MACS) {
+        idle.offer(m);
+      } else {
+        idleCount.decrementAndGet();
+      }
+    }
+  }
+
   public static final Logger LOG = LoggerFactory.getLogger(TokenStore.class);
 
+  /**
+   * The default number of verified cookie values to remember.
+   */
+  public static final int DEFAULT_VERIFIED_COOKIE_CACHE_SIZE = 10000;
+
+  /**
+   * The most idle Mac instances kept for each secret key.
+   */
+  private static final int MAX_IDLE_MACS = 64;
+
+  /**
+   * Base64 instances keep state while encoding, so each thread has its own.
+   */
+  private static final ThreadLocal<Base64> BASE64 = new ThreadLocal<Base64>() {
+    @Override
+    protected Base64 initialValue() {
+      return new Base64(0, new byte[0], true);
+    }
+  };
+
   /**
    *
    */
@@ -246,6 +358,25 @@ public class TokenStore {
 
   private boolean debugCookies;
 
+  /**
+   * Mac pools keyed by the cache key of the secret key they use.
+   */
+  private final ConcurrentMap<String, MacPool> macPools = new ConcurrentHashMap<String, MacPool>();
+
+  /**
+   * Cookie values that have been verified, keyed by the value. Every authenticated
+   * request reads this, so it takes no lock; when it grows past the limit, one thread at a
+   * time drops the least recently used values.
+   */
+  private final ConcurrentMap<String, VerifiedCookie> verifiedCookies = new ConcurrentHashMap<String, VerifiedCookie>();
+
+  /**
+   * Set while a thread is dropping verified cookies.
+   */
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  private volatile int verifiedCookieCacheSize = DEFAULT_VERIFIED_COOKIE_CACHE_SIZE;
+
   /**
    * @throws NoSuchAlgorithmException
    * @throws InvalidKeyException
@@ -273,6 +404,17 @@ public class TokenStore {
     this.debugCookies = debugCookies;
   }
 
+  /**
+   * @param verifiedCookieCacheSize
+   *          the number of verified cookie values to remember, 0 to check every cookie.
+   */
+  public void setVerifiedCookieCacheSize(int verifiedCookieCacheSize) {
+    this.verifiedCookieCacheSize = verifiedCookieCacheSize;
+    if (verifiedCookieCacheSize <= 0) {
+      verifiedCookies.clear();
+    }
+  }
+
   /**
    * Initialise the token store.
    *
@@ -329,6 +471,9 @@ public class TokenStore {
       }
       getServerKeyCache().put(getCacheKey(serverId, nextToken),
           expiringSecretKey.getSecretKeyData());
+      // anything signed with the key being replaced is no longer valid here.
+      macPools.remove(getCacheKey(serverId, nextToken));
+      evictVerifiedCookies(serverId, nextToken);
       secretKeyId = nextToken;
       saveLocalSecretKeys();
     }
@@ -364,7 +509,8 @@ public class TokenStore {
    * @return
    */
   private Cache<ExpiringSecretKeyData> getServerKeyCache() {
-    return cacheManager.getCache(this.getClass().getName(), CacheScope.CLUSTERREPLICATED);
+    return cacheManager.getCache(this.getClass().getName(), CacheScope.CLUSTERREPLICATED,
+        ExpiringSecretKeyData.class);
   }
 
   /**
@@ -514,6 +660,173 @@ public class TokenStore {
     return null;
   }
 
+  /**
+   * Calculate the HMAC of a cookie payload, using a pooled Mac for the key.
+   *
+   * @param serverId
+   *          the server that owns the key
+   * @param keyNumber
+   *          the key number
+   * @param expiringSecretKey
+   *          the key
+   * @param payload
+   *          the cookie payload
+   * @return the HMAC
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   * @throws UnsupportedEncodingException
+   */
+  private byte[] hmac(String serverId, int keyNumber, ExpiringSecretKey expiringSecretKey,
+      String payload) throws NoSuchAlgorithmException, InvalidKeyException,
+      UnsupportedEncodingException {
+    String cacheKey = getCacheKey(serverId, keyNumber);
+    MacPool pool = macPools.get(cacheKey);
+    if (pool == null || !pool.isFor(expiringSecretKey)) {
+      pool = new MacPool(expiringSecretKey);
+      macPools.put(cacheKey, pool);
+    }
+    Mac m = pool.borrow();
+    try {
+      return m.doFinal(payload.getBytes(UTF_8));
+    } finally {
+      pool.release(m);
+    }
+  }
+
+  /**
+   * @return true if the key is the one given as a secret key and its encoded form.
+   */
+  private static boolean isSameKey(SecretKey secretKey, byte[] encoded,
+      ExpiringSecretKey expiringSecretKey) {
+    return secretKey == expiringSecretKey.getSecretKey()
+        || Arrays.equals(encoded, expiringSecretKey.getSecretKeyData().getEncoded());
+  }
+
+  /**
+   * Get a verified cookie value, if it has not expired and the key it was verified with
+   * is still the key for its server and key number. Keys are replaced in place in the
+   * ring buffer, here and on other servers in the cluster.
+   *
+   * @param value
+   * @return the verified cookie, or null if the value has to be checked.
+   */
+  private VerifiedCookie getVerifiedCookie(String value) {
+    VerifiedCookie verified = verifiedCookies.get(value);
+    if (verified == null) {
+      return null;
+    }
+    if (System.currentTimeMillis() < verified.expires) {
+      ExpiringSecretKey current = getSecretKey(verified.serverId, verified.secretKeyId);
+      if (current != null && isSameKey(verified.secretKey, verified.encoded, current)) {
+        verified.lastUsed = System.nanoTime();
+        return verified;
+      }
+    }
+    verifiedCookies.remove(value, verified);
+    return null;
+  }
+
+  /**
+   * Remember a verified cookie value, dropping the least recently used values when the
+   * cache is full.
+   *
+   * @param value
+   * @param verified
+   */
+  private void cacheVerifiedCookie(String value, VerifiedCookie verified) {
+    int limit = verifiedCookieCacheSize;
+    if (limit <= 0) {
+      return;
+    }
+    verifiedCookies.put(value, verified);
+    if (verifiedCookies.size() > limit && evicting.compareAndSet(false, true)) {
+      try {
+        evictLeastRecentlyUsed(limit);
+      } finally {
+        evicting.set(false);
+      }
+    }
+  }
+
+  /**
+   * Drop expired values, then the least recently used values, so that a tenth of the
+   * limit is free and the next puts don't each have to scan the cache. Values used while
+   * this runs may be dropped, and will be checked again on their next use.
+   *
+   * @param limit
+   */
+  private void evictLeastRecentlyUsed(int limit) {
+    long now = System.currentTimeMillis();
+    for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+      if (i.next().expires <= now) {
+        i.remove();
+      }
+    }
+    int excess = verifiedCookies.size() - (limit - limit / 10);
+    if (excess <= 0) {
+      return;
+    }
+    long[] used = new long[verifiedCookies.size()];
+    int n = 0;
+    for (VerifiedCookie verified : verifiedCookies.values()) {
+      if (n == used.length) {
+        break;
+      }
+      used[n++] = verified.lastUsed;
+    }
+    if (n == 0) {
+      return;
+    }
+    Arrays.sort(used, 0, n);
+    long cutoff = used[Math.min(excess, n) - 1];
+    for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+      if (i.next().lastUsed <= cutoff) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * Forget the verified cookies that were signed with a key.
+   *
+   * @param serverId
+   * @param keyNumber
+   */
+  private void evictVerifiedCookies(String serverId, int keyNumber) {
+    for (Iterator<VerifiedCookie> i = verifiedCookies.values().iterator(); i.hasNext();) {
+      VerifiedCookie verified = i.next();
+      if (verified.secretKeyId == keyNumber && serverId.equals(verified.serverId)) {
+        i.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the number of verified cookie values remembered.
+   */
+  int getVerifiedCookieCount() {
+    return verifiedCookies.size();
+  }
+
+  /**
+   * Compare two strings in a time that depends only on their length, so that a caller
+   * can't learn how much of a guessed HMAC was right.
+   *
+   * @param a
+   * @param b
+   * @return true if the strings are equal.
+   */
+  static boolean constantTimeEquals(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    int result = 0;
+    for (int i = 0; i < a.length(); i++) {
+      result |= a.charAt(i) ^ b.charAt(i);
+    }
+    return result == 0;
+  }
+
   /**
    * @return
    */
@@ -538,7 +851,7 @@ public class TokenStore {
    * @return
    */
   private String encodeField(byte[] field) {
-    String escapedField = new Base64(0, new byte[0], true).encodeToString(field);
+    String escapedField = BASE64.get().encodeToString(field);
     return escapedField;
   }
 
@@ -550,7 +863,7 @@ public class TokenStore {
    * @throws UnsupportedEncodingException
    */
   private String decodeField(String field) throws UnsupportedEncodingException {
-    byte[] fieldUtf8 = new Base64(0, new byte[0], true).decode(field);
+    byte[] fieldUtf8 = BASE64.get().decode(field);
     String unescapedField = new String(fieldUtf8, CharEncoding.UTF_8);
     return unescapedField;
   }
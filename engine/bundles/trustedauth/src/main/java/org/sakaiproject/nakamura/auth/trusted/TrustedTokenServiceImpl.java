@@ -116,6 +116,10 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
   @Property(boolValue=false )
   public static final String DEBUG_COOKIES = "sakai.auth.trusted.token.debugcookies";
 
+  /** The number of verified cookie values to remember, 0 disables the cache. */
+  @Property(intValue = TokenStore.DEFAULT_VERIFIED_COOKIE_CACHE_SIZE)
+  public static final String VERIFIED_COOKIE_CACHE_SIZE = "sakai.auth.trusted.token.verifiedcachesize";
+
   /**
    * the name of the header to be trusted, if null or "" then don't trust headers.
    */
@@ -218,6 +222,8 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
     trustedTokenEnabled = (Boolean) props.get(SERVER_TOKEN_ENABLED);
     debugCookies = (Boolean) props.get(DEBUG_COOKIES);
     tokenStore.setDebugCookies(debugCookies);
+    tokenStore.setVerifiedCookieCacheSize(OsgiUtil.toInteger(
+        props.get(VERIFIED_COOKIE_CACHE_SIZE), TokenStore.DEFAULT_VERIFIED_COOKIE_CACHE_SIZE));
     String safeHostsAddr = OsgiUtil.toString(props.get(SERVER_TOKEN_SAFE_HOSTS_ADDR), "");
     safeHostAddrSet.clear();
     if ( safeHostsAddr != null) {
@@ -74,6 +74,18 @@ public class LocalCache<T>  implements Cache<Object> {
     m.remove(key);
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.memory.Cache#listChildren(java.lang.String)
+   */
+  public List<String> listChildren(String key) {
+    List<String> children = new ArrayList<String>();
+    if (m.containsKey(key)) {
+      children.add(key);
+    }
+    return children;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.memory.Cache#clear()
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.SecureRandom;
+import java.util.concurrent.CountDownLatch;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures cookie decoding, the work done by the trusted authentication handler on every
+ * request, comparing the decode before the Mac pool and verified cookie cache with the
+ * decode now, with and without the cache. Not part of the normal test run, run with
+ * <code>mvn test -Dtest=TokenStoreBenchmark</code>. Thread counts and decodes per thread
+ * can be changed with <code>-Dbenchmark.threads=1,8,32</code> and
+ * <code>-Dbenchmark.decodes=200000</code>.
+ */
+public class TokenStoreBenchmark {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TokenStoreBenchmark.class);
+  private static final String SERVER_ID = "serverID";
+  private static final int USERS = 1000;
+
+  private interface Decoder {
+    String decode(String value) throws Exception;
+  }
+
+  private TokenStore tokenStore;
+  private SecretKey secretKey;
+  private String[] cookies = new String[USERS];
+
+  @Before
+  public void before() throws Exception {
+    // Write a key store with a known key, so the old decode can be run against it.
+    byte[] key = new byte[20];
+    new SecureRandom().nextBytes(key);
+    secretKey = new SecretKeySpec(key, "HmacSHA1");
+    File tokenFile = new File("target/token-store-benchmark.bin");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(tokenFile));
+    long now = System.currentTimeMillis();
+    out.writeInt(0);
+    out.writeLong(now + 3600000L);
+    out.writeInt(1);
+    out.writeLong(now + 7200000L);
+    out.writeUTF(SERVER_ID);
+    out.writeInt(key.length);
+    out.write(key);
+    for (int i = 1; i < 5; i++) {
+      out.writeInt(0);
+    }
+    out.close();
+
+    CacheManagerService cacheManagerService = EasyMock.createMock(CacheManagerService.class);
+    Cache<Object> cache = new LocalCache<Object>();
+    EasyMock.expect(
+        cacheManagerService.getCache(TokenStore.class.getName(),
+            CacheScope.CLUSTERREPLICATED, ExpiringSecretKeyData.class)).andReturn(cache).anyTimes();
+    EasyMock.replay(cacheManagerService);
+    tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, tokenFile.getPath(), SERVER_ID, 3600000L);
+    for (int i = 0; i < USERS; i++) {
+      cookies[i] = tokenStore.getActiveToken().encode(now + 3600000L, "user" + i);
+    }
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    int decodes = Integer.getInteger("benchmark.decodes", 200000);
+    Decoder legacy = new Decoder() {
+      public String decode(String value) throws Exception {
+        return legacyDecode(value);
+      }
+    };
+    Decoder current = new Decoder() {
+      public String decode(String value) throws Exception {
+        return tokenStore.getSecureCookie().decode(value);
+      }
+    };
+    for (String t : System.getProperty("benchmark.threads", "1,8").split(",")) {
+      int threads = Integer.parseInt(t.trim());
+      // warm up each path before timing it.
+      run(legacy, 1, decodes / 10);
+      long legacyTime = run(legacy, threads, decodes);
+      tokenStore.setVerifiedCookieCacheSize(0);
+      run(current, 1, decodes / 10);
+      long pooledTime = run(current, threads, decodes);
+      tokenStore.setVerifiedCookieCacheSize(TokenStore.DEFAULT_VERIFIED_COOKIE_CACHE_SIZE);
+      run(current, 1, decodes / 10);
+      long cachedTime = run(current, threads, decodes);
+      long total = (long) threads * decodes;
+      LOGGER.info(
+          "{} threads: old {} decodes/s, pooled Mac {} decodes/s, verified cache {} decodes/s",
+          new Object[] { threads, total * 1000000000L / legacyTime,
+              total * 1000000000L / pooledTime, total * 1000000000L / cachedTime });
+    }
+  }
+
+  /**
+   * @return the wall clock time, in ns, for each of the threads to decode the cookies
+   *         the number of times given.
+   */
+  private long run(final Decoder decoder, int threads, final int decodes)
+      throws InterruptedException {
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final Exception[] failure = new Exception[1];
+    for (int t = 0; t < threads; t++) {
+      final int offset = t * 31;
+      new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < decodes; i++) {
+              int n = (i + offset) % USERS;
+              if (!("user" + n).equals(decoder.decode(cookies[n]))) {
+                throw new IllegalStateException("Decoded the wrong user");
+              }
+            }
+          } catch (Exception e) {
+            failure[0] = e;
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    long time = System.nanoTime() - begin;
+    assertEquals(null, failure[0]);
+    return time;
+  }
+
+  /**
+   * SecureCookie.decode before the Mac pool and the verified cookie cache.
+   */
+  private String legacyDecode(String value) throws Exception {
+    String[] parts = StringUtils.split(value, "@");
+    long cookieTime = Long.parseLong(parts[1].substring(1));
+    if (System.currentTimeMillis() >= cookieTime) {
+      throw new IllegalStateException("Expired");
+    }
+    int keyId = Integer.parseInt(parts[1].substring(0, 1));
+    String userId = new String(new Base64(0, new byte[0], true).decode(parts[2]), "UTF-8");
+    String payload = String.valueOf(keyId) + String.valueOf(cookieTime) + "@"
+        + new Base64(0, new byte[0], true).encodeToString(userId.getBytes("UTF-8")) + "@"
+        + parts[3];
+    Mac m = Mac.getInstance("HmacSHA1");
+    m.init(secretKey);
+    m.update(payload.getBytes("UTF-8"));
+    String hmac = new Base64(0, new byte[0], true).encodeToString(m.doFinal()) + "@"
+        + payload;
+    if (!value.equals(hmac)) {
+      throw new IllegalStateException("Invalid");
+    }
+    return userId;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookie;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookieException;
+
+/**
+ *
+ */
+public class TokenStoreTest {
+
+  private TokenStore tokenStore;
+  private CacheManagerService cacheManagerService;
+
+  @Before
+  public void before() throws Exception {
+    cacheManagerService = EasyMock.createMock(CacheManagerService.class);
+    Cache<Object> cache = new LocalCache<Object>();
+    EasyMock.expect(
+        cacheManagerService.getCache(TokenStore.class.getName(),
+            CacheScope.CLUSTERREPLICATED, ExpiringSecretKeyData.class)).andReturn(cache).anyTimes();
+    EasyMock.replay(cacheManagerService);
+    tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, "target/token-store-test.bin", "serverID",
+        1200000L);
+  }
+
+  private String encode(String userId) throws Exception {
+    return tokenStore.getActiveToken().encode(System.currentTimeMillis() + 60000L, userId);
+  }
+
+  @Test
+  public void testDecodeIsCached() throws Exception {
+    String cookie = encode("ieb");
+    assertEquals(0, tokenStore.getVerifiedCookieCount());
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    assertEquals(1, tokenStore.getVerifiedCookieCount());
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    assertEquals(1, tokenStore.getVerifiedCookieCount());
+  }
+
+  @Test
+  public void testCacheDisabled() throws Exception {
+    tokenStore.setVerifiedCookieCacheSize(0);
+    String cookie = encode("ieb");
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    assertEquals(0, tokenStore.getVerifiedCookieCount());
+  }
+
+  @Test
+  public void testCacheBounded() throws Exception {
+    tokenStore.setVerifiedCookieCacheSize(2);
+    for (int i = 0; i < 5; i++) {
+      String user = "user" + i;
+      assertEquals(user, tokenStore.getSecureCookie().decode(encode(user)));
+    }
+    assertEquals(2, tokenStore.getVerifiedCookieCount());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsDropped() throws Exception {
+    tokenStore.setVerifiedCookieCacheSize(2);
+    String kept = encode("kept");
+    String dropped = encode("dropped");
+    tokenStore.getSecureCookie().decode(kept);
+    tokenStore.getSecureCookie().decode(dropped);
+    tokenStore.getSecureCookie().decode(kept);
+    tokenStore.getSecureCookie().decode(encode("new"));
+    assertEquals(2, tokenStore.getVerifiedCookieCount());
+
+    // only the dropped cookie has to be checked again.
+    tokenStore.setVerifiedCookieCacheSize(3);
+    tokenStore.getSecureCookie().decode(kept);
+    assertEquals(2, tokenStore.getVerifiedCookieCount());
+    tokenStore.getSecureCookie().decode(dropped);
+    assertEquals(3, tokenStore.getVerifiedCookieCount());
+  }
+
+  @Test
+  public void testEvictionLeavesRoom() throws Exception {
+    tokenStore.setVerifiedCookieCacheSize(20);
+    for (int i = 0; i < 20; i++) {
+      tokenStore.getSecureCookie().decode(encode("user" + i));
+    }
+    assertEquals(20, tokenStore.getVerifiedCookieCount());
+    // going over the limit frees a tenth of it, so the next puts don't scan again.
+    tokenStore.getSecureCookie().decode(encode("user20"));
+    assertEquals(18, tokenStore.getVerifiedCookieCount());
+    tokenStore.getSecureCookie().decode(encode("user21"));
+    assertEquals(19, tokenStore.getVerifiedCookieCount());
+  }
+
+  @Test
+  public void testReplacedKeyIsNotTrusted() throws Exception {
+    // keys are replaced every ttl / 2 and reused around a ring of 5.
+    tokenStore = new TokenStore();
+    tokenStore.doInit(cacheManagerService, "target/token-store-rotate-test.bin",
+        "serverID", 2L);
+    String cookie = encode("ieb");
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    for (int i = 0; i < 5; i++) {
+      Thread.sleep(5);
+      tokenStore.getActiveToken();
+    }
+    assertRejected(cookie);
+  }
+
+  @Test
+  public void testTamperedCookie() throws Exception {
+    String cookie = encode("ieb");
+    int at = cookie.indexOf('@');
+    char c = cookie.charAt(at - 1);
+    String badHmac = cookie.substring(0, at - 1) + (c == 'A' ? 'B' : 'A')
+        + cookie.substring(at);
+    assertRejected(badHmac);
+
+    // a different user with the original HMAC
+    String[] parts = cookie.split("@");
+    String otherUser = parts[0] + "@" + parts[1] + "@"
+        + encode("admin").split("@")[2] + "@" + parts[3];
+    assertRejected(otherUser);
+
+    // an extra separator does not change the parsed parts, but is not the cookie signed
+    assertRejected(parts[0] + "@@" + parts[1] + "@" + parts[2] + "@" + parts[3]);
+
+    // the good cookie is still good, and rejected cookies were not remembered
+    assertEquals("ieb", tokenStore.getSecureCookie().decode(cookie));
+    assertEquals(1, tokenStore.getVerifiedCookieCount());
+  }
+
+  @Test
+  public void testConstantTimeEquals() {
+    assertTrue(TokenStore.constantTimeEquals("", ""));
+    assertTrue(TokenStore.constantTimeEquals("abc", "abc"));
+    assertFalse(TokenStore.constantTimeEquals("abc", "abd"));
+    assertFalse(TokenStore.constantTimeEquals("abc", "ab"));
+  }
+
+  private void assertRejected(String cookie) {
+    SecureCookie secureCookie = tokenStore.getSecureCookie();
+    try {
+      secureCookie.decode(cookie);
+      fail("Cookie should have been rejected " + cookie);
+    } catch (SecureCookieException e) {
+      // expected
+    }
+  }
+}
@@ -70,7 +70,7 @@ public class TrustedAuthenticationHandlerTest {
     EventAdmin eventAdmin = createMock(EventAdmin.class);
 
     Cache<Object> cache = new LocalCache<Object>();
-    EasyMock.expect(cacheManagerService.getCache(TokenStore.class.getName(), CacheScope.CLUSTERREPLICATED)).andReturn(cache).anyTimes();
+    EasyMock.expect(cacheManagerService.getCache(TokenStore.class.getName(), CacheScope.CLUSTERREPLICATED, ExpiringSecretKeyData.class)).andReturn(cache).anyTimes();
     EasyMock.expect(clusterTrackingService.getCurrentServerId()).andReturn("serverID").anyTimes();
     eventAdmin.sendEvent((Event) EasyMock.anyObject());
     EasyMock.expectLastCall().anyTimes();
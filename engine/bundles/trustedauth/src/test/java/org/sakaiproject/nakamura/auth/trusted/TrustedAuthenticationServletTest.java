@@ -57,7 +57,7 @@ public class TrustedAuthenticationServletTest {
     CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
 
     Cache<Object> cache = new LocalCache<Object>();
-    EasyMock.expect(cacheManagerService.getCache(TokenStore.class.getName(), CacheScope.CLUSTERREPLICATED)).andReturn(cache).anyTimes();
+    EasyMock.expect(cacheManagerService.getCache(TokenStore.class.getName(), CacheScope.CLUSTERREPLICATED, ExpiringSecretKeyData.class)).andReturn(cache).anyTimes();
     EasyMock.expect(clusterTrackingService.getCurrentServerId()).andReturn("serverID").anyTimes();
     trustedTokenService.clusterTrackingService = clusterTrackingService;
     trustedTokenService.cacheManager = cacheManagerService;
@@ -243,10 +243,10 @@ public class UpdateSakaiGroupServlet extends AbstractSakaiGroupPostServlet {
         Dictionary<String, String> properties = new Hashtable<String, String>();
         properties.put(UserConstants.EVENT_PROP_USERID, authorizable.getID());
         EventUtils
-            .sendOsgiEvent(properties, UserConstants.TOPIC_GROUP_CREATED, eventAdmin);
+            .sendOsgiEvent(properties, UserConstants.TOPIC_GROUP_UPDATE, eventAdmin);
       } catch (Exception e) {
         // Trap all exception so we don't disrupt the normal behaviour.
-        LOGGER.error("Failed to launch an OSGi event for creating a user.", e);
+        LOGGER.error("Failed to launch an OSGi event for updating a group.", e);
       }
 
     } catch (Throwable t) {
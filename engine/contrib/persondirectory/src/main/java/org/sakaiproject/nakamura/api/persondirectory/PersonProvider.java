@@ -16,6 +16,7 @@
  */
 package org.sakaiproject.nakamura.api.persondirectory;
 
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.Node;
@@ -34,4 +35,16 @@ public interface PersonProvider {
    *         found.
    */
   Map<String, Object> getProfileSection(Node parameters) throws PersonProviderException;
+
+  /**
+   * Get the sections of attributes for a number of people at once, so that a provider
+   * can look them up together rather than one at a time.
+   *
+   * @param parameters
+   *          The section nodes being accessed.
+   * @return The attributes found for each section node, empty for people that are not
+   *         found. Nodes for which no person can be identified may be left out.
+   */
+  Map<Node, Map<String, Object>> getProfileSections(List<Node> parameters)
+      throws PersonProviderException;
 }
@@ -21,16 +21,31 @@ import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 
 /**
  * Person provider implementation that gets its information from an LDAP store.
+ *
+ * The attributes found for a person are cached for a while, concurrent lookups of the
+ * same person share one search, and lookups of a number of people are made with one
+ * search per batch of ids.
  */
 @Component(metatype = true, configurationFactory = true, policy = ConfigurationPolicy.REQUIRE)
 @Service
@@ -48,6 +63,14 @@ public class LdapPersonProvider implements PersonProvider {
 
   public static final String SEPARATOR = "=>";
 
+  /** Finds the attribute that the filter pattern matches the user id against. */
+  private static final Pattern ID_ATTRIBUTE = Pattern
+      .compile("([A-Za-z][A-Za-z0-9\\-;]*)\\s*=\\s*\\{\\}");
+
+  static final int DEFAULT_CACHE_SIZE = 1000;
+  static final long DEFAULT_CACHE_TTL = 300000L;
+  static final int DEFAULT_BATCH_SIZE = 50;
+
   @Property(value = "o=sakai")
   protected static final String BASE_DN = "sakai.pd.ldap.baseDn.pattern";
   private String baseDn;
@@ -55,14 +78,74 @@ public class LdapPersonProvider implements PersonProvider {
   @Property(value = "uid={}")
   protected static final String PROP_FILTER_PATTERN = "sakai.pd.ldap.filter.pattern";
   private String filterPattern;
+  /**
+   * The attribute holding the user id, null if it can not be told from the filter
+   * pattern, in which case people are looked up one search at a time.
+   */
+  private String idAttribute;
 
   @Property(cardinality = 2147483647)
   protected static final String PROP_ATTRIBUTES_MAP = "sakai.pd.ldap.attributes.map";
   private HashMap<String, String> attrsMap = new HashMap<String, String>();
 
+  /** The most people to hold in the cache, 0 disables the cache. */
+  @Property(intValue = DEFAULT_CACHE_SIZE)
+  protected static final String PROP_CACHE_SIZE = "sakai.pd.ldap.cache.size";
+
+  /** How long the attributes of a person are held, in ms. */
+  @Property(longValue = DEFAULT_CACHE_TTL)
+  protected static final String PROP_CACHE_TTL = "sakai.pd.ldap.cache.ttl";
+  private PersonCache cache = new PersonCache(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL);
+
+  /** The most user ids to put in one search filter. */
+  @Property(intValue = DEFAULT_BATCH_SIZE)
+  protected static final String PROP_BATCH_SIZE = "sakai.pd.ldap.batch.size";
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  /**
+   * Lookups in progress, by user id.
+   */
+  private ConcurrentMap<String, PendingLookup> pending = new ConcurrentHashMap<String, PendingLookup>();
+
   @Reference
   private LdapConnectionManager connMgr;
 
+  /**
+   * A lookup of one person that other threads can wait for.
+   */
+  private static class PendingLookup {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Map<String, Object> person;
+    private LDAPException failure;
+
+    void found(Map<String, Object> person) {
+      this.person = person;
+      done.countDown();
+    }
+
+    void failed(LDAPException failure) {
+      this.failure = failure;
+      done.countDown();
+    }
+
+    boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    Map<String, Object> get() throws PersonProviderException {
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new PersonProviderException("Interrupted waiting for a person lookup", e);
+      }
+      if (failure != null) {
+        throw new PersonProviderException(failure.getMessage(), failure);
+      }
+      return person;
+    }
+  }
+
   /**
    * Default constructor.
    */
@@ -105,10 +188,19 @@ public class LdapPersonProvider implements PersonProvider {
       attrsMap = new HashMap<String, String>();
     }
 
-    // create an attribute array for looking things up
-    Set<String> attrKeys = attrsMap.keySet();
-    String[] attrs = new String[attrKeys.size()];
-    attrKeys.toArray(attrs);
+    // the id attribute can only be told from a pattern that uses the id once.
+    idAttribute = null;
+    if (filterPattern.indexOf("{}") == filterPattern.lastIndexOf("{}")) {
+      Matcher m = ID_ATTRIBUTE.matcher(filterPattern);
+      if (m.find()) {
+        idAttribute = m.group(1);
+      }
+    }
+
+    cache = new PersonCache(OsgiUtil.toInteger(props.get(PROP_CACHE_SIZE),
+        DEFAULT_CACHE_SIZE), OsgiUtil.toLong(props.get(PROP_CACHE_TTL), DEFAULT_CACHE_TTL));
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(PROP_BATCH_SIZE),
+        DEFAULT_BATCH_SIZE));
   }
 
   protected Map<String, String> getAttributesMap() {
@@ -118,53 +210,264 @@ public class LdapPersonProvider implements PersonProvider {
   public Map<String, Object> getProfileSection(Node parameters)
       throws PersonProviderException {
     try {
-      HashMap<String, Object> person = new HashMap<String, Object>();
-
       // get the user ID
       String uid = findUserId(parameters);
+      List<String> uids = new ArrayList<String>();
+      uids.add(uid);
+      return getPeople(uids).get(uid);
+    } catch (RepositoryException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Nodes for which no user id can be found are left out.
+   *
+   * @see org.sakaiproject.nakamura.api.persondirectory.PersonProvider#getProfileSections(java.util.List)
+   */
+  public Map<Node, Map<String, Object>> getProfileSections(List<Node> parameters)
+      throws PersonProviderException {
+    Map<Node, String> uids = new LinkedHashMap<Node, String>();
+    for (Node node : parameters) {
+      try {
+        uids.put(node, findUserId(node));
+      } catch (RepositoryException e) {
+        LOG.debug("No user id for {}: {}", node, e.getMessage());
+      } catch (PersonProviderException e) {
+        LOG.debug("No user id for {}: {}", node, e.getMessage());
+      }
+    }
+    Map<String, Map<String, Object>> people = getPeople(uids.values());
+    Map<Node, Map<String, Object>> sections = new HashMap<Node, Map<String, Object>>();
+    for (Entry<Node, String> e : uids.entrySet()) {
+      sections.put(e.getKey(), new HashMap<String, Object>(people.get(e.getValue())));
+    }
+    return sections;
+  }
 
-      // set the properties
-      String filter = filterPattern.replace("{}", uid);
-
-      String[] attributes = attrsMap.keySet().toArray(new String[]{});
-
-      LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
-          new Object[] { baseDn, filter, attributes });
-
-      // get a connection bound to the application user
-      LDAPConnection conn = connMgr.getBoundConnection(null, null);
-      LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-          filter, attributes, false);
-      if (searchResults.hasMore()) {
-        // pick off the first result returned
-        LDAPEntry entry = searchResults.next();
-
-        // get the attributes from the entry and loop through them
-        LDAPAttributeSet attrs = entry.getAttributeSet();
-        Iterator<?> attrIter = attrs.iterator();
-        while (attrIter.hasNext()) {
-          // get the key and values from the attribute
-          LDAPAttribute attr = (LDAPAttribute) attrIter.next();
-          String name = attr.getName();
-          String[] vals = attr.getStringValueArray();
-
-          // check for an aliased name
-          String mappingName = attrsMap.get(name);
-
-          // add the values under the appropriate key
-          if (vals.length == 1) {
-            person.put(mappingName, vals[0]);
-          } else if (vals.length > 1) {
-            person.put(mappingName, vals);
+  /**
+   * Looks people up, from the cache where possible. People that another thread is
+   * looking up already are waited for, the rest are searched for in batches.
+   *
+   * @param uids
+   *          the user ids of the people.
+   * @return the attributes of each person by user id, empty for people that were not
+   *         found.
+   * @throws PersonProviderException
+   */
+  Map<String, Map<String, Object>> getPeople(Collection<String> uids)
+      throws PersonProviderException {
+    Map<String, Map<String, Object>> people = new HashMap<String, Map<String, Object>>();
+    Map<String, PendingLookup> claimed = new LinkedHashMap<String, PendingLookup>();
+    Map<String, PendingLookup> waiting = new HashMap<String, PendingLookup>();
+    for (String uid : new LinkedHashSet<String>(uids)) {
+      Map<String, Object> person = cache.get(uid);
+      if (person != null) {
+        people.put(uid, new HashMap<String, Object>(person));
+        continue;
+      }
+      PendingLookup lookup = new PendingLookup();
+      PendingLookup other = pending.putIfAbsent(uid, lookup);
+      if (other == null) {
+        claimed.put(uid, lookup);
+      } else {
+        waiting.put(uid, other);
+      }
+    }
+
+    // look up the people this thread claimed before waiting for anyone else.
+    if (!claimed.isEmpty()) {
+      try {
+        Map<String, Map<String, Object>> found = searchDirectory(claimed.keySet());
+        for (Entry<String, PendingLookup> e : claimed.entrySet()) {
+          Map<String, Object> person = found.get(e.getKey());
+          if (person == null) {
+            person = new HashMap<String, Object>();
           }
+          cache.put(e.getKey(), person);
+          e.getValue().found(person);
+          people.put(e.getKey(), new HashMap<String, Object>(person));
+        }
+      } catch (LDAPException e) {
+        for (PendingLookup lookup : claimed.values()) {
+          lookup.failed(e);
+        }
+        throw new PersonProviderException(e.getMessage(), e);
+      } finally {
+        for (Entry<String, PendingLookup> e : claimed.entrySet()) {
+          if (!e.getValue().isDone()) {
+            e.getValue().failed(new LDAPException());
+          }
+          pending.remove(e.getKey(), e.getValue());
         }
       }
-      return person;
-    } catch (LDAPException e) {
-      throw new PersonProviderException(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      throw new PersonProviderException(e.getMessage(), e);
     }
+
+    for (Entry<String, PendingLookup> e : waiting.entrySet()) {
+      people.put(e.getKey(), new HashMap<String, Object>(e.getValue().get()));
+    }
+    return people;
+  }
+
+  /**
+   * Searches the directory for people, on one connection.
+   *
+   * @param uids
+   *          the user ids of the people.
+   * @return the attributes of the people found, by user id.
+   * @throws LDAPException
+   */
+  private Map<String, Map<String, Object>> searchDirectory(Set<String> uids)
+      throws LDAPException {
+    Map<String, Map<String, Object>> people = new HashMap<String, Map<String, Object>>();
+    // get a connection bound to the application user
+    LDAPConnection conn = connMgr.getBoundConnection(null, null);
+    try {
+      if (idAttribute == null || uids.size() == 1) {
+        for (String uid : uids) {
+          people.put(uid, searchPerson(conn, uid));
+        }
+      } else {
+        List<String> batch = new ArrayList<String>();
+        for (Iterator<String> i = uids.iterator(); i.hasNext();) {
+          batch.add(i.next());
+          if (batch.size() == batchSize || !i.hasNext()) {
+            searchPeople(conn, batch, people);
+            batch.clear();
+          }
+        }
+      }
+    } finally {
+      connMgr.returnConnection(conn);
+    }
+    return people;
+  }
+
+  /**
+   * @return the attributes of the first entry the filter finds for the user id, empty if
+   *         none.
+   */
+  private Map<String, Object> searchPerson(LDAPConnection conn, String uid)
+      throws LDAPException {
+    String filter = filterPattern.replace("{}", escapeFilterValue(uid));
+    String[] attributes = attrsMap.keySet().toArray(new String[] {});
+
+    LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, attributes });
+
+    LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+        filter, attributes, false);
+    HashMap<String, Object> person = new HashMap<String, Object>();
+    if (searchResults.hasMore()) {
+      // pick off the first result returned
+      addAttributes(searchResults.next(), person);
+    }
+    return person;
+  }
+
+  /**
+   * Looks a batch of people up with one search, matching each entry back to the user id
+   * through the id attribute.
+   */
+  private void searchPeople(LDAPConnection conn, List<String> uids,
+      Map<String, Map<String, Object>> people) throws LDAPException {
+    StringBuilder filter = new StringBuilder("(|");
+    Map<String, String> requested = new HashMap<String, String>();
+    for (String uid : uids) {
+      String term = filterPattern.replace("{}", escapeFilterValue(uid));
+      if (!term.startsWith("(")) {
+        term = "(" + term + ")";
+      }
+      filter.append(term);
+      requested.put(uid.toLowerCase(), uid);
+    }
+    filter.append(")");
+    Set<String> attributeNames = new LinkedHashSet<String>(attrsMap.keySet());
+    attributeNames.add(idAttribute);
+    String[] attributes = attributeNames.toArray(new String[attributeNames.size()]);
+
+    LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, attributes });
+
+    LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+        filter.toString(), attributes, false);
+    while (searchResults.hasMore()) {
+      LDAPEntry entry = searchResults.next();
+      LDAPAttribute id = entry.getAttribute(idAttribute);
+      if (id == null) {
+        continue;
+      }
+      for (String value : id.getStringValueArray()) {
+        String uid = requested.get(value.toLowerCase());
+        // like the single search, the first entry found for a user id wins.
+        if (uid != null && !people.containsKey(uid)) {
+          HashMap<String, Object> person = new HashMap<String, Object>();
+          addAttributes(entry, person);
+          people.put(uid, person);
+        }
+      }
+    }
+  }
+
+  /**
+   * Copies the mapped attributes of an entry.
+   */
+  private void addAttributes(LDAPEntry entry, Map<String, Object> person) {
+    // get the attributes from the entry and loop through them
+    LDAPAttributeSet attrs = entry.getAttributeSet();
+    Iterator<?> attrIter = attrs.iterator();
+    while (attrIter.hasNext()) {
+      // get the key and values from the attribute
+      LDAPAttribute attr = (LDAPAttribute) attrIter.next();
+      String name = attr.getName();
+      String[] vals = attr.getStringValueArray();
+
+      // check for an aliased name
+      String mappingName = attrsMap.get(name);
+      if (mappingName == null) {
+        // the id attribute, when it was only asked for to match entries to ids.
+        continue;
+      }
+
+      // add the values under the appropriate key
+      if (vals.length == 1) {
+        person.put(mappingName, vals[0]);
+      } else if (vals.length > 1) {
+        person.put(mappingName, vals);
+      }
+    }
+  }
+
+  /**
+   * Escapes a value for use in a search filter, as described in RFC 4515.
+   */
+  static String escapeFilterValue(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+      case '\\':
+        sb.append("\\5c");
+        break;
+      case '*':
+        sb.append("\\2a");
+        break;
+      case '(':
+        sb.append("\\28");
+        break;
+      case ')':
+        sb.append("\\29");
+        break;
+      case '\0':
+        sb.append("\\00");
+        break;
+      default:
+        sb.append(c);
+      }
+    }
+    return sb.toString();
   }
 
   private String findUserId(Node node) throws RepositoryException, PersonProviderException {
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. The SF licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.sakaiproject.nakamura.persondirectory.providers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The attributes found for people, by user id, least recently used first out. Entries
+ * are dropped once they are older than the time to live. A person that was not found is
+ * held as an empty map, so repeated lookups of unknown ids do not go to the directory
+ * either.
+ */
+class PersonCache {
+
+  private static class Entry {
+    private final Map<String, Object> person;
+    private final long expires;
+
+    private Entry(Map<String, Object> person, long expires) {
+      this.person = person;
+      this.expires = expires;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> people = new LinkedHashMap<String, Entry>(16,
+      0.75f, true);
+  private final int maxEntries;
+  private final long ttl;
+
+  /**
+   * @param maxEntries
+   *          the most people to hold, 0 disables the cache.
+   * @param ttl
+   *          how long the attributes of a person are held, in ms.
+   */
+  PersonCache(int maxEntries, long ttl) {
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+  }
+
+  /**
+   * @param uid
+   * @return the attributes of the person, empty if the person was not found, or null if
+   *         the person is not held.
+   */
+  synchronized Map<String, Object> get(String uid) {
+    Entry entry = people.get(uid);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      people.remove(uid);
+      return null;
+    }
+    return entry.person;
+  }
+
+  synchronized void put(String uid, Map<String, Object> person) {
+    if (maxEntries <= 0 || ttl <= 0) {
+      return;
+    }
+    people.put(uid, new Entry(person, System.currentTimeMillis() + ttl));
+    Iterator<Entry> i = people.values().iterator();
+    while (people.size() > maxEntries && i.hasNext()) {
+      i.next();
+      i.remove();
+    }
+  }
+
+  synchronized int size() {
+    return people.size();
+  }
+
+  synchronized void clear() {
+    people.clear();
+  }
+}
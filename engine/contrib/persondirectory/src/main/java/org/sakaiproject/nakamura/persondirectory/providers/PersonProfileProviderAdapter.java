@@ -28,6 +28,7 @@ import org.sakaiproject.nakamura.api.profile.ProfileProvider;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.util.ImmediateFuture;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -59,16 +60,30 @@ public class PersonProfileProviderAdapter implements ProfileProvider {
 
     Map<Node, Future<Map<String, Object>>> resultMap = new HashMap<Node, Future<Map<String, Object>>>();
 
+    // Look everyone up at once, nodes the person provider could not answer for are
+    // looked up on their own so they get their own error.
+    List<Node> nodes = new ArrayList<Node>();
     for (ProviderSettings s : list) {
-      Node n = s.getNode();
-      try {
-        Map<String, Object> profile = personProvider.getProfileSection(n);
-        resultMap.put(n, new ImmediateFuture<Map<String, Object>>(profile));
-      } catch (PersonProviderException e) {
-        Map<String, Object> profileError = new HashMap<String, Object>();
-        profileError.put("error", e.getMessage());
-        resultMap.put(n, new ImmediateFuture<Map<String, Object>>(profileError));
+      nodes.add(s.getNode());
+    }
+    Map<Node, Map<String, Object>> profiles;
+    try {
+      profiles = personProvider.getProfileSections(nodes);
+    } catch (PersonProviderException e) {
+      profiles = new HashMap<Node, Map<String, Object>>();
+    }
+
+    for (Node n : nodes) {
+      Map<String, Object> profile = profiles.get(n);
+      if (profile == null) {
+        try {
+          profile = personProvider.getProfileSection(n);
+        } catch (PersonProviderException e) {
+          profile = new HashMap<String, Object>();
+          profile.put("error", e.getMessage());
+        }
       }
+      resultMap.put(n, new ImmediateFuture<Map<String, Object>>(profile));
     }
 
     return resultMap;
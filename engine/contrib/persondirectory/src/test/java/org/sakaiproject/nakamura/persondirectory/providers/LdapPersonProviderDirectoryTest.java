@@ -0,0 +1,166 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership. The SF licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License. You may obtain a copy of the
+ * License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.sakaiproject.nakamura.persondirectory.providers;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.novell.ldap.LDAPConnection;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the person provider against an in-process directory server.
+ */
+public class LdapPersonProviderDirectoryTest {
+
+  private InMemoryDirectoryServer server;
+  private AtomicInteger searches = new AtomicInteger();
+  private LdapConnectionManager mgr;
+  private LdapPersonProvider provider;
+
+  @Before
+  public void setUp() throws Exception {
+    InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig("o=sakai");
+    config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig("test", 0));
+    config.addInMemoryOperationInterceptor(new InMemoryOperationInterceptor() {
+      @Override
+      public void processSearchRequest(InMemoryInterceptedSearchRequest request) {
+        searches.incrementAndGet();
+      }
+    });
+    server = new InMemoryDirectoryServer(config);
+    server.add("dn: o=sakai", "objectClass: top", "objectClass: organization", "o: sakai");
+    server.add("dn: ou=people,o=sakai", "objectClass: top",
+        "objectClass: organizationalUnit", "ou: people");
+    addPerson("alice", "Alice", "Smith");
+    addPerson("bob", "Bob", "Jones");
+    addPerson("carol", "Carol", "Brown");
+    server.startListening();
+
+    final int port = server.getListenPort();
+    mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenAnswer(
+        new Answer<LDAPConnection>() {
+          public LDAPConnection answer(InvocationOnMock invocation) throws Throwable {
+            LDAPConnection conn = new LDAPConnection();
+            conn.connect("localhost", port);
+            return conn;
+          }
+        });
+    Mockito.doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        ((LDAPConnection) invocation.getArguments()[0]).disconnect();
+        return null;
+      }
+    }).when(mgr).returnConnection(any(LDAPConnection.class));
+
+    provider = new LdapPersonProvider(mgr);
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapPersonProvider.BASE_DN, "ou=people,o=sakai");
+    props.put(LdapPersonProvider.PROP_FILTER_PATTERN, "uid={}");
+    props.put(LdapPersonProvider.PROP_ATTRIBUTES_MAP, new String[] {
+        "givenName => firstName", "sn => lastName" });
+    provider.activate(props);
+    searches.set(0);
+  }
+
+  @After
+  public void tearDown() {
+    server.shutDown(true);
+  }
+
+  private void addPerson(String uid, String givenName, String sn) throws Exception {
+    server.add("dn: uid=" + uid + ",ou=people,o=sakai", "objectClass: top",
+        "objectClass: person", "objectClass: organizationalPerson",
+        "objectClass: inetOrgPerson", "uid: " + uid, "givenName: " + givenName, "sn: "
+            + sn, "cn: " + givenName + " " + sn);
+  }
+
+  @Test
+  public void testPeopleAreFoundWithOneSearch() throws Exception {
+    Map<String, Map<String, Object>> people = provider.getPeople(Arrays.asList("alice",
+        "Bob", "carol", "nobody"));
+    assertEquals(1, searches.get());
+    assertEquals(4, people.size());
+    assertEquals("Alice", people.get("alice").get("firstName"));
+    assertEquals("Jones", people.get("Bob").get("lastName"));
+    assertEquals("Brown", people.get("carol").get("lastName"));
+    assertTrue(people.get("nobody").isEmpty());
+    // the id attribute is only used to match entries, it is not mapped.
+    assertEquals(2, people.get("alice").size());
+  }
+
+  @Test
+  public void testBatchesAreSplit() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapPersonProvider.BASE_DN, "ou=people,o=sakai");
+    props.put(LdapPersonProvider.PROP_FILTER_PATTERN, "(&(objectClass=person)(uid={}))");
+    props.put(LdapPersonProvider.PROP_ATTRIBUTES_MAP, new String[] { "sn" });
+    props.put(LdapPersonProvider.PROP_BATCH_SIZE, 2);
+    provider.activate(props);
+
+    Map<String, Map<String, Object>> people = provider.getPeople(Arrays.asList("alice",
+        "bob", "carol"));
+    assertEquals(2, searches.get());
+    assertEquals("Smith", people.get("alice").get("sn"));
+    assertEquals("Jones", people.get("bob").get("sn"));
+    assertEquals("Brown", people.get("carol").get("sn"));
+    Mockito.verify(mgr, Mockito.times(1)).getBoundConnection(anyString(), anyString());
+  }
+
+  @Test
+  public void testCachedPeopleAreNotSearchedFor() throws Exception {
+    provider.getPeople(Arrays.asList("alice", "nobody"));
+    assertEquals(1, searches.get());
+
+    Map<String, Map<String, Object>> people = provider.getPeople(Arrays.asList("alice",
+        "bob", "nobody"));
+    assertEquals(2, searches.get());
+    assertEquals("Alice", people.get("alice").get("firstName"));
+    assertEquals("Bob", people.get("bob").get("firstName"));
+    assertTrue(people.get("nobody").isEmpty());
+  }
+
+  @Test
+  public void testFilterValuesAreEscaped() throws Exception {
+    Map<String, Map<String, Object>> people = provider.getPeople(Arrays.asList("*",
+        "alice"));
+    assertTrue(people.get("*").isEmpty());
+    assertEquals("Alice", people.get("alice").get("firstName"));
+  }
+}
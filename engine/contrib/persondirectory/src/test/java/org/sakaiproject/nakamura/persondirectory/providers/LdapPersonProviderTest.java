@@ -29,6 +29,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
@@ -46,6 +47,8 @@ import org.mockito.Answers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.internal.stubbing.defaultanswers.ReturnsDeepStubs;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.osgi.service.component.ComponentException;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
@@ -55,6 +58,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -239,6 +244,86 @@ public class LdapPersonProviderTest {
     fail("Should bubble up exceptions that are thrown internally.");
   }
 
+  @Test
+  public void testLookupIsCached() throws Exception {
+    String[] attrMap = new String[] { "firstname => called", "lastname" };
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    LdapPersonProvider provider = setUpForPositiveTest(attrMap, mgr);
+    provider.getProfileSection(hasAllProperties(node, "tUser"));
+    Map<String, Object> person = provider.getProfileSection(hasAllProperties(node,
+        "tUser"));
+    assertEquals("Tester", person.get("called"));
+
+    Mockito.verify(mgr, Mockito.times(1)).getBoundConnection(anyString(), anyString());
+    Mockito.verify(mgr, Mockito.times(1)).returnConnection(any(LDAPConnection.class));
+  }
+
+  @Test
+  public void testConcurrentLookupsShareOneSearch() throws Exception {
+    final CountDownLatch searching = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final LDAPSearchResults results = mock(LDAPSearchResults.class);
+    LDAPConnection connection = mock(LDAPConnection.class);
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    when(
+        connection.search(anyString(), anyInt(), anyString(), any(String[].class),
+            anyBoolean())).thenAnswer(new Answer<LDAPSearchResults>() {
+      public LDAPSearchResults answer(InvocationOnMock invocation) throws Throwable {
+        searching.countDown();
+        release.await();
+        return results;
+      }
+    });
+
+    final LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    Map<String, Object> props = buildMap(new String[] { "firstname" });
+    // without a cache the second lookup can only avoid a search by sharing the first.
+    props.put(LdapPersonProvider.PROP_CACHE_SIZE, 0);
+    provider.activate(props);
+    final Node other = mock(Node.class, new ReturnsDeepStubs());
+    hasAllProperties(node, "tUser");
+    hasAllProperties(other, "tUser");
+
+    Thread first = new Thread() {
+      public void run() {
+        try {
+          provider.getProfileSection(node);
+        } catch (PersonProviderException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    first.start();
+    assertTrue(searching.await(5, TimeUnit.SECONDS));
+    Thread second = new Thread() {
+      public void run() {
+        try {
+          provider.getProfileSection(other);
+        } catch (PersonProviderException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    second.start();
+    for (int i = 0; i < 500 && second.getState() != Thread.State.WAITING; i++) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+    first.join(5000);
+    second.join(5000);
+    assertFalse(first.isAlive() || second.isAlive());
+
+    Mockito.verify(connection, Mockito.times(1)).search(anyString(), anyInt(),
+        anyString(), any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void testEscapeFilterValue() {
+    assertEquals("a\\2a\\28b\\29\\5c", LdapPersonProvider.escapeFilterValue("a*(b)\\"));
+    assertEquals("tUser", LdapPersonProvider.escapeFilterValue("tUser"));
+  }
+
   /**
    * Setup everything needed for a test that follows the most positive path of action.
    *
@@ -246,11 +331,15 @@ public class LdapPersonProviderTest {
    * @throws Exception
    */
   private LdapPersonProvider setUpForPositiveTest(String[] attributeMap) throws Exception {
+    return setUpForPositiveTest(attributeMap, mock(LdapConnectionManager.class));
+  }
+
+  private LdapPersonProvider setUpForPositiveTest(String[] attributeMap,
+      LdapConnectionManager mgr) throws Exception {
     LDAPConnection connection = mock(LDAPConnection.class);
     LDAPSearchResults results = mock(LDAPSearchResults.class);
     LDAPEntry entry = mock(LDAPEntry.class);
 
-    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
     when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
     when(
         connection.search(anyString(), anyInt(), anyString(), any(String[].class),
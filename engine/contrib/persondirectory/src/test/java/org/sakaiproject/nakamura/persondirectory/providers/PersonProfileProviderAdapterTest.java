@@ -44,13 +44,37 @@ public class PersonProfileProviderAdapterTest {
 
     Node node = mock(Node.class);
     when(ps1.getNode()).thenReturn(node);
-    when(personProvider.getProfileSection(node)).thenReturn(profileSection);
+    Map<Node, Map<String, Object>> sections = new HashMap<Node, Map<String, Object>>();
+    sections.put(node, profileSection);
+    when(personProvider.getProfileSections(org.mockito.Mockito.anyList())).thenReturn(
+        sections);
 
     Map<Node, Future<Map<String, Object>>> result = (Map<Node, Future<Map<String, Object>>>) pppa.getProvidedMap(list);
     Future<Map<String, Object>> fut = result.get(node);
     assertEquals(profileSection, fut.get());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testGetProvidedMapLooksUpMissingNodesAlone() throws InterruptedException,
+      ExecutionException, PersonProviderException {
+    PersonProfileProviderAdapter pppa = new PersonProfileProviderAdapter();
+    pppa.personProvider = this.personProvider;
+    ArrayList<ProviderSettings> list = new ArrayList<ProviderSettings>();
+    list.add(ps1);
+
+    Node node = mock(Node.class);
+    when(ps1.getNode()).thenReturn(node);
+    when(personProvider.getProfileSections(org.mockito.Mockito.anyList())).thenReturn(
+        new HashMap<Node, Map<String, Object>>());
+    when(personProvider.getProfileSection(node)).thenThrow(
+        new PersonProviderException("Could not retrieve userid."));
+
+    Map<Node, Future<Map<String, Object>>> result = (Map<Node, Future<Map<String, Object>>>) pppa.getProvidedMap(list);
+    assertEquals("Could not retrieve userid.", result.get(node).get().get("error"));
+  }
+
+  @SuppressWarnings("unchecked")
   @Test
   public void testGetProvidedMapHandlesException() throws PersonProviderException,
       InterruptedException, ExecutionException {
@@ -62,6 +86,8 @@ public class PersonProfileProviderAdapterTest {
     Node node = mock(Node.class);
     when(ps1.getNode()).thenReturn(node);
     String errorMessage = "Mocked error is a mock";
+    when(this.personProvider.getProfileSections(org.mockito.Mockito.anyList()))
+        .thenThrow(new PersonProviderException(errorMessage));
     when(this.personProvider.getProfileSection(org.mockito.Mockito.any(Node.class)))
         .thenThrow(
 new PersonProviderException(errorMessage));
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.jcr.base.util.AccessControlUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+
+/**
+ * Works out which of a number of users can read a path, from a single read of the
+ * access control lists that apply to the path and the group membership of each user,
+ * without creating a session for any of them.
+ *
+ * Entries are evaluated in the order the repository access control provider uses:
+ * ACLs closest to the path first, entries for users before entries for groups, and
+ * within an ACL the last entry first, except for everyone, which comes after the groups
+ * of the same ACL. The first entry that applies to a user and mentions read decides.
+ *
+ * Entries for dynamic principals and rules based entries depend on more than the
+ * membership of the user, if one of those would be reached before a decision the user
+ * is reported as undecided, and the caller should check with a session.
+ */
+public class ReadAccessEvaluator {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadAccessEvaluator.class);
+  private static final String POLICY_NODE = "rep:policy";
+  private static final String GRANT_ACE = "rep:GrantACE";
+  private static final String PRINCIPAL_NAME = "rep:principalName";
+  private static final String PRIVILEGES = "rep:privileges";
+  private static final String READ = "jcr:read";
+  private static final String ALL = "jcr:all";
+  private static final String EVERYONE = "everyone";
+  private static final String ADMIN = "admin";
+  /**
+   * The prefix of rules based principals, RulesBasedAce.SAKAI_RULES in the server
+   * bundle.
+   */
+  private static final String RULES_PREFIX = "sakai-rules:";
+  /**
+   * The property marking an authorizable as a dynamic principal,
+   * PrincipalProperties.DYNAMIC in the server bundle.
+   */
+  private static final String DYNAMIC = "dynamic";
+
+  /**
+   * An access control entry that mentions read.
+   */
+  private static class Entry {
+    private final String principalName;
+    private final boolean allow;
+    private final boolean undecidable;
+
+    private Entry(String principalName, boolean allow, boolean undecidable) {
+      this.principalName = principalName;
+      this.allow = allow;
+      this.undecidable = undecidable;
+    }
+  }
+
+  private final UserManager userManager;
+  private final String path;
+  /**
+   * The entries that mention read, in evaluation order.
+   */
+  private final List<Entry> entries = new ArrayList<Entry>();
+  /**
+   * Group principal names by group id, so each group is only resolved once.
+   */
+  private final Map<String, String> groupPrincipals = new HashMap<String, String>();
+
+  /**
+   * Read the access control lists that apply to a path.
+   *
+   * @param session
+   *          a session that can read the access control lists and users, normally an
+   *          administrative session.
+   * @param path
+   *          the path to check, if it does not exist the closest existing ancestor is
+   *          used.
+   * @throws RepositoryException
+   */
+  public ReadAccessEvaluator(Session session, String path) throws RepositoryException {
+    this.userManager = AccessControlUtil.getUserManager(session);
+    this.path = path;
+    String nodePath = path;
+    while (!"/".equals(nodePath) && !session.nodeExists(nodePath)) {
+      nodePath = PathUtils.getParentReference(nodePath);
+    }
+    List<Entry> userEntries = new ArrayList<Entry>();
+    List<Entry> groupEntries = new ArrayList<Entry>();
+    Node node = session.getNode(nodePath);
+    while (true) {
+      if (node.hasNode(POLICY_NODE)) {
+        collectEntries(node.getNode(POLICY_NODE), userEntries, groupEntries);
+      }
+      if (node.getDepth() == 0) {
+        break;
+      }
+      node = node.getParent();
+    }
+    entries.addAll(userEntries);
+    entries.addAll(groupEntries);
+  }
+
+  private void collectEntries(Node aclNode, List<Entry> userEntries,
+      List<Entry> groupEntries) throws RepositoryException {
+    int userStart = userEntries.size();
+    int groupStart = groupEntries.size();
+    for (NodeIterator ni = aclNode.getNodes(); ni.hasNext();) {
+      Node aceNode = ni.nextNode();
+      if (!aceNode.hasProperty(PRINCIPAL_NAME) || !mentionsRead(aceNode)) {
+        continue;
+      }
+      String principalName = aceNode.getProperty(PRINCIPAL_NAME).getString();
+      boolean allow = aceNode.isNodeType(GRANT_ACE);
+      if (EVERYONE.equals(principalName)) {
+        groupEntries.add(new Entry(principalName, allow, false));
+      } else if (principalName.startsWith(RULES_PREFIX)) {
+        // rules based entries can be active at some times or only in some contexts.
+        groupEntries.add(groupStart, new Entry(principalName, allow, true));
+      } else {
+        Authorizable authorizable = userManager.getAuthorizable(new NamedPrincipal(
+            principalName));
+        if (authorizable == null) {
+          // the provider ignores entries for principals it can not find.
+          LOGGER.debug("Principal {} not found, ignoring ACE {} ", principalName, aceNode
+              .getPath());
+        } else if (authorizable.isGroup()) {
+          groupEntries.add(groupStart, new Entry(principalName, allow,
+              isDynamic(authorizable)));
+        } else {
+          userEntries.add(userStart, new Entry(principalName, allow, false));
+        }
+      }
+    }
+  }
+
+  private boolean mentionsRead(Node aceNode) throws RepositoryException {
+    if (!aceNode.hasProperty(PRIVILEGES)) {
+      return false;
+    }
+    Property privileges = aceNode.getProperty(PRIVILEGES);
+    Value[] values = privileges.isMultiple() ? privileges.getValues()
+        : new Value[] { privileges.getValue() };
+    for (Value value : values) {
+      String privilege = value.getString();
+      if (READ.equals(privilege) || ALL.equals(privilege)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean isDynamic(Authorizable authorizable) throws RepositoryException {
+    if (!authorizable.hasProperty(DYNAMIC)) {
+      return false;
+    }
+    Value[] dynamic = authorizable.getProperty(DYNAMIC);
+    return dynamic != null && dynamic.length > 0 && "true".equals(dynamic[0].getString());
+  }
+
+  /**
+   * @param userId
+   *          the id of a user.
+   * @return true if the user can read the path, false if not, null if that can not be
+   *         worked out without a session for the user.
+   * @throws RepositoryException
+   */
+  public Boolean canRead(String userId) throws RepositoryException {
+    if (ADMIN.equals(userId)) {
+      // the admin principal is not subject to access control.
+      return null;
+    }
+    Authorizable authorizable = userManager.getAuthorizable(userId);
+    if (authorizable == null || authorizable.isGroup()) {
+      return false;
+    }
+    Set<String> principalNames = getPrincipalNames(authorizable);
+    for (Entry entry : entries) {
+      if (EVERYONE.equals(entry.principalName)
+          || principalNames.contains(entry.principalName)) {
+        return entry.allow;
+      }
+      if (entry.undecidable) {
+        LOGGER.debug("Read access to {} for {} depends on {} ", new Object[] { path,
+            userId, entry.principalName });
+        return null;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param userIds
+   *          the ids of a number of users.
+   * @return the result of {@link #canRead(String)} for each user, in the same order.
+   * @throws RepositoryException
+   */
+  public Map<String, Boolean> canRead(Collection<String> userIds)
+      throws RepositoryException {
+    Map<String, Boolean> result = new LinkedHashMap<String, Boolean>();
+    for (String userId : userIds) {
+      result.put(userId, canRead(userId));
+    }
+    return result;
+  }
+
+  private Set<String> getPrincipalNames(Authorizable authorizable)
+      throws RepositoryException {
+    Set<String> principalNames = new HashSet<String>();
+    principalNames.add(authorizable.getPrincipal().getName());
+    principalNames.add(EVERYONE);
+    for (Iterator<Group> groups = authorizable.memberOf(); groups.hasNext();) {
+      Group group = groups.next();
+      String principalName = groupPrincipals.get(group.getID());
+      if (principalName == null) {
+        principalName = group.getPrincipal().getName();
+        groupPrincipals.put(group.getID(), principalName);
+      }
+      principalNames.add(principalName);
+    }
+    return principalNames;
+  }
+
+  /**
+   * A principal known only by name, to look up authorizables by principal name.
+   */
+  private static class NamedPrincipal implements Principal {
+    private final String name;
+
+    private NamedPrincipal(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the internal path that an id (a user, group or pool id) resolves
+ * to, least recently used first out. Ids that do not exist can be held as not found for
+ * a short time, so that requests for made up ids do not each go to the repository. They
+ * are held apart from the paths, in a smaller map, so that a scan of made up ids does
+ * not push the paths out. The owner drops entries when an id is created or removed.
+ */
+public class ResolutionCache implements ResolutionCacheMBean {
+
+  /**
+   * Returned by {@link #get(String)} for an id that is known not to exist.
+   */
+  public static final String NOT_FOUND = new String("NOT_FOUND");
+  /**
+   * The most ids held as not found.
+   */
+  static final int MAX_NOT_FOUND = 1000;
+
+  private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(
+      16, 0.75f, true);
+  /**
+   * When each id held as not found expires, oldest first.
+   */
+  private final LinkedHashMap<String, Long> notFound = new LinkedHashMap<String, Long>();
+  private int maxEntries;
+  private long notFoundTtl;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong resolutions = new AtomicLong();
+  private final AtomicLong resolutionTime = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param maxEntries
+   *          the most ids to hold.
+   * @param notFoundTtl
+   *          how long to hold an id as not found, in ms, 0 to not hold ids that are not
+   *          found.
+   */
+  public ResolutionCache(int maxEntries, long notFoundTtl) {
+    configure(maxEntries, notFoundTtl);
+  }
+
+  public synchronized void configure(int maxEntries, long notFoundTtl) {
+    this.maxEntries = maxEntries;
+    this.notFoundTtl = notFoundTtl;
+    trim();
+  }
+
+  /**
+   * @param id
+   *          the id.
+   * @return the path the id resolves to, {@link #NOT_FOUND} if the id is known not to
+   *         exist, or null if the id has to be resolved.
+   */
+  public String get(String id) {
+    String path;
+    synchronized (this) {
+      path = entries.get(id);
+      if (path == null) {
+        Long expires = notFound.get(id);
+        if (expires != null) {
+          if (expires < System.currentTimeMillis()) {
+            notFound.remove(id);
+          } else {
+            path = NOT_FOUND;
+          }
+        }
+      }
+    }
+    if (path == null) {
+      misses.incrementAndGet();
+    } else if (path == NOT_FOUND) {
+      negativeHits.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return path;
+  }
+
+  /**
+   * Hold the path an id resolved to.
+   *
+   * @param id
+   *          the id.
+   * @param path
+   *          the path.
+   * @param time
+   *          the time taken to resolve the id, in ns.
+   */
+  public void put(String id, String path, long time) {
+    resolved(time);
+    synchronized (this) {
+      notFound.remove(id);
+      entries.put(id, path);
+      trim();
+    }
+  }
+
+  /**
+   * Hold an id as not found, if ids that are not found are held.
+   *
+   * @param id
+   *          the id.
+   * @param time
+   *          the time taken to find the id does not exist, in ns.
+   */
+  public void putNotFound(String id, long time) {
+    resolved(time);
+    synchronized (this) {
+      if (notFoundTtl > 0) {
+        long now = System.currentTimeMillis();
+        entries.remove(id);
+        // put again so that the id moves to the end, and the oldest stays first.
+        notFound.remove(id);
+        notFound.put(id, now + notFoundTtl);
+        Iterator<Long> i = notFound.values().iterator();
+        while (i.hasNext()) {
+          long expires = i.next();
+          if (notFound.size() <= MAX_NOT_FOUND && expires >= now) {
+            break;
+          }
+          i.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop an id, because it was created or removed.
+   *
+   * @param id
+   *          the id.
+   */
+  public void invalidate(String id) {
+    boolean removed;
+    synchronized (this) {
+      removed = entries.remove(id) != null;
+      removed = notFound.remove(id) != null || removed;
+    }
+    if (removed) {
+      invalidations.incrementAndGet();
+    }
+  }
+
+  private void resolved(long time) {
+    resolutions.incrementAndGet();
+    resolutionTime.addAndGet(time);
+  }
+
+  private void trim() {
+    Iterator<String> i = entries.values().iterator();
+    while (entries.size() > maxEntries && i.hasNext()) {
+      i.next();
+      i.remove();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getNegativeHits() {
+    return negativeHits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long found = hits.get() + negativeHits.get();
+    long total = found + misses.get();
+    return total == 0 ? 0.0 : (double) found / total;
+  }
+
+  public long getAverageResolutionTime() {
+    long n = resolutions.get();
+    return n == 0 ? 0 : resolutionTime.get() / n / 1000;
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  public synchronized int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public synchronized int getNotFoundEntries() {
+    return notFound.size();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    notFound.clear();
+  }
+
+  public void reset() {
+    hits.set(0);
+    negativeHits.set(0);
+    misses.set(0);
+    resolutions.set(0);
+    resolutionTime.set(0);
+    invalidations.set(0);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+/**
+ * JMX view of a {@link ResolutionCache}.
+ */
+public interface ResolutionCacheMBean {
+
+  /**
+   * @return the number of lookups that found a path.
+   */
+  long getHits();
+
+  /**
+   * @return the number of lookups that found the id is known not to exist.
+   */
+  long getNegativeHits();
+
+  /**
+   * @return the number of lookups that had to be resolved.
+   */
+  long getMisses();
+
+  /**
+   * @return the proportion of lookups answered from the cache, positive or negative.
+   */
+  double getHitRatio();
+
+  /**
+   * @return the mean time taken to resolve a miss, in microseconds.
+   */
+  long getAverageResolutionTime();
+
+  /**
+   * @return the number of entries dropped because the id changed.
+   */
+  long getInvalidations();
+
+  /**
+   * @return the number of paths held.
+   */
+  int getEntries();
+
+  /**
+   * @return the most paths held.
+   */
+  int getMaxEntries();
+
+  /**
+   * @return the number of ids held as not found.
+   */
+  int getNotFoundEntries();
+
+  /**
+   * Drop every entry.
+   */
+  void clear();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
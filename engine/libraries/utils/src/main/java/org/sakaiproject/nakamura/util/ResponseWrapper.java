@@ -20,10 +20,13 @@ package org.sakaiproject.nakamura.util;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.wrappers.SlingHttpServletResponseWrapper;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.util.Dictionary;
 import java.util.Hashtable;
@@ -32,7 +35,16 @@ import javax.servlet.ServletOutputStream;
 
 public class ResponseWrapper extends SlingHttpServletResponseWrapper {
 
-  ByteArrayOutputStream boas = new ByteArrayOutputStream();
+  /**
+   * A byte buffer that can be read back without copying its contents.
+   */
+  static class Buffer extends ByteArrayOutputStream {
+    ByteArrayInputStream newInputStream() {
+      return new ByteArrayInputStream(buf, 0, count);
+    }
+  }
+
+  Buffer boas = new Buffer();
   ServletOutputStream servletOutputStream = new ServletOutputStream() {
     @Override
     public void write(int b) throws IOException {
@@ -195,6 +207,18 @@ public class ResponseWrapper extends SlingHttpServletResponseWrapper {
     return boas.toString("utf-8");
   }
 
+  /**
+   * @return A reader over the data written to the underlying response stream, decoded as
+   *         UTF-8. The reader works on the buffered data in place, so large bodies are not
+   *         copied.
+   * @throws UnsupportedEncodingException
+   *           Failed to encode.
+   */
+  public Reader getDataAsReader() throws UnsupportedEncodingException {
+    pw.close();
+    return new InputStreamReader(boas.newInputStream(), "utf-8");
+  }
+
   /**
    * @return The data written to the underlying response stream.
    */
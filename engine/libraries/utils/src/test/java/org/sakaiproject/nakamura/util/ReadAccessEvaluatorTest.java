@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.jackrabbit.api.JackrabbitSession;
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ *
+ */
+public class ReadAccessEvaluatorTest {
+
+  private JackrabbitSession session;
+  private UserManager userManager;
+  private final Map<String, Authorizable> authorizables = new HashMap<String, Authorizable>();
+  private Group students;
+
+  @Before
+  public void setUp() throws RepositoryException {
+    session = createNiceMock(JackrabbitSession.class);
+    userManager = createNiceMock(UserManager.class);
+    expect(session.getUserManager()).andReturn(userManager).anyTimes();
+    IAnswer<Authorizable> byName = new IAnswer<Authorizable>() {
+      public Authorizable answer() throws Throwable {
+        Object arg = EasyMock.getCurrentArguments()[0];
+        String name = arg instanceof Principal ? ((Principal) arg).getName() : (String) arg;
+        return authorizables.get(name);
+      }
+    };
+    expect(userManager.getAuthorizable(isA(String.class))).andAnswer(byName).anyTimes();
+    expect(userManager.getAuthorizable(isA(Principal.class))).andAnswer(byName)
+        .anyTimes();
+    replay(userManager);
+
+    students = createGroup("students", false);
+    createGroup("sakai-dynamic", true);
+    createUser("jack", students);
+    createUser("jill", students);
+    createUser("bob");
+  }
+
+  @Test
+  public void testUserBeforeGroupBeforeEveryone() throws RepositoryException {
+    // /a/b lets students read but not jill or anyone else, so the root letting
+    // everyone read does not matter.
+    Node ab = createNode("/a/b", 2, createAcl(ace("students", true, "jcr:read"), ace(
+        "jill", false, "jcr:all"), ace("everyone", false, "jcr:read")));
+    Node a = createNode("/a", 1, null);
+    Node root = createNode("/", 0, createAcl(ace("everyone", true, "jcr:read")));
+    link(ab, a);
+    link(a, root);
+    replay(session, ab, a, root);
+
+    ReadAccessEvaluator evaluator = new ReadAccessEvaluator(session, "/a/b/activity");
+    Map<String, Boolean> result = evaluator.canRead(Arrays.asList("jack", "jill", "bob",
+        "nobody"));
+    assertEquals(Boolean.TRUE, result.get("jack"));
+    assertEquals(Boolean.FALSE, result.get("jill"));
+    assertEquals(Boolean.FALSE, result.get("bob"));
+    assertEquals(Boolean.FALSE, result.get("nobody"));
+  }
+
+  @Test
+  public void testEntriesWithoutReadAreIgnored() throws RepositoryException {
+    Node ab = createNode("/a/b", 1, createAcl(ace("students", false, "jcr:write")));
+    Node root = createNode("/", 0, createAcl(ace("everyone", true, "jcr:read")));
+    link(ab, root);
+    replay(session, ab, root);
+
+    ReadAccessEvaluator evaluator = new ReadAccessEvaluator(session, "/a/b");
+    assertEquals(Boolean.TRUE, evaluator.canRead("jack"));
+  }
+
+  @Test
+  public void testUndecidable() throws RepositoryException {
+    Node ab = createNode("/a/b", 1, createAcl(ace("sakai-dynamic", true, "jcr:read"),
+        ace("jack", true, "jcr:read")));
+    Node root = createNode("/", 0, createAcl(ace("everyone", false, "jcr:read")));
+    link(ab, root);
+    replay(session, ab, root);
+
+    ReadAccessEvaluator evaluator = new ReadAccessEvaluator(session, "/a/b");
+    // jack is decided by his own entry, bob might be in the dynamic group.
+    assertEquals(Boolean.TRUE, evaluator.canRead("jack"));
+    assertNull(evaluator.canRead("bob"));
+    assertNull(evaluator.canRead("admin"));
+  }
+
+  private Node createNode(String path, int depth, Node acl) throws RepositoryException {
+    Node node = createNiceMock(Node.class);
+    expect(session.nodeExists(path)).andReturn(true).anyTimes();
+    expect(session.getNode(path)).andReturn(node).anyTimes();
+    expect(node.getDepth()).andReturn(depth).anyTimes();
+    expect(node.hasNode("rep:policy")).andReturn(acl != null).anyTimes();
+    expect(node.getNode("rep:policy")).andReturn(acl).anyTimes();
+    return node;
+  }
+
+  private void link(Node child, Node parent) throws RepositoryException {
+    expect(child.getParent()).andReturn(parent).anyTimes();
+  }
+
+  private Node createAcl(Node... aces) throws RepositoryException {
+    Node acl = createNiceMock(Node.class);
+    final List<Node> l = Arrays.asList(aces);
+    expect(acl.getNodes()).andAnswer(new IAnswer<NodeIterator>() {
+      public NodeIterator answer() throws Throwable {
+        return new ListNodeIterator(l);
+      }
+    }).anyTimes();
+    replay(acl);
+    return acl;
+  }
+
+  private Node ace(String principalName, boolean allow, String privilege)
+      throws RepositoryException {
+    Node ace = createNiceMock(Node.class);
+    Property principal = createNiceMock(Property.class);
+    expect(principal.getString()).andReturn(principalName).anyTimes();
+    Value value = createNiceMock(Value.class);
+    expect(value.getString()).andReturn(privilege).anyTimes();
+    Property privileges = createNiceMock(Property.class);
+    expect(privileges.isMultiple()).andReturn(true).anyTimes();
+    expect(privileges.getValues()).andReturn(new Value[] { value }).anyTimes();
+    expect(ace.hasProperty("rep:principalName")).andReturn(true).anyTimes();
+    expect(ace.getProperty("rep:principalName")).andReturn(principal).anyTimes();
+    expect(ace.hasProperty("rep:privileges")).andReturn(true).anyTimes();
+    expect(ace.getProperty("rep:privileges")).andReturn(privileges).anyTimes();
+    expect(ace.isNodeType("rep:GrantACE")).andReturn(allow).anyTimes();
+    expect(ace.getPath()).andReturn("/ace/" + principalName).anyTimes();
+    replay(ace, principal, value, privileges);
+    return ace;
+  }
+
+  private Group createGroup(String id, boolean dynamic) throws RepositoryException {
+    Group group = createNiceMock(Group.class);
+    expect(group.getID()).andReturn(id).anyTimes();
+    expect(group.isGroup()).andReturn(true).anyTimes();
+    expect(group.getPrincipal()).andReturn(principal(id)).anyTimes();
+    expect(group.hasProperty("dynamic")).andReturn(dynamic).anyTimes();
+    if (dynamic) {
+      Value value = createNiceMock(Value.class);
+      expect(value.getString()).andReturn("true").anyTimes();
+      replay(value);
+      expect(group.getProperty("dynamic")).andReturn(new Value[] { value }).anyTimes();
+    }
+    replay(group);
+    authorizables.put(id, group);
+    return group;
+  }
+
+  private void createUser(String id, final Group... groups) throws RepositoryException {
+    Authorizable user = createNiceMock(Authorizable.class);
+    expect(user.getID()).andReturn(id).anyTimes();
+    expect(user.isGroup()).andReturn(false).anyTimes();
+    expect(user.getPrincipal()).andReturn(principal(id)).anyTimes();
+    expect(user.memberOf()).andAnswer(new IAnswer<Iterator<Group>>() {
+      public Iterator<Group> answer() throws Throwable {
+        return new ArrayList<Group>(Arrays.asList(groups)).iterator();
+      }
+    }).anyTimes();
+    replay(user);
+    authorizables.put(id, user);
+  }
+
+  private static class ListNodeIterator implements NodeIterator {
+    private final List<Node> nodes;
+    private int position;
+
+    private ListNodeIterator(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    public Node nextNode() {
+      return nodes.get(position++);
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public long getSize() {
+      return nodes.size();
+    }
+
+    public void skip(long skipNum) {
+      position += skipNum;
+    }
+
+    public boolean hasNext() {
+      return position < nodes.size();
+    }
+
+    public Object next() {
+      return nextNode();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private Principal principal(final String name) {
+    return new Principal() {
+      public String getName() {
+        return name;
+      }
+    };
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ResolutionCacheTest {
+
+  @Test
+  public void testGetAndInvalidate() {
+    ResolutionCache cache = new ResolutionCache(10, 60000L);
+    assertNull(cache.get("alice"));
+    cache.put("alice", "/_user/a/al/alice", 2000);
+    cache.putNotFound("mallory", 4000);
+    assertEquals("/_user/a/al/alice", cache.get("alice"));
+    assertSame(ResolutionCache.NOT_FOUND, cache.get("mallory"));
+
+    cache.invalidate("mallory");
+    assertNull(cache.get("mallory"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getNegativeHits());
+    assertEquals(2, cache.getMisses());
+    assertEquals(0.5, cache.getHitRatio(), 0.001);
+    assertEquals(3, cache.getAverageResolutionTime());
+    assertEquals(1, cache.getInvalidations());
+  }
+
+  @Test
+  public void testNotFoundExpires() throws Exception {
+    ResolutionCache cache = new ResolutionCache(10, 1L);
+    cache.putNotFound("mallory", 0);
+    Thread.sleep(10);
+    assertNull(cache.get("mallory"));
+
+    cache = new ResolutionCache(10, 0L);
+    cache.putNotFound("mallory", 0);
+    assertNull(cache.get("mallory"));
+  }
+
+  @Test
+  public void testNotFoundHeldApart() {
+    ResolutionCache cache = new ResolutionCache(2, 60000L);
+    cache.put("a", "/a", 0);
+    cache.put("b", "/b", 0);
+    // a scan of made up ids leaves the paths, and holds no more than the limit.
+    for (int i = 0; i < ResolutionCache.MAX_NOT_FOUND + 10; i++) {
+      cache.putNotFound("x" + i, 0);
+    }
+    assertEquals("/a", cache.get("a"));
+    assertEquals("/b", cache.get("b"));
+    assertEquals(ResolutionCache.MAX_NOT_FOUND, cache.getNotFoundEntries());
+    assertNull(cache.get("x0"));
+    assertSame(ResolutionCache.NOT_FOUND, cache.get("x" + ResolutionCache.MAX_NOT_FOUND));
+
+    // an id that is then found is no longer held as not found.
+    cache.put("x20", "/x20", 0);
+    assertEquals("/x20", cache.get("x20"));
+    assertEquals(ResolutionCache.MAX_NOT_FOUND - 1, cache.getNotFoundEntries());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedIsDropped() {
+    ResolutionCache cache = new ResolutionCache(2, 60000L);
+    cache.put("a", "/a", 0);
+    cache.put("b", "/b", 0);
+    cache.get("a");
+    cache.put("c", "/c", 0);
+    assertEquals(2, cache.getEntries());
+    assertNull(cache.get("b"));
+    assertEquals("/a", cache.get("a"));
+  }
+}
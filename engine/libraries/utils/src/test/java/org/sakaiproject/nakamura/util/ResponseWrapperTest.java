@@ -25,6 +25,7 @@ import org.apache.sling.api.SlingHttpServletResponse;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.Dictionary;
 
 /**
@@ -70,4 +71,19 @@ public class ResponseWrapperTest {
 
   }
 
+  @Test
+  public void testDataAsReader() throws IOException {
+    SlingHttpServletResponse response = createMock(SlingHttpServletResponse.class);
+    ResponseWrapper wrapper = new ResponseWrapper(response);
+    wrapper.getOutputStream().write("caf\u00e9".getBytes("UTF-8"));
+    Reader reader = wrapper.getDataAsReader();
+    StringBuilder sb = new StringBuilder();
+    for (int c = reader.read(); c != -1; c = reader.read()) {
+      sb.append((char) c);
+    }
+    assertEquals("caf\u00e9", sb.toString());
+    // Reading does not consume the buffer.
+    assertEquals("caf\u00e9", wrapper.getDataAsString());
+  }
+
 }